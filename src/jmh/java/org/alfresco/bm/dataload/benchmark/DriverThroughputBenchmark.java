@@ -0,0 +1,155 @@
+/*
+ * #%L
+ * Alfresco Benchmark Load Data
+ * %%
+ * Copyright (C) 2005 - 2018 Alfresco Software Limited
+ * %%
+ * This file is part of the Alfresco software.
+ * If the software was purchased under a paid Alfresco license, the terms of
+ * the paid license agreement will prevail.  Otherwise, the software is
+ * provided under the following open source license terms:
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+package org.alfresco.bm.dataload.benchmark;
+
+import com.mongodb.DB;
+import com.mongodb.MongoClient;
+import com.mongodb.MongoClientURI;
+import org.alfresco.bm.BMDataLoadTest;
+import org.alfresco.bm.common.mongo.MongoDBFactory;
+import org.alfresco.bm.common.util.junit.tools.BMTestRunner;
+import org.alfresco.bm.common.util.junit.tools.MongoDBForTestsFactory;
+import org.alfresco.bm.dataload.mock.LatencyDistribution;
+import org.alfresco.bm.dataload.mock.MockAlfrescoServer;
+import org.alfresco.bm.user.UserDataServiceImpl;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Drives the complete event chain, from site preparation to folder cleanup, against a
+ * {@link MockAlfrescoServer mock server}.  With the server latency at zero, the run time is the
+ * driver's own overhead; the request counters give the driver-side requests per second.
+ *
+ * @since 3.0
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 1)
+@Measurement(iterations = 3)
+public class DriverThroughputBenchmark
+{
+    @State(Scope.Benchmark)
+    public static class Server
+    {
+        @Param({ "fixed:0", "exponential:20" })
+        public String latency;
+
+        @Param({ "0.0", "0.01" })
+        public double errorRate;
+
+        public MockAlfrescoServer server;
+
+        @Setup(Level.Trial)
+        public void start() throws Exception
+        {
+            server = new MockAlfrescoServer(0, 256);
+            server.setLatency(LatencyDistribution.parse(latency));
+            server.setErrorRate(errorRate);
+            server.start();
+        }
+
+        @TearDown(Level.Trial)
+        public void stop() throws Exception
+        {
+            server.stop();
+        }
+    }
+
+    /**
+     * Requests seen by the server during the measured run, reported next to the run time
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Requests
+    {
+        public long requests;
+        public long injectedErrors;
+        public long bytesUploaded;
+    }
+
+    @Benchmark
+    public void loadData(Server server, Requests requests) throws Exception
+    {
+        long requestsBefore = server.server.getRequestCount();
+        long errorsBefore = server.server.getErrorCount();
+        long bytesBefore = server.server.getBytesReceived();
+
+        MongoDBForTestsFactory mongoFactory = new MongoDBForTestsFactory();
+        try
+        {
+            String mongoHost = new MongoClientURI(mongoFactory.getMongoURIWithoutDB()).getHosts().get(0);
+            DB db = new MongoDBFactory(new MongoClient(mongoHost), BMDataLoadTest.MONGO_TEST_DATABASE).getObject();
+            UserDataServiceImpl userDataService = new UserDataServiceImpl(db, "mirror.bench.users");
+            userDataService.afterPropertiesSet();
+            BMDataLoadTest.createSomeUsers(userDataService, 10, 10);
+
+            Properties props = new Properties();
+            // The driver finds the mock server through the test properties alone
+            props.setProperty("alfresco.server", "localhost");
+            props.setProperty("alfresco.port", String.valueOf(server.server.getPort()));
+            props.setProperty("mirror.users", "mirror.bench.users");
+            props.setProperty("mirror.sites", "mirror.bench.sites");
+            props.setProperty("mirror.siteMembers", "mirror.bench.siteMembers");
+            props.setProperty("mirror.fileFolders", "mirror.bench.filefolders");
+            props.setProperty("load.sitesCount", "20");
+            props.setProperty("load.usersPerSite", "5");
+            props.setProperty("load.siteCreationDelay", "0");
+            props.setProperty("load.siteMemberCreationDelay", "0");
+            props.setProperty("siteLoad.subfolders", "3");
+            props.setProperty("siteLoad.maxDepth", "2");
+            props.setProperty("siteLoad.filesPerFolder", "10");
+            props.setProperty("siteLoad.maxActiveLoaders", "32");
+            props.setProperty("siteLoad.loadCheckDelay", "100");
+
+            BMTestRunner testRunner = new BMTestRunner(3600000L);
+            testRunner.run(mongoHost, null, props);
+        }
+        finally
+        {
+            mongoFactory.destroy();
+        }
+
+        requests.requests += server.server.getRequestCount() - requestsBefore;
+        requests.injectedErrors += server.server.getErrorCount() - errorsBefore;
+        requests.bytesUploaded += server.server.getBytesReceived() - bytesBefore;
+    }
+}
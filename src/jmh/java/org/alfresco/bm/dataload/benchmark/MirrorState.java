@@ -0,0 +1,183 @@
+/*
+ * #%L
+ * Alfresco Benchmark Load Data
+ * %%
+ * Copyright (C) 2005 - 2018 Alfresco Software Limited
+ * %%
+ * This file is part of the Alfresco software.
+ * If the software was purchased under a paid Alfresco license, the terms of
+ * the paid license agreement will prevail.  Otherwise, the software is
+ * provided under the following open source license terms:
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+package org.alfresco.bm.dataload.benchmark;
+
+import com.mongodb.DB;
+import org.alfresco.bm.BMDataLoadTest;
+import org.alfresco.bm.cm.FolderData;
+import org.alfresco.bm.common.session.MongoSessionService;
+import org.alfresco.bm.common.util.junit.tools.MongoDBForTestsFactory;
+import org.alfresco.bm.data.DataCreationState;
+import org.alfresco.bm.dataload.files.BulkFileFolderService;
+import org.alfresco.bm.dataload.sites.CreateSite;
+import org.alfresco.bm.dataload.sites.PrepareSites;
+import org.alfresco.bm.site.SiteData;
+import org.alfresco.bm.site.SiteDataServiceImpl;
+import org.alfresco.bm.site.SiteMemberData;
+import org.alfresco.bm.site.SiteRole;
+import org.alfresco.bm.site.SiteVisibility;
+import org.alfresco.bm.user.UserDataServiceImpl;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * A mirror dataset seeded into an embedded MongoDB instance, shared by all the benchmarks of a trial.
+ * <p/>
+ * Each site gets a complete document library tree of {@link #SUBFOLDERS} subfolders, {@link #MAX_DEPTH} levels deep
+ * counting the document library, which is the shape of the load model.  Every other folder still needs files and
+ * every other folder just above the deepest level still needs a subfolder, so that the scheduler queries find work
+ * spread across the whole mirror rather than at its start.  The folders are seeded in bulk, one batch per site.
+ *
+ * @since 3.0
+ */
+@State(Scope.Benchmark)
+public class MirrorState
+{
+    public static final int SUBFOLDERS = 5;
+    public static final int MAX_DEPTH = 3;
+    /** The mirror level of the deepest folders, where the document library is at level 3 */
+    public static final int MAX_LEVEL = MAX_DEPTH + 2;
+    public static final int FILES_PER_FOLDER = 100;
+    public static final int USERS_PER_SITE = 10;
+    public static final String SITE_FORMAT = "Site-%s-%05d";
+    public static final String DOMAIN = "D00";
+
+    /** The number of folders seeded into the file-folder mirror */
+    @Param({ "10000", "1000000", "10000000" })
+    public int folders;
+
+    public MongoDBForTestsFactory mongoFactory;
+    public MongoSessionService sessionService;
+    public UserDataServiceImpl userDataService;
+    public SiteDataServiceImpl siteDataService;
+    public BulkFileFolderService fileFolderService;
+    public int sites;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception
+    {
+        mongoFactory = new MongoDBForTestsFactory();
+        DB db = mongoFactory.getObject();
+        sessionService = new MongoSessionService(db, "sessions");
+        sessionService.start();
+        userDataService = new UserDataServiceImpl(db, "users");
+        userDataService.afterPropertiesSet();
+        siteDataService = new SiteDataServiceImpl(db, "sites", "siteMembers");
+        siteDataService.afterPropertiesSet();
+        fileFolderService = new BulkFileFolderService(db, "filefolders");
+        fileFolderService.afterPropertiesSet();
+
+        // A single domain keeps the site IDs predictable for the planners
+        BMDataLoadTest.createSomeUsers(userDataService, 1, 100);
+
+        int foldersPerSite = 0;
+        for (int depth = 0, width = 1; depth < MAX_DEPTH; depth++, width *= SUBFOLDERS)
+        {
+            foldersPerSite += width;
+        }
+        sites = Math.max(1, folders / foldersPerSite);
+        for (int siteNumber = 0; siteNumber < sites; siteNumber++)
+        {
+            seedSite(siteNumber);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception
+    {
+        mongoFactory.destroy();
+    }
+
+    private void seedSite(int siteNumber)
+    {
+        String siteId = String.format(SITE_FORMAT, DOMAIN, siteNumber);
+
+        SiteData site = new SiteData();
+        site.setDescription("");
+        site.setSiteId(siteId);
+        site.setSitePreset("preset");
+        site.setTitle(siteId);
+        site.setVisibility(SiteVisibility.getRandomVisibility());
+        site.setType("{http://www.alfresco.org/model/site/1.0}site");
+        site.setDomain(DOMAIN);
+        site.setCreationState(DataCreationState.Created);
+        siteDataService.addSite(site);
+
+        for (int i = 0; i < USERS_PER_SITE; i++)
+        {
+            SiteMemberData member = new SiteMemberData();
+            member.setUsername(String.format("U%03d@%s", (siteNumber + i) % 100, DOMAIN));
+            member.setSiteId(siteId);
+            member.setRole(i == 0 ? SiteRole.SiteManager.toString() : SiteRole.SiteCollaborator.toString());
+            member.setCreationState(DataCreationState.Created);
+            siteDataService.addSiteMember(member);
+        }
+
+        String docLibPath = "/" + CreateSite.PATH_SNIPPET_SITES + "/" + siteId + "/" + CreateSite.PATH_SNIPPET_DOCLIB;
+        List<FolderData> folders = new ArrayList<FolderData>();
+        seedFolder(folders, docLibPath, 0, siteNumber);
+        fileFolderService.createNewFolders(folders);
+    }
+
+    private void seedFolder(List<FolderData> folders, String path, int depth, int branch)
+    {
+        boolean deepest = depth == MAX_DEPTH - 1;
+        long folderCount = 0L;
+        if (!deepest)
+        {
+            // Folders just above the deepest level are one subfolder short on every other branch
+            folderCount = (depth == MAX_DEPTH - 2 && branch % 2 == 0) ? SUBFOLDERS - 1 : SUBFOLDERS;
+        }
+        long fileCount = branch % 2 == 0 ? FILES_PER_FOLDER / 2 : FILES_PER_FOLDER;
+        folders.add(new FolderData(UUID.randomUUID().toString(), "", path, folderCount, fileCount));
+        if (!deepest)
+        {
+            for (int i = 0; i < SUBFOLDERS; i++)
+            {
+                seedFolder(folders, path + "/" + UUID.randomUUID().toString(), depth + 1, branch + i);
+            }
+        }
+    }
+
+    /**
+     * A planner that will find every site of this dataset already present
+     */
+    public PrepareSites newPrepareSites()
+    {
+        PrepareSites prepareSites = new PrepareSites(userDataService, siteDataService);
+        prepareSites.setSitesCount(sites);
+        prepareSites.setSiteFormat(SITE_FORMAT);
+        return prepareSites;
+    }
+}
@@ -0,0 +1,140 @@
+/*
+ * #%L
+ * Alfresco Benchmark Load Data
+ * %%
+ * Copyright (C) 2005 - 2018 Alfresco Software Limited
+ * %%
+ * This file is part of the Alfresco software.
+ * If the software was purchased under a paid Alfresco license, the terms of
+ * the paid license agreement will prevail.  Otherwise, the software is
+ * provided under the following open source license terms:
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+package org.alfresco.bm.dataload.files;
+
+import com.mongodb.DBObject;
+import org.alfresco.bm.cm.FolderData;
+import org.alfresco.bm.common.EventResult;
+import org.alfresco.bm.dataload.benchmark.MirrorState;
+import org.alfresco.bm.driver.event.Event;
+import org.alfresco.bm.user.UserData;
+import org.apache.commons.lang3.time.StopWatch;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks of the folder scheduling and loading paths that query the file-folder mirror.
+ *
+ * @since 3.0
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class SiteLoaderBenchmark
+{
+    private static final int MAX_ACTIVE_LOADERS = 8;
+    private static final Log logger = LogFactory.getLog(SiteLoaderBenchmark.class);
+
+    private MirrorState mirror;
+    private ScheduleSiteLoaders scheduleSiteLoaders;
+    private List<FolderData> sampleFolders;
+    private int sampleIndex;
+    private EventResult lastSchedule;
+
+    @Setup(Level.Trial)
+    public void setUp(MirrorState mirror)
+    {
+        this.mirror = mirror;
+        // The scheduler places its deepest folders at its maximum depth plus the three levels down to the document library
+        this.scheduleSiteLoaders = new ScheduleSiteLoaders(mirror.sessionService, mirror.fileFolderService, MirrorState.SUBFOLDERS,
+            MirrorState.MAX_LEVEL - 3, MirrorState.FILES_PER_FOLDER, MAX_ACTIVE_LOADERS, 100L);
+        this.sampleFolders = mirror.fileFolderService.getFoldersByCounts("", 4L, null, null, null, null, null, 0, 1000);
+    }
+
+    /**
+     * Release the folder locks and loader sessions taken by the last scheduling pass so that
+     * every invocation sees the same mirror.
+     */
+    @TearDown(Level.Invocation)
+    public void releaseLoaders()
+    {
+        if (lastSchedule == null)
+        {
+            return;
+        }
+        for (Event event : lastSchedule.getNextEvents())
+        {
+            DBObject data = (DBObject) event.getData();
+            if (data == null)
+            {
+                continue;
+            }
+            String context = (String) data.get(ScheduleSiteLoaders.FIELD_CONTEXT);
+            String path = (String) data.get(ScheduleSiteLoaders.FIELD_PATH);
+            mirror.fileFolderService.deleteFolder(context, path + "/locked", false);
+            mirror.sessionService.endSession(event.getSessionId());
+        }
+        lastSchedule = null;
+    }
+
+    @Benchmark
+    public EventResult scheduleSiteLoaders() throws Exception
+    {
+        lastSchedule = scheduleSiteLoaders.processEvent(null, new StopWatch());
+        return lastSchedule;
+    }
+
+    @Benchmark
+    public List<FolderData> foldersNeedingFiles()
+    {
+        long maxLevel = MirrorState.MAX_LEVEL;
+        return mirror.fileFolderService
+            .getFoldersByCounts("", null, maxLevel, null, null, 0L, Long.valueOf(MirrorState.FILES_PER_FOLDER - 1), 0, 100);
+    }
+
+    @Benchmark
+    public List<FolderData> foldersNeedingFolders()
+    {
+        long maxLevel = MirrorState.MAX_LEVEL;
+        return mirror.fileFolderService
+            .getFoldersByCounts("", null, maxLevel - 1, 0L, Long.valueOf(MirrorState.SUBFOLDERS - 1), null, null, 0, 100);
+    }
+
+    @Benchmark
+    public UserData getUser()
+    {
+        FolderData folder = sampleFolders.get(sampleIndex++ % sampleFolders.size());
+        return SiteFolderLoader.getUser(mirror.siteDataService, mirror.userDataService, folder, logger);
+    }
+}
@@ -0,0 +1,68 @@
+/*
+ * #%L
+ * Alfresco Benchmark Load Data
+ * %%
+ * Copyright (C) 2005 - 2018 Alfresco Software Limited
+ * %%
+ * This file is part of the Alfresco software.
+ * If the software was purchased under a paid Alfresco license, the terms of
+ * the paid license agreement will prevail.  Otherwise, the software is
+ * provided under the following open source license terms:
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+package org.alfresco.bm.dataload.sites;
+
+import org.alfresco.bm.common.EventResult;
+import org.alfresco.bm.dataload.benchmark.MirrorState;
+import org.apache.commons.lang3.time.StopWatch;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks of the site and site member planners when restarted against a fully prepared mirror.
+ * <p/>
+ * Every site and membership already exists, so these measure the cost of finding that out.
+ *
+ * @since 3.0
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 1)
+@Measurement(iterations = 5)
+public class SitePlannerBenchmark
+{
+    @Benchmark
+    public EventResult prepareSites(MirrorState mirror) throws Exception
+    {
+        return mirror.newPrepareSites().processEvent(null, new StopWatch());
+    }
+
+    @Benchmark
+    public EventResult prepareSiteMembers(MirrorState mirror) throws Exception
+    {
+        PrepareSiteMembers prepareSiteMembers = new PrepareSiteMembers(mirror.userDataService, mirror.siteDataService);
+        prepareSiteMembers.setUsersPerSite(MirrorState.USERS_PER_SITE);
+        return prepareSiteMembers.processEvent(null, new StopWatch());
+    }
+}
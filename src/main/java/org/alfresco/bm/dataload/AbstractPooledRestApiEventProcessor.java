@@ -0,0 +1,226 @@
+/*
+ * #%L
+ * Alfresco Benchmark Load Data
+ * %%
+ * Copyright (C) 2005 - 2018 Alfresco Software Limited
+ * %%
+ * This file is part of the Alfresco software.
+ * If the software was purchased under a paid Alfresco license, the terms of
+ * the paid license agreement will prevail.  Otherwise, the software is
+ * provided under the following open source license terms:
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+package org.alfresco.bm.dataload;
+
+import org.alfresco.bm.AbstractRestApiEventProcessor;
+import org.alfresco.bm.user.UserData;
+import org.alfresco.rest.core.RestWrapper;
+import org.alfresco.rest.model.RestNodeBodyModel;
+import org.alfresco.utility.model.ContentModel;
+import org.alfresco.utility.model.UserModel;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Base class for processors that make REST calls on the hot path.
+ * <p/>
+ * Each worker thread keeps its own {@link RestWrapper} and user models so that repeated calls do not rebuild the
+ * client or look up the same credentials for every request.  The wrapper rebuilds its request specification after
+ * every call, so request specifications and multipart bodies are not kept between calls; each call sets the
+ * authenticated user explicitly, so nothing leaks from one request to the next.  Node references and folder bodies
+ * are cheap to build and are made afresh for each call, so callers may keep them.
+ * <p/>
+ * Calls made on short-lived threads, such as the virtual threads of a {@link RestCallExecutor}, are wrapped
+ * {@link #withClient(Callable) with a client} borrowed from a shared pool instead, since a thread of their own
+ * would build a new client for every call.  The event's timer is left to the thread that started those calls.
+ *
+ * @since 3.0
+ */
+public abstract class AbstractPooledRestApiEventProcessor extends AbstractRestApiEventProcessor
+{
+    /** The number of user models kept by each thread */
+    public static final int DEFAULT_USER_CACHE_SIZE = 256;
+
+    private final ThreadLocal<RestClientSlot> slots = new ThreadLocal<RestClientSlot>();
+    private final Queue<RestClientSlot> idleSlots = new ConcurrentLinkedQueue<RestClientSlot>();
+
+    /**
+     * @return the REST client reserved for the calling thread
+     */
+    @Override
+    public RestWrapper getRestWrapper()
+    {
+        RestClientSlot slot = getSlot();
+        if (slot.restWrapper == null)
+        {
+            slot.restWrapper = super.getRestWrapper();
+        }
+        return slot.restWrapper;
+    }
+
+    /**
+     * @return a user model for the given user, shared by the calls made on the calling thread; callers must not
+     * change it
+     */
+    protected UserModel getUserModel(UserData user)
+    {
+        return getUserModel(user.getUsername(), user.getPassword());
+    }
+
+    /**
+     * @return a user model with the given credentials, shared by the calls made on the calling thread; callers
+     * must not change it
+     */
+    protected UserModel getUserModel(String username, String password)
+    {
+        Map<String, UserModel> userModels = getSlot().userModels;
+        UserModel userModel = userModels.get(username);
+        if (userModel == null)
+        {
+            userModel = new UserModel();
+            userModel.setUsername(username);
+            userModels.put(username, userModel);
+        }
+        // Passwords can change between runs
+        userModel.setPassword(password);
+        return userModel;
+    }
+
+    /**
+     * @return a new reference to the given node
+     */
+    protected ContentModel getNodeRef(String nodeId)
+    {
+        ContentModel nodeRef = new ContentModel();
+        nodeRef.setNodeRef(nodeId);
+        return nodeRef;
+    }
+
+    /**
+     * @return a new <b>cm:folder</b> creation body
+     */
+    protected RestNodeBodyModel getFolderBody(String folderName)
+    {
+        RestNodeBodyModel folderBody = new RestNodeBodyModel();
+        folderBody.setName(folderName);
+        folderBody.setNodeType("cm:folder");
+        return folderBody;
+    }
+
+    /**
+     * Wrap a call so that it uses a client borrowed from the shared pool for as long as it runs, whichever
+     * thread it runs on.  The timer is not touched by the wrapped call; the thread that waits for it should
+     * {@link #resumeTimer() resume} the timer while it waits.
+     */
+    protected <T> Callable<T> withClient(Callable<T> call)
+    {
+        return () ->
+        {
+            RestClientSlot slot = idleSlots.poll();
+            if (slot == null)
+            {
+                slot = new RestClientSlot(true);
+            }
+            RestClientSlot previous = slots.get();
+            slots.set(slot);
+            try
+            {
+                return call.call();
+            }
+            finally
+            {
+                if (previous == null)
+                {
+                    slots.remove();
+                }
+                else
+                {
+                    slots.set(previous);
+                }
+                idleSlots.offer(slot);
+            }
+        };
+    }
+
+    /**
+     * Time the call only if it is not {@link #withClient(Callable) borrowing} a client
+     */
+    @Override
+    protected void resumeTimer()
+    {
+        if (!isBorrowed())
+        {
+            super.resumeTimer();
+        }
+    }
+
+    /**
+     * Time the call only if it is not {@link #withClient(Callable) borrowing} a client
+     */
+    @Override
+    protected void suspendTimer()
+    {
+        if (!isBorrowed())
+        {
+            super.suspendTimer();
+        }
+    }
+
+    private boolean isBorrowed()
+    {
+        RestClientSlot slot = slots.get();
+        return slot != null && slot.borrowed;
+    }
+
+    private RestClientSlot getSlot()
+    {
+        RestClientSlot slot = slots.get();
+        if (slot == null)
+        {
+            slot = new RestClientSlot(false);
+            slots.set(slot);
+        }
+        return slot;
+    }
+
+    /**
+     * The client and user models belonging to one worker thread or lent out from the pool
+     */
+    private static class RestClientSlot
+    {
+        private final boolean borrowed;
+        private RestWrapper restWrapper;
+        private final Map<String, UserModel> userModels = new LinkedHashMap<String, UserModel>(64, 0.75f, true)
+        {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, UserModel> eldest)
+            {
+                return size() > DEFAULT_USER_CACHE_SIZE;
+            }
+        };
+
+        private RestClientSlot(boolean borrowed)
+        {
+            this.borrowed = borrowed;
+        }
+    }
+}
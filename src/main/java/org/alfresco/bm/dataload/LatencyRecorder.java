@@ -0,0 +1,95 @@
+/*
+ * #%L
+ * Alfresco Benchmark Load Data
+ * %%
+ * Copyright (C) 2005 - 2018 Alfresco Software Limited
+ * %%
+ * This file is part of the Alfresco software.
+ * If the software was purchased under a paid Alfresco license, the terms of
+ * the paid license agreement will prevail.  Otherwise, the software is
+ * provided under the following open source license terms:
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+package org.alfresco.bm.dataload;
+
+import com.mongodb.BasicDBObjectBuilder;
+import com.mongodb.DBObject;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps every latency recorded over a short period so that exact percentiles can be reported for it.
+ * <p/>
+ * Meant for the results of one event that covers many requests; use a new recorder for each event.
+ *
+ * @since 3.0
+ */
+public class LatencyRecorder
+{
+    private long[] latencies = new long[1024];
+    private int count;
+
+    /**
+     * @param latencyNanos the latency of one request in nanoseconds
+     */
+    public synchronized void record(long latencyNanos)
+    {
+        if (count == latencies.length)
+        {
+            latencies = Arrays.copyOf(latencies, count * 2);
+        }
+        latencies[count++] = latencyNanos;
+    }
+
+    public synchronized int getCount()
+    {
+        return count;
+    }
+
+    /**
+     * @return the count, mean and percentiles of the latencies in milliseconds; only the count if there are none
+     */
+    public synchronized DBObject toDBObject()
+    {
+        BasicDBObjectBuilder builder = BasicDBObjectBuilder.start().add("count", count);
+        if (count == 0)
+        {
+            return builder.get();
+        }
+        long[] sorted = Arrays.copyOf(latencies, count);
+        Arrays.sort(sorted);
+        long total = 0L;
+        for (long latency : sorted)
+        {
+            total += latency;
+        }
+        return builder
+            .add("mean", TimeUnit.NANOSECONDS.toMillis(total / count))
+            .add("p50", percentile(sorted, 0.50))
+            .add("p90", percentile(sorted, 0.90))
+            .add("p99", percentile(sorted, 0.99))
+            .add("p999", percentile(sorted, 0.999))
+            .add("max", TimeUnit.NANOSECONDS.toMillis(sorted[count - 1]))
+            .get();
+    }
+
+    private static long percentile(long[] sorted, double fraction)
+    {
+        int index = (int) Math.ceil(fraction * sorted.length) - 1;
+        return TimeUnit.NANOSECONDS.toMillis(sorted[Math.max(0, index)]);
+    }
+}
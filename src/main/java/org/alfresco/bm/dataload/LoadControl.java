@@ -0,0 +1,439 @@
+/*
+ * #%L
+ * Alfresco Benchmark Load Data
+ * %%
+ * Copyright (C) 2005 - 2018 Alfresco Software Limited
+ * %%
+ * This file is part of the Alfresco software.
+ * If the software was purchased under a paid Alfresco license, the terms of
+ * the paid license agreement will prevail.  Otherwise, the software is
+ * provided under the following open source license terms:
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+package org.alfresco.bm.dataload;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Changes made to a running load by the {@link LoadControlController control endpoint}.
+ * <p/>
+ * Scheduling can be paused and resumed, and any of the throttling settings can be overridden.  Each setting is
+ * looked up with the value configured for the test run, which is used until it is overridden.  The schedulers
+ * look again on each pass, so changes apply within one pass.
+ * <p/>
+ * There is one instance for each test run on the driver, found by the test and run names, so changing one run
+ * never affects another run on the same driver.  The instance is {@link #release() released} when its run stops.
+ * Nothing is shared between drivers: when several drivers run the load, each one schedules its own share of the
+ * work and must be changed through its own endpoint.
+ * <p/>
+ * The overrides are held in one {@link Overrides immutable} object that is replaced whole, so a scheduler pass
+ * sees either all or none of the values set by one call.
+ *
+ * @since 3.0
+ */
+public class LoadControl
+{
+    public static final long DEFAULT_PAUSE_CHECK_DELAY = 5000L;
+
+    private static final ConcurrentMap<String, LoadControl> INSTANCES = new ConcurrentHashMap<String, LoadControl>();
+
+    private final String test;
+    private final String run;
+    private volatile boolean paused;
+    private volatile long pauseCheckDelay;
+    private volatile Overrides overrides;
+    private volatile long lastChanged;
+
+    /**
+     * @param test the name of the test
+     * @param run  the name of the test run
+     * @return the instance for the test run, created if this is the first time it is asked for
+     */
+    public static LoadControl getInstance(String test, String run)
+    {
+        String key = getKey(test, run);
+        LoadControl loadControl = INSTANCES.get(key);
+        if (loadControl == null)
+        {
+            LoadControl newLoadControl = new LoadControl(test, run);
+            loadControl = INSTANCES.putIfAbsent(key, newLoadControl);
+            if (loadControl == null)
+            {
+                loadControl = newLoadControl;
+            }
+        }
+        return loadControl;
+    }
+
+    /**
+     * @param test the name of the test
+     * @param run  the name of the test run
+     * @return the instance for the test run or <tt>null</tt> if the run is not on this driver
+     */
+    public static LoadControl findInstance(String test, String run)
+    {
+        return INSTANCES.get(getKey(test, run));
+    }
+
+    private static String getKey(String test, String run)
+    {
+        if (test == null || run == null)
+        {
+            throw new IllegalArgumentException("Both the test and the run must be named.");
+        }
+        return test + "/" + run;
+    }
+
+    /**
+     * Use {@link #getInstance(String, String)} other than in tests
+     */
+    public LoadControl(String test, String run)
+    {
+        this.test = test;
+        this.run = run;
+        this.pauseCheckDelay = DEFAULT_PAUSE_CHECK_DELAY;
+        this.overrides = Overrides.NONE;
+    }
+
+    public String getTest()
+    {
+        return test;
+    }
+
+    public String getRun()
+    {
+        return run;
+    }
+
+    /**
+     * Stop holding the instance for the test run, as the run has stopped
+     */
+    public void release()
+    {
+        INSTANCES.remove(getKey(test, run), this);
+    }
+
+    private void changed()
+    {
+        lastChanged = System.currentTimeMillis();
+    }
+
+    /**
+     * Resume scheduling and forget all overrides
+     */
+    public void reset()
+    {
+        paused = false;
+        clearOverrides();
+    }
+
+    /**
+     * Stop scheduling new work.  Work already scheduled carries on.
+     */
+    public void pause()
+    {
+        paused = true;
+        changed();
+    }
+
+    /**
+     * Carry on scheduling new work
+     */
+    public void resume()
+    {
+        paused = false;
+        changed();
+    }
+
+    public boolean isPaused()
+    {
+        return paused;
+    }
+
+    /**
+     * Override the {@link #DEFAULT_PAUSE_CHECK_DELAY default} milliseconds between checks while paused
+     */
+    public void setPauseCheckDelay(long pauseCheckDelay)
+    {
+        this.pauseCheckDelay = pauseCheckDelay;
+    }
+
+    public long getPauseCheckDelay()
+    {
+        return pauseCheckDelay;
+    }
+
+    /**
+     * @return the overrides in force, never <tt>null</tt>.  Read several settings from the one object to be sure
+     *         they were set together.
+     */
+    public Overrides getOverrides()
+    {
+        return overrides;
+    }
+
+    /**
+     * Forget all overrides, going back to the configured settings.  Pausing is not affected.
+     */
+    public synchronized void clearOverrides()
+    {
+        overrides = Overrides.NONE;
+        changed();
+    }
+
+    /**
+     * @param maxActiveLoaders the number of folder loaders to keep active or <tt>null</tt> to use the configured number
+     */
+    public synchronized void setMaxActiveLoaders(Integer maxActiveLoaders)
+    {
+        checkNotNegative("maxActiveLoaders", maxActiveLoaders);
+        Overrides current = overrides;
+        overrides = new Overrides(maxActiveLoaders, current.loadCheckDelay, current.siteCreationDelay,
+            current.siteMemberCreationDelay, current.arrivalRate, current.requestRenditions);
+        changed();
+    }
+
+    public int getMaxActiveLoaders(int configured)
+    {
+        return overrides.getMaxActiveLoaders(configured);
+    }
+
+    /**
+     * @param loadCheckDelay the milliseconds between checks for free loaders or <tt>null</tt> to use the configured time
+     */
+    public synchronized void setLoadCheckDelay(Long loadCheckDelay)
+    {
+        checkNotNegative("loadCheckDelay", loadCheckDelay);
+        Overrides current = overrides;
+        overrides = new Overrides(current.maxActiveLoaders, loadCheckDelay, current.siteCreationDelay,
+            current.siteMemberCreationDelay, current.arrivalRate, current.requestRenditions);
+        changed();
+    }
+
+    public long getLoadCheckDelay(long configured)
+    {
+        return overrides.getLoadCheckDelay(configured);
+    }
+
+    /**
+     * @param siteCreationDelay the milliseconds between site creations or <tt>null</tt> to use the configured time
+     */
+    public synchronized void setSiteCreationDelay(Long siteCreationDelay)
+    {
+        checkNotNegative("siteCreationDelay", siteCreationDelay);
+        Overrides current = overrides;
+        overrides = new Overrides(current.maxActiveLoaders, current.loadCheckDelay, siteCreationDelay,
+            current.siteMemberCreationDelay, current.arrivalRate, current.requestRenditions);
+        changed();
+    }
+
+    public long getSiteCreationDelay(long configured)
+    {
+        return overrides.getSiteCreationDelay(configured);
+    }
+
+    /**
+     * @param siteMemberCreationDelay the milliseconds between site member creations or <tt>null</tt> to use the
+     *                                configured time
+     */
+    public synchronized void setSiteMemberCreationDelay(Long siteMemberCreationDelay)
+    {
+        checkNotNegative("siteMemberCreationDelay", siteMemberCreationDelay);
+        Overrides current = overrides;
+        overrides = new Overrides(current.maxActiveLoaders, current.loadCheckDelay, current.siteCreationDelay,
+            siteMemberCreationDelay, current.arrivalRate, current.requestRenditions);
+        changed();
+    }
+
+    public long getSiteMemberCreationDelay(long configured)
+    {
+        return overrides.getSiteMemberCreationDelay(configured);
+    }
+
+    /**
+     * @param arrivalRate the requests to start each second when loading at an arrival rate or <tt>null</tt> to use
+     *                    the configured rate
+     */
+    public synchronized void setArrivalRate(Double arrivalRate)
+    {
+        checkArrivalRate(arrivalRate);
+        Overrides current = overrides;
+        overrides = new Overrides(current.maxActiveLoaders, current.loadCheckDelay, current.siteCreationDelay,
+            current.siteMemberCreationDelay, arrivalRate, current.requestRenditions);
+        changed();
+    }
+
+    public double getArrivalRate(double configured)
+    {
+        return overrides.getArrivalRate(configured);
+    }
+
+    /**
+     * @param requestRenditions whether renditions are requested for new files or <tt>null</tt> to use the
+     *                          configured setting
+     */
+    public synchronized void setRequestRenditions(Boolean requestRenditions)
+    {
+        Overrides current = overrides;
+        overrides = new Overrides(current.maxActiveLoaders, current.loadCheckDelay, current.siteCreationDelay,
+            current.siteMemberCreationDelay, current.arrivalRate, requestRenditions);
+        changed();
+    }
+
+    public boolean isRequestRenditions(boolean configured)
+    {
+        return overrides.isRequestRenditions(configured);
+    }
+
+    /**
+     * Override several settings at once.  Nothing is changed unless all the values are valid.
+     *
+     * @param maxActiveLoaders        see {@link #setMaxActiveLoaders(Integer)} or <tt>null</tt> to leave as is
+     * @param loadCheckDelay          see {@link #setLoadCheckDelay(Long)} or <tt>null</tt> to leave as is
+     * @param siteCreationDelay       see {@link #setSiteCreationDelay(Long)} or <tt>null</tt> to leave as is
+     * @param siteMemberCreationDelay see {@link #setSiteMemberCreationDelay(Long)} or <tt>null</tt> to leave as is
+     * @param arrivalRate             see {@link #setArrivalRate(Double)} or <tt>null</tt> to leave as is
+     * @param requestRenditions       see {@link #setRequestRenditions(Boolean)} or <tt>null</tt> to leave as is
+     */
+    public synchronized void setOverrides(Integer maxActiveLoaders, Long loadCheckDelay, Long siteCreationDelay,
+        Long siteMemberCreationDelay, Double arrivalRate, Boolean requestRenditions)
+    {
+        checkNotNegative("maxActiveLoaders", maxActiveLoaders);
+        checkNotNegative("loadCheckDelay", loadCheckDelay);
+        checkNotNegative("siteCreationDelay", siteCreationDelay);
+        checkNotNegative("siteMemberCreationDelay", siteMemberCreationDelay);
+        checkArrivalRate(arrivalRate);
+
+        Overrides current = overrides;
+        overrides = new Overrides(
+            maxActiveLoaders != null ? maxActiveLoaders : current.maxActiveLoaders,
+            loadCheckDelay != null ? loadCheckDelay : current.loadCheckDelay,
+            siteCreationDelay != null ? siteCreationDelay : current.siteCreationDelay,
+            siteMemberCreationDelay != null ? siteMemberCreationDelay : current.siteMemberCreationDelay,
+            arrivalRate != null ? arrivalRate : current.arrivalRate,
+            requestRenditions != null ? requestRenditions : current.requestRenditions);
+        changed();
+    }
+
+    private static void checkNotNegative(String name, Number value)
+    {
+        if (value != null && value.doubleValue() < 0.0)
+        {
+            throw new IllegalArgumentException("'" + name + "' must be zero or greater");
+        }
+    }
+
+    private static void checkArrivalRate(Double arrivalRate)
+    {
+        if (arrivalRate != null && arrivalRate <= 0.0)
+        {
+            throw new IllegalArgumentException("'arrivalRate' must be greater than zero; pause the load instead");
+        }
+    }
+
+    /**
+     * @return the pause state and the overrides in force, leaving out those not overridden
+     */
+    public Map<String, Object> getState()
+    {
+        Map<String, Object> state = new LinkedHashMap<String, Object>();
+        state.put("test", test);
+        state.put("run", run);
+        state.put("paused", paused);
+        state.put("lastChanged", lastChanged);
+        state.put("overrides", overrides.toMap());
+        return state;
+    }
+
+    /**
+     * The settings overridden at one time.  A <tt>null</tt> value means the configured setting is used.
+     */
+    public static final class Overrides
+    {
+        public static final Overrides NONE = new Overrides(null, null, null, null, null, null);
+
+        private final Integer maxActiveLoaders;
+        private final Long loadCheckDelay;
+        private final Long siteCreationDelay;
+        private final Long siteMemberCreationDelay;
+        private final Double arrivalRate;
+        private final Boolean requestRenditions;
+
+        private Overrides(Integer maxActiveLoaders, Long loadCheckDelay, Long siteCreationDelay, Long siteMemberCreationDelay,
+            Double arrivalRate, Boolean requestRenditions)
+        {
+            this.maxActiveLoaders = maxActiveLoaders;
+            this.loadCheckDelay = loadCheckDelay;
+            this.siteCreationDelay = siteCreationDelay;
+            this.siteMemberCreationDelay = siteMemberCreationDelay;
+            this.arrivalRate = arrivalRate;
+            this.requestRenditions = requestRenditions;
+        }
+
+        public int getMaxActiveLoaders(int configured)
+        {
+            return maxActiveLoaders == null ? configured : maxActiveLoaders;
+        }
+
+        public long getLoadCheckDelay(long configured)
+        {
+            return loadCheckDelay == null ? configured : loadCheckDelay;
+        }
+
+        public long getSiteCreationDelay(long configured)
+        {
+            return siteCreationDelay == null ? configured : siteCreationDelay;
+        }
+
+        public long getSiteMemberCreationDelay(long configured)
+        {
+            return siteMemberCreationDelay == null ? configured : siteMemberCreationDelay;
+        }
+
+        public double getArrivalRate(double configured)
+        {
+            return arrivalRate == null ? configured : arrivalRate;
+        }
+
+        public boolean isRequestRenditions(boolean configured)
+        {
+            return requestRenditions == null ? configured : requestRenditions;
+        }
+
+        private Map<String, Object> toMap()
+        {
+            Map<String, Object> map = new LinkedHashMap<String, Object>();
+            putIfSet(map, "maxActiveLoaders", maxActiveLoaders);
+            putIfSet(map, "loadCheckDelay", loadCheckDelay);
+            putIfSet(map, "siteCreationDelay", siteCreationDelay);
+            putIfSet(map, "siteMemberCreationDelay", siteMemberCreationDelay);
+            putIfSet(map, "arrivalRate", arrivalRate);
+            putIfSet(map, "requestRenditions", requestRenditions);
+            return map;
+        }
+
+        private static void putIfSet(Map<String, Object> map, String key, Object value)
+        {
+            if (value != null)
+            {
+                map.put(key, value);
+            }
+        }
+    }
+}
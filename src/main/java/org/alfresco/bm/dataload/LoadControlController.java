@@ -0,0 +1,155 @@
+/*
+ * #%L
+ * Alfresco Benchmark Load Data
+ * %%
+ * Copyright (C) 2005 - 2018 Alfresco Software Limited
+ * %%
+ * This file is part of the Alfresco software.
+ * If the software was purchased under a paid Alfresco license, the terms of
+ * the paid license agreement will prevail.  Otherwise, the software is
+ * provided under the following open source license terms:
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+package org.alfresco.bm.dataload;
+
+import org.springframework.http.HttpStatus;
+import org.springframework.web.bind.annotation.DeleteMapping;
+import org.springframework.web.bind.annotation.ExceptionHandler;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.ResponseStatus;
+import org.springframework.web.bind.annotation.RestController;
+
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * HTTP endpoint on the driver to pause, resume and throttle a running load through the {@link LoadControl} of
+ * its test run.
+ * <p/>
+ * <pre>
+ *   GET    /api/load/{test}/{run}              the pause state and overrides in force
+ *   POST   /api/load/{test}/{run}/pause        stop scheduling new work
+ *   POST   /api/load/{test}/{run}/resume       carry on scheduling
+ *   POST   /api/load/{test}/{run}/reset        carry on scheduling with the configured settings
+ *   POST   /api/load/{test}/{run}/overrides    override any of maxActiveLoaders, loadCheckDelay, siteCreationDelay,
+ *                                              siteMemberCreationDelay, arrivalRate and requestRenditions
+ *   DELETE /api/load/{test}/{run}/overrides    go back to the configured settings
+ * </pre>
+ * Every call returns the resulting state.  A run that is not on the driver gives a <tt>404</tt> and an invalid
+ * setting gives a <tt>400</tt> with nothing changed.  Only the driver called is changed, so when several drivers
+ * run the load the same call must be made to each of them.
+ *
+ * @since 3.0
+ */
+@RestController
+@RequestMapping("/api/load/{test}/{run}")
+public class LoadControlController
+{
+    @GetMapping
+    public Map<String, Object> getState(@PathVariable("test") String test, @PathVariable("run") String run)
+    {
+        return getLoadControl(test, run).getState();
+    }
+
+    @PostMapping("/pause")
+    public Map<String, Object> pause(@PathVariable("test") String test, @PathVariable("run") String run)
+    {
+        LoadControl loadControl = getLoadControl(test, run);
+        loadControl.pause();
+        return loadControl.getState();
+    }
+
+    @PostMapping("/resume")
+    public Map<String, Object> resume(@PathVariable("test") String test, @PathVariable("run") String run)
+    {
+        LoadControl loadControl = getLoadControl(test, run);
+        loadControl.resume();
+        return loadControl.getState();
+    }
+
+    @PostMapping("/reset")
+    public Map<String, Object> reset(@PathVariable("test") String test, @PathVariable("run") String run)
+    {
+        LoadControl loadControl = getLoadControl(test, run);
+        loadControl.reset();
+        return loadControl.getState();
+    }
+
+    @PostMapping("/overrides")
+    public Map<String, Object> setOverrides(
+        @PathVariable("test") String test,
+        @PathVariable("run") String run,
+        @RequestParam(value = "maxActiveLoaders", required = false) Integer maxActiveLoaders,
+        @RequestParam(value = "loadCheckDelay", required = false) Long loadCheckDelay,
+        @RequestParam(value = "siteCreationDelay", required = false) Long siteCreationDelay,
+        @RequestParam(value = "siteMemberCreationDelay", required = false) Long siteMemberCreationDelay,
+        @RequestParam(value = "arrivalRate", required = false) Double arrivalRate,
+        @RequestParam(value = "requestRenditions", required = false) Boolean requestRenditions)
+    {
+        LoadControl loadControl = getLoadControl(test, run);
+        loadControl.setOverrides(maxActiveLoaders, loadCheckDelay, siteCreationDelay, siteMemberCreationDelay, arrivalRate, requestRenditions);
+        return loadControl.getState();
+    }
+
+    @DeleteMapping("/overrides")
+    public Map<String, Object> clearOverrides(@PathVariable("test") String test, @PathVariable("run") String run)
+    {
+        LoadControl loadControl = getLoadControl(test, run);
+        loadControl.clearOverrides();
+        return loadControl.getState();
+    }
+
+    private LoadControl getLoadControl(String test, String run)
+    {
+        LoadControl loadControl = LoadControl.findInstance(test, run);
+        if (loadControl == null)
+        {
+            throw new UnknownRunException("Test run '" + test + "/" + run + "' is not running on this driver.");
+        }
+        return loadControl;
+    }
+
+    @ExceptionHandler(IllegalArgumentException.class)
+    @ResponseStatus(HttpStatus.BAD_REQUEST)
+    public Map<String, Object> handleIllegalArgument(IllegalArgumentException e)
+    {
+        return Collections.<String, Object>singletonMap("error", e.getMessage());
+    }
+
+    @ExceptionHandler(UnknownRunException.class)
+    @ResponseStatus(HttpStatus.NOT_FOUND)
+    public Map<String, Object> handleUnknownRun(UnknownRunException e)
+    {
+        return Collections.<String, Object>singletonMap("error", e.getMessage());
+    }
+
+    /**
+     * Thrown when there is no {@link LoadControl} for the test run named
+     */
+    static class UnknownRunException extends RuntimeException
+    {
+        private static final long serialVersionUID = 1L;
+
+        UnknownRunException(String message)
+        {
+            super(message);
+        }
+    }
+}
@@ -0,0 +1,275 @@
+/*
+ * #%L
+ * Alfresco Benchmark Load Data
+ * %%
+ * Copyright (C) 2005 - 2018 Alfresco Software Limited
+ * %%
+ * This file is part of the Alfresco software.
+ * If the software was purchased under a paid Alfresco license, the terms of
+ * the paid license agreement will prevail.  Otherwise, the software is
+ * provided under the following open source license terms:
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+package org.alfresco.bm.dataload;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Runs the blocking REST calls that make up one event, either one after the other on the event's own thread or
+ * all at once with each call on its own virtual thread.
+ * <p/>
+ * A virtual thread gives up its carrier thread while it waits for a response, so thousands of calls can be waiting
+ * on the server without each one holding a platform thread and its stack.  The number of calls waiting across the
+ * whole driver is capped by {@link #setMaxInFlight(int) maxInFlight}.  Code run by the calls must not wait while
+ * holding a monitor, as that pins the carrier thread; use a {@link java.util.concurrent.locks.Lock} instead.
+ * <p/>
+ * Virtual threads need Java 21 or later but the driver is built to run on older versions too, so they are created
+ * reflectively.  If they are not available the driver falls back to the {@link #MODE_PLATFORM platform} mode.
+ * <p/>
+ * Only the {@link org.alfresco.bm.dataload.files.SiteFolderLoader folder loader} uses it, as it is the only processor
+ * with several independent calls in one event.  {@link org.alfresco.bm.dataload.sites.CreateSite CreateSite} makes
+ * two calls that depend on each other, while {@link org.alfresco.bm.dataload.sites.CreateSiteMember CreateSiteMember}
+ * and {@link org.alfresco.bm.dataload.files.CleanSiteFolder CleanSiteFolder} make one each, so there is nothing for
+ * them to overlap.  Their calls are made on the event's own thread, which belongs to the framework's event
+ * controller.
+ * <p/>
+ * In both modes the first failure stops the calls: the platform mode makes no further calls and the virtual mode
+ * cancels the calls that have not finished.  The calls after a failure that had already finished in the virtual
+ * mode are not undone, so these must be calls that can be counted on their own.
+ *
+ * @since 3.0
+ */
+public class RestCallExecutor implements InitializingBean, DisposableBean
+{
+    /** Make the calls one after the other on the event's own thread */
+    public static final String MODE_PLATFORM = "platform";
+    /** Make the calls concurrently, each on its own virtual thread */
+    public static final String MODE_VIRTUAL = "virtual";
+
+    public static final String DEFAULT_MODE = MODE_PLATFORM;
+    public static final int DEFAULT_MAX_IN_FLIGHT = 1024;
+
+    private static Log logger = LogFactory.getLog(RestCallExecutor.class);
+
+    private String mode;
+    private int maxInFlight;
+
+    private ExecutorService executor;
+    private Semaphore inFlight;
+
+    public RestCallExecutor()
+    {
+        this.mode = DEFAULT_MODE;
+        this.maxInFlight = DEFAULT_MAX_IN_FLIGHT;
+    }
+
+    /**
+     * Make the calls concurrently on threads from the given executor rather than on virtual threads.  Used by tests
+     * that must run without virtual threads.
+     */
+    RestCallExecutor(ExecutorService executor, int maxInFlight)
+    {
+        this.mode = MODE_VIRTUAL;
+        this.maxInFlight = maxInFlight;
+        this.executor = executor;
+        this.inFlight = new Semaphore(maxInFlight);
+    }
+
+    /**
+     * Override the {@link #DEFAULT_MODE default} execution mode: {@link #MODE_PLATFORM platform} or
+     * {@link #MODE_VIRTUAL virtual}
+     */
+    public void setMode(String mode)
+    {
+        if (!MODE_PLATFORM.equals(mode) && !MODE_VIRTUAL.equals(mode))
+        {
+            throw new IllegalArgumentException("Execution mode must be '" + MODE_PLATFORM + "' or '" + MODE_VIRTUAL + "': " + mode);
+        }
+        this.mode = mode;
+    }
+
+    /**
+     * Override the {@link #DEFAULT_MAX_IN_FLIGHT default} number of calls made on virtual threads that may be
+     * waiting for a response at once.  Calls beyond this wait, on their virtual threads, for others to finish.
+     */
+    public void setMaxInFlight(int maxInFlight)
+    {
+        if (maxInFlight < 1)
+        {
+            throw new IllegalArgumentException("'maxInFlight' must be at least 1.");
+        }
+        this.maxInFlight = maxInFlight;
+    }
+
+    @Override
+    public synchronized void afterPropertiesSet()
+    {
+        if (!MODE_VIRTUAL.equals(mode) || executor != null)
+        {
+            return;
+        }
+        executor = newVirtualThreadExecutor();
+        if (executor == null)
+        {
+            logger.warn("Virtual threads need Java 21 or later; REST calls will be made on the event threads.  Java version: " +
+                System.getProperty("java.version"));
+            return;
+        }
+        inFlight = new Semaphore(maxInFlight);
+    }
+
+    @Override
+    public synchronized void destroy()
+    {
+        if (executor == null)
+        {
+            return;
+        }
+        executor.shutdownNow();
+        executor = null;
+    }
+
+    /**
+     * @return <tt>true</tt> if calls are made concurrently on virtual threads, or on the threads of the executor
+     * given in tests
+     */
+    public boolean isVirtual()
+    {
+        return executor != null;
+    }
+
+    /**
+     * Make all the calls and wait for them to finish.  The calls are made concurrently if running on
+     * {@link #isVirtual() virtual threads}; otherwise they are made in order on the calling thread.  Either way the
+     * first failure stops the calls that have not finished.
+     *
+     * @return the results of the calls in the order given
+     * @throws Exception the failure of the first call that failed
+     */
+    public <T> List<T> invokeAll(List<? extends Callable<T>> calls) throws Exception
+    {
+        List<T> results = new ArrayList<T>(calls.size());
+        ExecutorService executor = this.executor;
+        if (executor == null || calls.size() < 2)
+        {
+            for (Callable<T> call : calls)
+            {
+                results.add(call.call());
+            }
+            return results;
+        }
+
+        CompletionService<T> completionService = new ExecutorCompletionService<T>(executor);
+        List<Future<T>> futures = new ArrayList<Future<T>>(calls.size());
+        for (Callable<T> call : calls)
+        {
+            futures.add(completionService.submit(() ->
+            {
+                inFlight.acquire();
+                try
+                {
+                    return call.call();
+                }
+                finally
+                {
+                    inFlight.release();
+                }
+            }));
+        }
+        Throwable failure = null;
+        try
+        {
+            // Take the calls as they finish, so that a failure is seen however late in the list it comes
+            for (int i = 0; i < futures.size(); i++)
+            {
+                try
+                {
+                    completionService.take().get();
+                }
+                catch (ExecutionException e)
+                {
+                    failure = e.getCause();
+                    break;
+                }
+            }
+        }
+        catch (InterruptedException e)
+        {
+            cancelAll(futures);
+            throw e;
+        }
+        if (failure != null)
+        {
+            cancelAll(futures);
+        }
+        if (failure instanceof Exception)
+        {
+            throw (Exception) failure;
+        }
+        else if (failure instanceof Error)
+        {
+            throw (Error) failure;
+        }
+        for (Future<T> future : futures)
+        {
+            results.add(future.get());
+        }
+        return results;
+    }
+
+    private static void cancelAll(List<? extends Future<?>> futures)
+    {
+        for (Future<?> future : futures)
+        {
+            future.cancel(true);
+        }
+    }
+
+    /**
+     * @return an executor that starts a named virtual thread for each task or <tt>null</tt> if the runtime
+     * has no virtual threads
+     */
+    private static ExecutorService newVirtualThreadExecutor()
+    {
+        try
+        {
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, "RestCall-", 0L);
+            ThreadFactory threadFactory = (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+            return (ExecutorService) Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class).invoke(null, threadFactory);
+        }
+        catch (ReflectiveOperationException e)
+        {
+            return null;
+        }
+    }
+}
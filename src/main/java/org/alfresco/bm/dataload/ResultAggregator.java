@@ -0,0 +1,282 @@
+/*
+ * #%L
+ * Alfresco Benchmark Load Data
+ * %%
+ * Copyright (C) 2005 - 2018 Alfresco Software Limited
+ * %%
+ * This file is part of the Alfresco software.
+ * If the software was purchased under a paid Alfresco license, the terms of
+ * the paid license agreement will prevail.  Otherwise, the software is
+ * provided under the following open source license terms:
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+package org.alfresco.bm.dataload;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.BasicDBObjectBuilder;
+import com.mongodb.DBObject;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Rolls up the results of successful high-volume events into per-interval summaries so that the results
+ * store is not written a full document per event.
+ * <p/>
+ * When enabled, an event's full result is kept only for one in every {@link #setSampleEvery(int) N} events.
+ * The other successful events record nothing.  When an interval closes, its summary is attached to the result
+ * of the next event to be aggregated, so summaries end up in the results store alongside the samples.
+ * Failures are not aggregated and are always recorded in full by the processors.
+ * <p/>
+ * Every loader passes through here, so a {@link Lock} is used rather than a monitor: loaders running on virtual
+ * threads then wait for it without pinning their carrier threads.
+ *
+ * @since 3.0
+ */
+public class ResultAggregator
+{
+    public static final long DEFAULT_INTERVAL = 60000L;
+    public static final int DEFAULT_SAMPLE_EVERY = 1000;
+
+    public static final String FIELD_SUMMARIES = "summaries";
+
+    /** Upper bounds of the latency histogram buckets in milliseconds; a last bucket catches everything above */
+    private static final long[] LATENCY_BOUNDS = { 1, 2, 5, 10, 20, 50, 100, 200, 500, 1000, 2000, 5000, 10000, 20000, 60000 };
+
+    private boolean enabled;
+    private long interval;
+    private int sampleEvery;
+
+    private final Lock lock = new ReentrantLock();
+    private final Map<String, Interval> intervals = new LinkedHashMap<String, Interval>();
+    private long eventCount;
+
+    public ResultAggregator()
+    {
+        this.interval = DEFAULT_INTERVAL;
+        this.sampleEvery = DEFAULT_SAMPLE_EVERY;
+    }
+
+    public boolean isEnabled()
+    {
+        return enabled;
+    }
+
+    /**
+     * Switch aggregation on.  When off, every event result is recorded in full.
+     */
+    public void setEnabled(boolean enabled)
+    {
+        this.enabled = enabled;
+    }
+
+    /**
+     * Override the {@link #DEFAULT_INTERVAL default} time covered by each summary in milliseconds
+     */
+    public void setInterval(long interval)
+    {
+        this.interval = interval;
+    }
+
+    /**
+     * Override the {@link #DEFAULT_SAMPLE_EVERY default} rate at which successful events are kept in full.
+     * One in every <tt>sampleEvery</tt> events is kept; use 0 to keep none.
+     */
+    public void setSampleEvery(int sampleEvery)
+    {
+        this.sampleEvery = sampleEvery;
+    }
+
+    /**
+     * Fold the outcome of a successful event into the current interval.
+     *
+     * @param eventName the name of the event
+     * @param detail    the full result of the event
+     * @param latency   how long the event took in milliseconds
+     * @param folders   the number of folders the event created or deleted
+     * @param files     the number of files the event created
+     * @param bytes     the number of content bytes the event sent
+     * @return the data to record against the event: the detail if aggregation is off or the event is sampled,
+     * any summaries that have just closed, or <tt>null</tt> if there is nothing worth recording
+     */
+    public Object aggregate(String eventName, DBObject detail, long latency, long folders, long files, long bytes)
+    {
+        return aggregate(eventName, detail, latency, folders, files, bytes, Collections.<String, Long>emptyMap());
+    }
+
+    /**
+     * Fold the outcome of a successful event into the current interval, including a breakdown of the bytes sent.
+     *
+     * @param bytesByBucket the content bytes sent, keyed by the kind of content
+     * @see #aggregate(String, DBObject, long, long, long, long)
+     */
+    public Object aggregate(String eventName, DBObject detail, long latency, long folders, long files, long bytes,
+        Map<String, Long> bytesByBucket)
+    {
+        if (!enabled)
+        {
+            return detail;
+        }
+        lock.lock();
+        try
+        {
+            return aggregate(eventName, detail, latency, folders, files, bytes, bytesByBucket, System.currentTimeMillis());
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    private Object aggregate(String eventName, DBObject detail, long latency, long folders, long files, long bytes,
+        Map<String, Long> bytesByBucket, long now)
+    {
+        List<DBObject> closed = close(now, false);
+
+        Interval current = intervals.get(eventName);
+        if (current == null)
+        {
+            current = new Interval(eventName, now);
+            intervals.put(eventName, current);
+        }
+        current.add(latency, folders, files, bytes, bytesByBucket);
+
+        eventCount++;
+        DBObject result = (sampleEvery > 0 && eventCount % sampleEvery == 0) ? detail : null;
+        if (!closed.isEmpty())
+        {
+            if (result == null)
+            {
+                result = new BasicDBObject();
+            }
+            result.put(FIELD_SUMMARIES, closed);
+        }
+        return result;
+    }
+
+    /**
+     * Close all the intervals regardless of age, so that the tail of the load is not lost.
+     *
+     * @return the summaries of the intervals that were open
+     */
+    public List<DBObject> flush()
+    {
+        lock.lock();
+        try
+        {
+            return close(System.currentTimeMillis(), true);
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    private List<DBObject> close(long now, boolean all)
+    {
+        List<DBObject> closed = new ArrayList<DBObject>(0);
+        for (Iterator<Interval> iterator = intervals.values().iterator(); iterator.hasNext(); )
+        {
+            Interval open = iterator.next();
+            if (all || now - open.start >= interval)
+            {
+                closed.add(open.toDBObject(now));
+                iterator.remove();
+            }
+        }
+        return closed;
+    }
+
+    /**
+     * Running totals for one event name
+     */
+    private static class Interval
+    {
+        private final String eventName;
+        private final long start;
+        private long count;
+        private long folders;
+        private long files;
+        private long bytes;
+        private long totalLatency;
+        private long maxLatency;
+        private final long[] histogram = new long[LATENCY_BOUNDS.length + 1];
+        private final Map<String, Long> bytesByBucket = new TreeMap<String, Long>();
+
+        private Interval(String eventName, long start)
+        {
+            this.eventName = eventName;
+            this.start = start;
+        }
+
+        private void add(long latency, long folders, long files, long bytes, Map<String, Long> bytesByBucket)
+        {
+            for (Map.Entry<String, Long> entry : bytesByBucket.entrySet())
+            {
+                Long total = this.bytesByBucket.get(entry.getKey());
+                this.bytesByBucket.put(entry.getKey(), (total == null ? 0L : total) + entry.getValue());
+            }
+            this.count++;
+            this.folders += folders;
+            this.files += files;
+            this.bytes += bytes;
+            this.totalLatency += latency;
+            this.maxLatency = Math.max(maxLatency, latency);
+            int bucket = 0;
+            while (bucket < LATENCY_BOUNDS.length && latency > LATENCY_BOUNDS[bucket])
+            {
+                bucket++;
+            }
+            histogram[bucket]++;
+        }
+
+        private DBObject toDBObject(long end)
+        {
+            BasicDBObjectBuilder latencies = BasicDBObjectBuilder.start();
+            for (int i = 0; i < histogram.length; i++)
+            {
+                if (histogram[i] > 0)
+                {
+                    String bucket = i < LATENCY_BOUNDS.length ? "le" + LATENCY_BOUNDS[i] : "gt" + LATENCY_BOUNDS[LATENCY_BOUNDS.length - 1];
+                    latencies.add(bucket, histogram[i]);
+                }
+            }
+            BasicDBObjectBuilder summary = BasicDBObjectBuilder.start()
+                .add("event", eventName)
+                .add("start", start)
+                .add("end", end)
+                .add("count", count)
+                .add("folders", folders)
+                .add("files", files)
+                .add("bytes", bytes)
+                .add("meanLatency", count == 0 ? 0L : totalLatency / count)
+                .add("maxLatency", maxLatency)
+                .add("latencyHistogram", latencies.get());
+            if (!bytesByBucket.isEmpty())
+            {
+                summary.add("bytesByBucket", new BasicDBObject(bytesByBucket));
+            }
+            return summary.get();
+        }
+    }
+}
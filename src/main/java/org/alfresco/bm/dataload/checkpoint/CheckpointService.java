@@ -0,0 +1,350 @@
+/*
+ * #%L
+ * Alfresco Benchmark Load Data
+ * %%
+ * Copyright (C) 2005 - 2018 Alfresco Software Limited
+ * %%
+ * This file is part of the Alfresco software.
+ * If the software was purchased under a paid Alfresco license, the terms of
+ * the paid license agreement will prevail.  Otherwise, the software is
+ * provided under the following open source license terms:
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+package org.alfresco.bm.dataload.checkpoint;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.BasicDBObjectBuilder;
+import com.mongodb.DB;
+import com.mongodb.DBCollection;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+import org.alfresco.bm.cm.FileFolderService;
+import org.alfresco.bm.cm.FolderData;
+import org.alfresco.bm.data.DataCreationState;
+import org.alfresco.bm.dataload.files.ScheduleVersionLoaders;
+import org.alfresco.bm.site.SiteData;
+import org.alfresco.bm.site.SiteDataService;
+import org.alfresco.bm.site.SiteMemberData;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.beans.factory.InitializingBean;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Records how far the load pipeline has got so that a run started after a driver dies carries on from there.
+ * <p/>
+ * The pipeline {@link #checkpoint(String, DBObject) checkpoints} the event that resumes its current phase.  Items
+ * that are claimed but not yet finished - sites and site members scheduled for creation, locked folders and folders
+ * claimed for versioning - are covered by a lease.  The progress of each item is otherwise held in the mirrors
+ * themselves, so nothing is rescanned: a lease that runs out before its item is finished has the item returned to be
+ * claimed again, and a resumed run returns all of them as nothing from the earlier run is still working on them.
+ * <p/>
+ * Folder loaders leave their locks in place, so a locked folder is only returned if it does not yet hold the
+ * folders and files its loader was to create.  Nothing in the mirror shows that a folder's versions are finished,
+ * so the {@link org.alfresco.bm.dataload.files.VersionLoader version loader} releases its lease instead.
+ *
+ * @since 3.0
+ */
+public class CheckpointService implements InitializingBean
+{
+    public static final long DEFAULT_LEASE_DURATION = 3600000L;
+
+    public static final String FIELD_PHASE = "phase";
+    public static final String FIELD_DATA = "data";
+    public static final String FIELD_UPDATED = "updated";
+
+    private static final String FIELD_ID = "_id";
+    private static final String FIELD_KIND = "kind";
+    private static final String FIELD_SITE_ID = "siteId";
+    private static final String FIELD_USERNAME = "username";
+    private static final String FIELD_CONTEXT = "context";
+    private static final String FIELD_PATH = "path";
+    private static final String FIELD_FOLDER_COUNT = "folderCount";
+    private static final String FIELD_FILE_COUNT = "fileCount";
+    private static final String FIELD_EXPIRES = "expires";
+
+    private static final String CHECKPOINT_ID = "checkpoint";
+    private static final String KIND_SITE = "site";
+    private static final String KIND_SITE_MEMBER = "siteMember";
+    private static final String KIND_FOLDER_LOCK = "folderLock";
+    private static final String KIND_VERSION_CLAIM = "versionClaim";
+    private static final String LOCKED_SUFFIX = "/locked";
+
+    private static final Log logger = LogFactory.getLog(CheckpointService.class);
+
+    private final DBCollection collection;
+    private final SiteDataService siteDataService;
+    private final FileFolderService fileFolderService;
+    private boolean enabled;
+    private long leaseDuration;
+
+    /**
+     * @param db                the database to use
+     * @param collection        the name of the collection holding the checkpoint and the leases
+     * @param siteDataService   service to return sites and site members to be claimed again
+     * @param fileFolderService service to release folder locks
+     */
+    public CheckpointService(DB db, String collection, SiteDataService siteDataService, FileFolderService fileFolderService)
+    {
+        this.collection = db.getCollection(collection);
+        this.siteDataService = siteDataService;
+        this.fileFolderService = fileFolderService;
+        this.leaseDuration = DEFAULT_LEASE_DURATION;
+    }
+
+    /**
+     * Turn checkpoints and leases on; when off, nothing is recorded
+     */
+    public void setEnabled(boolean enabled)
+    {
+        this.enabled = enabled;
+    }
+
+    public boolean isEnabled()
+    {
+        return enabled;
+    }
+
+    /**
+     * Override the {@link #DEFAULT_LEASE_DURATION default} milliseconds an item may stay claimed, after it is due
+     * to start, before it is claimed again.  This must be longer than the slowest item takes.
+     */
+    public void setLeaseDuration(long leaseDuration)
+    {
+        this.leaseDuration = leaseDuration;
+    }
+
+    @Override
+    public void afterPropertiesSet() throws Exception
+    {
+        collection.createIndex(new BasicDBObject(FIELD_EXPIRES, 1), new BasicDBObject("sparse", Boolean.TRUE));
+    }
+
+    /**
+     * Record the phase the pipeline is in and return any items whose leases have run out
+     *
+     * @param phase the name of the event that resumes the phase
+     * @param data  the data for the event or <tt>null</tt>
+     * @return the number of items returned to be claimed again
+     */
+    public int checkpoint(String phase, DBObject data)
+    {
+        if (!enabled)
+        {
+            return 0;
+        }
+        DBObject update = BasicDBObjectBuilder.start().add(FIELD_PHASE, phase).add(FIELD_DATA, data).add(FIELD_UPDATED, System.currentTimeMillis()).get();
+        collection.update(new BasicDBObject(FIELD_ID, CHECKPOINT_ID), new BasicDBObject("$set", update), true, false);
+        return reclaimLeases(System.currentTimeMillis());
+    }
+
+    /**
+     * @return the last checkpoint or <tt>null</tt> if there is none
+     */
+    public DBObject getCheckpoint()
+    {
+        return enabled ? collection.findOne(new BasicDBObject(FIELD_ID, CHECKPOINT_ID)) : null;
+    }
+
+    /**
+     * Forget the checkpoint once the pipeline has finished, so that the next run starts from the beginning
+     */
+    public void clearCheckpoint()
+    {
+        if (enabled)
+        {
+            collection.remove(new BasicDBObject(FIELD_ID, CHECKPOINT_ID));
+        }
+    }
+
+    /**
+     * Cover a site scheduled for creation, along with its manager
+     *
+     * @param start the time the creation is due to start
+     */
+    public void leaseSite(String siteId, String siteManager, long start)
+    {
+        if (!enabled)
+        {
+            return;
+        }
+        DBObject lease = BasicDBObjectBuilder.start().add(FIELD_KIND, KIND_SITE).add(FIELD_SITE_ID, siteId).add(FIELD_USERNAME, siteManager)
+            .add(FIELD_EXPIRES, start + leaseDuration).get();
+        collection.update(new BasicDBObject(FIELD_ID, KIND_SITE + ":" + siteId), lease, true, false);
+    }
+
+    /**
+     * Cover a site member scheduled for creation
+     *
+     * @param start the time the creation is due to start
+     */
+    public void leaseSiteMember(String siteId, String username, long start)
+    {
+        if (!enabled)
+        {
+            return;
+        }
+        DBObject lease = BasicDBObjectBuilder.start().add(FIELD_KIND, KIND_SITE_MEMBER).add(FIELD_SITE_ID, siteId).add(FIELD_USERNAME, username)
+            .add(FIELD_EXPIRES, start + leaseDuration).get();
+        collection.update(new BasicDBObject(FIELD_ID, KIND_SITE_MEMBER + ":" + siteId + "/" + username), lease, true, false);
+    }
+
+    /**
+     * Cover the lock on a folder being loaded
+     *
+     * @param path        the path of the folder, not of its lock
+     * @param folderCount the number of subfolders the folder holds once it is loaded
+     * @param fileCount   the number of files the folder holds once it is loaded
+     */
+    public void leaseFolderLock(String context, String path, long folderCount, long fileCount)
+    {
+        if (!enabled)
+        {
+            return;
+        }
+        DBObject lease = BasicDBObjectBuilder.start().add(FIELD_KIND, KIND_FOLDER_LOCK).add(FIELD_CONTEXT, context).add(FIELD_PATH, path)
+            .add(FIELD_FOLDER_COUNT, folderCount).add(FIELD_FILE_COUNT, fileCount)
+            .add(FIELD_EXPIRES, System.currentTimeMillis() + leaseDuration).get();
+        collection.update(new BasicDBObject(FIELD_ID, KIND_FOLDER_LOCK + ":" + context + ":" + path), lease, true, false);
+    }
+
+    /**
+     * Cover a folder claimed for versioning in the {@link ScheduleVersionLoaders#CONTEXT_VERSIONS versions} context
+     */
+    public void leaseVersionClaim(String path)
+    {
+        if (!enabled)
+        {
+            return;
+        }
+        DBObject lease = BasicDBObjectBuilder.start().add(FIELD_KIND, KIND_VERSION_CLAIM).add(FIELD_PATH, path)
+            .add(FIELD_EXPIRES, System.currentTimeMillis() + leaseDuration).get();
+        collection.update(new BasicDBObject(FIELD_ID, KIND_VERSION_CLAIM + ":" + path), lease, true, false);
+    }
+
+    /**
+     * Drop the lease on a folder once its versions are finished
+     */
+    public void releaseVersionClaim(String path)
+    {
+        if (enabled)
+        {
+            collection.remove(new BasicDBObject(FIELD_ID, KIND_VERSION_CLAIM + ":" + path));
+        }
+    }
+
+    /**
+     * Return every leased item that is not yet finished to be claimed again.  Only call this before anything
+     * in the current run has been claimed.
+     *
+     * @return the number of items returned
+     */
+    public int reclaimAllLeases()
+    {
+        return enabled ? reclaimLeases(Long.MAX_VALUE) : 0;
+    }
+
+    /**
+     * Return unfinished items whose leases ran out before the given time and drop those leases
+     */
+    private int reclaimLeases(long before)
+    {
+        DBObject query = new BasicDBObject(FIELD_EXPIRES, new BasicDBObject("$lt", before));
+        List<DBObject> leases = new ArrayList<DBObject>();
+        DBCursor cursor = collection.find(query);
+        try
+        {
+            for (DBObject lease : cursor)
+            {
+                leases.add(lease);
+            }
+        }
+        finally
+        {
+            cursor.close();
+        }
+
+        int reclaimed = 0;
+        for (DBObject lease : leases)
+        {
+            if (reclaim(lease))
+            {
+                reclaimed++;
+            }
+            collection.remove(new BasicDBObject(FIELD_ID, lease.get(FIELD_ID)));
+        }
+        if (reclaimed > 0)
+        {
+            logger.info("Reclaimed " + reclaimed + " unfinished items from " + leases.size() + " leases.");
+        }
+        return reclaimed;
+    }
+
+    /**
+     * @return <tt>true</tt> if the leased item was unfinished and can be claimed again
+     */
+    private boolean reclaim(DBObject lease)
+    {
+        String kind = (String) lease.get(FIELD_KIND);
+        String siteId = (String) lease.get(FIELD_SITE_ID);
+        String username = (String) lease.get(FIELD_USERNAME);
+        if (KIND_SITE.equals(kind))
+        {
+            SiteData site = siteDataService.getSite(siteId);
+            if (site == null || site.getCreationState() != DataCreationState.Scheduled)
+            {
+                return false;
+            }
+            siteDataService.setSiteCreationState(siteId, null, DataCreationState.NotScheduled);
+            siteDataService.setSiteMemberCreationState(siteId, username, DataCreationState.NotScheduled);
+            return true;
+        }
+        else if (KIND_SITE_MEMBER.equals(kind))
+        {
+            SiteMemberData siteMember = siteDataService.getSiteMember(siteId, username);
+            if (siteMember == null || siteMember.getCreationState() != DataCreationState.Scheduled)
+            {
+                return false;
+            }
+            siteDataService.setSiteMemberCreationState(siteId, username, DataCreationState.NotScheduled);
+            return true;
+        }
+        else if (KIND_FOLDER_LOCK.equals(kind))
+        {
+            String context = (String) lease.get(FIELD_CONTEXT);
+            String path = (String) lease.get(FIELD_PATH);
+            FolderData folder = fileFolderService.getFolder(context, path);
+            long folderCount = ((Number) lease.get(FIELD_FOLDER_COUNT)).longValue();
+            long fileCount = ((Number) lease.get(FIELD_FILE_COUNT)).longValue();
+            if (folder != null && folder.getFolderCount() >= folderCount && folder.getFileCount() >= fileCount)
+            {
+                // Loaded; the lock stays so that the folder is not picked up again
+                return false;
+            }
+            String lockPath = path + LOCKED_SUFFIX;
+            FolderData lock = fileFolderService.getFolder(context, lockPath);
+            return lock != null && fileFolderService.deleteFolder(context, lockPath, false) > 0;
+        }
+        else if (KIND_VERSION_CLAIM.equals(kind))
+        {
+            String path = (String) lease.get(FIELD_PATH);
+            return fileFolderService.deleteFolder(ScheduleVersionLoaders.CONTEXT_VERSIONS, path, false) > 0;
+        }
+        return false;
+    }
+}
@@ -0,0 +1,95 @@
+/*
+ * #%L
+ * Alfresco Benchmark Load Data
+ * %%
+ * Copyright (C) 2005 - 2018 Alfresco Software Limited
+ * %%
+ * This file is part of the Alfresco software.
+ * If the software was purchased under a paid Alfresco license, the terms of
+ * the paid license agreement will prevail.  Otherwise, the software is
+ * provided under the following open source license terms:
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+package org.alfresco.bm.dataload.checkpoint;
+
+import com.mongodb.BasicDBObjectBuilder;
+import com.mongodb.DBObject;
+import org.alfresco.bm.common.EventResult;
+import org.alfresco.bm.driver.event.AbstractEventProcessor;
+import org.alfresco.bm.driver.event.Event;
+
+import java.util.Collections;
+
+/**
+ * Start the load pipeline from its last {@link CheckpointService checkpoint}, if there is one.
+ * <p/>
+ * Items left claimed by the earlier run are returned to be claimed again before the checkpointed phase is
+ * resumed.  Those items may lie behind the position the phase had reached, so the phase then starts again from its
+ * beginning rather than from its checkpointed data.  Without a checkpoint the pipeline starts from the beginning.
+ *
+ * @since 3.0
+ */
+public class ResumeLoad extends AbstractEventProcessor
+{
+    public static final String EVENT_NAME_LOAD_STARTED = "loadStarted";
+
+    private final CheckpointService checkpointService;
+    private String eventNameLoadStarted;
+
+    /**
+     * @param checkpointService service holding the checkpoint and leases
+     */
+    public ResumeLoad(CheckpointService checkpointService)
+    {
+        super();
+
+        this.checkpointService = checkpointService;
+
+        this.eventNameLoadStarted = EVENT_NAME_LOAD_STARTED;
+    }
+
+    /**
+     * Override the {@link #EVENT_NAME_LOAD_STARTED default} event name used when there is nothing to resume
+     */
+    public void setEventNameLoadStarted(String eventNameLoadStarted)
+    {
+        this.eventNameLoadStarted = eventNameLoadStarted;
+    }
+
+    @Override
+    public EventResult processEvent(Event event) throws Exception
+    {
+        DBObject checkpoint = checkpointService.getCheckpoint();
+        if (checkpoint == null)
+        {
+            Event nextEvent = new Event(eventNameLoadStarted, null);
+            return new EventResult("No checkpoint to resume from.", Collections.singletonList(nextEvent));
+        }
+
+        int reclaimed = checkpointService.reclaimAllLeases();
+        String phase = (String) checkpoint.get(CheckpointService.FIELD_PHASE);
+        DBObject phaseData = reclaimed > 0 ? null : (DBObject) checkpoint.get(CheckpointService.FIELD_DATA);
+        Event nextEvent = new Event(phase, phaseData);
+
+        DBObject resultData = BasicDBObjectBuilder.start()
+            .add("msg", "Resuming from checkpoint.")
+            .add("phase", phase)
+            .add("checkpointed", checkpoint.get(CheckpointService.FIELD_UPDATED))
+            .add("reclaimed", reclaimed)
+            .get();
+        return new EventResult(resultData, Collections.singletonList(nextEvent));
+    }
+}
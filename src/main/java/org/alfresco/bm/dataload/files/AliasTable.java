@@ -0,0 +1,125 @@
+/*
+ * #%L
+ * Alfresco Benchmark Load Data
+ * %%
+ * Copyright (C) 2005 - 2018 Alfresco Software Limited
+ * %%
+ * This file is part of the Alfresco software.
+ * If the software was purchased under a paid Alfresco license, the terms of
+ * the paid license agreement will prevail.  Otherwise, the software is
+ * provided under the following open source license terms:
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+package org.alfresco.bm.dataload.files;
+
+import java.util.Random;
+
+/**
+ * Picks indexes according to fixed weights in constant time using Vose's alias method.
+ *
+ * @since 3.0
+ */
+public class AliasTable
+{
+    private final double[] probability;
+    private final int[] alias;
+
+    /**
+     * @param weights the relative weight of each index; none may be negative and at least one must be positive
+     */
+    public AliasTable(double[] weights)
+    {
+        int n = weights.length;
+        double sum = 0.0;
+        for (double weight : weights)
+        {
+            if (weight < 0.0 || Double.isNaN(weight))
+            {
+                throw new IllegalArgumentException("Weights may not be negative: " + weight);
+            }
+            sum += weight;
+        }
+        if (sum <= 0.0)
+        {
+            throw new IllegalArgumentException("At least one weight must be positive.");
+        }
+
+        this.probability = new double[n];
+        this.alias = new int[n];
+
+        // Scale so that the average weight is 1 and split into those below and above the average
+        double[] scaled = new double[n];
+        int[] small = new int[n];
+        int[] large = new int[n];
+        int smallCount = 0;
+        int largeCount = 0;
+        for (int i = 0; i < n; i++)
+        {
+            scaled[i] = weights[i] * n / sum;
+            if (scaled[i] < 1.0)
+            {
+                small[smallCount++] = i;
+            }
+            else
+            {
+                large[largeCount++] = i;
+            }
+        }
+        // Top up each small column from a large one
+        while (smallCount > 0 && largeCount > 0)
+        {
+            int less = small[--smallCount];
+            int more = large[--largeCount];
+            probability[less] = scaled[less];
+            alias[less] = more;
+            scaled[more] = (scaled[more] + scaled[less]) - 1.0;
+            if (scaled[more] < 1.0)
+            {
+                small[smallCount++] = more;
+            }
+            else
+            {
+                large[largeCount++] = more;
+            }
+        }
+        // Whatever is left is full, give or take rounding
+        while (largeCount > 0)
+        {
+            probability[large[--largeCount]] = 1.0;
+        }
+        while (smallCount > 0)
+        {
+            probability[small[--smallCount]] = 1.0;
+        }
+    }
+
+    /**
+     * @return the number of indexes
+     */
+    public int size()
+    {
+        return probability.length;
+    }
+
+    /**
+     * @return an index chosen according to the weights
+     */
+    public int next(Random random)
+    {
+        int column = random.nextInt(probability.length);
+        return random.nextDouble() < probability[column] ? column : alias[column];
+    }
+}
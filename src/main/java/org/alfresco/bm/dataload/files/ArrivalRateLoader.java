@@ -0,0 +1,723 @@
+/*
+ * #%L
+ * Alfresco Benchmark Load Data
+ * %%
+ * Copyright (C) 2005 - 2018 Alfresco Software Limited
+ * %%
+ * This file is part of the Alfresco software.
+ * If the software was purchased under a paid Alfresco license, the terms of
+ * the paid license agreement will prevail.  Otherwise, the software is
+ * provided under the following open source license terms:
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+package org.alfresco.bm.dataload.files;
+
+import com.mongodb.BasicDBObjectBuilder;
+import com.mongodb.DBObject;
+import org.alfresco.bm.cm.FileFolderService;
+import org.alfresco.bm.cm.FolderData;
+import org.alfresco.bm.common.EventResult;
+import org.alfresco.bm.dataload.LatencyRecorder;
+import org.alfresco.bm.dataload.LoadControl;
+import org.alfresco.bm.dataload.ResultAggregator;
+import org.alfresco.bm.dataload.checkpoint.CheckpointService;
+import org.alfresco.bm.dataload.rest.AlfrescoAsyncClient;
+import org.alfresco.bm.dataload.rest.ApiResponse;
+import org.alfresco.bm.dataload.rest.NodeMetadata;
+import org.alfresco.bm.driver.event.AbstractEventProcessor;
+import org.alfresco.bm.driver.event.Event;
+import org.alfresco.bm.driver.file.TestFileService;
+import org.alfresco.bm.site.SiteDataService;
+import org.alfresco.bm.user.UserData;
+import org.alfresco.bm.user.UserDataService;
+import org.springframework.beans.factory.DisposableBean;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Load files and folders as an open model: single folder creations and file uploads are started at a fixed
+ * {@link #ArrivalRateLoader(FileFolderService, UserDataService, SiteDataService, TestFileService, AlfrescoAsyncClient, int, int, int, double) arrival rate}
+ * whether or not earlier requests have been answered.
+ * <p/>
+ * The {@link ScheduleSiteLoaders closed-model loaders} each wait for their requests before sending more, so a slow
+ * server quietly lowers the load it is offered and its slowest moments are never measured.  Here each request
+ * has an intended start time on a fixed schedule and its latency is measured from that time, so any time spent
+ * waiting behind a slow server counts against the server.
+ * <p/>
+ * The number of requests in flight is capped by {@link #setMaxInFlight(int) maxInFlight}; once it is reached,
+ * arrivals queue up behind the cap and the time they wait is part of their latency.  How late requests were
+ * actually sent is reported as the schedule lag.
+ * <p/>
+ * Work is found and locked in the mirror exactly as the closed-model scheduler does, folders needing files first.
+ * Each event runs the schedule for a {@link #setSliceDuration(long) slice} of time and then reschedules itself,
+ * carrying the next intended start time so that the schedule does not slip between slices.
+ * <p/>
+ * Responses arrive on the I/O threads of the non-blocking client.  They are timed there and then handed to a
+ * {@link #setMirrorThreads(int) pool of their own} to be recorded in the mirror, so that the blocking MongoDB
+ * writes never hold up the network I/O of other requests.
+ *
+ * @since 3.0
+ */
+public class ArrivalRateLoader extends AbstractEventProcessor implements DisposableBean
+{
+    public static final String EVENT_NAME_LOAD_AT_ARRIVAL_RATE = "loadAtArrivalRate";
+    public static final String EVENT_NAME_LOADING_COMPLETE = "loadingComplete";
+    public static final String FIELD_NEXT_ARRIVAL = "nextArrival";
+
+    public static final int DEFAULT_MAX_IN_FLIGHT = 256;
+    public static final long DEFAULT_SLICE_DURATION = 60000L;
+    public static final long DEFAULT_LOAD_CHECK_DELAY = 1000L;
+    public static final int DEFAULT_MIRROR_THREADS = 8;
+
+    private static final String LOCKED_SUFFIX = "/locked";
+    private static final int PAGE_SIZE = 100;
+
+    private final FileFolderService fileFolderService;
+    private final UserDataService userDataService;
+    private final SiteDataService siteDataService;
+    private final TestFileService testFileService;
+    private final AlfrescoAsyncClient asyncClient;
+    private final int subfolders;
+    private final int maxLevel;
+    private final int filesPerFolder;
+    private final double arrivalRate;
+
+    private int maxInFlight;
+    private long sliceDuration;
+    private long loadCheckDelay;
+    private int mirrorThreads;
+    private String eventNameLoadAtArrivalRate;
+    private String eventNameLoadingComplete;
+    private UploadMix uploadMix;
+    private MetadataProfile metadataProfile;
+    private ResultAggregator resultAggregator;
+    private CheckpointService checkpointService;
+    private LoadControl loadControl;
+
+    private Semaphore inFlight;
+    private ExecutorService mirrorExecutor;
+    private volatile Slice slice;
+
+    /**
+     * @param fileFolderService service to access folders
+     * @param userDataService   service to access usernames and passwords
+     * @param siteDataService   service to access site details
+     * @param testFileService   service to access sample documents
+     * @param asyncClient       the non-blocking client that sends the requests
+     * @param subfolders        the number of subfolders in each folder above the deepest level
+     * @param maxDepth          the number of folder levels below each document library
+     * @param filesPerFolder    the number of files in each folder
+     * @param arrivalRate       the number of requests to start each second
+     */
+    public ArrivalRateLoader(FileFolderService fileFolderService, UserDataService userDataService, SiteDataService siteDataService,
+        TestFileService testFileService, AlfrescoAsyncClient asyncClient, int subfolders, int maxDepth, int filesPerFolder, double arrivalRate)
+    {
+        super();
+
+        this.fileFolderService = fileFolderService;
+        this.userDataService = userDataService;
+        this.siteDataService = siteDataService;
+        this.testFileService = testFileService;
+        this.asyncClient = asyncClient;
+
+        this.subfolders = subfolders;
+        this.maxLevel = maxDepth + 3;      // Add levels for "/Sites<L1>/siteId<L2>/documentLibrary<L3>"
+        this.filesPerFolder = filesPerFolder;
+        this.arrivalRate = arrivalRate;
+
+        this.maxInFlight = DEFAULT_MAX_IN_FLIGHT;
+        this.sliceDuration = DEFAULT_SLICE_DURATION;
+        this.loadCheckDelay = DEFAULT_LOAD_CHECK_DELAY;
+        this.mirrorThreads = DEFAULT_MIRROR_THREADS;
+        this.eventNameLoadAtArrivalRate = EVENT_NAME_LOAD_AT_ARRIVAL_RATE;
+        this.eventNameLoadingComplete = EVENT_NAME_LOADING_COMPLETE;
+    }
+
+    /**
+     * Override the {@link #DEFAULT_MAX_IN_FLIGHT default} number of requests that may be waiting for a response
+     */
+    public void setMaxInFlight(int maxInFlight)
+    {
+        this.maxInFlight = maxInFlight;
+    }
+
+    /**
+     * Override the {@link #DEFAULT_MIRROR_THREADS default} number of threads that record responses in the mirror
+     */
+    public void setMirrorThreads(int mirrorThreads)
+    {
+        this.mirrorThreads = mirrorThreads;
+    }
+
+    /**
+     * Override the {@link #DEFAULT_SLICE_DURATION default} time in milliseconds that each event keeps to the schedule
+     */
+    public void setSliceDuration(long sliceDuration)
+    {
+        this.sliceDuration = sliceDuration;
+    }
+
+    /**
+     * Override the {@link #DEFAULT_LOAD_CHECK_DELAY default} time in milliseconds to wait for new folders when
+     * there is nothing left to load but requests are still in flight
+     */
+    public void setLoadCheckDelay(long loadCheckDelay)
+    {
+        this.loadCheckDelay = loadCheckDelay;
+    }
+
+    /**
+     * Override the {@link #EVENT_NAME_LOAD_AT_ARRIVAL_RATE default} event name used to continue the schedule
+     */
+    public void setEventNameLoadAtArrivalRate(String eventNameLoadAtArrivalRate)
+    {
+        this.eventNameLoadAtArrivalRate = eventNameLoadAtArrivalRate;
+    }
+
+    /**
+     * Override the {@link #EVENT_NAME_LOADING_COMPLETE default} output event name
+     */
+    public void setEventNameLoadingComplete(String eventNameLoadingComplete)
+    {
+        this.eventNameLoadingComplete = eventNameLoadingComplete;
+    }
+
+    /**
+     * Set the mix of files to upload; files are taken straight from the test file service if there is none
+     */
+    public void setUploadMix(UploadMix uploadMix)
+    {
+        this.uploadMix = uploadMix;
+    }
+
+    /**
+     * Set the metadata given to new files and folders
+     */
+    public void setMetadataProfile(MetadataProfile metadataProfile)
+    {
+        this.metadataProfile = metadataProfile;
+    }
+
+    /**
+     * Set the aggregator that also rolls up the latency of each request, if any
+     */
+    public void setResultAggregator(ResultAggregator resultAggregator)
+    {
+        this.resultAggregator = resultAggregator;
+    }
+
+    /**
+     * Lease the folders locked for loading, so that a resumed run can release them
+     *
+     * @since 3.0
+     */
+    public void setCheckpointService(CheckpointService checkpointService)
+    {
+        this.checkpointService = checkpointService;
+    }
+
+    /**
+     * Let the load be paused and the arrival rate changed while it runs.  Changes apply from the next slice.
+     *
+     * @since 3.0
+     */
+    public void setLoadControl(LoadControl loadControl)
+    {
+        this.loadControl = loadControl;
+    }
+
+    @Override
+    public EventResult processEvent(Event event) throws Exception
+    {
+        if (arrivalRate <= 0.0)
+        {
+            return new EventResult("The arrival rate must be greater than zero to load at an arrival rate.", false);
+        }
+        synchronized (this)
+        {
+            if (inFlight == null)
+            {
+                inFlight = new Semaphore(maxInFlight);
+                slice = new Slice();
+                AtomicInteger threadCount = new AtomicInteger();
+                mirrorExecutor = Executors.newFixedThreadPool(mirrorThreads, runnable ->
+                {
+                    Thread thread = new Thread(runnable, "ArrivalRateLoader-Mirror-" + threadCount.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+            }
+        }
+
+        if (loadControl != null && loadControl.isPaused())
+        {
+            // Arrivals due while paused are not made up once the load resumes
+            Event nextEvent = new Event(eventNameLoadAtArrivalRate, System.currentTimeMillis() + loadControl.getPauseCheckDelay(), null);
+            return new EventResult("Loading is paused.", Collections.singletonList(nextEvent));
+        }
+        double rate = loadControl == null ? arrivalRate : loadControl.getArrivalRate(arrivalRate);
+
+        // Keep to the schedule of the last slice, even if this event started late
+        long periodNanos = (long) (1.0E9 / rate);
+        long intended = System.nanoTime();
+        DBObject dataObj = (DBObject) event.getData();
+        Long nextArrival = dataObj == null ? null : (Long) dataObj.get(FIELD_NEXT_ARRIVAL);
+        if (nextArrival != null)
+        {
+            intended += TimeUnit.MILLISECONDS.toNanos(nextArrival - System.currentTimeMillis());
+        }
+        long sliceEnd = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(sliceDuration);
+
+        FolderWork work = null;
+        boolean finished = false;
+        while (intended < sliceEnd)
+        {
+            if (work == null)
+            {
+                // Checked before looking, as a response recorded while looking may add a folder the search missed
+                boolean idle = inFlight.availablePermits() == maxInFlight;
+                work = nextWork();
+                if (work == null)
+                {
+                    if (idle)
+                    {
+                        // Nothing to load and nothing that could still create more work
+                        finished = true;
+                        break;
+                    }
+                    // Wait for the requests in flight to add folders; there is no load to offer in the mean time
+                    LockSupport.parkNanos(Math.min(TimeUnit.MILLISECONDS.toNanos(loadCheckDelay), sliceEnd - System.nanoTime()));
+                    intended = System.nanoTime();
+                    continue;
+                }
+            }
+            long wait = intended - System.nanoTime();
+            if (wait > 0L)
+            {
+                LockSupport.parkNanos(wait);
+            }
+            // Arrivals queue behind the cap and the time spent waiting is part of their latency
+            inFlight.acquire();
+            send(work, intended);
+            intended += periodNanos;
+            if (work.remaining == 0)
+            {
+                work.release();
+                work = null;
+            }
+        }
+        if (work != null)
+        {
+            // Whatever was not sent stays in the mirror for the next slice to find
+            work.release();
+        }
+
+        // Responses still to come are reported with the slice that is open when they arrive
+        Slice done = slice;
+        slice = new Slice();
+        DBObject sliceData = done.close(rate);
+        List<Event> nextEvents;
+        String msg;
+        if (finished)
+        {
+            msg = "Loading completed.  Raising 'done' event.";
+            if (resultAggregator != null && resultAggregator.isEnabled())
+            {
+                sliceData.put(ResultAggregator.FIELD_SUMMARIES, resultAggregator.flush());
+            }
+            nextEvents = Collections.singletonList(new Event(eventNameLoadingComplete, null));
+        }
+        else
+        {
+            msg = "Sent " + done.sent + " requests and rescheduled self.";
+            long nextArrivalTime = System.currentTimeMillis() + TimeUnit.NANOSECONDS.toMillis(intended - System.nanoTime());
+            DBObject nextData = BasicDBObjectBuilder.start().add(FIELD_NEXT_ARRIVAL, Long.valueOf(nextArrivalTime)).get();
+            nextEvents = Collections.singletonList(new Event(eventNameLoadAtArrivalRate, nextData));
+        }
+        sliceData.put("msg", msg);
+        if (logger.isDebugEnabled())
+        {
+            logger.debug(msg + " " + sliceData);
+        }
+        return new EventResult(sliceData, nextEvents);
+    }
+
+    /**
+     * Find and lock the next folder that needs files or subfolders
+     *
+     * @return the work to be done in the folder or <tt>null</tt> if there is none
+     */
+    private FolderWork nextWork()
+    {
+        // Files first, as the closed-model scheduler does
+        FolderWork work = lockNext(false);
+        return work != null ? work : lockNext(true);
+    }
+
+    private FolderWork lockNext(boolean folders)
+    {
+        for (int skip = 0; ; skip += PAGE_SIZE)
+        {
+            List<FolderData> candidates = folders
+                ? fileFolderService.getFoldersByCounts("", null, Long.valueOf(maxLevel - 1), 0L, Long.valueOf(subfolders - 1), null, null, skip, PAGE_SIZE)
+                : fileFolderService.getFoldersByCounts("", null, Long.valueOf(maxLevel), null, null, 0L, Long.valueOf(filesPerFolder - 1), skip, PAGE_SIZE);
+            if (candidates.isEmpty())
+            {
+                return null;
+            }
+            for (FolderData candidate : candidates)
+            {
+                // The same lock as the closed-model scheduler, so that the two never load the same folder
+                String lockPath = candidate.getPath() + LOCKED_SUFFIX;
+                try
+                {
+                    fileFolderService.createNewFolder(new FolderData(UUID.randomUUID().toString(), "", lockPath, Long.MAX_VALUE, Long.MAX_VALUE));
+                }
+                catch (RuntimeException e)
+                {
+                    if (!BulkFileFolderService.isDuplicate(e))
+                    {
+                        throw e;
+                    }
+                    // The lock was already applied; find another
+                    continue;
+                }
+                try
+                {
+                    // The candidate may have been read before the last holder of the lock finished with it
+                    FolderData folder = fileFolderService.getFolder(candidate.getContext(), candidate.getPath());
+                    int toCreate = folder == null ? 0
+                        : folders ? subfolders - (int) folder.getFolderCount() : filesPerFolder - (int) folder.getFileCount();
+                    if (toCreate <= 0)
+                    {
+                        fileFolderService.deleteFolder("", lockPath, false);
+                        continue;
+                    }
+                    if (checkpointService != null)
+                    {
+                        long folderCount = folders ? subfolders : folder.getFolderCount();
+                        long fileCount = folders ? folder.getFileCount() : filesPerFolder;
+                        checkpointService.leaseFolderLock(folder.getContext(), folder.getPath(), folderCount, fileCount);
+                    }
+                    UserData user = SiteFolderLoader.getUser(siteDataService, userDataService, folder, logger);
+                    return new FolderWork(folder, user, folders, toCreate);
+                }
+                catch (RuntimeException e)
+                {
+                    fileFolderService.deleteFolder("", lockPath, false);
+                    throw e;
+                }
+            }
+        }
+    }
+
+    /**
+     * Start one request for the work without waiting for the response
+     */
+    private void send(final FolderWork work, final long intended)
+    {
+        final FolderData folder = work.folder;
+        final String name;
+        final long bytes;
+        CompletableFuture<ApiResponse> request;
+        work.sent();
+        long sentAt = System.nanoTime();
+        try
+        {
+            if (work.folders)
+            {
+                name = UUID.randomUUID().toString();
+                bytes = 0L;
+                request = asyncClient.createFolder(work.user.getUsername(), work.user.getPassword(), folder.getId(), name, null, getMetadata(name));
+            }
+            else
+            {
+                File file = uploadMix == null ? testFileService.getFile() : uploadMix.getFile();
+                if (file == null)
+                {
+                    throw new IllegalStateException("No test files exist for upload: " + testFileService);
+                }
+                name = UUID.randomUUID().toString() + "-" + file.getName();
+                bytes = file.length();
+                request = asyncClient.uploadFile(work.user.getUsername(), work.user.getPassword(), folder.getId(), name, file, getMetadata(name));
+            }
+        }
+        catch (RuntimeException e)
+        {
+            work.completed();
+            work.release();
+            inFlight.release();
+            throw e;
+        }
+        slice.sent(sentAt - intended);
+        request.whenComplete((response, e) ->
+        {
+            // Timed on the I/O thread but recorded on a mirror thread
+            long now = System.nanoTime();
+            Runnable completion = () -> recordResponse(work, name, bytes, intended, sentAt, now, response, e);
+            try
+            {
+                mirrorExecutor.execute(completion);
+            }
+            catch (RejectedExecutionException rejected)
+            {
+                // Shutting down
+                completion.run();
+            }
+        });
+    }
+
+    /**
+     * Record the response to a request in the mirror and in the open slice
+     */
+    private void recordResponse(FolderWork work, String name, long bytes, long intended, long sentAt, long now, ApiResponse response, Throwable e)
+    {
+        FolderData folder = work.folder;
+        try
+        {
+            String failure = e != null ? e.toString() : record(folder, work.folders, name, response);
+            completed(now - intended, now - sentAt, work.folders, bytes, failure);
+            if (failure == null && resultAggregator != null && resultAggregator.isEnabled())
+            {
+                DBObject result = (DBObject) resultAggregator.aggregate(work.folders ? "createFolder" : "uploadFile", null,
+                    TimeUnit.NANOSECONDS.toMillis(now - intended), work.folders ? 1L : 0L, work.folders ? 0L : 1L, bytes);
+                if (result != null)
+                {
+                    slice.summaries.addAll((List<?>) result.get(ResultAggregator.FIELD_SUMMARIES));
+                }
+            }
+        }
+        catch (RuntimeException recordFailure)
+        {
+            completed(now - intended, now - sentAt, work.folders, bytes, recordFailure.toString());
+        }
+        finally
+        {
+            // Unlock first: a free permit with nothing to lock means the load is done
+            work.completed();
+            inFlight.release();
+        }
+    }
+
+    /**
+     * Stop the threads that record responses in the mirror
+     */
+    @Override
+    public synchronized void destroy()
+    {
+        if (mirrorExecutor != null)
+        {
+            mirrorExecutor.shutdown();
+        }
+    }
+
+    private void completed(long latency, long serviceTime, boolean isFolder, long bytes, String failure)
+    {
+        // A slice may close between reading it and recording into it
+        while (!slice.completed(latency, serviceTime, isFolder, bytes, failure))
+        {
+            Thread.yield();
+        }
+    }
+
+    /**
+     * Record a response in the mirror
+     *
+     * @return <tt>null</tt> if the node was created or already existed, otherwise a description of the failure
+     */
+    private String record(FolderData folder, boolean isFolder, String name, ApiResponse response)
+    {
+        String folderPath = folder.getPath();
+        if (response.isCreated())
+        {
+            if (isFolder)
+            {
+                fileFolderService.createNewFolder(new FolderData(response.getEntryId(), "", folderPath + "/" + name, 0L, 0L));
+                fileFolderService.incrementFolderCount("", folderPath, 1);
+            }
+            else
+            {
+                fileFolderService.incrementFileCount("", folderPath, 1);
+            }
+            return null;
+        }
+        else if (response.isConflict())
+        {
+            return null;
+        }
+        return "Could not create " + (isFolder ? "folder: " : "file: ") + name + " in path: " + folderPath + ". Code: " + response.getStatusCode()
+            + ". Message: " + response.getErrorMessage();
+    }
+
+    private NodeMetadata getMetadata(String name)
+    {
+        return metadataProfile != null && !metadataProfile.isEmpty() ? metadataProfile.getMetadata(name) : null;
+    }
+
+    /**
+     * A locked folder and the requests still to be sent for it.  The lock is released once nothing more will be
+     * sent and every request sent has been answered.
+     */
+    private class FolderWork
+    {
+        private final FolderData folder;
+        private final UserData user;
+        private final boolean folders;
+        private int remaining;
+        /** The requests in flight plus one for as long as more may be sent */
+        private final AtomicInteger holds = new AtomicInteger(1);
+
+        private FolderWork(FolderData folder, UserData user, boolean folders, int remaining)
+        {
+            this.folder = folder;
+            this.user = user;
+            this.folders = folders;
+            this.remaining = remaining;
+        }
+
+        private void sent()
+        {
+            remaining--;
+            holds.incrementAndGet();
+        }
+
+        private void completed()
+        {
+            if (holds.decrementAndGet() == 0)
+            {
+                unlock();
+            }
+        }
+
+        /**
+         * Send nothing more for this folder
+         */
+        private void release()
+        {
+            remaining = 0;
+            completed();
+        }
+
+        private void unlock()
+        {
+            String context = folder.getContext();
+            String path = folder.getPath();
+            if (fileFolderService instanceof WriteBehindFileFolderService)
+            {
+                // Other drivers must see the final counts before the lock is released
+                ((WriteBehindFileFolderService) fileFolderService).flush(context, path);
+            }
+            fileFolderService.deleteFolder(context, path + LOCKED_SUFFIX, false);
+        }
+    }
+
+    /**
+     * The requests sent and the responses received during one slice, with latencies in nanoseconds
+     */
+    private class Slice
+    {
+        private final long start = System.currentTimeMillis();
+        private boolean closed;
+        private int sent;
+        private long maxLag;
+        private int completed;
+        private int failed;
+        private long folders;
+        private long files;
+        private long bytes;
+        private final LatencyRecorder latencies = new LatencyRecorder();
+        private final LatencyRecorder serviceTimes = new LatencyRecorder();
+        private String lastFailure;
+        private final ConcurrentLinkedQueue<Object> summaries = new ConcurrentLinkedQueue<Object>();
+
+        private synchronized void sent(long lag)
+        {
+            sent++;
+            maxLag = Math.max(maxLag, lag);
+        }
+
+        /**
+         * @return <tt>false</tt> if the slice has already been reported
+         */
+        private synchronized boolean completed(long latency, long serviceTime, boolean isFolder, long bytes, String failure)
+        {
+            if (closed)
+            {
+                return false;
+            }
+            if (failure != null)
+            {
+                failed++;
+                lastFailure = failure;
+                return true;
+            }
+            latencies.record(latency);
+            serviceTimes.record(serviceTime);
+            completed++;
+            if (isFolder)
+            {
+                folders++;
+            }
+            else
+            {
+                files++;
+                this.bytes += bytes;
+            }
+            return true;
+        }
+
+        private synchronized DBObject close(double rate)
+        {
+            closed = true;
+            long end = System.currentTimeMillis();
+            BasicDBObjectBuilder builder = BasicDBObjectBuilder.start()
+                .add("start", start)
+                .add("end", end)
+                .add("arrivalRate", rate)
+                .add("sent", sent)
+                .add("sentRate", end > start ? sent * 1000.0 / (end - start) : 0.0)
+                .add("maxScheduleLag", TimeUnit.NANOSECONDS.toMillis(maxLag))
+                .add("completed", completed)
+                .add("failed", failed)
+                .add("folders", folders)
+                .add("files", files)
+                .add("bytes", bytes)
+                .add("latency", latencies.toDBObject())
+                .add("serviceTime", serviceTimes.toDBObject());
+            if (lastFailure != null)
+            {
+                builder.add("lastFailure", lastFailure);
+            }
+            if (!summaries.isEmpty())
+            {
+                builder.add(ResultAggregator.FIELD_SUMMARIES, summaries.toArray());
+            }
+            return builder.get();
+        }
+    }
+}
@@ -0,0 +1,129 @@
+/*
+ * #%L
+ * Alfresco Benchmark Load Data
+ * %%
+ * Copyright (C) 2005 - 2018 Alfresco Software Limited
+ * %%
+ * This file is part of the Alfresco software.
+ * If the software was purchased under a paid Alfresco license, the terms of
+ * the paid license agreement will prevail.  Otherwise, the software is
+ * provided under the following open source license terms:
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+package org.alfresco.bm.dataload.files;
+
+import com.mongodb.BasicDBObjectBuilder;
+import com.mongodb.BulkWriteError;
+import com.mongodb.BulkWriteException;
+import com.mongodb.BulkWriteOperation;
+import com.mongodb.DB;
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+import com.mongodb.ErrorCategory;
+import com.mongodb.MongoServerException;
+import org.alfresco.bm.cm.FileFolderService;
+import org.alfresco.bm.cm.FolderData;
+
+import java.sql.SQLException;
+import java.util.List;
+
+/**
+ * A {@link FileFolderService} that can record many new folders in a single round trip to MongoDB.
+ *
+ * @since 3.0
+ */
+public class BulkFileFolderService extends FileFolderService
+{
+    private static final int ERROR_DUPLICATE_KEY = 11000;
+    private static final String SQL_STATE_UNIQUE_VIOLATION = "23505";
+
+    private final DBCollection collection;
+
+    public BulkFileFolderService(DB db, String collection)
+    {
+        super(db, collection);
+        this.collection = db.getCollection(collection);
+    }
+
+    /**
+     * Record new folders using a single unordered bulk insert.  Folders that are already recorded are left as they are.
+     *
+     * @param folders the folders to record
+     * @return the number of folders that were recorded
+     */
+    public int createNewFolders(List<FolderData> folders)
+    {
+        if (folders.isEmpty())
+        {
+            return 0;
+        }
+        BulkWriteOperation bulk = collection.initializeUnorderedBulkOperation();
+        for (FolderData folder : folders)
+        {
+            bulk.insert(toDBObject(folder));
+        }
+        try
+        {
+            return bulk.execute().getInsertedCount();
+        }
+        catch (BulkWriteException e)
+        {
+            for (BulkWriteError error : e.getWriteErrors())
+            {
+                if (error.getCode() != ERROR_DUPLICATE_KEY)
+                {
+                    throw e;
+                }
+            }
+            return e.getWriteResult().getInsertedCount();
+        }
+    }
+
+    /**
+     * @param e a failure to record a folder
+     * @return <tt>true</tt> if the folder was not recorded because it already is, whichever store keeps the mirror
+     */
+    static boolean isDuplicate(Throwable e)
+    {
+        for (Throwable cause = e; cause != null; cause = cause.getCause() == cause ? null : cause.getCause())
+        {
+            if (cause instanceof MongoServerException
+                && ErrorCategory.fromErrorCode(((MongoServerException) cause).getCode()) == ErrorCategory.DUPLICATE_KEY)
+            {
+                return true;
+            }
+            if (cause instanceof SQLException && SQL_STATE_UNIQUE_VIOLATION.equals(((SQLException) cause).getSQLState()))
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static DBObject toDBObject(FolderData folder)
+    {
+        return BasicDBObjectBuilder.start()
+            .add(FIELD_ID, folder.getId())
+            .add(FIELD_CONTEXT, folder.getContext())
+            .add(FIELD_PATH, folder.getPath())
+            .add(FIELD_PARENT_PATH, folder.getParentPath())
+            .add(FIELD_NAME, folder.getName())
+            .add(FIELD_LEVEL, folder.getLevel())
+            .add(FIELD_FILE_COUNT, folder.getFileCount())
+            .add(FIELD_FOLDER_COUNT, folder.getFolderCount())
+            .get();
+    }
+}
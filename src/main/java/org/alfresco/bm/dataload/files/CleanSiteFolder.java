@@ -27,11 +27,12 @@ package org.alfresco.bm.dataload.files;
 
 import com.mongodb.BasicDBObjectBuilder;
 import com.mongodb.DBObject;
-import org.alfresco.bm.AbstractRestApiEventProcessor;
 import org.alfresco.bm.cm.FileFolderService;
 import org.alfresco.bm.cm.FolderData;
 import org.alfresco.bm.common.EventResult;
 import org.alfresco.bm.common.session.SessionService;
+import org.alfresco.bm.dataload.AbstractPooledRestApiEventProcessor;
+import org.alfresco.bm.dataload.ResultAggregator;
 import org.alfresco.bm.driver.event.Event;
 import org.alfresco.bm.site.SiteDataService;
 import org.alfresco.bm.user.UserData;
@@ -55,7 +56,7 @@ import java.util.Collections;
  * @author Derek Hulley
  * @since 2.4.1
  */
-public class CleanSiteFolder extends AbstractRestApiEventProcessor
+public class CleanSiteFolder extends AbstractPooledRestApiEventProcessor
 {
     public static final String EVENT_NAME_SITE_FOLDER_CLEANED = "siteFolderCleaned";
 
@@ -65,6 +66,7 @@ public class CleanSiteFolder extends AbstractRestApiEventProcessor
     private final SiteDataService siteDataService;
     private final int deleteFolderPercentage;
     private String eventNameSiteFolderCleaned;
+    private ResultAggregator resultAggregator;
 
     /**
      * @param sessionService         service to close this loader's session
@@ -96,6 +98,16 @@ public class CleanSiteFolder extends AbstractRestApiEventProcessor
         this.eventNameSiteFolderCleaned = eventNameSiteFolderCleaned;
     }
 
+    /**
+     * Set the aggregator that rolls up successful results, if any
+     *
+     * @since 3.0
+     */
+    public void setResultAggregator(ResultAggregator resultAggregator)
+    {
+        this.resultAggregator = resultAggregator;
+    }
+
     @Override
     public EventResult processEvent(Event event) throws Exception
     {
@@ -131,10 +143,15 @@ public class CleanSiteFolder extends AbstractRestApiEventProcessor
 
         try
         {
-            return deleteFolder(folder, deleteFolder);
+            return deleteFolder(event.getName(), folder, deleteFolder);
         }
         finally
         {
+            if (fileFolderService instanceof WriteBehindFileFolderService)
+            {
+                // Other drivers must see the final counts before the lock is released
+                ((WriteBehindFileFolderService) fileFolderService).flush(context, path);
+            }
             if (deleteFolder)
             {
                 // Clean up the folder if we deleted it
@@ -151,18 +168,16 @@ public class CleanSiteFolder extends AbstractRestApiEventProcessor
         }
     }
 
-    private EventResult deleteFolder(FolderData folder, boolean deleteFolder) throws IOException
+    private EventResult deleteFolder(String eventName, FolderData folder, boolean deleteFolder) throws IOException
     {
+        long start = System.currentTimeMillis();
         UserData user = SiteFolderLoader.getUser(siteDataService, userDataService, folder, logger);
         String username = user.getUsername();
         String password = user.getPassword();
 
         if (deleteFolder)
         {
-            //we need a user
-            UserModel userModel = new UserModel();
-            userModel.setUsername(username);
-            userModel.setPassword(password);
+            UserModel userModel = getUserModel(username, password);
 
             try
             {
@@ -192,7 +207,13 @@ public class CleanSiteFolder extends AbstractRestApiEventProcessor
 
         DBObject resultData = BasicDBObjectBuilder.start().add("msg", "Cleaned up folder.").add("path", folder.getPath()).add("deleted", deleteFolder)
             .add("username", username).get();
-        return new EventResult(resultData, Collections.singletonList(nextEvent));
+        Object result = resultData;
+        if (resultAggregator != null)
+        {
+            long latency = System.currentTimeMillis() - start;
+            result = resultAggregator.aggregate(eventName, resultData, latency, deleteFolder ? 1L : 0L, 0L, 0L);
+        }
+        return new EventResult(result, Collections.singletonList(nextEvent));
 
     }
 
@@ -0,0 +1,584 @@
+/*
+ * #%L
+ * Alfresco Benchmark Load Data
+ * %%
+ * Copyright (C) 2005 - 2018 Alfresco Software Limited
+ * %%
+ * This file is part of the Alfresco software.
+ * If the software was purchased under a paid Alfresco license, the terms of
+ * the paid license agreement will prevail.  Otherwise, the software is
+ * provided under the following open source license terms:
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+package org.alfresco.bm.dataload.files;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.BasicDBObjectBuilder;
+import com.mongodb.BulkWriteError;
+import com.mongodb.BulkWriteException;
+import com.mongodb.BulkWriteOperation;
+import com.mongodb.DB;
+import com.mongodb.DBCollection;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+import org.alfresco.bm.cm.FileFolderService;
+import org.alfresco.bm.cm.FolderData;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A {@link FileFolderService} that records each folder against the ID of its parent folder instead of its full path.
+ * <p>
+ * A folder document holds its parent's ID, its own name and its level, so neither the documents nor the indexes
+ * repeat the path of every ancestor.  Folders with no recorded ancestors, such as a site's document library, keep
+ * their full path as their name.  A folder whose parent is missing while other ancestors are recorded is rejected,
+ * as it would be cut off from the rest of its branch.  Paths are rebuilt from the parent IDs when folders are read and are resolved back
+ * to IDs when folders are looked up by path.  Both directions go through a bounded in-memory cache so that loaders
+ * working down a branch only touch MongoDB for the folders themselves.
+ * <p>
+ * The documents are not compatible with the path-based mirror and are kept in their own collection.
+ *
+ * @since 3.0
+ */
+public class CompactFileFolderService extends BulkFileFolderService
+{
+    public static final String FIELD_PARENT_ID = "parentId";
+    public static final int DEFAULT_PATH_CACHE_SIZE = 100000;
+
+    private static final int ERROR_DUPLICATE_KEY = 11000;
+
+    private final DBCollection collection;
+    private PathCache pathCache;
+
+    /**
+     * @param db         the database holding the mirror
+     * @param collection the collection holding the compact folder documents
+     */
+    public CompactFileFolderService(DB db, String collection)
+    {
+        super(db, collection);
+        this.collection = db.getCollection(collection);
+        this.pathCache = new PathCache(DEFAULT_PATH_CACHE_SIZE);
+    }
+
+    /**
+     * Override the {@link #DEFAULT_PATH_CACHE_SIZE default} number of folder paths kept in memory
+     */
+    public void setPathCacheSize(int pathCacheSize)
+    {
+        this.pathCache = new PathCache(pathCacheSize);
+    }
+
+    /**
+     * Create the indexes of the compact documents rather than those of the path-based mirror
+     */
+    @Override
+    public void afterPropertiesSet()
+    {
+        collection.createIndex(new BasicDBObject(FIELD_ID, 1), new BasicDBObject("unique", Boolean.TRUE));
+        collection.createIndex(BasicDBObjectBuilder.start().add(FIELD_CONTEXT, 1).add(FIELD_PARENT_ID, 1).add(FIELD_NAME, 1).get(),
+            new BasicDBObject("unique", Boolean.TRUE));
+        collection.createIndex(BasicDBObjectBuilder.start().add(FIELD_CONTEXT, 1).add(FIELD_LEVEL, 1).add(FIELD_FOLDER_COUNT, 1).add(FIELD_FILE_COUNT, 1).get());
+        collection.createIndex(BasicDBObjectBuilder.start().add(FIELD_CONTEXT, 1).add(FIELD_FILE_COUNT, 1).add(FIELD_LEVEL, 1).get());
+    }
+
+    @Override
+    public void createNewFolder(String id, String context, String path)
+    {
+        createNewFolder(new FolderData(id, context, path, 0L, 0L));
+    }
+
+    /**
+     * @throws com.mongodb.DuplicateKeyException if the folder is already recorded
+     * @throws IllegalStateException             if the parent folder is not recorded but other ancestors are
+     */
+    @Override
+    public void createNewFolder(FolderData data)
+    {
+        collection.insert(toDBObject(data, resolveParentId(data)));
+        pathCache.put(data.getContext(), data.getPath(), data.getId());
+    }
+
+    /**
+     * @throws IllegalStateException if a parent folder is neither recorded nor part of the batch but other ancestors
+     *                               are recorded, in which case none of the folders are recorded
+     */
+    @Override
+    public int createNewFolders(List<FolderData> folders)
+    {
+        if (folders.isEmpty())
+        {
+            return 0;
+        }
+        // Branches are recorded in one go, so parents in the same batch have to be known up front
+        for (FolderData folder : folders)
+        {
+            pathCache.put(folder.getContext(), folder.getPath(), folder.getId());
+        }
+        BulkWriteOperation bulk = collection.initializeUnorderedBulkOperation();
+        try
+        {
+            for (FolderData folder : folders)
+            {
+                bulk.insert(toDBObject(folder, resolveParentId(folder)));
+            }
+        }
+        catch (IllegalStateException e)
+        {
+            for (FolderData folder : folders)
+            {
+                pathCache.remove(folder.getContext(), folder.getPath());
+            }
+            throw e;
+        }
+        try
+        {
+            return bulk.execute().getInsertedCount();
+        }
+        catch (BulkWriteException e)
+        {
+            for (BulkWriteError error : e.getWriteErrors())
+            {
+                if (error.getCode() != ERROR_DUPLICATE_KEY)
+                {
+                    throw e;
+                }
+                // The recorded folder may have a different ID
+                FolderData folder = folders.get(error.getIndex());
+                pathCache.remove(folder.getContext(), folder.getPath());
+            }
+            return e.getWriteResult().getInsertedCount();
+        }
+    }
+
+    @Override
+    public int deleteFolder(String context, String path, boolean cascade)
+    {
+        String id = resolveId(context, path);
+        if (id == null)
+        {
+            return 0;
+        }
+        List<String> ids = new ArrayList<>();
+        ids.add(id);
+        if (cascade)
+        {
+            // Walk down the tree one level at a time
+            List<String> parentIds = Collections.singletonList(id);
+            while (!parentIds.isEmpty())
+            {
+                DBObject queryObj = BasicDBObjectBuilder.start()
+                    .add(FIELD_CONTEXT, context)
+                    .push(FIELD_PARENT_ID).add("$in", parentIds).pop()
+                    .get();
+                DBObject fieldsObj = BasicDBObjectBuilder.start().add(FIELD_ID, Boolean.TRUE).get();
+                List<String> childIds = new ArrayList<>();
+                try (DBCursor cursor = collection.find(queryObj, fieldsObj))
+                {
+                    for (DBObject childObj : cursor)
+                    {
+                        childIds.add((String) childObj.get(FIELD_ID));
+                    }
+                }
+                ids.addAll(childIds);
+                parentIds = childIds;
+            }
+        }
+        DBObject queryObj = BasicDBObjectBuilder.start().push(FIELD_ID).add("$in", ids).pop().get();
+        int deleted = collection.remove(queryObj).getN();
+        pathCache.removeBranch(context, path);
+        return deleted;
+    }
+
+    @Override
+    public FolderData getFolder(String id)
+    {
+        DBObject folderObj = collection.findOne(new BasicDBObject(FIELD_ID, id));
+        return folderObj == null ? null : toFolderData(folderObj);
+    }
+
+    @Override
+    public FolderData getFolder(String context, String path)
+    {
+        String id = resolveId(context, path);
+        if (id == null)
+        {
+            return null;
+        }
+        DBObject folderObj = collection.findOne(new BasicDBObject(FIELD_ID, id));
+        if (folderObj == null)
+        {
+            // Deleted by another driver
+            pathCache.remove(context, path);
+            return null;
+        }
+        return new FolderData(id, context, path, getLong(folderObj, FIELD_FOLDER_COUNT), getLong(folderObj, FIELD_FILE_COUNT));
+    }
+
+    @Override
+    public void incrementFolderCount(String context, String path, long inc)
+    {
+        increment(FIELD_FOLDER_COUNT, context, path, inc);
+    }
+
+    @Override
+    public void incrementFileCount(String context, String path, long inc)
+    {
+        increment(FIELD_FILE_COUNT, context, path, inc);
+    }
+
+    @Override
+    public long countEmptyFolders(String context)
+    {
+        DBObject queryObj = BasicDBObjectBuilder.start()
+            .add(FIELD_CONTEXT, context)
+            .add(FIELD_FOLDER_COUNT, 0L)
+            .add(FIELD_FILE_COUNT, 0L)
+            .get();
+        return collection.count(queryObj);
+    }
+
+    @Override
+    public List<FolderData> getChildFolders(String context, String path, int skip, int limit)
+    {
+        String id = resolveId(context, path);
+        if (id == null)
+        {
+            return Collections.emptyList();
+        }
+        DBObject queryObj = BasicDBObjectBuilder.start().add(FIELD_CONTEXT, context).add(FIELD_PARENT_ID, id).get();
+        List<FolderData> folders = new ArrayList<>();
+        try (DBCursor cursor = collection.find(queryObj).sort(new BasicDBObject(FIELD_NAME, 1)).skip(skip).limit(limit))
+        {
+            for (DBObject folderObj : cursor)
+            {
+                folders.add(toFolderData(folderObj, path + "/" + folderObj.get(FIELD_NAME)));
+            }
+        }
+        return folders;
+    }
+
+    @Override
+    public List<FolderData> getFoldersByCounts(String context, Long minLevel, Long maxLevel, Long minFolders, Long maxFolders, Long minFiles, Long maxFiles,
+        int skip, int limit)
+    {
+        BasicDBObjectBuilder queryObjBuilder = BasicDBObjectBuilder.start().add(FIELD_CONTEXT, context);
+        addRange(queryObjBuilder, FIELD_LEVEL, minLevel, maxLevel);
+        addRange(queryObjBuilder, FIELD_FOLDER_COUNT, minFolders, maxFolders);
+        addRange(queryObjBuilder, FIELD_FILE_COUNT, minFiles, maxFiles);
+        DBObject sortObj = BasicDBObjectBuilder.start().add(FIELD_LEVEL, 1).add(FIELD_FOLDER_COUNT, 1).add(FIELD_FILE_COUNT, 1).get();
+        List<FolderData> folders = new ArrayList<>();
+        try (DBCursor cursor = collection.find(queryObjBuilder.get()).sort(sortObj).skip(skip).limit(limit))
+        {
+            for (DBObject folderObj : cursor)
+            {
+                FolderData folder = toFolderData(folderObj);
+                if (folder != null)
+                {
+                    folders.add(folder);
+                }
+            }
+        }
+        return folders;
+    }
+
+    private static void addRange(BasicDBObjectBuilder queryObjBuilder, String field, Long min, Long max)
+    {
+        if (min == null && max == null)
+        {
+            return;
+        }
+        queryObjBuilder.push(field);
+        if (min != null)
+        {
+            queryObjBuilder.add("$gte", min);
+        }
+        if (max != null)
+        {
+            queryObjBuilder.add("$lte", max);
+        }
+        queryObjBuilder.pop();
+    }
+
+    private void increment(String field, String context, String path, long inc)
+    {
+        String id = resolveId(context, path);
+        if (id == null)
+        {
+            throw new IllegalStateException("No such folder recorded: " + context + ":" + path);
+        }
+        DBObject updateObj = BasicDBObjectBuilder.start().push("$inc").add(field, inc).pop().get();
+        collection.update(new BasicDBObject(FIELD_ID, id), updateObj);
+    }
+
+    /**
+     * @return the ID of the recorded parent folder or <tt>null</tt> if the folder is recorded as a root
+     * @throws IllegalStateException if the parent folder is not recorded but one of its ancestors is
+     */
+    private String resolveParentId(FolderData folder)
+    {
+        String context = folder.getContext();
+        String path = folder.getPath();
+        int index = path.lastIndexOf('/');
+        if (index <= 0)
+        {
+            return null;
+        }
+        String parentPath = path.substring(0, index);
+        String parentId = resolveId(context, parentPath);
+        if (parentId != null)
+        {
+            return parentId;
+        }
+        // Only folders at the top of a recorded tree may be roots
+        for (index = parentPath.lastIndexOf('/'); index > 0; index = parentPath.lastIndexOf('/', index - 1))
+        {
+            if (resolveId(context, parentPath.substring(0, index)) != null)
+            {
+                throw new IllegalStateException("Parent folder is not recorded: " + context + ":" + parentPath);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the ID of the folder at the given path or <tt>null</tt> if it is not recorded
+     */
+    private String resolveId(String context, String path)
+    {
+        String id = pathCache.getId(context, path);
+        if (id != null)
+        {
+            return id;
+        }
+        int index = path.lastIndexOf('/');
+        String parentId = index > 0 ? resolveId(context, path.substring(0, index)) : null;
+        DBObject folderObj = null;
+        if (parentId != null)
+        {
+            DBObject queryObj = BasicDBObjectBuilder.start()
+                .add(FIELD_CONTEXT, context)
+                .add(FIELD_PARENT_ID, parentId)
+                .add(FIELD_NAME, path.substring(index + 1))
+                .get();
+            folderObj = collection.findOne(queryObj);
+        }
+        if (folderObj == null)
+        {
+            // Recorded as a root
+            DBObject queryObj = BasicDBObjectBuilder.start()
+                .add(FIELD_CONTEXT, context)
+                .add(FIELD_PARENT_ID, null)
+                .add(FIELD_NAME, path)
+                .get();
+            folderObj = collection.findOne(queryObj);
+        }
+        if (folderObj == null)
+        {
+            return null;
+        }
+        id = (String) folderObj.get(FIELD_ID);
+        pathCache.put(context, path, id);
+        return id;
+    }
+
+    /**
+     * @return the path of the folder with the given ID or <tt>null</tt> if it is not recorded
+     */
+    private String resolvePath(String context, String id)
+    {
+        String path = pathCache.getPath(id);
+        if (path != null)
+        {
+            return path;
+        }
+        DBObject folderObj = collection.findOne(new BasicDBObject(FIELD_ID, id));
+        if (folderObj == null)
+        {
+            return null;
+        }
+        path = buildPath(folderObj);
+        if (path != null)
+        {
+            pathCache.put(context, path, id);
+        }
+        return path;
+    }
+
+    private String buildPath(DBObject folderObj)
+    {
+        String name = (String) folderObj.get(FIELD_NAME);
+        String parentId = (String) folderObj.get(FIELD_PARENT_ID);
+        if (parentId == null)
+        {
+            return name;
+        }
+        String parentPath = resolvePath((String) folderObj.get(FIELD_CONTEXT), parentId);
+        return parentPath == null ? null : parentPath + "/" + name;
+    }
+
+    /**
+     * @return the folder or <tt>null</tt> if its parent has been deleted in the meantime
+     */
+    private FolderData toFolderData(DBObject folderObj)
+    {
+        String path = buildPath(folderObj);
+        return path == null ? null : toFolderData(folderObj, path);
+    }
+
+    private static FolderData toFolderData(DBObject folderObj, String path)
+    {
+        return new FolderData((String) folderObj.get(FIELD_ID), (String) folderObj.get(FIELD_CONTEXT), path, getLong(folderObj, FIELD_FOLDER_COUNT),
+            getLong(folderObj, FIELD_FILE_COUNT));
+    }
+
+    private static long getLong(DBObject folderObj, String field)
+    {
+        Number value = (Number) folderObj.get(field);
+        return value == null ? 0L : value.longValue();
+    }
+
+    private static DBObject toDBObject(FolderData folder, String parentId)
+    {
+        return BasicDBObjectBuilder.start()
+            .add(FIELD_ID, folder.getId())
+            .add(FIELD_CONTEXT, folder.getContext())
+            .add(FIELD_PARENT_ID, parentId)
+            .add(FIELD_NAME, parentId == null ? folder.getPath() : folder.getName())
+            .add(FIELD_LEVEL, folder.getLevel())
+            .add(FIELD_FILE_COUNT, folder.getFileCount())
+            .add(FIELD_FOLDER_COUNT, folder.getFolderCount())
+            .get();
+    }
+
+    /**
+     * Least-recently-used mapping between folder paths and folder IDs.  Every loader passes through here,
+     * so it is guarded by a {@link Lock} that loaders on virtual threads can wait for without pinning.
+     */
+    private static class PathCache
+    {
+        private final Lock lock = new ReentrantLock();
+        private final Map<String, String> idsByPath;
+        private final Map<String, String> pathsById;
+
+        private PathCache(final int size)
+        {
+            this.idsByPath = new LinkedHashMap<String, String>(1024, 0.75f, true)
+            {
+                private static final long serialVersionUID = 1L;
+
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, String> eldest)
+                {
+                    if (size() > size)
+                    {
+                        pathsById.remove(eldest.getValue());
+                        return true;
+                    }
+                    return false;
+                }
+            };
+            this.pathsById = new HashMap<>();
+        }
+
+        private String getId(String context, String path)
+        {
+            lock.lock();
+            try
+            {
+                return idsByPath.get(context + ":" + path);
+            }
+            finally
+            {
+                lock.unlock();
+            }
+        }
+
+        private String getPath(String id)
+        {
+            lock.lock();
+            try
+            {
+                return pathsById.get(id);
+            }
+            finally
+            {
+                lock.unlock();
+            }
+        }
+
+        private void put(String context, String path, String id)
+        {
+            lock.lock();
+            try
+            {
+                idsByPath.put(context + ":" + path, id);
+                pathsById.put(id, path);
+            }
+            finally
+            {
+                lock.unlock();
+            }
+        }
+
+        private void remove(String context, String path)
+        {
+            lock.lock();
+            try
+            {
+                String id = idsByPath.remove(context + ":" + path);
+                if (id != null)
+                {
+                    pathsById.remove(id);
+                }
+            }
+            finally
+            {
+                lock.unlock();
+            }
+        }
+
+        private void removeBranch(String context, String path)
+        {
+            lock.lock();
+            try
+            {
+                remove(context, path);
+                String childPrefix = context + ":" + path + "/";
+                idsByPath.entrySet().removeIf(entry ->
+                {
+                    if (entry.getKey().startsWith(childPrefix))
+                    {
+                        pathsById.remove(entry.getValue());
+                        return true;
+                    }
+                    return false;
+                });
+            }
+            finally
+            {
+                lock.unlock();
+            }
+        }
+    }
+}
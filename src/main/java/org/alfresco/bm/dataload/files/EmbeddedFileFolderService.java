@@ -0,0 +1,500 @@
+/*
+ * #%L
+ * Alfresco Benchmark Load Data
+ * %%
+ * Copyright (C) 2005 - 2018 Alfresco Software Limited
+ * %%
+ * This file is part of the Alfresco software.
+ * If the software was purchased under a paid Alfresco license, the terms of
+ * the paid license agreement will prevail.  Otherwise, the software is
+ * provided under the following open source license terms:
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+package org.alfresco.bm.dataload.files;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.BasicDBObjectBuilder;
+import com.mongodb.BulkWriteOperation;
+import com.mongodb.DB;
+import com.mongodb.DBCollection;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+import org.alfresco.bm.cm.FileFolderService;
+import org.alfresco.bm.cm.FolderData;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.h2.jdbcx.JdbcConnectionPool;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A {@link FileFolderService} that keeps the file-folder mirror in an embedded H2 database on local disk.
+ * <p>
+ * Single-driver runs make a round trip to MongoDB for every scheduling query and every count increment.
+ * This service answers the same calls from memory-mapped local files that are indexed by path, parent path
+ * and by level, folder count and file count.  The MongoDB collection is only written when
+ * {@link #exportSnapshot() a snapshot is exported}, which happens when the service is {@link #close() closed}
+ * at the end of the run.  An empty embedded database is {@link #importSnapshot() seeded} from the MongoDB
+ * collection when the service starts, so a run can carry on from the mirror of an earlier run.
+ * <p>
+ * The embedded mirror is private to one driver and must not be used when several drivers share a test run.
+ *
+ * @since 3.0
+ */
+public class EmbeddedFileFolderService extends BulkFileFolderService
+{
+    public static final int DEFAULT_BATCH_SIZE = 1000;
+    public static final int DEFAULT_MAX_CONNECTIONS = 64;
+
+    private static final String TABLE = "FOLDERS";
+    private static final String COLUMNS = "ID, CONTEXT, PATH, PARENT_PATH, NAME, LEVEL, FOLDER_COUNT, FILE_COUNT";
+    private static final String SQL_STATE_INTEGRITY_PREFIX = "23";
+    private static final String EXPORT_COLLECTION_SUFFIX = "export";
+    private static final String INDEX_ID = "_id_";
+
+    private static Log logger = LogFactory.getLog(EmbeddedFileFolderService.class);
+
+    private final DBCollection collection;
+    private final JdbcConnectionPool pool;
+    private int batchSize;
+
+    /**
+     * @param db         the database that snapshots are exported to
+     * @param collection the collection that snapshots are exported to
+     * @param url        the JDBC URL of the embedded H2 database e.g. <b>jdbc:h2:nioMapped:./mirrors/filefolders</b>
+     */
+    public EmbeddedFileFolderService(DB db, String collection, String url)
+    {
+        super(db, collection);
+        this.collection = db.getCollection(collection);
+        this.pool = JdbcConnectionPool.create(url, "sa", "");
+        this.pool.setMaxConnections(DEFAULT_MAX_CONNECTIONS);
+        this.batchSize = DEFAULT_BATCH_SIZE;
+    }
+
+    /**
+     * Override the {@link #DEFAULT_BATCH_SIZE default} number of folders moved between MongoDB and the embedded
+     * database in one batch
+     */
+    public void setBatchSize(int batchSize)
+    {
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * Override the {@link #DEFAULT_MAX_CONNECTIONS default} number of concurrent connections to the embedded database
+     */
+    public void setMaxConnections(int maxConnections)
+    {
+        pool.setMaxConnections(maxConnections);
+    }
+
+    @Override
+    public void afterPropertiesSet() throws Exception
+    {
+        // The snapshot collection gets the usual indexes
+        super.afterPropertiesSet();
+
+        try (Connection connection = pool.getConnection(); Statement statement = connection.createStatement())
+        {
+            statement.execute(
+                "CREATE TABLE IF NOT EXISTS " + TABLE + " (" +
+                "ID VARCHAR(255) NOT NULL, " +
+                "CONTEXT VARCHAR(255) NOT NULL, " +
+                "PATH VARCHAR(4096) NOT NULL, " +
+                "PARENT_PATH VARCHAR(4096), " +
+                "NAME VARCHAR(1024), " +
+                "LEVEL INT NOT NULL, " +
+                "FOLDER_COUNT BIGINT NOT NULL, " +
+                "FILE_COUNT BIGINT NOT NULL, " +
+                "PRIMARY KEY (CONTEXT, PATH))");
+            statement.execute("CREATE UNIQUE INDEX IF NOT EXISTS IDX_FOLDERS_ID ON " + TABLE + " (ID)");
+            statement.execute("CREATE INDEX IF NOT EXISTS IDX_FOLDERS_PARENT ON " + TABLE + " (CONTEXT, PARENT_PATH)");
+            statement.execute("CREATE INDEX IF NOT EXISTS IDX_FOLDERS_COUNTS ON " + TABLE + " (CONTEXT, LEVEL, FOLDER_COUNT, FILE_COUNT)");
+            statement.execute("CREATE INDEX IF NOT EXISTS IDX_FOLDERS_FILES ON " + TABLE + " (CONTEXT, FILE_COUNT, LEVEL)");
+        }
+
+        if (countFolders() == 0L)
+        {
+            importSnapshot();
+        }
+    }
+
+    /**
+     * Export a snapshot of the mirror to MongoDB and release the embedded database
+     */
+    public void close()
+    {
+        try
+        {
+            exportSnapshot();
+        }
+        finally
+        {
+            pool.dispose();
+        }
+    }
+
+    /**
+     * Copy the folders held in the MongoDB collection into the embedded mirror.  Folders that the embedded mirror
+     * already holds are left as they are.
+     *
+     * @return the number of folders imported
+     */
+    public long importSnapshot()
+    {
+        long start = System.currentTimeMillis();
+        long imported = 0L;
+        List<FolderData> folders = new ArrayList<>(batchSize);
+        try (DBCursor cursor = collection.find().batchSize(batchSize))
+        {
+            while (cursor.hasNext())
+            {
+                folders.add(toFolderData(cursor.next()));
+                if (folders.size() >= batchSize)
+                {
+                    imported += createNewFolders(folders);
+                    folders.clear();
+                }
+            }
+        }
+        imported += createNewFolders(folders);
+        if (logger.isDebugEnabled())
+        {
+            logger.debug("Imported " + imported + " folders from " + collection.getFullName() + " in " + (System.currentTimeMillis() - start) + "ms.");
+        }
+        return imported;
+    }
+
+    /**
+     * Replace the contents of the MongoDB collection with the folders currently held in the embedded mirror.
+     * <p>
+     * The folders are written to a separate collection that then replaces the MongoDB collection in one step,
+     * so a failed export leaves the last snapshot in place.
+     *
+     * @return the number of folders exported
+     */
+    public long exportSnapshot()
+    {
+        long start = System.currentTimeMillis();
+        DBCollection export = collection.getCollection(EXPORT_COLLECTION_SUFFIX);
+        export.drop();
+
+        long exported = 0L;
+        try (Connection connection = pool.getConnection();
+             PreparedStatement statement = connection.prepareStatement("SELECT " + COLUMNS + " FROM " + TABLE);
+             ResultSet rs = statement.executeQuery())
+        {
+            BulkWriteOperation bulk = null;
+            int batched = 0;
+            while (rs.next())
+            {
+                if (bulk == null)
+                {
+                    bulk = export.initializeUnorderedBulkOperation();
+                }
+                FolderData folder = toFolderData(rs);
+                bulk.insert(BasicDBObjectBuilder.start()
+                    .add(FIELD_ID, folder.getId())
+                    .add(FIELD_CONTEXT, folder.getContext())
+                    .add(FIELD_PATH, folder.getPath())
+                    .add(FIELD_PARENT_PATH, folder.getParentPath())
+                    .add(FIELD_NAME, folder.getName())
+                    .add(FIELD_LEVEL, folder.getLevel())
+                    .add(FIELD_FILE_COUNT, folder.getFileCount())
+                    .add(FIELD_FOLDER_COUNT, folder.getFolderCount())
+                    .get());
+                if (++batched >= batchSize)
+                {
+                    exported += bulk.execute().getInsertedCount();
+                    bulk = null;
+                    batched = 0;
+                }
+            }
+            if (bulk != null)
+            {
+                exported += bulk.execute().getInsertedCount();
+            }
+        }
+        catch (SQLException e)
+        {
+            export.drop();
+            throw new RuntimeException("Failed to export the embedded mirror to " + collection.getFullName(), e);
+        }
+
+        // The export gets the same indexes as the collection it replaces, which also creates it when it is empty
+        for (DBObject index : collection.getIndexInfo())
+        {
+            if (INDEX_ID.equals(index.get("name")))
+            {
+                continue;
+            }
+            DBObject options = new BasicDBObject(index.toMap());
+            options.removeField("key");
+            options.removeField("v");
+            options.removeField("ns");
+            export.createIndex((DBObject) index.get("key"), options);
+        }
+        export.rename(collection.getName(), true);
+
+        if (logger.isDebugEnabled())
+        {
+            logger.debug("Exported " + exported + " folders to " + collection.getFullName() + " in " + (System.currentTimeMillis() - start) + "ms.");
+        }
+        return exported;
+    }
+
+    @Override
+    public void createNewFolder(String id, String context, String path)
+    {
+        createNewFolder(new FolderData(id, context, path, 0L, 0L));
+    }
+
+    @Override
+    public void createNewFolder(FolderData data)
+    {
+        try (Connection connection = pool.getConnection();
+             PreparedStatement statement = connection.prepareStatement("INSERT INTO " + TABLE + " (" + COLUMNS + ") VALUES (?, ?, ?, ?, ?, ?, ?, ?)"))
+        {
+            insert(statement, data);
+        }
+        catch (SQLException e)
+        {
+            throw new RuntimeException("Failed to record folder: " + data.getContext() + ":" + data.getPath(), e);
+        }
+    }
+
+    @Override
+    public int createNewFolders(List<FolderData> folders)
+    {
+        if (folders.isEmpty())
+        {
+            return 0;
+        }
+        int created = 0;
+        try (Connection connection = pool.getConnection();
+             PreparedStatement statement = connection.prepareStatement("INSERT INTO " + TABLE + " (" + COLUMNS + ") VALUES (?, ?, ?, ?, ?, ?, ?, ?)"))
+        {
+            for (FolderData folder : folders)
+            {
+                try
+                {
+                    insert(statement, folder);
+                    created++;
+                }
+                catch (SQLException e)
+                {
+                    // Folders that are already recorded are left as they are
+                    if (e.getSQLState() == null || !e.getSQLState().startsWith(SQL_STATE_INTEGRITY_PREFIX))
+                    {
+                        throw e;
+                    }
+                }
+            }
+        }
+        catch (SQLException e)
+        {
+            throw new RuntimeException("Failed to record " + folders.size() + " folders.", e);
+        }
+        return created;
+    }
+
+    @Override
+    public int deleteFolder(String context, String path, boolean cascade)
+    {
+        String sql = "DELETE FROM " + TABLE + " WHERE CONTEXT = ? AND (PATH = ?" + (cascade ? " OR PATH LIKE ? ESCAPE '\\'" : "") + ")";
+        try (Connection connection = pool.getConnection(); PreparedStatement statement = connection.prepareStatement(sql))
+        {
+            statement.setString(1, context);
+            statement.setString(2, path);
+            if (cascade)
+            {
+                statement.setString(3, path.replace("\\", "\\\\").replace("%", "\\%").replace("_", "\\_") + "/%");
+            }
+            return statement.executeUpdate();
+        }
+        catch (SQLException e)
+        {
+            throw new RuntimeException("Failed to delete folder: " + context + ":" + path, e);
+        }
+    }
+
+    @Override
+    public FolderData getFolder(String id)
+    {
+        List<FolderData> folders = query("WHERE ID = ?", 0, 1, id);
+        return folders.isEmpty() ? null : folders.get(0);
+    }
+
+    @Override
+    public FolderData getFolder(String context, String path)
+    {
+        List<FolderData> folders = query("WHERE CONTEXT = ? AND PATH = ?", 0, 1, context, path);
+        return folders.isEmpty() ? null : folders.get(0);
+    }
+
+    @Override
+    public void incrementFolderCount(String context, String path, long inc)
+    {
+        increment("FOLDER_COUNT", context, path, inc);
+    }
+
+    @Override
+    public void incrementFileCount(String context, String path, long inc)
+    {
+        increment("FILE_COUNT", context, path, inc);
+    }
+
+    @Override
+    public long countEmptyFolders(String context)
+    {
+        String sql = "SELECT COUNT(*) FROM " + TABLE + " WHERE CONTEXT = ? AND FOLDER_COUNT = 0 AND FILE_COUNT = 0";
+        try (Connection connection = pool.getConnection(); PreparedStatement statement = connection.prepareStatement(sql))
+        {
+            statement.setString(1, context);
+            try (ResultSet rs = statement.executeQuery())
+            {
+                return rs.next() ? rs.getLong(1) : 0L;
+            }
+        }
+        catch (SQLException e)
+        {
+            throw new RuntimeException("Failed to count empty folders in context: " + context, e);
+        }
+    }
+
+    @Override
+    public List<FolderData> getChildFolders(String context, String path, int skip, int limit)
+    {
+        return query("WHERE CONTEXT = ? AND PARENT_PATH = ? ORDER BY PATH", skip, limit, context, path);
+    }
+
+    @Override
+    public List<FolderData> getFoldersByCounts(String context, Long minLevel, Long maxLevel, Long minFolders, Long maxFolders, Long minFiles, Long maxFiles,
+        int skip, int limit)
+    {
+        StringBuilder where = new StringBuilder("WHERE CONTEXT = ?");
+        List<Object> args = new ArrayList<>(7);
+        args.add(context);
+        addRange(where, args, "LEVEL", minLevel, maxLevel);
+        addRange(where, args, "FOLDER_COUNT", minFolders, maxFolders);
+        addRange(where, args, "FILE_COUNT", minFiles, maxFiles);
+        where.append(" ORDER BY LEVEL, FOLDER_COUNT, FILE_COUNT, PATH");
+        return query(where.toString(), skip, limit, args.toArray());
+    }
+
+    private static void addRange(StringBuilder where, List<Object> args, String column, Long min, Long max)
+    {
+        if (min != null)
+        {
+            where.append(" AND ").append(column).append(" >= ?");
+            args.add(min);
+        }
+        if (max != null)
+        {
+            where.append(" AND ").append(column).append(" <= ?");
+            args.add(max);
+        }
+    }
+
+    private long countFolders() throws SQLException
+    {
+        try (Connection connection = pool.getConnection();
+             Statement statement = connection.createStatement();
+             ResultSet rs = statement.executeQuery("SELECT COUNT(*) FROM " + TABLE))
+        {
+            return rs.next() ? rs.getLong(1) : 0L;
+        }
+    }
+
+    private void increment(String column, String context, String path, long inc)
+    {
+        String sql = "UPDATE " + TABLE + " SET " + column + " = " + column + " + ? WHERE CONTEXT = ? AND PATH = ?";
+        try (Connection connection = pool.getConnection(); PreparedStatement statement = connection.prepareStatement(sql))
+        {
+            statement.setLong(1, inc);
+            statement.setString(2, context);
+            statement.setString(3, path);
+            statement.executeUpdate();
+        }
+        catch (SQLException e)
+        {
+            throw new RuntimeException("Failed to increment " + column + " for folder: " + context + ":" + path, e);
+        }
+    }
+
+    private List<FolderData> query(String clause, int skip, int limit, Object... args)
+    {
+        String sql = "SELECT " + COLUMNS + " FROM " + TABLE + " " + clause + " LIMIT ? OFFSET ?";
+        try (Connection connection = pool.getConnection(); PreparedStatement statement = connection.prepareStatement(sql))
+        {
+            int index = 1;
+            for (Object arg : args)
+            {
+                statement.setObject(index++, arg);
+            }
+            statement.setInt(index++, limit);
+            statement.setInt(index, skip);
+            try (ResultSet rs = statement.executeQuery())
+            {
+                List<FolderData> folders = new ArrayList<>();
+                while (rs.next())
+                {
+                    folders.add(toFolderData(rs));
+                }
+                return folders;
+            }
+        }
+        catch (SQLException e)
+        {
+            throw new RuntimeException("Failed to query folders: " + clause, e);
+        }
+    }
+
+    private static void insert(PreparedStatement statement, FolderData folder) throws SQLException
+    {
+        statement.setString(1, folder.getId());
+        statement.setString(2, folder.getContext());
+        statement.setString(3, folder.getPath());
+        statement.setString(4, folder.getParentPath());
+        statement.setString(5, folder.getName());
+        statement.setInt(6, folder.getLevel());
+        statement.setLong(7, folder.getFolderCount());
+        statement.setLong(8, folder.getFileCount());
+        statement.executeUpdate();
+    }
+
+    private static FolderData toFolderData(ResultSet rs) throws SQLException
+    {
+        return new FolderData(rs.getString(1), rs.getString(2), rs.getString(3), rs.getLong(7), rs.getLong(8));
+    }
+
+    private static FolderData toFolderData(DBObject dbObject)
+    {
+        return new FolderData(
+            (String) dbObject.get(FIELD_ID),
+            (String) dbObject.get(FIELD_CONTEXT),
+            (String) dbObject.get(FIELD_PATH),
+            ((Number) dbObject.get(FIELD_FOLDER_COUNT)).longValue(),
+            ((Number) dbObject.get(FIELD_FILE_COUNT)).longValue());
+    }
+}
@@ -0,0 +1,147 @@
+/*
+ * #%L
+ * Alfresco Benchmark Load Data
+ * %%
+ * Copyright (C) 2005 - 2018 Alfresco Software Limited
+ * %%
+ * This file is part of the Alfresco software.
+ * If the software was purchased under a paid Alfresco license, the terms of
+ * the paid license agreement will prevail.  Otherwise, the software is
+ * provided under the following open source license terms:
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+package org.alfresco.bm.dataload.files;
+
+import com.mongodb.DB;
+import org.alfresco.bm.cm.FileFolderService;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.FactoryBean;
+
+import java.io.File;
+
+/**
+ * Selects the store behind the file-folder mirror.
+ * <ul>
+ * <li><b>mongo</b>: folders are recorded directly in the MongoDB collection (default)</li>
+ * <li><b>compact</b>: folders are recorded in MongoDB {@link CompactFileFolderService against their parent folder}
+ * in a collection named after the mirror collection with a <b>.compact</b> suffix</li>
+ * <li><b>embedded</b>: folders are recorded in a local {@link EmbeddedFileFolderService embedded database}
+ * and exported to the MongoDB collection when the test run is stopped</li>
+ * </ul>
+ *
+ * @since 3.0
+ */
+public class FileFolderServiceFactory implements FactoryBean<FileFolderService>, DisposableBean
+{
+    public static final String STORE_MONGO = "mongo";
+    public static final String STORE_COMPACT = "compact";
+    public static final String STORE_EMBEDDED = "embedded";
+    public static final String COMPACT_COLLECTION_SUFFIX = ".compact";
+    public static final String DEFAULT_STORE = STORE_MONGO;
+    public static final String DEFAULT_DIRECTORY = "mirrors";
+
+    private final DB db;
+    private final String collection;
+    private String store;
+    private String directory;
+    private FileFolderService fileFolderService;
+
+    /**
+     * @param db         the database holding the mirror or its snapshots
+     * @param collection the mirror collection
+     */
+    public FileFolderServiceFactory(DB db, String collection)
+    {
+        this.db = db;
+        this.collection = collection;
+        this.store = DEFAULT_STORE;
+        this.directory = DEFAULT_DIRECTORY;
+    }
+
+    /**
+     * Override the {@link #DEFAULT_STORE default} store: <b>mongo</b>, <b>compact</b> or <b>embedded</b>
+     */
+    public void setStore(String store)
+    {
+        this.store = store;
+    }
+
+    /**
+     * Override the {@link #DEFAULT_DIRECTORY default} local directory that holds embedded mirrors
+     */
+    public void setDirectory(String directory)
+    {
+        this.directory = directory;
+    }
+
+    @Override
+    public synchronized FileFolderService getObject() throws Exception
+    {
+        if (fileFolderService != null)
+        {
+            return fileFolderService;
+        }
+        FileFolderService service;
+        if (STORE_EMBEDDED.equalsIgnoreCase(store))
+        {
+            // One database per mirror collection so that reruns against the same server carry on where they left off.
+            // The default MVStore engine gives row-level locking, so concurrent count increments do not block each other.
+            String url = "jdbc:h2:nioMapped:" + new File(directory, collection).getAbsolutePath();
+            service = new EmbeddedFileFolderService(db, collection, url);
+        }
+        else if (STORE_COMPACT.equalsIgnoreCase(store))
+        {
+            service = new CompactFileFolderService(db, collection + COMPACT_COLLECTION_SUFFIX);
+        }
+        else if (STORE_MONGO.equalsIgnoreCase(store))
+        {
+            service = new BulkFileFolderService(db, collection);
+        }
+        else
+        {
+            throw new IllegalArgumentException("Unknown mirror store '" + store + "'.  Use '" + STORE_MONGO + "', '" + STORE_COMPACT + "' or '" + STORE_EMBEDDED + "'.");
+        }
+        // Objects produced by a factory do not get the usual bean lifecycle
+        service.afterPropertiesSet();
+        fileFolderService = service;
+        return fileFolderService;
+    }
+
+    @Override
+    public Class<?> getObjectType()
+    {
+        return FileFolderService.class;
+    }
+
+    @Override
+    public boolean isSingleton()
+    {
+        return true;
+    }
+
+    /**
+     * Export and release an embedded mirror
+     */
+    @Override
+    public synchronized void destroy()
+    {
+        if (fileFolderService instanceof EmbeddedFileFolderService)
+        {
+            ((EmbeddedFileFolderService) fileFolderService).close();
+        }
+        fileFolderService = null;
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ * #%L
+ * Alfresco Benchmark Load Data
+ * %%
+ * Copyright (C) 2005 - 2018 Alfresco Software Limited
+ * %%
+ * This file is part of the Alfresco software.
+ * If the software was purchased under a paid Alfresco license, the terms of
+ * the paid license agreement will prevail.  Otherwise, the software is
+ * provided under the following open source license terms:
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+package org.alfresco.bm.dataload.files;
+
+import java.io.InputStream;
+import java.util.Random;
+
+/**
+ * Content of any length made by repeating a block of random bytes, so that very large uploads can be sent
+ * without keeping them on disk or in memory.
+ *
+ * @since 3.0
+ */
+public class GeneratedContentStream extends InputStream
+{
+    public static final int DEFAULT_BLOCK_SIZE = 64 * 1024;
+
+    /** One block is shared by all streams; it is never written after it is filled */
+    private static final byte[] BLOCK = new byte[DEFAULT_BLOCK_SIZE];
+
+    static
+    {
+        new Random(0L).nextBytes(BLOCK);
+    }
+
+    private final long length;
+    private long position;
+
+    /**
+     * @param length the number of bytes the stream will produce
+     */
+    public GeneratedContentStream(long length)
+    {
+        if (length < 0L)
+        {
+            throw new IllegalArgumentException("Content length may not be negative: " + length);
+        }
+        this.length = length;
+    }
+
+    public long getLength()
+    {
+        return length;
+    }
+
+    @Override
+    public int read()
+    {
+        if (position >= length)
+        {
+            return -1;
+        }
+        return BLOCK[(int) (position++ % BLOCK.length)] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len)
+    {
+        if (len == 0)
+        {
+            return 0;
+        }
+        if (position >= length)
+        {
+            return -1;
+        }
+        int offset = (int) (position % BLOCK.length);
+        int count = (int) Math.min(Math.min(len, BLOCK.length - offset), length - position);
+        System.arraycopy(BLOCK, offset, b, off, count);
+        position += count;
+        return count;
+    }
+
+    @Override
+    public long skip(long n)
+    {
+        long skipped = Math.max(0L, Math.min(n, length - position));
+        position += skipped;
+        return skipped;
+    }
+
+    @Override
+    public int available()
+    {
+        return (int) Math.min(Integer.MAX_VALUE, length - position);
+    }
+}
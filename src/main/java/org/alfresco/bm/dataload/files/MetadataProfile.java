@@ -0,0 +1,301 @@
+/*
+ * #%L
+ * Alfresco Benchmark Load Data
+ * %%
+ * Copyright (C) 2005 - 2018 Alfresco Software Limited
+ * %%
+ * This file is part of the Alfresco software.
+ * If the software was purchased under a paid Alfresco license, the terms of
+ * the paid license agreement will prevail.  Otherwise, the software is
+ * provided under the following open source license terms:
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+package org.alfresco.bm.dataload.files;
+
+import org.alfresco.bm.dataload.rest.NodeMetadata;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SplittableRandom;
+
+/**
+ * Generates the aspects, properties and tags given to each new node so that the metadata loaded matches the volume
+ * seen in production rather than leaving bare nodes.
+ * <p/>
+ * The aspects are a comma-separated list of aspect names e.g. <b>cm:titled,cm:author</b>.  The properties are a
+ * comma-separated list of <b>name:type</b> pairs where the type is one of:
+ * <ul>
+ * <li><b>text:N</b> - N words of text</li>
+ * <li><b>name</b> - a person's name</li>
+ * <li><b>int:min-max</b> - a whole number in the range</li>
+ * <li><b>boolean</b></li>
+ * <li><b>date</b> - a time within the ten years from 2010</li>
+ * <li><b>choice:a|b|c</b> - one of the given values</li>
+ * </ul>
+ * For example: <b>cm:title:text:4,cm:description:text:30,cm:author:name,acme:priority:int:1-5,acme:status:choice:draft|final</b>.
+ * <p/>
+ * Tags are drawn from a vocabulary of <b>tag-00000</b> onwards, favouring the start of the vocabulary so that some tags
+ * are far more popular than others.
+ * <p/>
+ * The values are generated from a seed and the node name, so the same names give the same metadata from one run to the
+ * next.  Generation allocates little more than the values themselves.
+ *
+ * @since 3.0
+ */
+public class MetadataProfile
+{
+    public static final int DEFAULT_TAG_VOCABULARY = 1000;
+
+    private static final long DATE_BASE = Instant.parse("2010-01-01T00:00:00Z").toEpochMilli();
+    private static final long DATE_RANGE = 10L * 365L * 24L * 3600L * 1000L;
+    private static final String[] WORDS = {
+        "annual", "report", "budget", "draft", "final", "review", "project", "plan", "meeting", "minutes", "contract", "invoice",
+        "policy", "proposal", "summary", "quarter", "sales", "market", "product", "design", "release", "customer", "support", "team",
+        "strategy", "analysis", "forecast", "audit", "risk", "legal", "training", "schedule", "update", "status", "internal", "external",
+        "north", "south", "east", "west", "global", "regional", "digital", "service", "quality", "research", "data", "content" };
+    private static final String[] FIRST_NAMES = {
+        "Alex", "Sam", "Jordan", "Taylor", "Morgan", "Casey", "Jamie", "Robin", "Chris", "Pat", "Lee", "Drew", "Kim", "Ash", "Max", "Kai" };
+    private static final String[] LAST_NAMES = {
+        "Smith", "Jones", "Brown", "Taylor", "Wilson", "Evans", "Thomas", "Roberts", "Walker", "Wright", "Green", "Hall", "Wood", "Clarke" };
+
+    private final List<String> aspectNames;
+    private final List<PropertyGenerator> properties;
+    private int tagsPerNode;
+    private int tagVocabulary;
+    private long seed;
+
+    /**
+     * @param aspects    the aspects to apply or empty for none
+     * @param properties the properties to generate or empty for none
+     */
+    public MetadataProfile(String aspects, String properties)
+    {
+        this.aspectNames = parseAspects(aspects);
+        this.properties = parseProperties(properties);
+        this.tagVocabulary = DEFAULT_TAG_VOCABULARY;
+    }
+
+    /**
+     * Set the number of tags given to each node
+     */
+    public void setTagsPerNode(int tagsPerNode)
+    {
+        this.tagsPerNode = tagsPerNode;
+    }
+
+    /**
+     * Override the {@link #DEFAULT_TAG_VOCABULARY default} number of different tags
+     */
+    public void setTagVocabulary(int tagVocabulary)
+    {
+        this.tagVocabulary = tagVocabulary;
+    }
+
+    /**
+     * Set the seed that, with the node name, determines the values generated
+     */
+    public void setSeed(long seed)
+    {
+        this.seed = seed;
+    }
+
+    /**
+     * @return <tt>true</tt> if the profile gives nodes no metadata at all
+     */
+    public boolean isEmpty()
+    {
+        return aspectNames.isEmpty() && properties.isEmpty() && tagsPerNode <= 0;
+    }
+
+    /**
+     * @return <tt>true</tt> if the profile tags nodes, which needs a call after each node is created
+     */
+    public boolean hasTags()
+    {
+        return tagsPerNode > 0 && tagVocabulary > 0;
+    }
+
+    /**
+     * @param name the name of the new node
+     * @return the metadata for the node
+     */
+    public NodeMetadata getMetadata(String name)
+    {
+        SplittableRandom random = new SplittableRandom(seed ^ (name.hashCode() * 0x9E3779B97F4A7C15L));
+        Map<String, Object> values = new LinkedHashMap<String, Object>(properties.size() * 2);
+        for (PropertyGenerator property : properties)
+        {
+            values.put(property.name, property.next(random));
+        }
+        List<String> tags = Collections.emptyList();
+        if (hasTags())
+        {
+            int count = Math.min(tagsPerNode, tagVocabulary);
+            Set<String> chosen = new LinkedHashSet<String>(count * 2);
+            while (chosen.size() < count)
+            {
+                // Squaring skews the choice towards the popular tags at the start of the vocabulary
+                double u = random.nextDouble();
+                chosen.add(String.format("tag-%05d", (int) (u * u * tagVocabulary)));
+            }
+            tags = new ArrayList<String>(chosen);
+        }
+        return new NodeMetadata(aspectNames, values, tags);
+    }
+
+    private static List<String> parseAspects(String aspects)
+    {
+        if (aspects == null || aspects.trim().isEmpty())
+        {
+            return Collections.emptyList();
+        }
+        List<String> aspectNames = new ArrayList<String>();
+        for (String aspectName : aspects.split(","))
+        {
+            aspectNames.add(aspectName.trim());
+        }
+        return Collections.unmodifiableList(aspectNames);
+    }
+
+    private static List<PropertyGenerator> parseProperties(String properties)
+    {
+        if (properties == null || properties.trim().isEmpty())
+        {
+            return Collections.emptyList();
+        }
+        List<PropertyGenerator> generators = new ArrayList<PropertyGenerator>();
+        for (String spec : properties.split(","))
+        {
+            // The name has a prefix e.g. cm:title:text:4
+            String[] parts = spec.trim().split(":", 4);
+            if (parts.length < 3)
+            {
+                throw new IllegalArgumentException("Property must be 'prefix:name:type': " + spec);
+            }
+            String name = parts[0].trim() + ":" + parts[1].trim();
+            String type = parts[2].trim();
+            String arg = parts.length > 3 ? parts[3].trim() : null;
+            generators.add(new PropertyGenerator(name, type, arg, spec));
+        }
+        return generators;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "MetadataProfile [aspectNames=" + aspectNames + ", properties=" + properties + ", tagsPerNode=" + tagsPerNode + "]";
+    }
+
+    private static class PropertyGenerator
+    {
+        private final String name;
+        private final String type;
+        private final int words;
+        private final long min;
+        private final long max;
+        private final String[] choices;
+
+        private PropertyGenerator(String name, String type, String arg, String spec)
+        {
+            this.name = name;
+            this.type = type;
+            int words = 0;
+            long min = 0L;
+            long max = 0L;
+            String[] choices = null;
+            try
+            {
+                switch (type)
+                {
+                    case "text":
+                        words = arg == null ? 1 : Integer.parseInt(arg);
+                        break;
+                    case "int":
+                        int dash = arg == null ? -1 : arg.indexOf('-', 1);
+                        if (dash < 0)
+                        {
+                            throw new IllegalArgumentException("Integer property must have a range such as 'int:1-5': " + spec);
+                        }
+                        min = Long.parseLong(arg.substring(0, dash).trim());
+                        max = Long.parseLong(arg.substring(dash + 1).trim());
+                        break;
+                    case "choice":
+                        if (arg == null)
+                        {
+                            throw new IllegalArgumentException("Choice property must list values such as 'choice:a|b': " + spec);
+                        }
+                        choices = arg.split("\\|");
+                        break;
+                    case "name":
+                    case "boolean":
+                    case "date":
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unknown property type '" + type + "': " + spec);
+                }
+            }
+            catch (NumberFormatException e)
+            {
+                throw new IllegalArgumentException("Invalid property: " + spec, e);
+            }
+            this.words = words;
+            this.min = min;
+            this.max = max;
+            this.choices = choices;
+        }
+
+        private Object next(SplittableRandom random)
+        {
+            switch (type)
+            {
+                case "text":
+                    StringBuilder sb = new StringBuilder(words * 8);
+                    for (int i = 0; i < words; i++)
+                    {
+                        if (i > 0)
+                        {
+                            sb.append(' ');
+                        }
+                        sb.append(WORDS[random.nextInt(WORDS.length)]);
+                    }
+                    return sb.toString();
+                case "name":
+                    return FIRST_NAMES[random.nextInt(FIRST_NAMES.length)] + " " + LAST_NAMES[random.nextInt(LAST_NAMES.length)];
+                case "int":
+                    return min + random.nextLong(max - min + 1L);
+                case "boolean":
+                    return random.nextBoolean();
+                case "date":
+                    return Instant.ofEpochMilli(DATE_BASE + random.nextLong(DATE_RANGE)).toString();
+                default:
+                    return choices[random.nextInt(choices.length)];
+            }
+        }
+
+        @Override
+        public String toString()
+        {
+            return name + "(" + type + (choices == null ? "" : Arrays.toString(choices)) + ")";
+        }
+    }
+}
@@ -0,0 +1,530 @@
+/*
+ * #%L
+ * Alfresco Benchmark Load Data
+ * %%
+ * Copyright (C) 2005 - 2018 Alfresco Software Limited
+ * %%
+ * This file is part of the Alfresco software.
+ * If the software was purchased under a paid Alfresco license, the terms of
+ * the paid license agreement will prevail.  Otherwise, the software is
+ * provided under the following open source license terms:
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+package org.alfresco.bm.dataload.files;
+
+import org.alfresco.bm.driver.file.FileDataService;
+import org.alfresco.bm.driver.file.FtpTestFileService;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.commons.net.ftp.FTP;
+import org.apache.commons.net.ftp.FTPClient;
+import org.apache.commons.net.ftp.FTPFile;
+import org.apache.commons.net.ftp.FTPReply;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * An {@link FtpTestFileService} that fetches the whole sample set in the background as soon as the driver starts.
+ * <p/>
+ * Several FTP connections download the remote files in parallel into a content-addressed cache, where each file is
+ * kept as <b>objects/&lt;sha-256&gt;/&lt;name&gt;</b> so that it keeps its name and extension.  The
+ * <b>{@value #MANIFEST}</b> file maps each remote file, by name, size and timestamp, to its hash.  Each download
+ * appends its entry to the manifest, which is rewritten once when the next run starts.  Files that are listed in
+ * the manifest and still on disk are checked against their hash and reused instead of being downloaded again,
+ * so the cache survives between runs.
+ * <p/>
+ * {@link #getFile()} waits only until {@link #DEFAULT_MIN_FILES a minimum number} of files are available and
+ * then picks from whatever has been fetched so far.  Callers that need to see the whole sample set, such as the
+ * {@link UploadMix upload mix}, can check {@link #isPrefetching()} and {@link #getFileCount()}.  If nothing can be
+ * fetched, files come from the {@link FtpTestFileService usual} service.
+ *
+ * @since 3.0
+ */
+public class PrefetchingFtpTestFileService extends FtpTestFileService
+{
+    public static final String CACHE_DIR = "prefetch";
+    public static final String MANIFEST = "manifest.properties";
+    public static final int DEFAULT_CONNECTIONS = 4;
+    public static final int DEFAULT_MIN_FILES = 10;
+    public static final long DEFAULT_MIN_FILES_TIMEOUT = 600000L;
+
+    private static final String OBJECTS_DIR = "objects";
+    private static final String HASH_ALGORITHM = "SHA-256";
+    private static final String MANIFEST_COMMENT = "Test files by remote name: sha-256,size,timestamp";
+
+    private static Log logger = LogFactory.getLog(PrefetchingFtpTestFileService.class);
+
+    private final File cacheDir;
+    private final String ftpHost;
+    private final int ftpPort;
+    private final String ftpUsername;
+    private final String ftpPassword;
+    private final String ftpPath;
+    private boolean enabled;
+    private int connections;
+    private int minFiles;
+    private long minFilesTimeout;
+
+    private final List<File> files;
+    private final Properties manifest;
+    private volatile CountDownLatch available;
+    private volatile boolean prefetching;
+    private List<Thread> workers;
+
+    /**
+     * @see FtpTestFileService
+     */
+    public PrefetchingFtpTestFileService(FileDataService fileDataService, String localDir, String ftpHost, int ftpPort, String ftpUsername,
+        String ftpPassword, String ftpPath)
+    {
+        super(fileDataService, localDir, ftpHost, ftpPort, ftpUsername, ftpPassword, ftpPath);
+
+        this.cacheDir = new File(localDir, CACHE_DIR);
+        this.ftpHost = ftpHost;
+        this.ftpPort = ftpPort;
+        this.ftpUsername = ftpUsername;
+        this.ftpPassword = ftpPassword;
+        this.ftpPath = ftpPath;
+        this.enabled = false;
+        this.connections = DEFAULT_CONNECTIONS;
+        this.minFiles = DEFAULT_MIN_FILES;
+        this.minFilesTimeout = DEFAULT_MIN_FILES_TIMEOUT;
+
+        this.files = new CopyOnWriteArrayList<>();
+        this.manifest = new Properties();
+        this.available = new CountDownLatch(0);
+    }
+
+    /**
+     * Fetch the sample set in the background (default: <b>false</b>).  When disabled, this behaves exactly like the
+     * {@link FtpTestFileService usual} service.
+     */
+    public void setEnabled(boolean enabled)
+    {
+        this.enabled = enabled;
+    }
+
+    /**
+     * Override the {@link #DEFAULT_CONNECTIONS default} number of parallel FTP connections
+     */
+    public void setConnections(int connections)
+    {
+        this.connections = connections;
+    }
+
+    /**
+     * Override the {@link #DEFAULT_MIN_FILES default} number of files that must be available before any are handed out
+     */
+    public void setMinFiles(int minFiles)
+    {
+        this.minFiles = minFiles;
+    }
+
+    /**
+     * Override the {@link #DEFAULT_MIN_FILES_TIMEOUT default} number of milliseconds to wait for the minimum number of files
+     */
+    public void setMinFilesTimeout(long minFilesTimeout)
+    {
+        this.minFilesTimeout = minFilesTimeout;
+    }
+
+    /**
+     * List the remote files and start fetching them
+     */
+    public synchronized void start() throws IOException
+    {
+        if (!enabled || workers != null)
+        {
+            return;
+        }
+        File objectsDir = new File(cacheDir, OBJECTS_DIR);
+        if (!objectsDir.isDirectory() && !objectsDir.mkdirs())
+        {
+            throw new IOException("Unable to create test file cache: " + objectsDir);
+        }
+        File manifestFile = new File(cacheDir, MANIFEST);
+        if (manifestFile.isFile())
+        {
+            try (InputStream in = new FileInputStream(manifestFile))
+            {
+                manifest.load(in);
+            }
+            // Later entries for the same file replace earlier ones, so the entries appended by the last run fold away
+            storeManifest();
+        }
+
+        List<FTPFile> remoteFiles;
+        try
+        {
+            remoteFiles = listRemoteFiles();
+        }
+        catch (IOException e)
+        {
+            logger.warn("Unable to list test files on " + ftpHost + ":" + ftpPort + ftpPath + ".  Falling back to serial downloads.", e);
+            return;
+        }
+        final ConcurrentLinkedQueue<FTPFile> queue = new ConcurrentLinkedQueue<>(remoteFiles);
+        final AtomicInteger remaining = new AtomicInteger(remoteFiles.size());
+        available = new CountDownLatch(Math.min(minFiles, remoteFiles.size()));
+        prefetching = true;
+        workers = new ArrayList<>(connections);
+        for (int i = 0; i < connections; i++)
+        {
+            Thread worker = new Thread(() -> fetch(queue, remaining), "TestFilePrefetch-" + i);
+            worker.setDaemon(true);
+            workers.add(worker);
+            worker.start();
+        }
+        logger.info("Prefetching " + remoteFiles.size() + " test files over " + connections + " connections.");
+    }
+
+    /**
+     * Stop fetching files
+     */
+    public synchronized void stop()
+    {
+        if (workers == null)
+        {
+            return;
+        }
+        for (Thread worker : workers)
+        {
+            worker.interrupt();
+        }
+        workers = null;
+        prefetching = false;
+    }
+
+    /**
+     * @return <tt>true</tt> while files are still being fetched
+     */
+    public boolean isPrefetching()
+    {
+        return prefetching;
+    }
+
+    /**
+     * @return the number of files fetched so far
+     */
+    public int getFileCount()
+    {
+        return files.size();
+    }
+
+    /**
+     * @return a random file from those fetched so far
+     */
+    @Override
+    public File getFile()
+    {
+        if (!prefetching && files.isEmpty())
+        {
+            return super.getFile();
+        }
+        try
+        {
+            if (!available.await(minFilesTimeout, TimeUnit.MILLISECONDS))
+            {
+                logger.warn("Only " + files.size() + " of " + minFiles + " test files were available after " + minFilesTimeout + "ms.");
+            }
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+        if (files.isEmpty())
+        {
+            return super.getFile();
+        }
+        return files.get(ThreadLocalRandom.current().nextInt(files.size()));
+    }
+
+    private List<FTPFile> listRemoteFiles() throws IOException
+    {
+        FTPClient ftp = connect();
+        try
+        {
+            List<FTPFile> remoteFiles = new ArrayList<>();
+            for (FTPFile remoteFile : ftp.listFiles(ftpPath))
+            {
+                if (remoteFile != null && remoteFile.isFile())
+                {
+                    remoteFiles.add(remoteFile);
+                }
+            }
+            return remoteFiles;
+        }
+        finally
+        {
+            disconnect(ftp);
+        }
+    }
+
+    /**
+     * Work through the queue of remote files on a connection of its own
+     */
+    private void fetch(ConcurrentLinkedQueue<FTPFile> queue, AtomicInteger remaining)
+    {
+        FTPClient ftp = null;
+        try
+        {
+            FTPFile remoteFile;
+            while ((remoteFile = queue.poll()) != null && !Thread.currentThread().isInterrupted())
+            {
+                try
+                {
+                    File file = findCached(remoteFile);
+                    if (file == null)
+                    {
+                        if (ftp == null)
+                        {
+                            ftp = connect();
+                        }
+                        file = download(ftp, remoteFile);
+                    }
+                    files.add(file);
+                    available.countDown();
+                }
+                catch (IOException e)
+                {
+                    logger.warn("Failed to fetch test file: " + remoteFile.getName(), e);
+                    disconnect(ftp);
+                    ftp = null;
+                }
+                if (remaining.decrementAndGet() == 0)
+                {
+                    prefetching = false;
+                    logger.info("Prefetched " + files.size() + " test files into " + cacheDir);
+                }
+            }
+        }
+        finally
+        {
+            disconnect(ftp);
+            // Waiting makes no sense once every file has been tried
+            if (remaining.get() <= 0)
+            {
+                while (available.getCount() > 0)
+                {
+                    available.countDown();
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the cached copy of the remote file if it is still intact or <tt>null</tt> if it must be downloaded
+     */
+    private File findCached(FTPFile remoteFile) throws IOException
+    {
+        String entry;
+        synchronized (manifest)
+        {
+            entry = manifest.getProperty(remoteFile.getName());
+        }
+        if (entry == null)
+        {
+            return null;
+        }
+        String[] fields = entry.split(",");
+        if (fields.length != 3 || !fields[1].equals(Long.toString(remoteFile.getSize())) || !fields[2].equals(Long.toString(getTimestamp(remoteFile))))
+        {
+            return null;
+        }
+        File file = getObjectFile(fields[0], remoteFile.getName());
+        if (!file.isFile())
+        {
+            return null;
+        }
+        MessageDigest digest = newDigest();
+        try (InputStream in = new FileInputStream(file))
+        {
+            byte[] buffer = new byte[65536];
+            int read;
+            while ((read = in.read(buffer)) > 0)
+            {
+                digest.update(buffer, 0, read);
+            }
+        }
+        if (!fields[0].equals(toHex(digest.digest())))
+        {
+            logger.warn("Cached test file is corrupt and will be downloaded again: " + file);
+            return null;
+        }
+        return file;
+    }
+
+    private File download(FTPClient ftp, FTPFile remoteFile) throws IOException
+    {
+        File tempFile = File.createTempFile("download", ".tmp", cacheDir);
+        try
+        {
+            MessageDigest digest = newDigest();
+            try (OutputStream out = new DigestOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile), 65536), digest))
+            {
+                if (!ftp.retrieveFile(ftpPath + "/" + remoteFile.getName(), out))
+                {
+                    throw new IOException("FTP download failed with reply: " + ftp.getReplyString());
+                }
+            }
+            String hash = toHex(digest.digest());
+            File file = getObjectFile(hash, remoteFile.getName());
+            if (!file.getParentFile().isDirectory() && !file.getParentFile().mkdirs())
+            {
+                throw new IOException("Unable to create test file cache entry: " + file.getParentFile());
+            }
+            Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            recordInManifest(remoteFile, hash);
+            return file;
+        }
+        finally
+        {
+            Files.deleteIfExists(tempFile.toPath());
+        }
+    }
+
+    /**
+     * Append the entry of a downloaded file to the manifest.  An entry cut short by a crash fails its hash check on
+     * the next run and the file is downloaded again.
+     */
+    private void recordInManifest(FTPFile remoteFile, String hash) throws IOException
+    {
+        Properties entry = new Properties();
+        entry.setProperty(remoteFile.getName(), hash + "," + remoteFile.getSize() + "," + getTimestamp(remoteFile));
+        // Let the properties escape the entry, then leave out the date comment
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+        entry.store(bytes, null);
+        String line = new String(bytes.toByteArray(), StandardCharsets.ISO_8859_1).replaceFirst("^#.*\\R", "");
+        synchronized (manifest)
+        {
+            manifest.putAll(entry);
+            try (OutputStream out = new FileOutputStream(new File(cacheDir, MANIFEST), true))
+            {
+                out.write(line.getBytes(StandardCharsets.ISO_8859_1));
+            }
+        }
+    }
+
+    /**
+     * Replace the manifest in one step so that a crash never leaves half of it behind
+     */
+    private void storeManifest() throws IOException
+    {
+        synchronized (manifest)
+        {
+            File tempFile = new File(cacheDir, MANIFEST + ".tmp");
+            try (OutputStream out = new FileOutputStream(tempFile))
+            {
+                manifest.store(out, MANIFEST_COMMENT);
+            }
+            Files.move(tempFile.toPath(), new File(cacheDir, MANIFEST).toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    private File getObjectFile(String hash, String name)
+    {
+        return new File(new File(new File(cacheDir, OBJECTS_DIR), hash), name);
+    }
+
+    /**
+     * @return a new, unconnected FTP client
+     */
+    FTPClient newFtpClient()
+    {
+        return new FTPClient();
+    }
+
+    private FTPClient connect() throws IOException
+    {
+        FTPClient ftp = newFtpClient();
+        ftp.connect(ftpHost, ftpPort);
+        if (!FTPReply.isPositiveCompletion(ftp.getReplyCode()) || !ftp.login(ftpUsername, ftpPassword))
+        {
+            String reply = ftp.getReplyString();
+            disconnect(ftp);
+            throw new IOException("Unable to log in to " + ftpHost + ":" + ftpPort + " as " + ftpUsername + ": " + reply);
+        }
+        ftp.enterLocalPassiveMode();
+        ftp.setFileType(FTP.BINARY_FILE_TYPE);
+        return ftp;
+    }
+
+    private static void disconnect(FTPClient ftp)
+    {
+        if (ftp == null || !ftp.isConnected())
+        {
+            return;
+        }
+        try
+        {
+            ftp.logout();
+            ftp.disconnect();
+        }
+        catch (IOException e)
+        {
+            // Nothing more to do with this connection
+        }
+    }
+
+    private static long getTimestamp(FTPFile remoteFile)
+    {
+        return remoteFile.getTimestamp() == null ? 0L : remoteFile.getTimestamp().getTimeInMillis();
+    }
+
+    private static MessageDigest newDigest()
+    {
+        try
+        {
+            return MessageDigest.getInstance(HASH_ALGORITHM);
+        }
+        catch (NoSuchAlgorithmException e)
+        {
+            throw new IllegalStateException("Every JVM supports " + HASH_ALGORITHM, e);
+        }
+    }
+
+    private static String toHex(byte[] bytes)
+    {
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes)
+        {
+            sb.append(String.format("%02x", b));
+        }
+        return sb.toString();
+    }
+}
@@ -31,10 +31,15 @@ import org.alfresco.bm.cm.FileFolderService;
 import org.alfresco.bm.cm.FolderData;
 import org.alfresco.bm.common.EventResult;
 import org.alfresco.bm.common.session.SessionService;
+import org.alfresco.bm.dataload.LoadControl;
+import org.alfresco.bm.dataload.ResultAggregator;
+import org.alfresco.bm.dataload.checkpoint.CheckpointService;
+import org.alfresco.bm.dataload.sites.SiteShardService;
 import org.alfresco.bm.driver.event.AbstractEventProcessor;
 import org.alfresco.bm.driver.event.Event;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.UUID;
 
@@ -54,11 +59,19 @@ public class ScheduleSiteLoaders extends AbstractEventProcessor
     public static final String FIELD_PATH = "path";
     public static final String FIELD_FOLDERS_TO_CREATE = "foldersToCreate";
     public static final String FIELD_FILES_TO_CREATE = "filesToCreate";
+    public static final String FIELD_BRANCH_DEPTH = "branchDepth";
+    public static final String FIELD_FILES_SKIP = "filesSkip";
+    public static final String FIELD_FOLDERS_SKIP = "foldersSkip";
 
     public static final String EVENT_NAME_LOAD_SITE_FOLDERS = "loadSiteFolders";
     public static final String EVENT_NAME_LOAD_SITE_FILES = "loadSiteFiles";
     public static final String EVENT_NAME_SCHEDULE_LOADERS = "scheduleLoaders";
     public static final String EVENT_NAME_LOADING_COMPLETE = "loadingComplete";
+    public static final String EVENT_NAME_LOAD_AT_ARRIVAL_RATE = ArrivalRateLoader.EVENT_NAME_LOAD_AT_ARRIVAL_RATE;
+
+    /** The number of pages of folders a shard looks through in one pass before carrying on in the next */
+    public static final int SHARD_PAGES_PER_PASS = 10;
+    private static final int PAGE_SIZE = 100;
 
     private final SessionService sessionService;
     private final FileFolderService fileFolderService;
@@ -72,6 +85,13 @@ public class ScheduleSiteLoaders extends AbstractEventProcessor
     private String eventNameLoadSiteFiles;
     private String eventNameScheduleLoaders;
     private String eventNameLoadingComplete;
+    private String eventNameLoadAtArrivalRate;
+    private double arrivalRate;
+    private boolean folderBranches;
+    private ResultAggregator resultAggregator;
+    private SiteShardService siteShardService;
+    private CheckpointService checkpointService;
+    private LoadControl loadControl;
 
 
     public ScheduleSiteLoaders(SessionService sessionService, FileFolderService fileFolderService, int subfolders, int maxDepth, int filesPerFolder,
@@ -93,6 +113,7 @@ public class ScheduleSiteLoaders extends AbstractEventProcessor
         this.eventNameLoadSiteFiles = EVENT_NAME_LOAD_SITE_FILES;
         this.eventNameScheduleLoaders = EVENT_NAME_SCHEDULE_LOADERS;
         this.eventNameLoadingComplete = EVENT_NAME_LOADING_COMPLETE;
+        this.eventNameLoadAtArrivalRate = EVENT_NAME_LOAD_AT_ARRIVAL_RATE;
     }
 
     /**
@@ -127,34 +148,163 @@ public class ScheduleSiteLoaders extends AbstractEventProcessor
         this.eventNameLoadingComplete = eventNameLoadingComplete;
     }
 
+    /**
+     * Override the {@link #EVENT_NAME_LOAD_AT_ARRIVAL_RATE default} event name used to hand over to an open-model load
+     *
+     * @since 3.0
+     */
+    public void setEventNameLoadAtArrivalRate(String eventNameLoadAtArrivalRate)
+    {
+        this.eventNameLoadAtArrivalRate = eventNameLoadAtArrivalRate;
+    }
+
+    /**
+     * Set the number of requests per second to start regardless of responses.  Anything greater than zero hands
+     * the load over to the {@link ArrivalRateLoader open-model loader} instead of scheduling loaders here.
+     *
+     * @since 3.0
+     */
+    public void setArrivalRate(double arrivalRate)
+    {
+        this.arrivalRate = arrivalRate;
+    }
+
+    /**
+     * Have each new subfolder created as a whole branch down to the maximum depth rather than one level at a time
+     *
+     * @since 3.0
+     */
+    public void setFolderBranches(boolean folderBranches)
+    {
+        this.folderBranches = folderBranches;
+    }
+
+    /**
+     * Set the aggregator used by the loaders so that its last summaries are recorded when loading completes
+     *
+     * @since 3.0
+     */
+    public void setResultAggregator(ResultAggregator resultAggregator)
+    {
+        this.resultAggregator = resultAggregator;
+    }
+
+    /**
+     * Split folder loading between the drivers, each scheduling loaders only for the sites it owns.  The
+     * {@link #ScheduleSiteLoaders(SessionService, FileFolderService, int, int, int, int, long) maximum active loaders}
+     * then applies to each driver.
+     *
+     * @since 3.0
+     */
+    public void setSiteShardService(SiteShardService siteShardService)
+    {
+        this.siteShardService = siteShardService;
+    }
+
+    /**
+     * Record a checkpoint for each pass and lease the folders locked for loading
+     *
+     * @since 3.0
+     */
+    public void setCheckpointService(CheckpointService checkpointService)
+    {
+        this.checkpointService = checkpointService;
+    }
+
+    /**
+     * Let the load be paused and the number of active loaders changed while it runs
+     *
+     * @since 3.0
+     */
+    public void setLoadControl(LoadControl loadControl)
+    {
+        this.loadControl = loadControl;
+    }
+
     @Override
     public EventResult processEvent(Event event) throws Exception
     {
+        if (checkpointService != null)
+        {
+            checkpointService.checkpoint(eventNameScheduleLoaders, null);
+        }
+
+        if (arrivalRate > 0.0)
+        {
+            return new EventResult("Loading at " + arrivalRate + " requests per second.", Collections.singletonList(new Event(eventNameLoadAtArrivalRate, null)));
+        }
+
+        String shard = null;
+        if (siteShardService != null && siteShardService.isEnabled())
+        {
+            shard = SiteShardService.getShard(event);
+            if (shard == null)
+            {
+                List<Event> shardEvents = siteShardService.startPhase(eventNameScheduleLoaders, eventNameScheduleLoaders);
+                return new EventResult("Scheduling loaders across " + shardEvents.size() + " shard(s)", shardEvents);
+            }
+            List<Event> handOverEvents = siteShardService.handOver(eventNameScheduleLoaders, event);
+            if (handOverEvents != null)
+            {
+                return new EventResult("Shard " + shard + " belongs to another driver", handOverEvents);
+            }
+        }
+
+        if (loadControl != null && loadControl.isPaused())
+        {
+            Event nextEvent = new Event(eventNameScheduleLoaders, System.currentTimeMillis() + loadControl.getPauseCheckDelay(),
+                event == null ? null : event.getData());
+            return new EventResult("Scheduling is paused.", Collections.singletonList(nextEvent));
+        }
+        LoadControl.Overrides overrides = loadControl == null ? LoadControl.Overrides.NONE : loadControl.getOverrides();
+        int activeLoaders = overrides.getMaxActiveLoaders(maxActiveLoaders);
+        long checkDelay = overrides.getLoadCheckDelay(loadCheckDelay);
+
         // Are there still sessions active?
         long sessionCount = sessionService.getActiveSessionsCount();
-        int loaderSessionsToCreate = maxActiveLoaders - (int) sessionCount;
+        int loaderSessionsToCreate = activeLoaders - (int) sessionCount;
+        if (shard != null)
+        {
+            // Sessions are counted across all drivers, so take this shard's share of what is free
+            int shardCount = siteShardService.getShards().size();
+            loaderSessionsToCreate = (activeLoaders * shardCount - (int) sessionCount) / shardCount;
+        }
+
+        List<Event> nextEvents = new ArrayList<Event>(Math.max(activeLoaders, 1));
 
-        List<Event> nextEvents = new ArrayList<Event>(maxActiveLoaders);
+        // Most of the folders found belong to other shards, so a shard pages through a bounded window of them
+        // on each pass and carries on from where it stopped on the next pass
+        int maxPages = shard == null ? Integer.MAX_VALUE : SHARD_PAGES_PER_PASS;
+        int filesSkip = shard == null ? 0 : getSkip(event, FIELD_FILES_SKIP);
+        int foldersSkip = shard == null ? 0 : getSkip(event, FIELD_FOLDERS_SKIP);
+        boolean fromStart = filesSkip == 0 && foldersSkip == 0;
+        boolean filesDone = false;
+        boolean foldersDone = false;
+        int lockedFolders = 0;
 
-        int skip = 0;
-        int limit = 100;
+        int skip = filesSkip;
+        int pages = 0;
         // Find folders at the deepest level and schedule file-only loads
-        while (nextEvents.size() < loaderSessionsToCreate)
+        while (nextEvents.size() < loaderSessionsToCreate && pages < maxPages)
         {
             // Get folders needing loading
-            List<FolderData> emptyFolders = fileFolderService
-                .getFoldersByCounts("", null, Long.valueOf(maxLevel), null, null,                                 // Ignore folder limits
-                    0L, Long.valueOf(filesPerFolder - 1),         // Get folders that still need files
-                    skip, limit);
-            skip += limit;
+            List<FolderData> emptyFolders = getFoldersToLoad(true, skip, PAGE_SIZE);
+            pages++;
             if (emptyFolders.size() == 0)
             {
                 // The folders were populated in the mean time
+                skip = 0;
+                filesDone = true;
                 break;
             }
             // Schedule a load for each folder 
             for (FolderData emptyFolder : emptyFolders)
             {
+                if (shard != null && !siteShardService.isOwnedBy(shard, SiteShardService.getSiteId(emptyFolder.getPath())))
+                {
+                    // Another shard loads this site
+                    continue;
+                }
                 int filesToCreate = filesPerFolder - (int) emptyFolder.getFileCount();
                 try
                 {
@@ -163,6 +313,10 @@ public class ScheduleSiteLoaders extends AbstractEventProcessor
                     String lockPath = emptyFolder.getPath() + "/locked";
                     FolderData lockFolder = new FolderData(UUID.randomUUID().toString(), "", lockPath, Long.MAX_VALUE, Long.MAX_VALUE);
                     fileFolderService.createNewFolder(lockFolder);
+                    if (checkpointService != null)
+                    {
+                        checkpointService.leaseFolderLock(emptyFolder.getContext(), emptyFolder.getPath(), emptyFolder.getFolderCount(), filesPerFolder);
+                    }
                     // We locked this, so the load can be scheduled.
                     // The loader will remove the lock when it completes
                     DBObject loadData = BasicDBObjectBuilder.start().add(FIELD_CONTEXT, emptyFolder.getContext()).add(FIELD_PATH, emptyFolder.getPath())
@@ -178,6 +332,7 @@ public class ScheduleSiteLoaders extends AbstractEventProcessor
                 catch (Exception e)
                 {
                     // The lock was already applied; find another
+                    lockedFolders++;
                     continue;
                 }
                 // Check if we have enough
@@ -186,27 +341,37 @@ public class ScheduleSiteLoaders extends AbstractEventProcessor
                     break;
                 }
             }
+            if (nextEvents.size() < loaderSessionsToCreate)
+            {
+                // Only move on once the page has been used up
+                skip += PAGE_SIZE;
+            }
         }
+        filesSkip = skip;
 
-        skip = 0;
-        limit = 100;
+        skip = foldersSkip;
+        pages = 0;
         // Target folders that need subfolders
-        while (nextEvents.size() < loaderSessionsToCreate)
+        while (nextEvents.size() < loaderSessionsToCreate && pages < maxPages)
         {
             // Get folders needing loading
-            List<FolderData> emptyFolders = fileFolderService
-                .getFoldersByCounts("", null, Long.valueOf(maxLevel - 1), 0L, Long.valueOf(subfolders - 1),             // Get folders that still need folders
-                    null, null,                                 // Ignore file limits
-                    skip, limit);
-            skip += limit;
+            List<FolderData> emptyFolders = getFoldersToLoad(false, skip, PAGE_SIZE);
+            pages++;
             if (emptyFolders.size() == 0)
             {
                 // The folders were populated in the mean time
+                skip = 0;
+                foldersDone = true;
                 break;
             }
             // Schedule a load for each folder 
             for (FolderData emptyFolder : emptyFolders)
             {
+                if (shard != null && !siteShardService.isOwnedBy(shard, SiteShardService.getSiteId(emptyFolder.getPath())))
+                {
+                    // Another shard loads this site
+                    continue;
+                }
                 int foldersToCreate = subfolders - (int) emptyFolder.getFolderCount();
                 try
                 {
@@ -215,10 +380,17 @@ public class ScheduleSiteLoaders extends AbstractEventProcessor
                     String lockPath = emptyFolder.getPath() + "/locked";
                     FolderData lockFolder = new FolderData(UUID.randomUUID().toString(), "", lockPath, Long.MAX_VALUE, Long.MAX_VALUE);
                     fileFolderService.createNewFolder(lockFolder);
+                    if (checkpointService != null)
+                    {
+                        checkpointService.leaseFolderLock(emptyFolder.getContext(), emptyFolder.getPath(), subfolders, emptyFolder.getFileCount());
+                    }
                     // We locked this, so the load can be scheduled.
                     // The loader will remove the lock when it completes
+                    // Each new subfolder can be the top of a branch reaching down to the deepest level
+                    int branchDepth = folderBranches ? maxLevel - emptyFolder.getLevel() : 1;
                     DBObject loadData = BasicDBObjectBuilder.start().add(FIELD_CONTEXT, emptyFolder.getContext()).add(FIELD_PATH, emptyFolder.getPath())
-                        .add(FIELD_FOLDERS_TO_CREATE, Integer.valueOf(foldersToCreate)).add(FIELD_FILES_TO_CREATE, Integer.valueOf(0)).get();
+                        .add(FIELD_FOLDERS_TO_CREATE, Integer.valueOf(foldersToCreate)).add(FIELD_FILES_TO_CREATE, Integer.valueOf(0))
+                        .add(FIELD_BRANCH_DEPTH, Integer.valueOf(branchDepth)).get();
                     Event loadEvent = new Event(eventNameLoadSiteFolders, loadData);
                     // Each load event must be associated with a session
                     String sessionId = sessionService.startSession(loadData);
@@ -229,6 +401,7 @@ public class ScheduleSiteLoaders extends AbstractEventProcessor
                 catch (Exception e)
                 {
                     // The lock was already applied; find another
+                    lockedFolders++;
                     continue;
                 }
                 // Check if we have enough
@@ -237,23 +410,73 @@ public class ScheduleSiteLoaders extends AbstractEventProcessor
                     break;
                 }
             }
+            if (nextEvents.size() < loaderSessionsToCreate)
+            {
+                // Only move on once the page has been used up
+                skip += PAGE_SIZE;
+            }
         }
+        foldersSkip = skip;
 
         // If there are no events, then we have finished
         String msg = null;
-        if (loaderSessionsToCreate > 0 && nextEvents.size() == 0)
+        boolean finished = loaderSessionsToCreate > 0 && nextEvents.size() == 0;
+        if (finished && shard != null)
+        {
+            if (!fromStart || !filesDone || !foldersDone)
+            {
+                // Only part of the mirror was looked at
+                finished = false;
+            }
+            else if (lockedFolders > 0 && sessionCount > 0)
+            {
+                // This shard's loaders are still running; with no sessions left at all the locks are stale
+                finished = false;
+            }
+            else
+            {
+                // Folders left by shards that dropped off the ring are picked up by restarting the phase
+                boolean workRemains = hasUnlockedFolder(true) || hasUnlockedFolder(false);
+                List<Event> restartEvents = siteShardService.completeShard(eventNameScheduleLoaders, shard, eventNameScheduleLoaders, workRemains);
+                if (restartEvents == null)
+                {
+                    return new EventResult("Shard " + shard + " has no more folders to load.", Collections.<Event>emptyList());
+                }
+                else if (restartEvents.size() > 0)
+                {
+                    return new EventResult("Rebalancing loading across " + restartEvents.size() + " shard(s)", restartEvents);
+                }
+            }
+        }
+        if (finished)
         {
             // There are no files or folders to load even though there are sessions available
             Event nextEvent = new Event(eventNameLoadingComplete, null);
             nextEvents.add(nextEvent);
             msg = "Loading completed.  Raising 'done' event.";
+            if (resultAggregator != null && resultAggregator.isEnabled())
+            {
+                // Record whatever the loaders have not yet reported
+                DBObject resultData = BasicDBObjectBuilder.start().add("msg", msg).add(ResultAggregator.FIELD_SUMMARIES, resultAggregator.flush()).get();
+                return new EventResult(resultData, nextEvents);
+            }
         }
         else
         {
             // Reschedule self
-            Event nextEvent = new Event(eventNameScheduleLoaders, System.currentTimeMillis() + loadCheckDelay, null);
+            DBObject nextData = null;
+            if (shard != null)
+            {
+                nextData = BasicDBObjectBuilder.start().add(SiteShardService.FIELD_SHARD, shard)
+                    .add(FIELD_FILES_SKIP, Integer.valueOf(filesSkip)).add(FIELD_FOLDERS_SKIP, Integer.valueOf(foldersSkip)).get();
+            }
+            Event nextEvent = new Event(eventNameScheduleLoaders, System.currentTimeMillis() + checkDelay, nextData);
             nextEvents.add(nextEvent);
             msg = "Raised further " + (nextEvents.size() - 1) + " events and rescheduled self.";
+            if (shard != null)
+            {
+                nextEvents.addAll(siteShardService.joinPhase(eventNameScheduleLoaders, eventNameScheduleLoaders));
+            }
         }
 
         if (logger.isDebugEnabled())
@@ -264,4 +487,61 @@ public class ScheduleSiteLoaders extends AbstractEventProcessor
         EventResult result = new EventResult(msg, nextEvents);
         return result;
     }
+
+    /**
+     * @param files <tt>true</tt> for folders at any level that still need files or <tt>false</tt> for folders
+     *              above the deepest level that still need subfolders
+     */
+    private List<FolderData> getFoldersToLoad(boolean files, int skip, int limit)
+    {
+        if (files)
+        {
+            return fileFolderService
+                .getFoldersByCounts("", null, Long.valueOf(maxLevel), null, null,                                 // Ignore folder limits
+                    0L, Long.valueOf(filesPerFolder - 1),         // Get folders that still need files
+                    skip, limit);
+        }
+        else
+        {
+            return fileFolderService
+                .getFoldersByCounts("", null, Long.valueOf(maxLevel - 1), 0L, Long.valueOf(subfolders - 1),             // Get folders that still need folders
+                    null, null,                                 // Ignore file limits
+                    skip, limit);
+        }
+    }
+
+    /**
+     * Look for a folder still needing loading that no loader has locked.  Only locked folders are passed over, so
+     * this costs no more than the number of folders being loaded.
+     *
+     * @see #getFoldersToLoad(boolean, int, int)
+     */
+    private boolean hasUnlockedFolder(boolean files)
+    {
+        for (int skip = 0; ; skip += PAGE_SIZE)
+        {
+            List<FolderData> folders = getFoldersToLoad(files, skip, PAGE_SIZE);
+            if (folders.size() == 0)
+            {
+                return false;
+            }
+            for (FolderData folder : folders)
+            {
+                if (fileFolderService.getFolder("", folder.getPath() + "/locked") == null)
+                {
+                    return true;
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the page offset carried over from the shard's previous pass
+     */
+    private static int getSkip(Event event, String field)
+    {
+        Object data = event.getData();
+        Object skip = (data instanceof DBObject) ? ((DBObject) data).get(field) : null;
+        return (skip instanceof Number) ? ((Number) skip).intValue() : 0;
+    }
 }
@@ -0,0 +1,272 @@
+/*
+ * #%L
+ * Alfresco Benchmark Load Data
+ * %%
+ * Copyright (C) 2005 - 2018 Alfresco Software Limited
+ * %%
+ * This file is part of the Alfresco software.
+ * If the software was purchased under a paid Alfresco license, the terms of
+ * the paid license agreement will prevail.  Otherwise, the software is
+ * provided under the following open source license terms:
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+package org.alfresco.bm.dataload.files;
+
+import com.mongodb.BasicDBObjectBuilder;
+import com.mongodb.DBObject;
+import org.alfresco.bm.cm.FileFolderService;
+import org.alfresco.bm.cm.FolderData;
+import org.alfresco.bm.common.EventResult;
+import org.alfresco.bm.common.session.SessionService;
+import org.alfresco.bm.dataload.LoadControl;
+import org.alfresco.bm.dataload.ResultAggregator;
+import org.alfresco.bm.dataload.checkpoint.CheckpointService;
+import org.alfresco.bm.driver.event.AbstractEventProcessor;
+import org.alfresco.bm.driver.event.Event;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Schedule the {@link #EVENT_NAME_LOAD_VERSIONS version} loaders and {@link #EVENT_NAME_SCHEDULE_VERSION_LOADERS reschedule self}
+ * until every loaded folder that holds files has had new versions uploaded.
+ * <p/>
+ * Progress is recorded in the {@link #CONTEXT_VERSIONS versions} context of the file-folder mirror.  A folder is claimed
+ * by creating its entry in that context; the loader then counts the files it versioned as the entry's folder count and
+ * the versions it uploaded as the entry's file count.  Claimed folders are not scheduled again unless their
+ * {@link CheckpointService lease} runs out before the loader finishes.
+ * <p/>
+ * Folders are visited in the order that the mirror returns them and the position reached is passed to the next
+ * scheduling event, so each run only looks at folders that have not been visited.
+ *
+ * @since 3.0
+ */
+public class ScheduleVersionLoaders extends AbstractEventProcessor
+{
+    public static final String CONTEXT_VERSIONS = "versions";
+    public static final String FIELD_SKIP = "skip";
+
+    public static final String EVENT_NAME_LOAD_VERSIONS = "loadVersions";
+    public static final String EVENT_NAME_SCHEDULE_VERSION_LOADERS = "scheduleVersionLoaders";
+    public static final String EVENT_NAME_VERSIONS_COMPLETE = "versionsComplete";
+
+    private final SessionService sessionService;
+    private final FileFolderService fileFolderService;
+    private final int maxActiveLoaders;
+    private final long loadCheckDelay;
+
+    private boolean enabled;
+    private String eventNameLoadVersions;
+    private String eventNameScheduleVersionLoaders;
+    private String eventNameVersionsComplete;
+    private ResultAggregator resultAggregator;
+    private CheckpointService checkpointService;
+    private LoadControl loadControl;
+
+    /**
+     * @param sessionService    service to track the active loaders
+     * @param fileFolderService service to find and claim loaded folders
+     * @param maxActiveLoaders  the maximum number of loaders active at any time
+     * @param loadCheckDelay    the time between checks for free loader sessions
+     */
+    public ScheduleVersionLoaders(SessionService sessionService, FileFolderService fileFolderService, int maxActiveLoaders, long loadCheckDelay)
+    {
+        super();
+
+        this.sessionService = sessionService;
+        this.fileFolderService = fileFolderService;
+        this.maxActiveLoaders = maxActiveLoaders;
+        this.loadCheckDelay = loadCheckDelay;
+
+        this.eventNameLoadVersions = EVENT_NAME_LOAD_VERSIONS;
+        this.eventNameScheduleVersionLoaders = EVENT_NAME_SCHEDULE_VERSION_LOADERS;
+        this.eventNameVersionsComplete = EVENT_NAME_VERSIONS_COMPLETE;
+    }
+
+    /**
+     * Turn version loading on; when off, loading completes straight away
+     */
+    public void setEnabled(boolean enabled)
+    {
+        this.enabled = enabled;
+    }
+
+    /**
+     * Override the {@link #EVENT_NAME_LOAD_VERSIONS default} output event name
+     */
+    public void setEventNameLoadVersions(String eventNameLoadVersions)
+    {
+        this.eventNameLoadVersions = eventNameLoadVersions;
+    }
+
+    /**
+     * Override the {@link #EVENT_NAME_SCHEDULE_VERSION_LOADERS default} output event name
+     */
+    public void setEventNameScheduleVersionLoaders(String eventNameScheduleVersionLoaders)
+    {
+        this.eventNameScheduleVersionLoaders = eventNameScheduleVersionLoaders;
+    }
+
+    /**
+     * Override the {@link #EVENT_NAME_VERSIONS_COMPLETE default} output event name
+     */
+    public void setEventNameVersionsComplete(String eventNameVersionsComplete)
+    {
+        this.eventNameVersionsComplete = eventNameVersionsComplete;
+    }
+
+    /**
+     * Set the aggregator used by the loaders so that its last summaries are recorded when loading completes
+     */
+    public void setResultAggregator(ResultAggregator resultAggregator)
+    {
+        this.resultAggregator = resultAggregator;
+    }
+
+    /**
+     * Record a checkpoint for each pass, so that a resumed run carries on from the last folder claimed
+     *
+     * @since 3.0
+     */
+    public void setCheckpointService(CheckpointService checkpointService)
+    {
+        this.checkpointService = checkpointService;
+    }
+
+    /**
+     * Let the load be paused and the number of active loaders changed while it runs
+     *
+     * @since 3.0
+     */
+    public void setLoadControl(LoadControl loadControl)
+    {
+        this.loadControl = loadControl;
+    }
+
+    @Override
+    public EventResult processEvent(Event event) throws Exception
+    {
+        LoadControl.Overrides overrides = loadControl == null ? LoadControl.Overrides.NONE : loadControl.getOverrides();
+        int activeLoaders = overrides.getMaxActiveLoaders(maxActiveLoaders);
+        long checkDelay = overrides.getLoadCheckDelay(loadCheckDelay);
+        List<Event> nextEvents = new ArrayList<Event>(Math.max(activeLoaders, 1));
+        if (!enabled)
+        {
+            nextEvents.add(new Event(eventNameVersionsComplete, null));
+            return new EventResult("Version loading is not enabled.", nextEvents);
+        }
+
+        DBObject dataObj = event == null ? null : (DBObject) event.getData();
+        boolean reclaimed = false;
+        if (checkpointService != null)
+        {
+            // Folders returned to be claimed again may lie behind the position reached, so start from the beginning
+            reclaimed = checkpointService.checkpoint(eventNameScheduleVersionLoaders, dataObj) > 0;
+        }
+        if (loadControl != null && loadControl.isPaused())
+        {
+            Event nextEvent = new Event(eventNameScheduleVersionLoaders, System.currentTimeMillis() + loadControl.getPauseCheckDelay(), dataObj);
+            return new EventResult("Scheduling is paused.", Collections.singletonList(nextEvent));
+        }
+        Integer skipObj = dataObj == null ? null : (Integer) dataObj.get(FIELD_SKIP);
+        int skip = skipObj == null || reclaimed ? 0 : skipObj.intValue();
+
+        // Are there still sessions active?
+        long sessionCount = sessionService.getActiveSessionsCount();
+        int loaderSessionsToCreate = activeLoaders - (int) sessionCount;
+
+        int limit = 100;
+        boolean exhausted = false;
+        while (nextEvents.size() < loaderSessionsToCreate)
+        {
+            // Get folders holding files
+            List<FolderData> folders = fileFolderService.getFoldersByCounts("", null, null, null, null, 1L, null, skip, limit);
+            if (folders.size() == 0)
+            {
+                exhausted = true;
+                break;
+            }
+            for (FolderData folder : folders)
+            {
+                skip++;
+                if (folder.getPath().endsWith("/locked"))
+                {
+                    // Left behind by a failed file loader
+                    continue;
+                }
+                try
+                {
+                    // Claim the folder; this fails if it was claimed before
+                    FolderData versions = new FolderData(UUID.randomUUID().toString(), CONTEXT_VERSIONS, folder.getPath(), 0L, 0L);
+                    fileFolderService.createNewFolder(versions);
+                    if (checkpointService != null)
+                    {
+                        checkpointService.leaseVersionClaim(folder.getPath());
+                    }
+                }
+                catch (Exception e)
+                {
+                    continue;
+                }
+                DBObject loadData = BasicDBObjectBuilder.start().add(ScheduleSiteLoaders.FIELD_CONTEXT, folder.getContext())
+                    .add(ScheduleSiteLoaders.FIELD_PATH, folder.getPath()).get();
+                Event loadEvent = new Event(eventNameLoadVersions, loadData);
+                // Each load event must be associated with a session
+                String sessionId = sessionService.startSession(loadData);
+                loadEvent.setSessionId(sessionId);
+                nextEvents.add(loadEvent);
+                // Check if we have enough
+                if (nextEvents.size() >= loaderSessionsToCreate)
+                {
+                    break;
+                }
+            }
+        }
+
+        String msg = null;
+        if (exhausted && nextEvents.size() == 0)
+        {
+            // Every folder has been claimed
+            Event nextEvent = new Event(eventNameVersionsComplete, null);
+            nextEvents.add(nextEvent);
+            msg = "Version loading completed.  Raising 'done' event.";
+            if (resultAggregator != null && resultAggregator.isEnabled())
+            {
+                // Record whatever the loaders have not yet reported
+                DBObject resultData = BasicDBObjectBuilder.start().add("msg", msg).add(ResultAggregator.FIELD_SUMMARIES, resultAggregator.flush()).get();
+                return new EventResult(resultData, nextEvents);
+            }
+        }
+        else
+        {
+            // Reschedule self, carrying on from where this run stopped
+            DBObject scheduleData = BasicDBObjectBuilder.start().add(FIELD_SKIP, Integer.valueOf(skip)).get();
+            Event nextEvent = new Event(eventNameScheduleVersionLoaders, System.currentTimeMillis() + checkDelay, scheduleData);
+            nextEvents.add(nextEvent);
+            msg = "Raised further " + (nextEvents.size() - 1) + " events and rescheduled self.";
+        }
+
+        if (logger.isDebugEnabled())
+        {
+            logger.debug(msg);
+        }
+
+        EventResult result = new EventResult(msg, nextEvents);
+        return result;
+    }
+}
@@ -25,13 +25,22 @@
  */
 package org.alfresco.bm.dataload.files;
 
+import com.fasterxml.jackson.databind.JsonNode;
+import com.mongodb.BasicDBObject;
 import com.mongodb.BasicDBObjectBuilder;
 import com.mongodb.DBObject;
-import org.alfresco.bm.AbstractRestApiEventProcessor;
 import org.alfresco.bm.cm.FileFolderService;
 import org.alfresco.bm.cm.FolderData;
 import org.alfresco.bm.common.EventResult;
 import org.alfresco.bm.data.DataCreationState;
+import org.alfresco.bm.dataload.AbstractPooledRestApiEventProcessor;
+import org.alfresco.bm.dataload.LoadControl;
+import org.alfresco.bm.dataload.RestCallExecutor;
+import org.alfresco.bm.dataload.ResultAggregator;
+import org.alfresco.bm.dataload.rest.AlfrescoAsyncClient;
+import org.alfresco.bm.dataload.rest.ApiResponse;
+import org.alfresco.bm.dataload.rest.NodeMetadata;
+import org.alfresco.bm.dataload.search.IndexSampleService;
 import org.alfresco.bm.dataload.sites.CreateSite;
 import org.alfresco.bm.driver.event.Event;
 import org.alfresco.bm.driver.file.TestFileService;
@@ -55,8 +64,16 @@ import org.springframework.http.HttpStatus;
 
 import java.io.File;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ThreadLocalRandom;
 
 /**
  * Schedule the #EVENT_NAME_LOAD_FOLDERS folder and #EVENT_NAME_LOAD_FILES file loaders and
@@ -98,9 +115,15 @@ import java.util.UUID;
  * @author Derek Hulley
  * @since 2.0
  */
-public class SiteFolderLoader extends AbstractRestApiEventProcessor
+public class SiteFolderLoader extends AbstractPooledRestApiEventProcessor
 {
     public static final String EVENT_NAME_SITE_FOLDER_LOADED = "siteFolderLoaded";
+    public static final int DEFAULT_LARGE_FILE_SIZE_MB = 1024;
+    public static final int DEFAULT_LARGE_FILE_THRESHOLD_MB = 0;
+    public static final String GENERATED_FILE_NAME = "generated.bin";
+    public static final String GENERATED_FILE_BUCKET = "generated";
+
+    private static final long MEGABYTE = 1024L * 1024L;
 
     private final FileFolderService fileFolderService;
     private final UserDataService userDataService;
@@ -110,8 +133,21 @@ public class SiteFolderLoader extends AbstractRestApiEventProcessor
     private String eventNameSiteFolderLoaded;
 
     private boolean requestRenditions;
+    private LoadControl loadControl;
     private String renditionList;
 
+    private boolean asyncUpload;
+    private boolean batchFolders;
+    private ResultAggregator resultAggregator;
+    private UploadMix uploadMix;
+    private MetadataProfile metadataProfile;
+    private IndexSampleService indexSampleService;
+    private int largeFilePercentage;
+    private long largeFileSize;
+    private long largeFileThreshold;
+    private AlfrescoAsyncClient asyncClient;
+    private RestCallExecutor restCallExecutor;
+
     /**
      * Constructor
      *
@@ -131,6 +167,8 @@ public class SiteFolderLoader extends AbstractRestApiEventProcessor
         this.testFileService = testFileService;
 
         this.eventNameSiteFolderLoaded = EVENT_NAME_SITE_FOLDER_LOADED;
+        this.largeFileSize = DEFAULT_LARGE_FILE_SIZE_MB * MEGABYTE;
+        this.largeFileThreshold = DEFAULT_LARGE_FILE_THRESHOLD_MB * MEGABYTE;
     }
 
     @Override
@@ -165,18 +203,34 @@ public class SiteFolderLoader extends AbstractRestApiEventProcessor
             return new EventResult("Load scheduling should create a session for each loader.", false);
         }
 
-        return loadFolder(folder, foldersToCreate, filesToCreate);
+        // Older schedulers do not ask for branches
+        Integer branchDepth = (Integer) dataObj.get(ScheduleSiteLoaders.FIELD_BRANCH_DEPTH);
+        return loadFolder(event.getName(), folder, foldersToCreate, filesToCreate, branchDepth == null ? 1 : branchDepth);
     }
 
-    private EventResult loadFolder(FolderData folder, int foldersToCreate, int filesToCreate)
+    private EventResult loadFolder(String eventName, FolderData folder, int foldersToCreate, int filesToCreate, int branchDepth)
     {
+        long start = System.currentTimeMillis();
         UserData user = SiteFolderLoader.getUser(siteDataService, userDataService, folder, logger);
 
-        // Create folders
-        createFolders(user, folder, foldersToCreate);
+        // Create folders; only the non-blocking client can send folder metadata
+        if (branchDepth > 1 || (isMetadataInUse() && !batchFolders))
+        {
+            createBranches(user, folder, foldersToCreate, branchDepth);
+        }
+        else if (batchFolders && foldersToCreate > 1)
+        {
+            createFolderBatch(user, folder, foldersToCreate);
+        }
+        else
+        {
+            createFolders(user, folder, foldersToCreate);
+        }
 
         // Create files
-        createFiles(user, folder, filesToCreate);
+        Map<String, Long> bytesByBucket = new HashMap<String, Long>();
+        LargeUploads largeUploads = new LargeUploads();
+        long bytes = createFiles(user, folder, filesToCreate, bytesByBucket, largeUploads);
 
         // Build next event
         DBObject eventData = BasicDBObjectBuilder.start().add(ScheduleSiteLoaders.FIELD_CONTEXT, folder.getContext())
@@ -188,23 +242,54 @@ public class SiteFolderLoader extends AbstractRestApiEventProcessor
 
         DBObject resultData = BasicDBObjectBuilder.start().add("msg", "Created " + foldersToCreate + " folders and " + filesToCreate + " files.")
             .add("path", folder.getPath()).add("folderCount", foldersToCreate).add("fileCount", filesToCreate).add("username", user.getUsername()).get();
+        if (!bytesByBucket.isEmpty())
+        {
+            resultData.put("bytesByBucket", new BasicDBObject(bytesByBucket));
+        }
+        if (largeUploads.count > 0)
+        {
+            resultData.put("largeFiles", largeUploads.toDBObject());
+        }
+        Object result = resultData;
+        if (resultAggregator != null)
+        {
+            long latency = System.currentTimeMillis() - start;
+            result = resultAggregator.aggregate(eventName, resultData, latency, foldersToCreate, filesToCreate, bytes, bytesByBucket);
+        }
 
-        return new EventResult(resultData, scheduleEvents);
+        return new EventResult(result, scheduleEvents);
 
     }
 
     private void createFolders(UserData user, FolderData folder, int foldersToCreate)
     {
         String folderPath = folder.getPath();
+        if (isVirtual())
+        {
+            List<Callable<Void>> calls = new ArrayList<Callable<Void>>(foldersToCreate);
+            for (int i = 0; i < foldersToCreate; i++)
+            {
+                String newFolderName = UUID.randomUUID().toString();
+                calls.add(withClient(() ->
+                {
+                    try
+                    {
+                        createFolder(folder, folderPath, getUserModel(user), getNodeRef(folder.getId()), newFolderName);
+                    }
+                    catch (Exception e)
+                    {
+                        throw new RuntimeException("Failed to create folder: " + folder.getId() + " path: " + folderPath + ". Exception: " + e.getMessage(), e);
+                    }
+                    return null;
+                }));
+            }
+            invokeAll(calls);
+            return;
+        }
 
-        // we need a user model
-        UserModel userModel = new UserModel();
-        userModel.setUsername(user.getUsername());
-        userModel.setPassword(user.getPassword());
-
-        // we also need a reference to a parent folder
-        ContentModel parentFolder = new ContentModel();
-        parentFolder.setNodeRef(folder.getId());
+        // we need a user model and a reference to the parent folder
+        UserModel userModel = getUserModel(user);
+        ContentModel parentFolder = getNodeRef(folder.getId());
 
         for (int i = 0; i < foldersToCreate; i++)
         {
@@ -222,12 +307,241 @@ public class SiteFolderLoader extends AbstractRestApiEventProcessor
         }
     }
 
-    private void createFolder(FolderData folder, String folderPath, UserModel userModel, ContentModel parentFolder, String newFolderName) throws Exception
+    /**
+     * Create all the new subfolders with a single call.  If any of them already exist then the server rejects
+     * the whole batch, so the folders are created one per call instead and only the duplicates are skipped.
+     */
+    private void createFolderBatch(UserData user, FolderData folder, int foldersToCreate)
+    {
+        if (asyncClient == null)
+        {
+            throw new IllegalStateException("Creating folders in batches requires an 'asyncClient'.");
+        }
+        String folderPath = folder.getPath();
+        List<String> names = new ArrayList<String>(foldersToCreate);
+        List<NodeMetadata> metadata = isMetadataInUse() ? new ArrayList<NodeMetadata>(foldersToCreate) : null;
+        for (int i = 0; i < foldersToCreate; i++)
+        {
+            String name = UUID.randomUUID().toString();
+            names.add(name);
+            if (metadata != null)
+            {
+                metadata.add(getMetadata(name));
+            }
+        }
+
+        ApiResponse response;
+        resumeTimer();
+        try
+        {
+            response = asyncClient.createFolders(user.getUsername(), user.getPassword(), folder.getId(), names, metadata).join();
+        }
+        catch (CompletionException e)
+        {
+            throw new RuntimeException("Failed to create " + foldersToCreate + " folders in path: " + folderPath + ". Exception: " + e.getCause(), e.getCause());
+        }
+        finally
+        {
+            suspendTimer();
+        }
+
+        if (response.isCreated())
+        {
+            List<JsonNode> entries = response.getEntries();
+            List<FolderData> newFolders = new ArrayList<FolderData>(entries.size());
+            Map<String, String> namesById = new HashMap<String, String>();
+            for (JsonNode entry : entries)
+            {
+                String name = entry.path("name").asText();
+                String id = entry.path("id").asText();
+                newFolders.add(new FolderData(id, "", folderPath + "/" + name, 0L, 0L));
+                namesById.put(id, name);
+                onFolderCreated(name, id);
+            }
+            // Record the folders and increment the folder count
+            recordFolders(newFolders);
+            fileFolderService.incrementFolderCount("", folderPath, newFolders.size());
+            tagNodes(user.getUsername(), user.getPassword(), namesById);
+        }
+        else if (response.isConflict())
+        {
+            if (logger.isWarnEnabled())
+            {
+                logger.warn("Some of " + foldersToCreate + " folders in path: " + folderPath + " seem to exist already. Creating them one at a time.");
+            }
+            List<String[]> singles = new ArrayList<String[]>(foldersToCreate);
+            for (String name : names)
+            {
+                singles.add(new String[] { name });
+            }
+            createBranches(user, folder, singles);
+        }
+        else
+        {
+            // this is a failure, throw and exception and let the system handle it
+            throw new RuntimeException("Could not create " + foldersToCreate + " folders in path: " + folderPath + " , folder id: " + folder.getId()
+                + " . Code: " + response.getStatusCode() + " . Message: " + response.getErrorMessage());
+        }
+    }
+
+    /**
+     * Create each new subfolder as the top of a chain of folders <tt>branchDepth</tt> deep, using one call per branch.
+     * All the folders created are recorded with a single write to the mirror.
+     */
+    private void createBranches(UserData user, FolderData folder, int foldersToCreate, int branchDepth)
+    {
+        List<String[]> branches = new ArrayList<String[]>(foldersToCreate);
+        for (int i = 0; i < foldersToCreate; i++)
+        {
+            String[] names = new String[branchDepth];
+            for (int j = 0; j < branchDepth; j++)
+            {
+                names[j] = UUID.randomUUID().toString();
+            }
+            branches.add(names);
+        }
+        createBranches(user, folder, branches);
+    }
+
+    private void createBranches(UserData user, FolderData folder, List<String[]> branches)
+    {
+        if (asyncClient == null)
+        {
+            throw new IllegalStateException("Creating folder branches requires an 'asyncClient'.");
+        }
+        String folderPath = folder.getPath();
+        int foldersToCreate = branches.size();
+        List<CompletableFuture<ApiResponse>> requests = new ArrayList<CompletableFuture<ApiResponse>>(foldersToCreate);
+
+        resumeTimer();
+        for (String[] names : branches)
+        {
+            String relativePath = names.length > 1 ? String.join("/", Arrays.asList(names).subList(0, names.length - 1)) : null;
+            String name = names[names.length - 1];
+            requests.add(asyncClient.createFolder(user.getUsername(), user.getPassword(), folder.getId(), name, relativePath, getMetadata(name)));
+        }
+        try
+        {
+            CompletableFuture.allOf(requests.toArray(new CompletableFuture<?>[requests.size()])).join();
+        }
+        catch (CompletionException e)
+        {
+            // Each failure is reported below
+        }
+        suspendTimer();
+
+        List<FolderData> newFolders = new ArrayList<FolderData>(foldersToCreate);
+        Map<String, String> namesById = new HashMap<String, String>();
+        int created = 0;
+        String failure = null;
+        for (int i = 0; i < foldersToCreate; i++)
+        {
+            String[] names = branches.get(i);
+            ApiResponse response;
+            try
+            {
+                response = requests.get(i).join();
+            }
+            catch (CompletionException e)
+            {
+                failure = "Failed to create folder branch: " + names[0] + " in path: " + folderPath + ". Exception: " + e.getCause();
+                continue;
+            }
+            if (response.isCreated())
+            {
+                List<FolderData> branch = getBranch(folderPath, names, response);
+                if (branch == null)
+                {
+                    failure = "Folder branch: " + names[0] + " in path: " + folderPath + " was created but the response did not describe it: " + response;
+                    continue;
+                }
+                newFolders.addAll(branch);
+                created++;
+                namesById.put(response.getEntryId(), names[names.length - 1]);
+                onFolderCreated(names[names.length - 1], response.getEntryId());
+            }
+            else if (response.isConflict())
+            {
+                // node already exists, carry on
+                logFolderDuplicate(folderPath, names[0]);
+            }
+            else
+            {
+                failure = "Could not create folder branch: " + names[0] + " in path: " + folderPath + " , folder id: " + folder.getId() + " . Code: "
+                    + response.getStatusCode() + " . Message: " + response.getErrorMessage();
+            }
+        }
+        // Record the whole branch and then make it visible to the parent
+        recordFolders(newFolders);
+        if (created > 0)
+        {
+            fileFolderService.incrementFolderCount("", folderPath, created);
+        }
+        if (failure != null)
+        {
+            throw new RuntimeException(failure);
+        }
+        tagNodes(user.getUsername(), user.getPassword(), namesById);
+    }
+
+    /**
+     * Describe a newly-created branch using the ancestors listed in the response.  Each folder in the branch
+     * has one subfolder apart from the last.
+     *
+     * @return the folders of the branch, top first, or <tt>null</tt> if the response does not list them
+     */
+    private static List<FolderData> getBranch(String parentPath, String[] names, ApiResponse response)
+    {
+        String leafId = response.getEntryId();
+        JsonNode elements = response.getEntry().path("path").path("elements");
+        int firstAncestor = elements.size() - (names.length - 1);
+        if (leafId == null || firstAncestor < 0)
+        {
+            return null;
+        }
+        List<FolderData> branch = new ArrayList<FolderData>(names.length);
+        String path = parentPath;
+        for (int i = 0; i < names.length; i++)
+        {
+            path = path + "/" + names[i];
+            boolean isLeaf = i == names.length - 1;
+            String id;
+            if (isLeaf)
+            {
+                id = leafId;
+            }
+            else
+            {
+                JsonNode ancestor = elements.get(firstAncestor + i);
+                if (!names[i].equals(ancestor.path("name").asText()))
+                {
+                    return null;
+                }
+                id = ancestor.path("id").asText();
+            }
+            branch.add(new FolderData(id, "", path, isLeaf ? 0L : 1L, 0L));
+        }
+        return branch;
+    }
+
+    private void recordFolders(List<FolderData> folders)
     {
-        RestNodeBodyModel model = new RestNodeBodyModel();
-        model.setName(newFolderName);
-        model.setNodeType("cm:folder");
+        if (fileFolderService instanceof BulkFileFolderService)
+        {
+            ((BulkFileFolderService) fileFolderService).createNewFolders(folders);
+        }
+        else
+        {
+            for (FolderData folder : folders)
+            {
+                fileFolderService.createNewFolder(folder);
+            }
+        }
+    }
 
+    private void createFolder(FolderData folder, String folderPath, UserModel userModel, ContentModel parentFolder, String newFolderName) throws Exception
+    {
+        RestNodeBodyModel model = getFolderBody(newFolderName);
         RestWrapper restWrapper = getRestWrapper();
 
         resumeTimer();
@@ -240,7 +554,7 @@ public class SiteFolderLoader extends AbstractRestApiEventProcessor
             // Record the folder and increment the folder count
             fileFolderService.createNewFolder(newFolderModel.getId(), "", folderPath + "/" + newFolderName);
             fileFolderService.incrementFolderCount("", folderPath, 1);
-            logFolderSuccess(newFolderModel);
+            onFolderCreated(newFolderModel.getName(), newFolderModel.getId());
         }
         else if (isStatusConflict(statusCode))
         {
@@ -257,40 +571,407 @@ public class SiteFolderLoader extends AbstractRestApiEventProcessor
         }
     }
 
-    private void createFiles(UserData user, FolderData folder, int filesToCreate)
+    /**
+     * @return the number of content bytes sent
+     */
+    private long createFiles(UserData user, FolderData folder, int filesToCreate, Map<String, Long> bytesByBucket, LargeUploads largeUploads)
     {
+        if (asyncUpload)
+        {
+            return createFilesAsync(user, folder, filesToCreate, bytesByBucket, largeUploads);
+        }
         String folderPath = folder.getPath();
+        long bytes = 0L;
 
-        // we need a user model
-        UserModel userModel = new UserModel();
-        userModel.setUsername(user.getUsername());
-        userModel.setPassword(user.getPassword());
-
-        // we also need a reference to a parent folder
-        ContentModel parentFolder = new ContentModel();
-        parentFolder.setNodeRef(folder.getId());
+        // we need a user model and a reference to the parent folder
+        UserModel userModel = getUserModel(user);
+        ContentModel parentFolder = getNodeRef(folder.getId());
+        // Ordinary uploads are gathered up to be made all at once on virtual threads
+        List<Callable<Void>> calls = isVirtual() ? new ArrayList<Callable<Void>>(filesToCreate) : null;
 
         for (int i = 0; i < filesToCreate; i++)
         {
+            if (isGeneratedUpload())
+            {
+                uploadLarge(user, folder, UUID.randomUUID().toString() + "-" + GENERATED_FILE_NAME, null, largeUploads);
+                bytes += largeFileSize;
+                countGeneratedBytes(bytesByBucket);
+                continue;
+            }
             // get a random file to upload
-            File fileToUpload = testFileService.getFile();
+            File fileToUpload = getFileToUpload();
             if (fileToUpload == null)
             {
                 throw new RuntimeException("No test files exist for upload: " + testFileService);
             }
             String newFileName = UUID.randomUUID().toString() + "-" + fileToUpload.getName();
+            if (isLargeFile(fileToUpload))
+            {
+                // Too big to be buffered by the REST API client
+                uploadLarge(user, folder, newFileName, fileToUpload, largeUploads);
+            }
+            else if (calls != null)
+            {
+                calls.add(withClient(() ->
+                {
+                    try
+                    {
+                        createFile(newFileName, fileToUpload, getNodeRef(folder.getId()), folderPath, getUserModel(user));
+                    }
+                    catch (Exception e)
+                    {
+                        throw new RuntimeException("Failed to create file: " + newFileName + " in path: " + folderPath + ". Exception: " + e.getMessage(), e);
+                    }
+                    return null;
+                }));
+            }
+            else
+            {
+                try
+                {
+                    createFile(newFileName, fileToUpload, parentFolder, folderPath, userModel);
+                }
+                catch (Exception e)
+                {
+                    // let the system handle/log the failure
+                    throw new RuntimeException("Failed to create file: " + newFileName + " in path: " + folderPath + ". Exception: " + e.getMessage(), e);
+                }
+            }
+            bytes += fileToUpload.length();
+            countBytes(bytesByBucket, fileToUpload);
+        }
+        if (calls != null)
+        {
+            invokeAll(calls);
+        }
+        return bytes;
+    }
+
+    /**
+     * @return <tt>true</tt> if blocking calls are made concurrently on virtual threads
+     */
+    private boolean isVirtual()
+    {
+        return restCallExecutor != null && restCallExecutor.isVirtual();
+    }
+
+    /**
+     * Make blocking calls on virtual threads, timing them all as one
+     */
+    private void invokeAll(List<Callable<Void>> calls)
+    {
+        resumeTimer();
+        try
+        {
+            restCallExecutor.invokeAll(calls);
+        }
+        catch (RuntimeException e)
+        {
+            throw e;
+        }
+        catch (Exception e)
+        {
+            throw new RuntimeException(e);
+        }
+        finally
+        {
+            suspendTimer();
+        }
+    }
+
+    /**
+     * @return <tt>true</tt> if the test file is too big to be buffered and must be {@link #setLargeFileThresholdMB(int) streamed}
+     */
+    private boolean isLargeFile(File file)
+    {
+        return largeFileThreshold > 0L && file.length() >= largeFileThreshold;
+    }
+
+    /**
+     * @return <tt>true</tt> if the next upload should be {@link #setLargeFilePercentage(int) generated content}
+     */
+    private boolean isGeneratedUpload()
+    {
+        return largeFilePercentage > 0 && ThreadLocalRandom.current().nextInt(100) < largeFilePercentage;
+    }
+
+    /**
+     * Stream a large file through the non-blocking client so that memory use does not depend on its size.
+     *
+     * @param file the file to upload or <tt>null</tt> to upload generated content
+     */
+    private void uploadLarge(UserData user, FolderData folder, String newFileName, File file, LargeUploads largeUploads)
+    {
+        if (asyncClient == null)
+        {
+            throw new IllegalStateException("Large file uploads require an 'asyncClient'.");
+        }
+        ApiResponse response;
+        resumeTimer();
+        try
+        {
+            response = startUpload(user, folder, newFileName, file).join();
+        }
+        catch (CompletionException e)
+        {
+            throw new RuntimeException("Failed to create file: " + newFileName + " in path: " + folder.getPath() + ". Exception: " + e.getCause(), e.getCause());
+        }
+        finally
+        {
+            suspendTimer();
+        }
+        largeUploads.add(file == null ? largeFileSize : file.length(), response);
+
+        String failure = checkUpload(user, folder, newFileName, response);
+        if (failure != null)
+        {
+            throw new RuntimeException(failure);
+        }
+        if (response.isCreated())
+        {
+            fileFolderService.incrementFileCount("", folder.getPath(), 1);
+            tagNodes(user.getUsername(), user.getPassword(), Collections.singletonMap(response.getEntryId(), newFileName));
+        }
+    }
+
+    /**
+     * @param file the file to upload or <tt>null</tt> to upload generated content
+     */
+    private CompletableFuture<ApiResponse> startUpload(UserData user, FolderData folder, String newFileName, File file)
+    {
+        NodeMetadata metadata = getMetadata(newFileName);
+        if (file == null)
+        {
+            return asyncClient.uploadContent(user.getUsername(), user.getPassword(), folder.getId(), newFileName, new GeneratedContentStream(largeFileSize),
+                metadata);
+        }
+        return asyncClient.uploadFile(user.getUsername(), user.getPassword(), folder.getId(), newFileName, file, metadata);
+    }
+
+    /**
+     * Deal with the response to an upload made through the non-blocking client
+     *
+     * @return <tt>null</tt> if the file was created or already existed, otherwise a description of the failure
+     */
+    private String checkUpload(UserData user, FolderData folder, String newFileName, ApiResponse response)
+    {
+        String folderPath = folder.getPath();
+        if (response.isCreated())
+        {
+            onFileCreated(newFileName, response.getEntryId());
+            if (isRequestRenditions())
+            {
+                try
+                {
+                    triggerRenditions(getUserModel(user), getRestWrapper(), response.getEntryId());
+                }
+                catch (Exception e)
+                {
+                    throw new RuntimeException("Failed to request renditions for file: " + newFileName + ". Exception: " + e.getMessage(), e);
+                }
+            }
+            return null;
+        }
+        else if (response.isConflict())
+        {
+            logFileConflict(newFileName, folderPath);
+            return null;
+        }
+        else
+        {
+            return "Could not create file: " + newFileName + " in path: " + folderPath + " , parent folder id: " + folder.getId()
+                + ". Code: " + response.getStatusCode() + ". Message: " + response.getErrorMessage();
+        }
+    }
+
+
+    private File getFileToUpload()
+    {
+        return uploadMix == null ? testFileService.getFile() : uploadMix.getFile();
+    }
+
+    private boolean isMetadataInUse()
+    {
+        return metadataProfile != null && !metadataProfile.isEmpty();
+    }
+
+    /**
+     * @return the metadata for a new node or <tt>null</tt> if nodes are created bare
+     */
+    private NodeMetadata getMetadata(String name)
+    {
+        return isMetadataInUse() ? metadataProfile.getMetadata(name) : null;
+    }
+
+    /**
+     * Tag new nodes using one call per node for all of its tags.  The tags are generated again from the node names.
+     *
+     * @param namesById the names of the new nodes keyed by their IDs
+     */
+    private void tagNodes(String username, String password, Map<String, String> namesById)
+    {
+        if (!isMetadataInUse() || !metadataProfile.hasTags() || namesById.isEmpty())
+        {
+            return;
+        }
+        if (asyncClient == null)
+        {
+            throw new IllegalStateException("Tagging new nodes requires an 'asyncClient'.");
+        }
+        List<String> nodeIds = new ArrayList<String>(namesById.keySet());
+        List<CompletableFuture<ApiResponse>> requests = new ArrayList<CompletableFuture<ApiResponse>>(nodeIds.size());
+        resumeTimer();
+        for (String nodeId : nodeIds)
+        {
+            List<String> tags = metadataProfile.getMetadata(namesById.get(nodeId)).getTags();
+            requests.add(asyncClient.addTags(username, password, nodeId, tags));
+        }
+        try
+        {
+            CompletableFuture.allOf(requests.toArray(new CompletableFuture<?>[requests.size()])).join();
+        }
+        catch (CompletionException e)
+        {
+            // Each failure is reported below
+        }
+        suspendTimer();
+
+        for (int i = 0; i < nodeIds.size(); i++)
+        {
+            ApiResponse response;
             try
             {
-                createFile(newFileName, fileToUpload, parentFolder, folderPath, userModel);
+                response = requests.get(i).join();
             }
-            catch (Exception e)
+            catch (CompletionException e)
             {
-                // let the system handle/log the failure
-                throw new RuntimeException("Failed to create file: " + newFileName + " in path: " + folderPath + ". Exception: " + e.getMessage(), e);
+                throw new RuntimeException("Failed to tag node: " + nodeIds.get(i) + ". Exception: " + e.getCause(), e.getCause());
+            }
+            if (!response.isCreated())
+            {
+                throw new RuntimeException("Could not tag node: " + nodeIds.get(i) + ". Code: " + response.getStatusCode() + ". Message: " + response.getErrorMessage());
             }
         }
     }
 
+    private void countGeneratedBytes(Map<String, Long> bytesByBucket)
+    {
+        Long total = bytesByBucket.get(GENERATED_FILE_BUCKET);
+        bytesByBucket.put(GENERATED_FILE_BUCKET, (total == null ? 0L : total) + largeFileSize);
+    }
+
+    /**
+     * Add the size of a file to the total for its {@link UploadMix upload mix} bucket
+     */
+    private void countBytes(Map<String, Long> bytesByBucket, File file)
+    {
+        String bucket = uploadMix == null ? null : uploadMix.getBucket(file);
+        if (bucket != null)
+        {
+            Long total = bytesByBucket.get(bucket);
+            bytesByBucket.put(bucket, (total == null ? 0L : total) + file.length());
+        }
+    }
+
+    /**
+     * Upload all the files for the folder at once through the non-blocking client.
+     * The event is timed from the first request to the last response.
+     *
+     * @return the number of content bytes sent
+     */
+    private long createFilesAsync(UserData user, FolderData folder, int filesToCreate, Map<String, Long> bytesByBucket, LargeUploads largeUploads)
+    {
+        if (asyncClient == null)
+        {
+            throw new IllegalStateException("Non-blocking uploads require an 'asyncClient'.");
+        }
+        String folderPath = folder.getPath();
+
+        // Choose the files before timing starts; generated content has no file
+        List<File> filesToUpload = new ArrayList<File>(filesToCreate);
+        List<String> newFileNames = new ArrayList<String>(filesToCreate);
+        long bytes = 0L;
+        for (int i = 0; i < filesToCreate; i++)
+        {
+            if (isGeneratedUpload())
+            {
+                filesToUpload.add(null);
+                bytes += largeFileSize;
+                countGeneratedBytes(bytesByBucket);
+                newFileNames.add(UUID.randomUUID().toString() + "-" + GENERATED_FILE_NAME);
+                continue;
+            }
+            File fileToUpload = getFileToUpload();
+            if (fileToUpload == null)
+            {
+                throw new RuntimeException("No test files exist for upload: " + testFileService);
+            }
+            filesToUpload.add(fileToUpload);
+            bytes += fileToUpload.length();
+            countBytes(bytesByBucket, fileToUpload);
+            newFileNames.add(UUID.randomUUID().toString() + "-" + fileToUpload.getName());
+        }
+
+        List<CompletableFuture<ApiResponse>> uploads = new ArrayList<CompletableFuture<ApiResponse>>(filesToCreate);
+        resumeTimer();
+        for (int i = 0; i < filesToCreate; i++)
+        {
+            uploads.add(startUpload(user, folder, newFileNames.get(i), filesToUpload.get(i)));
+        }
+        try
+        {
+            CompletableFuture.allOf(uploads.toArray(new CompletableFuture<?>[uploads.size()])).join();
+        }
+        catch (CompletionException e)
+        {
+            // Each failure is reported below
+        }
+        suspendTimer();
+
+        int created = 0;
+        Map<String, String> namesById = new HashMap<String, String>();
+        String failure = null;
+        for (int i = 0; i < filesToCreate; i++)
+        {
+            String newFileName = newFileNames.get(i);
+            ApiResponse response;
+            try
+            {
+                response = uploads.get(i).join();
+            }
+            catch (CompletionException e)
+            {
+                failure = "Failed to create file: " + newFileName + " in path: " + folderPath + ". Exception: " + e.getCause();
+                continue;
+            }
+            File fileToUpload = filesToUpload.get(i);
+            if (fileToUpload == null || isLargeFile(fileToUpload))
+            {
+                largeUploads.add(fileToUpload == null ? largeFileSize : fileToUpload.length(), response);
+            }
+            String uploadFailure = checkUpload(user, folder, newFileName, response);
+            if (uploadFailure != null)
+            {
+                failure = uploadFailure;
+            }
+            else if (response.isCreated())
+            {
+                created++;
+                namesById.put(response.getEntryId(), newFileName);
+            }
+        }
+        // Record all the new files at once
+        if (created > 0)
+        {
+            fileFolderService.incrementFileCount("", folderPath, created);
+        }
+        if (failure != null)
+        {
+            throw new RuntimeException(failure);
+        }
+        tagNodes(user.getUsername(), user.getPassword(), namesById);
+        return bytes;
+    }
 
     private void createFile(String newFileName, File fileToUpload, ContentModel parentFolder, String parentFolderPath, UserModel userModel)
         throws Exception
@@ -310,7 +991,16 @@ public class SiteFolderLoader extends AbstractRestApiEventProcessor
         // The solution chosen is to hack it: use the FakeNameFile class that will return our custom name for the getName() method
         // it seems to work fine.
 
+        // Any other form fields are taken as properties of the new node
+        NodeMetadata metadata = getMetadata(newFileName);
         resumeTimer();
+        if (metadata != null)
+        {
+            for (Map.Entry<String, Object> entry : metadata.getProperties().entrySet())
+            {
+                restWrapper.authenticateUser(userModel).configureRequestSpec().addMultiPart(entry.getKey(), String.valueOf(entry.getValue()));
+            }
+        }
         restWrapper.authenticateUser(userModel).configureRequestSpec().addMultiPart("filedata", new FakeNameFile(newFileName, fileToUpload));
         RestNodeModel newFileNode = restWrapper.authenticateUser(userModel).withCoreAPI().usingResource(parentFolder).createNode();
         suspendTimer();
@@ -319,10 +1009,11 @@ public class SiteFolderLoader extends AbstractRestApiEventProcessor
         if (isStatusCreated(statusCode))
         {
             fileFolderService.incrementFileCount("", parentFolderPath, 1);
-            logFileCreated(newFileNode);
+            onFileCreated(newFileNode.getName(), newFileNode.getId());
+            tagNodes(userModel.getUsername(), userModel.getPassword(), Collections.singletonMap(newFileNode.getId(), newFileName));
             if (isRequestRenditions())
             {
-                triggerRenditions(userModel, restWrapper, newFileNode);
+                triggerRenditions(userModel, restWrapper, newFileNode.getId());
             }
         }
         else if (isStatusConflict(statusCode))
@@ -339,13 +1030,13 @@ public class SiteFolderLoader extends AbstractRestApiEventProcessor
         }
     }
 
-    private void triggerRenditions(UserModel userModel, RestWrapper restWrapper, RestNodeModel newFileNode) throws Exception
+    private void triggerRenditions(UserModel userModel, RestWrapper restWrapper, String newFileNodeId) throws Exception
     {
         final FileModel file = new FileModel();
-        file.setNodeRef(newFileNode.getId());
+        file.setNodeRef(newFileNodeId);
 
         // Get supported renditions
-        logger.debug("Finding out all possible renditions for node: " + newFileNode.getId());
+        logger.debug("Finding out all possible renditions for node: " + newFileNodeId);
         resumeTimer();
         RestRenditionInfoModelCollection renditionsInfo = restWrapper.withCoreAPI().usingNode(file).getNodeRenditionsInfo();
         suspendTimer();
@@ -435,11 +1126,15 @@ public class SiteFolderLoader extends AbstractRestApiEventProcessor
         }
     }
 
-    private void logFolderSuccess(RestNodeModel newFolderModel)
+    private void onFolderCreated(String folderName, String folderNodeId)
     {
         if (logger.isDebugEnabled())
         {
-            logger.debug("Created new folder: " + newFolderModel.getName() + " with ID: " + newFolderModel.getId());
+            logger.debug("Created new folder: " + folderName + " with ID: " + folderNodeId);
+        }
+        if (indexSampleService != null)
+        {
+            indexSampleService.offer(folderNodeId, System.currentTimeMillis());
         }
     }
 
@@ -451,11 +1146,15 @@ public class SiteFolderLoader extends AbstractRestApiEventProcessor
         }
     }
 
-    private void logFileCreated(RestNodeModel fileNode)
+    private void onFileCreated(String fileName, String fileNodeId)
     {
         if (logger.isDebugEnabled())
         {
-            logger.debug("Created new file: " + fileNode.getName() + " with ID: " + fileNode.getId());
+            logger.debug("Created new file: " + fileName + " with ID: " + fileNodeId);
+        }
+        if (indexSampleService != null)
+        {
+            indexSampleService.offer(fileNodeId, System.currentTimeMillis());
         }
     }
 
@@ -469,9 +1168,22 @@ public class SiteFolderLoader extends AbstractRestApiEventProcessor
         this.eventNameSiteFolderLoaded = eventNameSiteFolderLoaded;
     }
 
+    /**
+     * @return whether renditions are requested for new files, as overridden by the {@link #setLoadControl(LoadControl) load control}
+     */
     public boolean isRequestRenditions()
     {
-        return requestRenditions;
+        return loadControl == null ? requestRenditions : loadControl.isRequestRenditions(requestRenditions);
+    }
+
+    /**
+     * Let rendition requests be turned on and off while the load runs
+     *
+     * @since 3.0
+     */
+    public void setLoadControl(LoadControl loadControl)
+    {
+        this.loadControl = loadControl;
     }
 
     public void setRequestRenditions(boolean requestRenditions)
@@ -489,6 +1201,131 @@ public class SiteFolderLoader extends AbstractRestApiEventProcessor
         this.renditionList = renditionList;
     }
 
+    public boolean isAsyncUpload()
+    {
+        return asyncUpload;
+    }
+
+    /**
+     * Upload files through the {@link #setAsyncClient(AlfrescoAsyncClient) non-blocking client} rather than one at a time
+     *
+     * @since 3.0
+     */
+    public void setAsyncUpload(boolean asyncUpload)
+    {
+        this.asyncUpload = asyncUpload;
+    }
+
+    public boolean isBatchFolders()
+    {
+        return batchFolders;
+    }
+
+    /**
+     * Create all the subfolders of a folder with one call through the {@link #setAsyncClient(AlfrescoAsyncClient) non-blocking client}
+     *
+     * @since 3.0
+     */
+    public void setBatchFolders(boolean batchFolders)
+    {
+        this.batchFolders = batchFolders;
+    }
+
+    /**
+     * Give new files and folders aspects, properties and tags.  Folder metadata is sent using the
+     * {@link #setAsyncClient(AlfrescoAsyncClient) non-blocking client}, which is also used for all tagging.
+     *
+     * @since 3.0
+     */
+    public void setMetadataProfile(MetadataProfile metadataProfile)
+    {
+        this.metadataProfile = metadataProfile;
+    }
+
+    /**
+     * Offer the new files and folders for search index lag measurement
+     *
+     * @since 3.0
+     */
+    public void setIndexSampleService(IndexSampleService indexSampleService)
+    {
+        this.indexSampleService = indexSampleService;
+    }
+
+    /**
+     * Set the percentage of uploads that send {@link #setLargeFileSizeMB(int) large} generated content instead
+     * of a test file
+     *
+     * @since 3.0
+     */
+    public void setLargeFilePercentage(int largeFilePercentage)
+    {
+        this.largeFilePercentage = largeFilePercentage;
+    }
+
+    /**
+     * Override the {@link #DEFAULT_LARGE_FILE_SIZE_MB default} size of generated uploads
+     *
+     * @since 3.0
+     */
+    public void setLargeFileSizeMB(int largeFileSizeMB)
+    {
+        this.largeFileSize = largeFileSizeMB * MEGABYTE;
+    }
+
+    /**
+     * Override the {@link #DEFAULT_LARGE_FILE_THRESHOLD_MB default} size from which test files are streamed through the
+     * non-blocking client rather than sent by the REST API client.  Use 0, the default, to send every test file
+     * the usual way.
+     *
+     * @since 3.0
+     */
+    public void setLargeFileThresholdMB(int largeFileThresholdMB)
+    {
+        this.largeFileThreshold = largeFileThresholdMB * MEGABYTE;
+    }
+
+    /**
+     * Choose the files to upload using a weighted mix rather than {@link TestFileService#getFile() uniformly}
+     *
+     * @since 3.0
+     */
+    public void setUploadMix(UploadMix uploadMix)
+    {
+        this.uploadMix = uploadMix;
+    }
+
+    /**
+     * Set the aggregator that rolls up successful results, if any
+     *
+     * @since 3.0
+     */
+    public void setResultAggregator(ResultAggregator resultAggregator)
+    {
+        this.resultAggregator = resultAggregator;
+    }
+
+    /**
+     * Set the client used for {@link #setAsyncUpload(boolean) non-blocking uploads}
+     *
+     * @since 3.0
+     */
+    public void setAsyncClient(AlfrescoAsyncClient asyncClient)
+    {
+        this.asyncClient = asyncClient;
+    }
+
+    /**
+     * Set the executor that decides whether the blocking folder and file calls for a folder are made
+     * one after the other or all at once on virtual threads
+     *
+     * @since 3.0
+     */
+    public void setRestCallExecutor(RestCallExecutor restCallExecutor)
+    {
+        this.restCallExecutor = restCallExecutor;
+    }
+
     /**
      * Attempt to find a user to use.<br/>
      * The site ID will be used to find a valid site manager or collaborator.
@@ -536,6 +1373,40 @@ public class SiteFolderLoader extends AbstractRestApiEventProcessor
         return user;
     }
 
+    /**
+     * Totals for the large files uploaded by one event.  Send time and time to first byte are kept apart: the first
+     * shows the network throughput while the second shows how long the server took to store the content.
+     */
+    private static class LargeUploads
+    {
+        private int count;
+        private long bytes;
+        private long sentNanos;
+        private long totalFirstByteNanos;
+        private long maxFirstByteNanos;
+
+        private void add(long length, ApiResponse response)
+        {
+            count++;
+            bytes += length;
+            sentNanos += response.getSentNanos();
+            totalFirstByteNanos += response.getFirstByteNanos();
+            maxFirstByteNanos = Math.max(maxFirstByteNanos, response.getFirstByteNanos());
+        }
+
+        private DBObject toDBObject()
+        {
+            long bytesPerSecond = sentNanos > 0L ? (long) (bytes * 1E9 / sentNanos) : 0L;
+            return BasicDBObjectBuilder.start()
+                .add("count", count)
+                .add("bytes", bytes)
+                .add("bytesPerSecond", bytesPerSecond)
+                .add("meanTimeToFirstByte", totalFirstByteNanos / count / 1000000L)
+                .add("maxTimeToFirstByte", maxFirstByteNanos / 1000000L)
+                .get();
+        }
+    }
+
 }
 
 /**
@@ -556,4 +1427,5 @@ class FakeNameFile extends File
     {
         return fakeName;
     }
-}
\ No newline at end of file
+
+}
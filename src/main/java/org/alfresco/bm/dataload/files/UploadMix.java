@@ -0,0 +1,445 @@
+/*
+ * #%L
+ * Alfresco Benchmark Load Data
+ * %%
+ * Copyright (C) 2005 - 2018 Alfresco Software Limited
+ * %%
+ * This file is part of the Alfresco software.
+ * If the software was purchased under a paid Alfresco license, the terms of
+ * the paid license agreement will prevail.  Otherwise, the software is
+ * provided under the following open source license terms:
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+package org.alfresco.bm.dataload.files;
+
+import org.alfresco.bm.driver.file.TestFileService;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Chooses the files to upload according to a weighted profile of file types and sizes rather than
+ * uniformly from whatever the {@link TestFileService} happens to hold.
+ * <p/>
+ * The profile is a comma-separated list of buckets, each written as <b>name:types:sizes:weight</b> where:
+ * <ul>
+ * <li><b>types</b> is a list of file extensions separated by <b>|</b> or <b>*</b> for any type</li>
+ * <li><b>sizes</b> is a range such as <b>0-10m</b> or <b>100m-</b> with optional <b>k</b>, <b>m</b> or <b>g</b>
+ * suffixes, or <b>*</b> for any size</li>
+ * <li><b>weight</b> is the relative share of uploads that come from the bucket</li>
+ * </ul>
+ * For example: <b>office:doc|docx|xls|xlsx|ppt|pptx:0-10m:60,pdf:pdf:*:30,video:mp4|mov|avi:100m-:10</b>.
+ * <p/>
+ * The test file service only hands out random files, so the files available are discovered by drawing a sample
+ * of them the first time a file is needed.  While a {@link PrefetchingFtpTestFileService} is still fetching, the
+ * sample is drawn again each time the number of files fetched has doubled and once more when fetching is done.
+ * Each file belongs to the first bucket that matches it.  A bucket
+ * is picked in constant time using an {@link AliasTable alias table} and then a file is picked from the bucket.
+ * An empty profile leaves the choice to the test file service.
+ *
+ * @since 3.0
+ */
+public class UploadMix
+{
+    public static final int DEFAULT_SAMPLE_SIZE = 1000;
+
+    private static final Log logger = LogFactory.getLog(UploadMix.class);
+
+    private final TestFileService testFileService;
+    private final List<Bucket> buckets;
+    private int sampleSize;
+
+    /** Built on first use and rebuilt while test files are being prefetched; guarded by the lock */
+    private volatile Catalogue catalogue;
+    private final Lock catalogueLock = new ReentrantLock();
+
+    /**
+     * @param testFileService the source of the files to upload
+     * @param profile         the mix of files to upload or empty to pick uniformly
+     */
+    public UploadMix(TestFileService testFileService, String profile)
+    {
+        this.testFileService = testFileService;
+        this.buckets = parseProfile(profile);
+        this.sampleSize = DEFAULT_SAMPLE_SIZE;
+    }
+
+    /**
+     * Override the {@link #DEFAULT_SAMPLE_SIZE default} number of files drawn to discover the files available
+     */
+    public void setSampleSize(int sampleSize)
+    {
+        this.sampleSize = sampleSize;
+    }
+
+    /**
+     * @return a file to upload, chosen according to the profile, or <tt>null</tt> if there are no test files
+     */
+    public File getFile()
+    {
+        if (buckets.isEmpty())
+        {
+            return testFileService.getFile();
+        }
+        Catalogue catalogue = getCatalogue();
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        List<File> files = catalogue.files.get(catalogue.aliasTable.next(random));
+        return files.get(random.nextInt(files.size()));
+    }
+
+    /**
+     * @return the name of the bucket that a file {@link #getFile() chosen} by this mix belongs to or <tt>null</tt>
+     * if no profile is in use
+     */
+    public String getBucket(File file)
+    {
+        if (buckets.isEmpty())
+        {
+            return null;
+        }
+        String bucket = getCatalogue().bucketsByPath.get(file.getAbsolutePath());
+        if (bucket != null)
+        {
+            return bucket;
+        }
+        // Chosen before the catalogue was last rebuilt
+        for (Bucket candidate : buckets)
+        {
+            if (candidate.matches(file))
+            {
+                return candidate.name;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the expected size in bytes of a file {@link #getFile() chosen} by this mix or zero if there are no test files
+     */
+    public double getMeanFileSize()
+    {
+        if (buckets.isEmpty())
+        {
+            long bytes = 0L;
+            int count = 0;
+            for (; count < sampleSize; count++)
+            {
+                File file = testFileService.getFile();
+                if (file == null)
+                {
+                    break;
+                }
+                bytes += file.length();
+            }
+            return count == 0 ? 0.0 : (double) bytes / count;
+        }
+        Catalogue catalogue = getCatalogue();
+        double weightedSize = 0.0;
+        double totalWeight = 0.0;
+        for (int i = 0; i < buckets.size(); i++)
+        {
+            List<File> files = catalogue.files.get(i);
+            if (files.isEmpty())
+            {
+                continue;
+            }
+            long bytes = 0L;
+            for (File file : files)
+            {
+                bytes += file.length();
+            }
+            weightedSize += buckets.get(i).weight * bytes / files.size();
+            totalWeight += buckets.get(i).weight;
+        }
+        return totalWeight == 0.0 ? 0.0 : weightedSize / totalWeight;
+    }
+
+    private Catalogue getCatalogue()
+    {
+        Catalogue catalogue = this.catalogue;
+        if (catalogue == null)
+        {
+            // Building the catalogue fetches test files, so loaders on virtual threads must not wait on a monitor
+            catalogueLock.lock();
+            try
+            {
+                catalogue = this.catalogue;
+                if (catalogue == null)
+                {
+                    catalogue = buildCatalogue();
+                    this.catalogue = catalogue;
+                }
+            }
+            finally
+            {
+                catalogueLock.unlock();
+            }
+        }
+        else if (isStale(catalogue) && catalogueLock.tryLock())
+        {
+            // One caller rebuilds while the others carry on with the catalogue they have
+            try
+            {
+                catalogue = this.catalogue;
+                if (isStale(catalogue))
+                {
+                    catalogue = buildCatalogue();
+                    this.catalogue = catalogue;
+                }
+            }
+            finally
+            {
+                catalogueLock.unlock();
+            }
+        }
+        return catalogue;
+    }
+
+    /**
+     * @return <tt>true</tt> if enough test files have been prefetched since the catalogue was built to draw the
+     * sample again
+     */
+    private boolean isStale(Catalogue catalogue)
+    {
+        if (catalogue.complete)
+        {
+            return false;
+        }
+        PrefetchingFtpTestFileService prefetchingService = (PrefetchingFtpTestFileService) testFileService;
+        return !prefetchingService.isPrefetching() || prefetchingService.getFileCount() >= 2 * catalogue.fileCount;
+    }
+
+    /**
+     * Draw a sample of the test files and sort them into buckets
+     */
+    private Catalogue buildCatalogue()
+    {
+        // Taken before the sample so that files fetched while sampling count towards the next rebuild
+        boolean complete = true;
+        int fileCount = 0;
+        if (testFileService instanceof PrefetchingFtpTestFileService)
+        {
+            PrefetchingFtpTestFileService prefetchingService = (PrefetchingFtpTestFileService) testFileService;
+            complete = !prefetchingService.isPrefetching();
+            fileCount = Math.max(1, prefetchingService.getFileCount());
+        }
+        Map<String, File> sample = new HashMap<String, File>();
+        for (int i = 0; i < sampleSize; i++)
+        {
+            File file = testFileService.getFile();
+            if (file == null)
+            {
+                break;
+            }
+            sample.put(file.getAbsolutePath(), file);
+        }
+
+        List<List<File>> files = new ArrayList<List<File>>(buckets.size());
+        for (int i = 0; i < buckets.size(); i++)
+        {
+            files.add(new ArrayList<File>());
+        }
+        Map<String, String> bucketsByPath = new HashMap<String, String>();
+        for (File file : sample.values())
+        {
+            for (int i = 0; i < buckets.size(); i++)
+            {
+                Bucket bucket = buckets.get(i);
+                if (bucket.matches(file))
+                {
+                    files.get(i).add(file);
+                    bucketsByPath.put(file.getAbsolutePath(), bucket.name);
+                    break;
+                }
+            }
+        }
+
+        // Buckets without files cannot be chosen
+        double[] weights = new double[buckets.size()];
+        for (int i = 0; i < buckets.size(); i++)
+        {
+            Bucket bucket = buckets.get(i);
+            if (files.get(i).isEmpty())
+            {
+                logger.warn("No test files found for upload bucket '" + bucket.name + "' among " + sample.size() + " files.");
+            }
+            else
+            {
+                weights[i] = bucket.weight;
+            }
+            if (logger.isDebugEnabled())
+            {
+                logger.debug("Upload bucket '" + bucket.name + "' has " + files.get(i).size() + " files.");
+            }
+        }
+        AliasTable aliasTable;
+        try
+        {
+            aliasTable = new AliasTable(weights);
+        }
+        catch (IllegalArgumentException e)
+        {
+            throw new IllegalStateException("None of the " + sample.size() + " test files match the upload mix: " + buckets);
+        }
+        return new Catalogue(aliasTable, files, bucketsByPath, complete, fileCount);
+    }
+
+    private static List<Bucket> parseProfile(String profile)
+    {
+        if (profile == null || profile.trim().isEmpty())
+        {
+            return Collections.emptyList();
+        }
+        List<Bucket> buckets = new ArrayList<Bucket>();
+        for (String spec : profile.split(","))
+        {
+            String[] parts = spec.trim().split(":");
+            if (parts.length != 4)
+            {
+                throw new IllegalArgumentException("Upload bucket must be 'name:types:sizes:weight': " + spec);
+            }
+            String name = parts[0].trim();
+            Set<String> extensions = null;
+            if (!"*".equals(parts[1].trim()))
+            {
+                extensions = new HashSet<String>();
+                for (String extension : parts[1].split("\\|"))
+                {
+                    extensions.add(extension.trim().toLowerCase(Locale.ENGLISH));
+                }
+            }
+            long minSize = 0L;
+            long maxSize = Long.MAX_VALUE;
+            String sizes = parts[2].trim();
+            if (!"*".equals(sizes))
+            {
+                int dash = sizes.indexOf('-');
+                if (dash < 0)
+                {
+                    throw new IllegalArgumentException("Upload bucket size must be a range such as '0-10m': " + spec);
+                }
+                minSize = parseSize(sizes.substring(0, dash), 0L);
+                maxSize = parseSize(sizes.substring(dash + 1), Long.MAX_VALUE);
+            }
+            double weight = Double.parseDouble(parts[3].trim());
+            buckets.add(new Bucket(name, extensions, minSize, maxSize, weight));
+        }
+        return buckets;
+    }
+
+    private static long parseSize(String size, long valueIfEmpty)
+    {
+        size = size.trim().toLowerCase(Locale.ENGLISH);
+        if (size.isEmpty())
+        {
+            return valueIfEmpty;
+        }
+        long multiplier = 1L;
+        switch (size.charAt(size.length() - 1))
+        {
+            case 'k':
+                multiplier = 1024L;
+                break;
+            case 'm':
+                multiplier = 1024L * 1024L;
+                break;
+            case 'g':
+                multiplier = 1024L * 1024L * 1024L;
+                break;
+            default:
+                return Long.parseLong(size);
+        }
+        return Long.parseLong(size.substring(0, size.length() - 1).trim()) * multiplier;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "UploadMix [buckets=" + buckets + ", testFileService=" + testFileService + "]";
+    }
+
+    private static class Bucket
+    {
+        private final String name;
+        private final Set<String> extensions;
+        private final long minSize;
+        private final long maxSize;
+        private final double weight;
+
+        private Bucket(String name, Set<String> extensions, long minSize, long maxSize, double weight)
+        {
+            this.name = name;
+            this.extensions = extensions;
+            this.minSize = minSize;
+            this.maxSize = maxSize;
+            this.weight = weight;
+        }
+
+        private boolean matches(File file)
+        {
+            if (extensions != null)
+            {
+                String fileName = file.getName();
+                int dot = fileName.lastIndexOf('.');
+                String extension = dot < 0 ? "" : fileName.substring(dot + 1).toLowerCase(Locale.ENGLISH);
+                if (!extensions.contains(extension))
+                {
+                    return false;
+                }
+            }
+            long size = file.length();
+            return size >= minSize && size <= maxSize;
+        }
+
+        @Override
+        public String toString()
+        {
+            return name + "(" + (extensions == null ? "*" : extensions) + ", " + minSize + "-" + maxSize + ", " + weight + ")";
+        }
+    }
+
+    private static class Catalogue
+    {
+        private final AliasTable aliasTable;
+        private final List<List<File>> files;
+        private final Map<String, String> bucketsByPath;
+        /** <tt>false</tt> if test files were still being prefetched when the sample was drawn */
+        private final boolean complete;
+        /** The number of test files prefetched when the sample was drawn */
+        private final int fileCount;
+
+        private Catalogue(AliasTable aliasTable, List<List<File>> files, Map<String, String> bucketsByPath, boolean complete, int fileCount)
+        {
+            this.aliasTable = aliasTable;
+            this.files = files;
+            this.bucketsByPath = bucketsByPath;
+            this.complete = complete;
+            this.fileCount = fileCount;
+        }
+    }
+}
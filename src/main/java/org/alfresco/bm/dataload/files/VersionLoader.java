@@ -0,0 +1,408 @@
+/*
+ * #%L
+ * Alfresco Benchmark Load Data
+ * %%
+ * Copyright (C) 2005 - 2018 Alfresco Software Limited
+ * %%
+ * This file is part of the Alfresco software.
+ * If the software was purchased under a paid Alfresco license, the terms of
+ * the paid license agreement will prevail.  Otherwise, the software is
+ * provided under the following open source license terms:
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+package org.alfresco.bm.dataload.files;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.mongodb.BasicDBObjectBuilder;
+import com.mongodb.DBObject;
+import org.alfresco.bm.cm.FileFolderService;
+import org.alfresco.bm.cm.FolderData;
+import org.alfresco.bm.common.EventResult;
+import org.alfresco.bm.common.session.SessionService;
+import org.alfresco.bm.dataload.ResultAggregator;
+import org.alfresco.bm.dataload.checkpoint.CheckpointService;
+import org.alfresco.bm.dataload.rest.AlfrescoAsyncClient;
+import org.alfresco.bm.dataload.rest.ApiResponse;
+import org.alfresco.bm.driver.event.AbstractEventProcessor;
+import org.alfresco.bm.driver.event.Event;
+import org.alfresco.bm.driver.file.TestFileService;
+import org.alfresco.bm.site.SiteDataService;
+import org.alfresco.bm.user.UserData;
+import org.alfresco.bm.user.UserDataService;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Upload new versions of the files in a loaded folder.
+ * <p/>
+ * The number of new versions given to each file is drawn from a weighted distribution written as a comma-separated
+ * list of <b>versions:weight</b> pairs e.g. <b>0:50,1:30,5:15,50:5</b> leaves half the files alone and gives a few of
+ * them a deep history.  A percentage of the new versions are major versions and the rest are minor versions.
+ * <p/>
+ * The files are listed from the server a page at a time.  The versions of a page are uploaded in rounds: each round
+ * uploads the next version of every file that needs one, concurrently.
+ * The number of files versioned and versions uploaded are added to the folder's entry in the
+ * {@link ScheduleVersionLoaders#CONTEXT_VERSIONS versions} context of the mirror as each page completes.
+ *
+ * @since 3.0
+ */
+public class VersionLoader extends AbstractEventProcessor
+{
+    public static final String EVENT_NAME_VERSIONS_LOADED = "versionsLoaded";
+    public static final String DEFAULT_VERSIONS_PER_FILE = "1:1";
+    public static final int DEFAULT_MAJOR_VERSION_PERCENTAGE = 10;
+    public static final int DEFAULT_PAGE_SIZE = 100;
+
+    private final SessionService sessionService;
+    private final FileFolderService fileFolderService;
+    private final UserDataService userDataService;
+    private final SiteDataService siteDataService;
+    private final TestFileService testFileService;
+    private final AlfrescoAsyncClient asyncClient;
+
+    private String eventNameVersionsLoaded;
+    private int[] versionCounts;
+    private AliasTable versionWeights;
+    private int majorVersionPercentage;
+    private int pageSize;
+    private UploadMix uploadMix;
+    private ResultAggregator resultAggregator;
+    private CheckpointService checkpointService;
+
+    /**
+     * @param sessionService    service to close this loader's session
+     * @param fileFolderService service to access folders and record versions
+     * @param userDataService   service to access usernames and passwords
+     * @param siteDataService   service to access site details
+     * @param testFileService   service to access sample documents
+     * @param asyncClient       client to list files and upload new versions
+     */
+    public VersionLoader(SessionService sessionService, FileFolderService fileFolderService, UserDataService userDataService, SiteDataService siteDataService,
+        TestFileService testFileService, AlfrescoAsyncClient asyncClient)
+    {
+        super();
+
+        this.sessionService = sessionService;
+        this.fileFolderService = fileFolderService;
+        this.userDataService = userDataService;
+        this.siteDataService = siteDataService;
+        this.testFileService = testFileService;
+        this.asyncClient = asyncClient;
+
+        this.eventNameVersionsLoaded = EVENT_NAME_VERSIONS_LOADED;
+        setVersionsPerFile(DEFAULT_VERSIONS_PER_FILE);
+        this.majorVersionPercentage = DEFAULT_MAJOR_VERSION_PERCENTAGE;
+        this.pageSize = DEFAULT_PAGE_SIZE;
+    }
+
+    /**
+     * Override the {@link #EVENT_NAME_VERSIONS_LOADED default} event name
+     */
+    public void setEventNameVersionsLoaded(String eventNameVersionsLoaded)
+    {
+        this.eventNameVersionsLoaded = eventNameVersionsLoaded;
+    }
+
+    /**
+     * Override the {@link #DEFAULT_VERSIONS_PER_FILE default} distribution of new versions per file
+     *
+     * @param versionsPerFile comma-separated <b>versions:weight</b> pairs
+     */
+    public void setVersionsPerFile(String versionsPerFile)
+    {
+        String[] specs = versionsPerFile.split(",");
+        int[] versionCounts = new int[specs.length];
+        double[] weights = new double[specs.length];
+        for (int i = 0; i < specs.length; i++)
+        {
+            String[] parts = specs[i].trim().split(":");
+            if (parts.length != 2)
+            {
+                throw new IllegalArgumentException("Versions per file must be 'versions:weight': " + specs[i]);
+            }
+            versionCounts[i] = Integer.parseInt(parts[0].trim());
+            weights[i] = Double.parseDouble(parts[1].trim());
+            if (versionCounts[i] < 0)
+            {
+                throw new IllegalArgumentException("Versions per file cannot be negative: " + specs[i]);
+            }
+        }
+        this.versionWeights = new AliasTable(weights);
+        this.versionCounts = versionCounts;
+    }
+
+    /**
+     * @param versionsPerFile comma-separated <b>versions:weight</b> pairs
+     * @return the expected number of new versions per file
+     * @since 3.0
+     */
+    public static double getMeanVersionsPerFile(String versionsPerFile)
+    {
+        double weightedVersions = 0.0;
+        double totalWeight = 0.0;
+        for (String spec : versionsPerFile.split(","))
+        {
+            String[] parts = spec.trim().split(":");
+            if (parts.length != 2)
+            {
+                throw new IllegalArgumentException("Versions per file must be 'versions:weight': " + spec);
+            }
+            double weight = Double.parseDouble(parts[1].trim());
+            weightedVersions += Integer.parseInt(parts[0].trim()) * weight;
+            totalWeight += weight;
+        }
+        return totalWeight == 0.0 ? 0.0 : weightedVersions / totalWeight;
+    }
+
+    /**
+     * Override the {@link #DEFAULT_MAJOR_VERSION_PERCENTAGE default} percentage of new versions that are major versions
+     */
+    public void setMajorVersionPercentage(int majorVersionPercentage)
+    {
+        this.majorVersionPercentage = majorVersionPercentage;
+    }
+
+    /**
+     * Override the {@link #DEFAULT_PAGE_SIZE default} number of files listed and versioned together
+     */
+    public void setPageSize(int pageSize)
+    {
+        this.pageSize = pageSize;
+    }
+
+    /**
+     * Choose the content of new versions using a weighted mix rather than uniformly from the test files
+     */
+    public void setUploadMix(UploadMix uploadMix)
+    {
+        this.uploadMix = uploadMix;
+    }
+
+    /**
+     * Set the aggregator that rolls up successful results, if any
+     */
+    public void setResultAggregator(ResultAggregator resultAggregator)
+    {
+        this.resultAggregator = resultAggregator;
+    }
+
+    /**
+     * Release the lease on the folder's claim once its versions are finished
+     */
+    public void setCheckpointService(CheckpointService checkpointService)
+    {
+        this.checkpointService = checkpointService;
+    }
+
+    @Override
+    public EventResult processEvent(Event event) throws Exception
+    {
+        super.suspendTimer();
+
+        DBObject dataObj = (DBObject) event.getData();
+        if (dataObj == null)
+        {
+            throw new IllegalStateException("This processor requires data with field " + ScheduleSiteLoaders.FIELD_PATH);
+        }
+        String context = (String) dataObj.get(ScheduleSiteLoaders.FIELD_CONTEXT);
+        String path = (String) dataObj.get(ScheduleSiteLoaders.FIELD_PATH);
+        if (context == null || path == null)
+        {
+            return new EventResult("Request data not complete for version loading: " + dataObj, false);
+        }
+        // Get the folder
+        FolderData folder = fileFolderService.getFolder(context, path);
+        if (folder == null)
+        {
+            throw new IllegalStateException("No such folder recorded: " + dataObj);
+        }
+        // Get the session
+        String sessionId = event.getSessionId();
+        if (sessionId == null)
+        {
+            return new EventResult("Version scheduling should create a session for each loader.", false);
+        }
+
+        try
+        {
+            return loadVersions(event.getName(), folder);
+        }
+        finally
+        {
+            // End the session
+            sessionService.endSession(sessionId);
+        }
+    }
+
+    private EventResult loadVersions(String eventName, FolderData folder)
+    {
+        long start = System.currentTimeMillis();
+        UserData user = SiteFolderLoader.getUser(siteDataService, userDataService, folder, logger);
+        String folderPath = folder.getPath();
+
+        long files = 0L;
+        long versions = 0L;
+        long majorVersions = 0L;
+        long bytes = 0L;
+        int skip = 0;
+        boolean moreFiles = true;
+        while (moreFiles)
+        {
+            ApiResponse page = join(asyncClient.listFiles(user.getUsername(), user.getPassword(), folder.getId(), skip, pageSize), folderPath);
+            if (!page.isOk())
+            {
+                DBObject data = BasicDBObjectBuilder.start().add("msg", "Could not list files in folder.").add("path", folderPath)
+                    .add("statusCode", page.getStatusCode()).add("error", page.getErrorMessage()).add("username", user.getUsername()).get();
+                return new EventResult(data, false);
+            }
+            List<JsonNode> entries = page.getEntries();
+            skip += entries.size();
+            moreFiles = page.hasMoreItems() && entries.size() > 0;
+
+            // Choose the number of versions of each file
+            List<String> nodeIds = new ArrayList<String>(entries.size());
+            List<Integer> versionCountsByFile = new ArrayList<Integer>(entries.size());
+            int rounds = 0;
+            long pageFiles = 0L;
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            for (JsonNode entry : entries)
+            {
+                int versionCount = versionCounts[versionWeights.next(random)];
+                if (versionCount > 0)
+                {
+                    nodeIds.add(entry.path("id").asText());
+                    versionCountsByFile.add(versionCount);
+                    rounds = Math.max(rounds, versionCount);
+                    pageFiles++;
+                }
+            }
+
+            // Versions of the same file must be uploaded one after the other, so each round uploads the next
+            // version of every file that needs one
+            long pageVersions = 0L;
+            String failure = null;
+            for (int round = 0; round < rounds; round++)
+            {
+                List<String> roundNodeIds = new ArrayList<String>(nodeIds.size());
+                List<File> contents = new ArrayList<File>(nodeIds.size());
+                List<Boolean> majors = new ArrayList<Boolean>(nodeIds.size());
+                for (int i = 0; i < nodeIds.size(); i++)
+                {
+                    if (versionCountsByFile.get(i) <= round)
+                    {
+                        continue;
+                    }
+                    File content = uploadMix == null ? testFileService.getFile() : uploadMix.getFile();
+                    if (content == null)
+                    {
+                        throw new RuntimeException("No test files exist for upload: " + testFileService);
+                    }
+                    roundNodeIds.add(nodeIds.get(i));
+                    contents.add(content);
+                    majors.add(random.nextInt(100) < majorVersionPercentage);
+                }
+
+                List<CompletableFuture<ApiResponse>> uploads = new ArrayList<CompletableFuture<ApiResponse>>(roundNodeIds.size());
+                resumeTimer();
+                for (int i = 0; i < roundNodeIds.size(); i++)
+                {
+                    uploads.add(asyncClient.updateContent(user.getUsername(), user.getPassword(), roundNodeIds.get(i), majors.get(i), contents.get(i)));
+                }
+                try
+                {
+                    CompletableFuture.allOf(uploads.toArray(new CompletableFuture<?>[uploads.size()])).join();
+                }
+                catch (CompletionException e)
+                {
+                    // Each failure is reported below
+                }
+                suspendTimer();
+
+                for (int i = 0; i < uploads.size(); i++)
+                {
+                    ApiResponse response;
+                    try
+                    {
+                        response = uploads.get(i).join();
+                    }
+                    catch (CompletionException e)
+                    {
+                        failure = "Failed to upload a version of file: " + roundNodeIds.get(i) + " in path: " + folderPath + ". Exception: " + e.getCause();
+                        continue;
+                    }
+                    if (!response.isOk())
+                    {
+                        failure = "Could not upload a version of file: " + roundNodeIds.get(i) + " in path: " + folderPath
+                            + ". Code: " + response.getStatusCode() + ". Message: " + response.getErrorMessage();
+                        continue;
+                    }
+                    pageVersions++;
+                    bytes += contents.get(i).length();
+                    if (majors.get(i))
+                    {
+                        majorVersions++;
+                    }
+                }
+            }
+            // Record the progress
+            fileFolderService.incrementFolderCount(ScheduleVersionLoaders.CONTEXT_VERSIONS, folderPath, pageFiles);
+            fileFolderService.incrementFileCount(ScheduleVersionLoaders.CONTEXT_VERSIONS, folderPath, pageVersions);
+            files += pageFiles;
+            versions += pageVersions;
+            if (failure != null)
+            {
+                throw new RuntimeException(failure);
+            }
+        }
+
+        if (checkpointService != null)
+        {
+            checkpointService.releaseVersionClaim(folderPath);
+        }
+
+        DBObject eventData = BasicDBObjectBuilder.start().add(ScheduleSiteLoaders.FIELD_CONTEXT, folder.getContext())
+            .add(ScheduleSiteLoaders.FIELD_PATH, folderPath).get();
+        Event nextEvent = new Event(eventNameVersionsLoaded, eventData);
+
+        DBObject resultData = BasicDBObjectBuilder.start().add("msg", "Loaded versions.").add("path", folderPath).add("files", files)
+            .add("versions", versions).add("majorVersions", majorVersions).add("bytes", bytes).add("username", user.getUsername()).get();
+        Object result = resultData;
+        if (resultAggregator != null)
+        {
+            long latency = System.currentTimeMillis() - start;
+            result = resultAggregator.aggregate(eventName, resultData, latency, 0L, versions, bytes);
+        }
+        return new EventResult(result, Collections.singletonList(nextEvent));
+    }
+
+    private static ApiResponse join(CompletableFuture<ApiResponse> future, String folderPath)
+    {
+        try
+        {
+            return future.join();
+        }
+        catch (CompletionException e)
+        {
+            throw new RuntimeException("Failed to list files in path: " + folderPath + ". Exception: " + e.getCause(), e.getCause());
+        }
+    }
+}
@@ -0,0 +1,449 @@
+/*
+ * #%L
+ * Alfresco Benchmark Load Data
+ * %%
+ * Copyright (C) 2005 - 2018 Alfresco Software Limited
+ * %%
+ * This file is part of the Alfresco software.
+ * If the software was purchased under a paid Alfresco license, the terms of
+ * the paid license agreement will prevail.  Otherwise, the software is
+ * provided under the following open source license terms:
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+package org.alfresco.bm.dataload.files;
+
+import com.mongodb.DB;
+import org.alfresco.bm.cm.FileFolderService;
+import org.alfresco.bm.cm.FolderData;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.beans.factory.DisposableBean;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Wraps a {@link FileFolderService} and holds back file and folder count increments, coalescing them per folder
+ * until they are {@link #flush() flushed}.
+ * <p>
+ * Pending increments are flushed periodically and whenever a loader {@link #flush(String, String) finishes with a folder}.
+ * Folders read through this service include their pending increments, so the schedulers see the same counts
+ * that they would see if every increment had been written.  Queries with count limits flush all pending increments
+ * first so that the wrapped service selects and pages the folders against their real counts.
+ * <p>
+ * Every call is passed to the wrapped service.  The database and collection given to the constructor are only
+ * needed to build the superclass and are never read or written.
+ *
+ * @since 3.0
+ */
+public class WriteBehindFileFolderService extends BulkFileFolderService implements DisposableBean
+{
+    public static final long DEFAULT_FLUSH_INTERVAL = 1000L;
+
+    private static Log logger = LogFactory.getLog(WriteBehindFileFolderService.class);
+
+    private final FileFolderService fileFolderService;
+    private final ConcurrentHashMap<String, Increments> pending;
+    /** Reads hold the read lock so that they never see increments that are half-way through being flushed */
+    private final ReadWriteLock flushLock;
+    private boolean enabled;
+    private long flushInterval;
+    private ScheduledExecutorService flusher;
+
+    /**
+     * @param db                the database of the mirror, which is not used
+     * @param collection        the mirror collection, which is not used
+     * @param fileFolderService the service that all calls are passed to
+     */
+    public WriteBehindFileFolderService(DB db, String collection, FileFolderService fileFolderService)
+    {
+        super(db, collection);
+        this.fileFolderService = fileFolderService;
+        this.pending = new ConcurrentHashMap<>();
+        this.flushLock = new ReentrantReadWriteLock();
+        this.enabled = false;
+        this.flushInterval = DEFAULT_FLUSH_INTERVAL;
+    }
+
+    /**
+     * Hold back count increments (default: <b>false</b>).  When disabled, increments are written immediately.
+     */
+    public void setEnabled(boolean enabled)
+    {
+        this.enabled = enabled;
+    }
+
+    /**
+     * Override the {@link #DEFAULT_FLUSH_INTERVAL default} number of milliseconds between flushes
+     */
+    public void setFlushInterval(long flushInterval)
+    {
+        this.flushInterval = flushInterval;
+    }
+
+    /**
+     * Start flushing periodically.  The wrapped service is already initialized.
+     */
+    @Override
+    public synchronized void afterPropertiesSet()
+    {
+        if (!enabled || flusher != null)
+        {
+            return;
+        }
+        flusher = Executors.newSingleThreadScheduledExecutor(runnable ->
+        {
+            Thread thread = new Thread(runnable, "FileFolderService-WriteBehind");
+            thread.setDaemon(true);
+            return thread;
+        });
+        flusher.scheduleWithFixedDelay(this::flushQuietly, flushInterval, flushInterval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stop flushing periodically and write any remaining increments
+     */
+    @Override
+    public synchronized void destroy()
+    {
+        if (flusher != null)
+        {
+            flusher.shutdownNow();
+            flusher = null;
+        }
+        flush();
+    }
+
+    /**
+     * Write all pending increments to the wrapped service
+     *
+     * @return the number of folders updated
+     */
+    public int flush()
+    {
+        flushLock.writeLock().lock();
+        try
+        {
+            int flushed = 0;
+            for (String key : new ArrayList<>(pending.keySet()))
+            {
+                if (write(pending.remove(key)))
+                {
+                    flushed++;
+                }
+            }
+            return flushed;
+        }
+        finally
+        {
+            flushLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Write the pending increments of one folder to the wrapped service
+     *
+     * @return <tt>true</tt> if there were increments to write
+     */
+    public boolean flush(String context, String path)
+    {
+        flushLock.writeLock().lock();
+        try
+        {
+            return write(pending.remove(toKey(context, path)));
+        }
+        finally
+        {
+            flushLock.writeLock().unlock();
+        }
+    }
+
+    private void flushQuietly()
+    {
+        try
+        {
+            int flushed = flush();
+            if (logger.isDebugEnabled() && flushed > 0)
+            {
+                logger.debug("Flushed count increments for " + flushed + " folders.");
+            }
+        }
+        catch (Exception e)
+        {
+            logger.error("Failed to flush folder count increments.", e);
+        }
+    }
+
+    /**
+     * Write the given increments, putting them back if the write fails
+     */
+    private boolean write(Increments increments)
+    {
+        if (increments == null)
+        {
+            return false;
+        }
+        long folders = increments.folders;
+        try
+        {
+            if (folders != 0L)
+            {
+                fileFolderService.incrementFolderCount(increments.context, increments.path, folders);
+                folders = 0L;
+            }
+            if (increments.files != 0L)
+            {
+                fileFolderService.incrementFileCount(increments.context, increments.path, increments.files);
+            }
+            return true;
+        }
+        catch (RuntimeException e)
+        {
+            // Put back whatever was not written
+            Increments remaining = new Increments(increments.context, increments.path, folders, increments.files);
+            pending.merge(toKey(increments.context, increments.path), remaining, Increments::plus);
+            throw e;
+        }
+    }
+
+    @Override
+    public void incrementFolderCount(String context, String path, long inc)
+    {
+        if (!enabled)
+        {
+            fileFolderService.incrementFolderCount(context, path, inc);
+            return;
+        }
+        pending.merge(toKey(context, path), new Increments(context, path, inc, 0L), Increments::plus);
+    }
+
+    @Override
+    public void incrementFileCount(String context, String path, long inc)
+    {
+        if (!enabled)
+        {
+            fileFolderService.incrementFileCount(context, path, inc);
+            return;
+        }
+        pending.merge(toKey(context, path), new Increments(context, path, 0L, inc), Increments::plus);
+    }
+
+    @Override
+    public FolderData getFolder(String id)
+    {
+        flushLock.readLock().lock();
+        try
+        {
+            return withIncrements(fileFolderService.getFolder(id));
+        }
+        finally
+        {
+            flushLock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public FolderData getFolder(String context, String path)
+    {
+        flushLock.readLock().lock();
+        try
+        {
+            return withIncrements(fileFolderService.getFolder(context, path));
+        }
+        finally
+        {
+            flushLock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public List<FolderData> getChildFolders(String context, String path, int skip, int limit)
+    {
+        flushLock.readLock().lock();
+        try
+        {
+            List<FolderData> folders = fileFolderService.getChildFolders(context, path, skip, limit);
+            List<FolderData> results = new ArrayList<>(folders.size());
+            for (FolderData folder : folders)
+            {
+                results.add(withIncrements(folder));
+            }
+            return results;
+        }
+        finally
+        {
+            flushLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Pending increments are flushed before querying with count limits.  Dropping the folders that pending increments
+     * push past a limit would leave short pages, which callers take to be the last page, and would shift the
+     * offsets of the pages that follow.
+     */
+    @Override
+    public List<FolderData> getFoldersByCounts(String context, Long minLevel, Long maxLevel, Long minFolders, Long maxFolders, Long minFiles, Long maxFiles,
+        int skip, int limit)
+    {
+        boolean countLimits = minFolders != null || maxFolders != null || minFiles != null || maxFiles != null;
+        if (countLimits && !pending.isEmpty())
+        {
+            flush();
+        }
+        flushLock.readLock().lock();
+        try
+        {
+            List<FolderData> folders = fileFolderService
+                .getFoldersByCounts(context, minLevel, maxLevel, minFolders, maxFolders, minFiles, maxFiles, skip, limit);
+            List<FolderData> results = new ArrayList<>(folders.size());
+            for (FolderData folder : folders)
+            {
+                results.add(withIncrements(folder));
+            }
+            return results;
+        }
+        finally
+        {
+            flushLock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public long countEmptyFolders(String context)
+    {
+        flushLock.readLock().lock();
+        try
+        {
+            long count = fileFolderService.countEmptyFolders(context);
+            // Folders that are no longer empty because of pending increments
+            for (Increments increments : pending.values())
+            {
+                if (increments.context.equals(context) && (increments.folders != 0L || increments.files != 0L))
+                {
+                    FolderData folder = fileFolderService.getFolder(context, increments.path);
+                    if (folder != null && folder.getFolderCount() == 0L && folder.getFileCount() == 0L)
+                    {
+                        count--;
+                    }
+                }
+            }
+            return count;
+        }
+        finally
+        {
+            flushLock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void createNewFolder(String id, String context, String path)
+    {
+        fileFolderService.createNewFolder(id, context, path);
+    }
+
+    @Override
+    public void createNewFolder(FolderData data)
+    {
+        fileFolderService.createNewFolder(data);
+    }
+
+    @Override
+    public int createNewFolders(List<FolderData> folders)
+    {
+        if (fileFolderService instanceof BulkFileFolderService)
+        {
+            return ((BulkFileFolderService) fileFolderService).createNewFolders(folders);
+        }
+        for (FolderData folder : folders)
+        {
+            fileFolderService.createNewFolder(folder);
+        }
+        return folders.size();
+    }
+
+    /**
+     * Deleted folders lose any increments that are still pending
+     */
+    @Override
+    public int deleteFolder(String context, String path, boolean cascade)
+    {
+        flushLock.writeLock().lock();
+        try
+        {
+            pending.remove(toKey(context, path));
+            if (cascade)
+            {
+                String childPrefix = toKey(context, path + "/");
+                pending.keySet().removeIf(key -> key.startsWith(childPrefix));
+            }
+            return fileFolderService.deleteFolder(context, path, cascade);
+        }
+        finally
+        {
+            flushLock.writeLock().unlock();
+        }
+    }
+
+    private FolderData withIncrements(FolderData folder)
+    {
+        if (folder == null)
+        {
+            return null;
+        }
+        Increments increments = pending.get(toKey(folder.getContext(), folder.getPath()));
+        if (increments == null)
+        {
+            return folder;
+        }
+        return new FolderData(folder.getId(), folder.getContext(), folder.getPath(), folder.getFolderCount() + increments.folders,
+            folder.getFileCount() + increments.files);
+    }
+
+    private static String toKey(String context, String path)
+    {
+        return context + ":" + path;
+    }
+
+    /**
+     * Increments that have not been written yet.  Instances are immutable so that they can be merged atomically.
+     */
+    private static class Increments
+    {
+        private final String context;
+        private final String path;
+        private final long folders;
+        private final long files;
+
+        private Increments(String context, String path, long folders, long files)
+        {
+            this.context = context;
+            this.path = path;
+            this.folders = folders;
+            this.files = files;
+        }
+
+        private Increments plus(Increments other)
+        {
+            return new Increments(context, path, folders + other.folders, files + other.files);
+        }
+    }
+}
@@ -0,0 +1,540 @@
+/*
+ * #%L
+ * Alfresco Benchmark Load Data
+ * %%
+ * Copyright (C) 2005 - 2018 Alfresco Software Limited
+ * %%
+ * This file is part of the Alfresco software.
+ * If the software was purchased under a paid Alfresco license, the terms of
+ * the paid license agreement will prevail.  Otherwise, the software is
+ * provided under the following open source license terms:
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+package org.alfresco.bm.dataload.plan;
+
+import com.mongodb.BasicDBObjectBuilder;
+import com.mongodb.DBObject;
+import org.alfresco.bm.cm.FileFolderService;
+import org.alfresco.bm.cm.FolderData;
+import org.alfresco.bm.common.EventResult;
+import org.alfresco.bm.data.DataCreationState;
+import org.alfresco.bm.dataload.files.MetadataProfile;
+import org.alfresco.bm.dataload.files.ScheduleSiteLoaders;
+import org.alfresco.bm.dataload.files.SiteFolderLoader;
+import org.alfresco.bm.dataload.files.UploadMix;
+import org.alfresco.bm.dataload.files.VersionLoader;
+import org.alfresco.bm.dataload.rest.AlfrescoAsyncClient;
+import org.alfresco.bm.dataload.rest.ApiResponse;
+import org.alfresco.bm.dataload.search.IndexSampleService;
+import org.alfresco.bm.driver.event.AbstractEventProcessor;
+import org.alfresco.bm.driver.event.Event;
+import org.alfresco.bm.site.SiteData;
+import org.alfresco.bm.site.SiteDataService;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.IntFunction;
+
+/**
+ * Work out what a load would create, and how long it would take, before anything is created.
+ * <p/>
+ * The site, member and folder settings are compared with what the mirrors already hold to give the exact number
+ * of sites, site members, folders and files still to be created.  The upload mix, large file and version settings
+ * turn those into expected bytes and numbers of requests by type.
+ * <p/>
+ * The duration is forecast from either:
+ * <ul>
+ * <li><b>history</b>: the node creation rate of earlier runs, taken from the {@link IndexSampleService samples}
+ * they left behind</li>
+ * <li><b>calibrate</b>: a micro-run of folder creations and uploads in a scratch folder that is deleted again</li>
+ * </ul>
+ * Sites and site members are created at a fixed rate, so their share of the duration follows from the creation delays.
+ * <p/>
+ * When dry runs are disabled this processor just {@link #EVENT_NAME_LOAD_PLANNED passes on} to the load.  When they
+ * are enabled, the plan is the result and the run ends there.
+ *
+ * @since 3.0
+ */
+public class PlanLoad extends AbstractEventProcessor
+{
+    public static final String EVENT_NAME_LOAD_PLANNED = "loadPlanned";
+    public static final String FORECAST_HISTORY = "history";
+    public static final String FORECAST_CALIBRATE = "calibrate";
+    public static final String FORECAST_NONE = "none";
+
+    public static final String DEFAULT_FORECAST = FORECAST_HISTORY;
+    public static final int DEFAULT_CALIBRATION_SIZE = 50;
+    public static final long DEFAULT_HISTORY_MAX_GAP = 300000L;
+    public static final int DEFAULT_MAX_ACTIVE_LOADERS = 8;
+
+    private static final int PAGE_SIZE = 500;
+    private static final String MY_FOLDER = "-my-";
+    private static final String LOCKED_SUFFIX = "/locked";
+
+    private final SiteDataService siteDataService;
+    private final FileFolderService fileFolderService;
+    private final int sitesCount;
+    private final int usersPerSite;
+    private final int subfolders;
+    private final int maxDepth;
+    private final int filesPerFolder;
+
+    private boolean enabled;
+    private String eventNameLoadPlanned;
+    private long siteCreationDelay;
+    private long siteMemberCreationDelay;
+    private UploadMix uploadMix;
+    private int largeFilePercentage;
+    private int largeFileSizeMB;
+    private boolean versionsEnabled;
+    private String versionsPerFile;
+    private MetadataProfile metadataProfile;
+    private String forecast;
+    private IndexSampleService indexSampleService;
+    private long historyMaxGap;
+    private AlfrescoAsyncClient asyncClient;
+    private String username;
+    private String password;
+    private int calibrationSize;
+    private int maxActiveLoaders;
+
+    /**
+     * @param siteDataService   the site and site member mirrors
+     * @param fileFolderService the file-folder mirror
+     * @param sitesCount        the number of sites to reach
+     * @param usersPerSite      the number of members each site should have
+     * @param subfolders        the number of subfolders in each folder above the deepest level
+     * @param maxDepth          the number of folder levels below each document library
+     * @param filesPerFolder    the number of files in each folder
+     */
+    public PlanLoad(SiteDataService siteDataService, FileFolderService fileFolderService, int sitesCount, int usersPerSite, int subfolders, int maxDepth,
+        int filesPerFolder)
+    {
+        super();
+
+        this.siteDataService = siteDataService;
+        this.fileFolderService = fileFolderService;
+        this.sitesCount = sitesCount;
+        this.usersPerSite = usersPerSite;
+        this.subfolders = subfolders;
+        this.maxDepth = maxDepth;
+        this.filesPerFolder = filesPerFolder;
+
+        this.eventNameLoadPlanned = EVENT_NAME_LOAD_PLANNED;
+        this.forecast = DEFAULT_FORECAST;
+        this.historyMaxGap = DEFAULT_HISTORY_MAX_GAP;
+        this.calibrationSize = DEFAULT_CALIBRATION_SIZE;
+        this.maxActiveLoaders = DEFAULT_MAX_ACTIVE_LOADERS;
+    }
+
+    /**
+     * Report the plan instead of running the load (default: <b>false</b>)
+     */
+    public void setEnabled(boolean enabled)
+    {
+        this.enabled = enabled;
+    }
+
+    /**
+     * Override the {@link #EVENT_NAME_LOAD_PLANNED default} event name used to start the load when this is not a dry run
+     */
+    public void setEventNameLoadPlanned(String eventNameLoadPlanned)
+    {
+        this.eventNameLoadPlanned = eventNameLoadPlanned;
+    }
+
+    /**
+     * Set the milliseconds between site creations
+     */
+    public void setSiteCreationDelay(long siteCreationDelay)
+    {
+        this.siteCreationDelay = siteCreationDelay;
+    }
+
+    /**
+     * Set the milliseconds between site member creations
+     */
+    public void setSiteMemberCreationDelay(long siteMemberCreationDelay)
+    {
+        this.siteMemberCreationDelay = siteMemberCreationDelay;
+    }
+
+    /**
+     * Set the mix of files the loaders upload, which gives the expected size of a file
+     */
+    public void setUploadMix(UploadMix uploadMix)
+    {
+        this.uploadMix = uploadMix;
+    }
+
+    /**
+     * @see SiteFolderLoader#setLargeFilePercentage(int)
+     */
+    public void setLargeFilePercentage(int largeFilePercentage)
+    {
+        this.largeFilePercentage = largeFilePercentage;
+    }
+
+    /**
+     * @see SiteFolderLoader#setLargeFileSizeMB(int)
+     */
+    public void setLargeFileSizeMB(int largeFileSizeMB)
+    {
+        this.largeFileSizeMB = largeFileSizeMB;
+    }
+
+    /**
+     * Set whether new versions are loaded once the files are in (default: <b>false</b>)
+     */
+    public void setVersionsEnabled(boolean versionsEnabled)
+    {
+        this.versionsEnabled = versionsEnabled;
+    }
+
+    /**
+     * Set the distribution of new versions per file
+     *
+     * @see VersionLoader#setVersionsPerFile(String)
+     */
+    public void setVersionsPerFile(String versionsPerFile)
+    {
+        this.versionsPerFile = versionsPerFile;
+    }
+
+    /**
+     * Set the metadata given to new nodes, which adds tag requests when it has tags
+     */
+    public void setMetadataProfile(MetadataProfile metadataProfile)
+    {
+        this.metadataProfile = metadataProfile;
+    }
+
+    /**
+     * Override the {@link #DEFAULT_FORECAST default} source of the duration forecast: <b>history</b>, <b>calibrate</b> or <b>none</b>
+     */
+    public void setForecast(String forecast)
+    {
+        this.forecast = forecast;
+    }
+
+    /**
+     * Set the samples of nodes created by earlier runs
+     */
+    public void setIndexSampleService(IndexSampleService indexSampleService)
+    {
+        this.indexSampleService = indexSampleService;
+    }
+
+    /**
+     * Override the {@link #DEFAULT_HISTORY_MAX_GAP default} longest gap in milliseconds between samples that still
+     * counts as loading
+     */
+    public void setHistoryMaxGap(long historyMaxGap)
+    {
+        this.historyMaxGap = historyMaxGap;
+    }
+
+    /**
+     * Set the client used for calibration micro-runs
+     */
+    public void setAsyncClient(AlfrescoAsyncClient asyncClient)
+    {
+        this.asyncClient = asyncClient;
+    }
+
+    /**
+     * Set the user that owns the scratch folder of calibration micro-runs
+     */
+    public void setUsername(String username)
+    {
+        this.username = username;
+    }
+
+    /**
+     * Set the password of the calibration user
+     */
+    public void setPassword(String password)
+    {
+        this.password = password;
+    }
+
+    /**
+     * Override the {@link #DEFAULT_CALIBRATION_SIZE default} number of folders and of files created by a calibration micro-run
+     */
+    public void setCalibrationSize(int calibrationSize)
+    {
+        this.calibrationSize = calibrationSize;
+    }
+
+    /**
+     * Override the {@link #DEFAULT_MAX_ACTIVE_LOADERS default} number of loaders working at the same time
+     */
+    public void setMaxActiveLoaders(int maxActiveLoaders)
+    {
+        this.maxActiveLoaders = maxActiveLoaders;
+    }
+
+    @Override
+    public EventResult processEvent(Event event) throws Exception
+    {
+        if (!enabled)
+        {
+            return new EventResult("Not a dry run.", Collections.singletonList(new Event(eventNameLoadPlanned, null)));
+        }
+
+        // Sites
+        long existingSites = siteDataService.countSites(null, null);
+        long createdSites = siteDataService.countSites(null, DataCreationState.Created);
+        long failedSites = siteDataService.countSites(null, DataCreationState.Failed);
+        long newSites = Math.max(0L, sitesCount - (existingSites - failedSites));
+        long sitesToCreate = newSites + (existingSites - createdSites - failedSites);
+
+        // Site members: created sites are topped up and the others get their manager with the site
+        long membersToCreate = sitesToCreate * Math.max(0, usersPerSite - 1);
+        for (int skip = 0; ; skip += PAGE_SIZE)
+        {
+            List<SiteData> sites = siteDataService.getSites(null, DataCreationState.Created, skip, PAGE_SIZE);
+            for (SiteData site : sites)
+            {
+                membersToCreate += Math.max(0L, usersPerSite - siteDataService.countSiteMembers(site.getSiteId(), DataCreationState.Created));
+            }
+            if (sites.size() < PAGE_SIZE)
+            {
+                break;
+            }
+        }
+
+        // Folders and files of new sites
+        long[] siteTree = countTree(maxDepth);
+        long foldersToCreate = sitesToCreate * (siteTree[0] - 1);             // The document library comes with the site
+        long filesToCreate = sitesToCreate * siteTree[0] * filesPerFolder;
+
+        // Folders and files missing from the sites already loaded
+        int docLibLevel = 3;
+        long maxLevel = maxDepth + docLibLevel;
+        for (int skip = 0; ; skip += PAGE_SIZE)
+        {
+            List<FolderData> folders = fileFolderService
+                .getFoldersByCounts("", Long.valueOf(docLibLevel), maxLevel - 1, 0L, Long.valueOf(subfolders - 1), null, null, skip, PAGE_SIZE);
+            for (FolderData folder : folders)
+            {
+                if (folder.getPath().endsWith(LOCKED_SUFFIX))
+                {
+                    continue;
+                }
+                long[] subtree = countTree((int) (maxLevel - folder.getLevel() - 1));
+                long missing = subfolders - folder.getFolderCount();
+                foldersToCreate += missing * subtree[0];
+                filesToCreate += missing * subtree[0] * filesPerFolder;
+            }
+            if (folders.size() < PAGE_SIZE)
+            {
+                break;
+            }
+        }
+        for (int skip = 0; ; skip += PAGE_SIZE)
+        {
+            List<FolderData> folders = fileFolderService
+                .getFoldersByCounts("", Long.valueOf(docLibLevel), maxLevel, null, null, 0L, Long.valueOf(filesPerFolder - 1), skip, PAGE_SIZE);
+            for (FolderData folder : folders)
+            {
+                if (folder.getPath().endsWith(LOCKED_SUFFIX))
+                {
+                    continue;                                                   // Loader locks are not real folders
+                }
+                filesToCreate += filesPerFolder - folder.getFileCount();
+            }
+            if (folders.size() < PAGE_SIZE)
+            {
+                break;
+            }
+        }
+
+        // Requests and bytes
+        long largeFiles = filesToCreate * largeFilePercentage / 100L;
+        long versions = !versionsEnabled || versionsPerFile == null || versionsPerFile.trim().isEmpty()
+            ? 0L
+            : Math.round(filesToCreate * VersionLoader.getMeanVersionsPerFile(versionsPerFile));
+        double meanFileSize = uploadMix == null ? 0.0 : uploadMix.getMeanFileSize();
+        long largeBytes = largeFiles * largeFileSizeMB * 1024L * 1024L;
+        long bytes = Math.round((filesToCreate - largeFiles + versions) * meanFileSize) + largeBytes;
+        long tagRequests = metadataProfile != null && metadataProfile.hasTags() ? foldersToCreate + filesToCreate : 0L;
+
+        DBObject requests = BasicDBObjectBuilder.start()
+            .add("createSite", sitesToCreate)
+            .add("addSiteMember", membersToCreate)
+            .add("createFolder", foldersToCreate)
+            .add("uploadFile", filesToCreate)
+            .add("uploadVersion", versions)
+            .add("addTags", tagRequests)
+            .get();
+        DBObject resultData = BasicDBObjectBuilder.start()
+            .add("msg", "Dry run: nothing was loaded.")
+            .add("existingSites", existingSites)
+            .add("sites", sitesToCreate)
+            .add("siteMembers", membersToCreate)
+            .add("folders", foldersToCreate)
+            .add("files", filesToCreate)
+            .add("largeFiles", largeFiles)
+            .add("versions", versions)
+            .add("nodes", foldersToCreate + filesToCreate)
+            .add("meanFileSize", Math.round(meanFileSize))
+            .add("bytes", bytes)
+            .add("requests", requests)
+            .add("forecast", forecast(sitesToCreate, membersToCreate, foldersToCreate, filesToCreate - largeFiles + versions, largeFiles, largeBytes))
+            .get();
+        if (logger.isInfoEnabled())
+        {
+            logger.info("Load plan: " + resultData);
+        }
+        return new EventResult(resultData, Collections.<Event> emptyList());
+    }
+
+    /**
+     * @return the number of folders in a full tree of the given depth, including its root, and the number of
+     * folders at its deepest level
+     */
+    private long[] countTree(int depth)
+    {
+        long folders = 0L;
+        long width = 1L;
+        for (int level = 0; level <= depth; level++)
+        {
+            folders += width;
+            if (level < depth)
+            {
+                width *= subfolders;
+            }
+        }
+        return new long[] { folders, width };
+    }
+
+    private DBObject forecast(long sites, long members, long folders, long uploads, long largeFiles, long largeBytes) throws Exception
+    {
+        // Sites and members are created at a fixed pace, one after the other, before any folders are loaded
+        long fixedMs = sites * siteCreationDelay + members * siteMemberCreationDelay;
+        BasicDBObjectBuilder forecastBuilder = BasicDBObjectBuilder.start()
+            .add("source", forecast)
+            .add("sitesAndMembersMs", fixedMs);
+        long loadMs;
+        if (FORECAST_HISTORY.equalsIgnoreCase(forecast))
+        {
+            double nodesPerSecond = indexSampleService == null ? 0.0 : indexSampleService.getCreationRate(historyMaxGap);
+            if (nodesPerSecond <= 0.0)
+            {
+                return forecastBuilder.add("msg", "No earlier runs have left samples.  Use a calibration run instead.").get();
+            }
+            // Earlier runs give nodes per second whatever their size, so large files count as nodes like the rest
+            loadMs = (long) ((folders + uploads + largeFiles) * 1000.0 / nodesPerSecond);
+            forecastBuilder.add("nodesPerSecond", nodesPerSecond);
+        }
+        else if (FORECAST_CALIBRATE.equalsIgnoreCase(forecast))
+        {
+            if (asyncClient == null)
+            {
+                return forecastBuilder.add("msg", "No client to calibrate with.").get();
+            }
+            double[] rates = calibrate();
+            if (rates == null)
+            {
+                return forecastBuilder.add("msg", "The calibration run failed; see the logs.").get();
+            }
+            loadMs = (long) (folders * 1000.0 / rates[0] + uploads * 1000.0 / rates[1] + largeBytes * 1000.0 / rates[2]);
+            forecastBuilder.add("foldersPerSecond", rates[0]).add("filesPerSecond", rates[1]).add("bytesPerSecond", rates[2]);
+        }
+        else
+        {
+            return forecastBuilder.get();
+        }
+        long durationMs = fixedMs + loadMs;
+        return forecastBuilder
+            .add("loadMs", loadMs)
+            .add("durationMs", durationMs)
+            .add("durationHours", Math.round(durationMs / 36000.0) / 100.0)
+            .get();
+    }
+
+    /**
+     * Create folders and upload files in a scratch folder with as many in flight as there would be loaders
+     *
+     * @return the folders, files and bytes per second or <tt>null</tt> if the calibration failed
+     */
+    private double[] calibrate() throws Exception
+    {
+        ApiResponse scratch = asyncClient.createFolder(username, password, MY_FOLDER, "planLoad-" + UUID.randomUUID(), null).get();
+        if (!scratch.isCreated())
+        {
+            logger.warn("Unable to create a scratch folder for calibration: " + scratch.getErrorMessage());
+            return null;
+        }
+        final String scratchId = scratch.getEntryId();
+        try
+        {
+            long start = System.nanoTime();
+            int failures = runCalibration(i -> asyncClient.createFolder(username, password, scratchId, "folder-" + i, null));
+            double foldersPerSecond = calibrationSize * 1.0E9 / (System.nanoTime() - start);
+
+            final AtomicLong bytes = new AtomicLong();
+            start = System.nanoTime();
+            failures += runCalibration(i ->
+            {
+                File file = uploadMix.getFile();
+                bytes.addAndGet(file.length());
+                return asyncClient.uploadFile(username, password, scratchId, "file-" + i + "-" + file.getName(), file);
+            });
+            long uploadNanos = System.nanoTime() - start;
+            if (failures > 0)
+            {
+                logger.warn(failures + " calibration requests failed.");
+                return null;
+            }
+            return new double[] { foldersPerSecond, calibrationSize * 1.0E9 / uploadNanos, bytes.get() * 1.0E9 / uploadNanos };
+        }
+        finally
+        {
+            asyncClient.deleteNode(username, password, scratchId, true).get();
+        }
+    }
+
+    /**
+     * @return the number of requests that failed
+     */
+    private int runCalibration(IntFunction<CompletableFuture<ApiResponse>> request) throws InterruptedException
+    {
+        final Semaphore inFlight = new Semaphore(maxActiveLoaders);
+        final AtomicInteger failures = new AtomicInteger();
+        for (int i = 0; i < calibrationSize; i++)
+        {
+            inFlight.acquire();
+            request.apply(i).whenComplete((response, e) ->
+            {
+                if (e != null || !response.isCreated())
+                {
+                    failures.incrementAndGet();
+                }
+                inFlight.release();
+            });
+        }
+        inFlight.acquire(maxActiveLoaders);
+        return failures.get();
+    }
+}
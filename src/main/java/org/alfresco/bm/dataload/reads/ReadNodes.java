@@ -0,0 +1,612 @@
+/*
+ * #%L
+ * Alfresco Benchmark Load Data
+ * %%
+ * Copyright (C) 2005 - 2018 Alfresco Software Limited
+ * %%
+ * This file is part of the Alfresco software.
+ * If the software was purchased under a paid Alfresco license, the terms of
+ * the paid license agreement will prevail.  Otherwise, the software is
+ * provided under the following open source license terms:
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+package org.alfresco.bm.dataload.reads;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.mongodb.BasicDBObjectBuilder;
+import com.mongodb.DBObject;
+import org.alfresco.bm.cm.FileFolderService;
+import org.alfresco.bm.cm.FolderData;
+import org.alfresco.bm.common.EventResult;
+import org.alfresco.bm.data.DataCreationState;
+import org.alfresco.bm.dataload.LatencyRecorder;
+import org.alfresco.bm.dataload.files.AliasTable;
+import org.alfresco.bm.dataload.rest.AlfrescoAsyncClient;
+import org.alfresco.bm.dataload.rest.ApiResponse;
+import org.alfresco.bm.dataload.sites.CreateSite;
+import org.alfresco.bm.driver.event.AbstractEventProcessor;
+import org.alfresco.bm.driver.event.Event;
+import org.alfresco.bm.site.SiteData;
+import org.alfresco.bm.site.SiteDataService;
+import org.alfresco.bm.site.SiteMemberData;
+import org.alfresco.bm.user.UserData;
+import org.alfresco.bm.user.UserDataService;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Read from the repository while it is being loaded, so that the effect of the load on readers can be measured.
+ * <p/>
+ * Reads are started at a fixed {@link #ReadNodes(FileFolderService, UserDataService, SiteDataService, AlfrescoAsyncClient, int, int, int, double) rate}
+ * and their latency is measured from when each was due, as for the
+ * {@link org.alfresco.bm.dataload.files.ArrivalRateLoader open-model load}.  The kinds of read are chosen according
+ * to a {@link #setMix(String) mix}:
+ * <ul>
+ * <li><b>listFolder</b>: the first page of children of a folder</li>
+ * <li><b>getNode</b>: the metadata of a file or, until files have been seen, a folder</li>
+ * <li><b>downloadContent</b>: the content of a file seen in an earlier listing</li>
+ * <li><b>listSiteMembers</b>: the first page of members of a site</li>
+ * </ul>
+ * Each event samples a pool of folders from the site and folder mirrors, reading as a random member of each
+ * folder's site, and then reads for a {@link #setSliceDuration(long) slice} of time.  Every kind of read has its
+ * own latency histogram in the slice results.
+ * <p/>
+ * The reads stop once no folder needs any more files or subfolders, after an optional
+ * {@link #setBaselineDuration(long) baseline} of reads against the finished load.
+ *
+ * @since 3.0
+ */
+public class ReadNodes extends AbstractEventProcessor
+{
+    public static final String EVENT_NAME_READ_NODES = "readNodes";
+    public static final String EVENT_NAME_READS_COMPLETE = "readsComplete";
+    public static final String FIELD_NEXT_ARRIVAL = "nextArrival";
+    public static final String FIELD_LOADED_AT = "loadedAt";
+
+    public static final String DEFAULT_MIX = "listFolder:40, getNode:30, downloadContent:20, listSiteMembers:10";
+    public static final int DEFAULT_MAX_IN_FLIGHT = 64;
+    public static final long DEFAULT_SLICE_DURATION = 60000L;
+    public static final int DEFAULT_SAMPLE_SIZE = 100;
+    public static final int DEFAULT_PAGE_SIZE = 100;
+    public static final int FILE_POOL_SIZE = 1000;
+
+    /**
+     * The kinds of read
+     */
+    public enum ReadType
+    {
+        listFolder, getNode, downloadContent, listSiteMembers
+    }
+
+    private static final String LOCKED_SUFFIX = "/locked";
+
+    private final FileFolderService fileFolderService;
+    private final UserDataService userDataService;
+    private final SiteDataService siteDataService;
+    private final AlfrescoAsyncClient asyncClient;
+    private final int subfolders;
+    private final int maxDepth;
+    private final int filesPerFolder;
+    private final double rate;
+
+    private AliasTable mix;
+    private int maxInFlight;
+    private long sliceDuration;
+    private long baselineDuration;
+    private int sampleSize;
+    private int pageSize;
+    private String eventNameReadNodes;
+    private String eventNameReadsComplete;
+
+    private Semaphore inFlight;
+    private volatile Slice slice;
+    /** Files seen in listings, most recent first, for metadata and content reads */
+    private final AtomicReferenceArray<Target> files = new AtomicReferenceArray<Target>(FILE_POOL_SIZE);
+    private final AtomicInteger filesSeen = new AtomicInteger();
+
+    /**
+     * @param fileFolderService service to access folders
+     * @param userDataService   service to access usernames and passwords
+     * @param siteDataService   service to access sites and their members
+     * @param asyncClient       the non-blocking client that sends the reads
+     * @param subfolders        the number of subfolders the load puts in each folder above the deepest level
+     * @param maxDepth          the number of folder levels the load creates below each document library
+     * @param filesPerFolder    the number of files the load puts in each folder
+     * @param rate              the number of reads to start each second
+     */
+    public ReadNodes(FileFolderService fileFolderService, UserDataService userDataService, SiteDataService siteDataService, AlfrescoAsyncClient asyncClient,
+        int subfolders, int maxDepth, int filesPerFolder, double rate)
+    {
+        super();
+
+        this.fileFolderService = fileFolderService;
+        this.userDataService = userDataService;
+        this.siteDataService = siteDataService;
+        this.asyncClient = asyncClient;
+        this.subfolders = subfolders;
+        this.maxDepth = maxDepth;
+        this.filesPerFolder = filesPerFolder;
+        this.rate = rate;
+
+        setMix(DEFAULT_MIX);
+        this.maxInFlight = DEFAULT_MAX_IN_FLIGHT;
+        this.sliceDuration = DEFAULT_SLICE_DURATION;
+        this.sampleSize = DEFAULT_SAMPLE_SIZE;
+        this.pageSize = DEFAULT_PAGE_SIZE;
+        this.eventNameReadNodes = EVENT_NAME_READ_NODES;
+        this.eventNameReadsComplete = EVENT_NAME_READS_COMPLETE;
+    }
+
+    /**
+     * Override the {@link #DEFAULT_MIX default} relative weights of each {@link ReadType kind of read} as a
+     * comma-separated list of <tt>type:weight</tt>.  Kinds that are not listed are not used.
+     */
+    public void setMix(String mix)
+    {
+        double[] weights = new double[ReadType.values().length];
+        for (String spec : mix.split(","))
+        {
+            if (spec.trim().isEmpty())
+            {
+                continue;
+            }
+            String[] parts = spec.split(":");
+            if (parts.length != 2)
+            {
+                throw new IllegalArgumentException("Read mix entries must be 'type:weight': " + spec);
+            }
+            try
+            {
+                weights[ReadType.valueOf(parts[0].trim()).ordinal()] = Double.parseDouble(parts[1].trim());
+            }
+            catch (IllegalArgumentException e)
+            {
+                throw new IllegalArgumentException("Read mix entries must be one of " + Arrays.toString(ReadType.values()) + " with a weight: " + spec);
+            }
+        }
+        this.mix = new AliasTable(weights);
+    }
+
+    /**
+     * Override the {@link #DEFAULT_MAX_IN_FLIGHT default} number of reads that may be waiting for a response
+     */
+    public void setMaxInFlight(int maxInFlight)
+    {
+        this.maxInFlight = maxInFlight;
+    }
+
+    /**
+     * Override the {@link #DEFAULT_SLICE_DURATION default} time in milliseconds that each event reads for
+     */
+    public void setSliceDuration(long sliceDuration)
+    {
+        this.sliceDuration = sliceDuration;
+    }
+
+    /**
+     * Set the time in milliseconds to carry on reading once loading is complete, to give a baseline without the
+     * load (default: <b>0</b>)
+     */
+    public void setBaselineDuration(long baselineDuration)
+    {
+        this.baselineDuration = baselineDuration;
+    }
+
+    /**
+     * Override the {@link #DEFAULT_SAMPLE_SIZE default} number of folders sampled from the mirrors for each slice
+     */
+    public void setSampleSize(int sampleSize)
+    {
+        this.sampleSize = sampleSize;
+    }
+
+    /**
+     * Override the {@link #DEFAULT_PAGE_SIZE default} number of items asked for by each listing
+     */
+    public void setPageSize(int pageSize)
+    {
+        this.pageSize = pageSize;
+    }
+
+    /**
+     * Override the {@link #EVENT_NAME_READ_NODES default} event name used to carry on reading
+     */
+    public void setEventNameReadNodes(String eventNameReadNodes)
+    {
+        this.eventNameReadNodes = eventNameReadNodes;
+    }
+
+    /**
+     * Override the {@link #EVENT_NAME_READS_COMPLETE default} output event name
+     */
+    public void setEventNameReadsComplete(String eventNameReadsComplete)
+    {
+        this.eventNameReadsComplete = eventNameReadsComplete;
+    }
+
+    @Override
+    public EventResult processEvent(Event event) throws Exception
+    {
+        if (rate <= 0.0)
+        {
+            return new EventResult("The read rate must be greater than zero.", false);
+        }
+        synchronized (this)
+        {
+            if (inFlight == null)
+            {
+                inFlight = new Semaphore(maxInFlight);
+                slice = new Slice();
+            }
+        }
+
+        DBObject dataObj = (DBObject) event.getData();
+        Long nextArrival = dataObj == null ? null : (Long) dataObj.get(FIELD_NEXT_ARRIVAL);
+        Long loadedAt = dataObj == null ? null : (Long) dataObj.get(FIELD_LOADED_AT);
+        if (loadedAt == null && isLoadComplete())
+        {
+            loadedAt = System.currentTimeMillis();
+        }
+        if (loadedAt != null && System.currentTimeMillis() - loadedAt >= baselineDuration)
+        {
+            // Let the last reads finish so that they are reported
+            inFlight.acquire(maxInFlight);
+            inFlight.release(maxInFlight);
+            DBObject resultData = slice.close();
+            resultData.put("msg", "Loading is complete; reads stopped.");
+            return new EventResult(resultData, Collections.singletonList(new Event(eventNameReadsComplete, null)));
+        }
+
+        // Keep to the schedule of the last slice, even if this event started late
+        long sliceEnd = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(sliceDuration);
+        List<Target> folders = sampleFolders();
+        long intended = System.nanoTime();
+        if (nextArrival != null)
+        {
+            intended += TimeUnit.MILLISECONDS.toNanos(nextArrival - System.currentTimeMillis());
+        }
+        long periodNanos = (long) (1.0E9 / rate);
+        Random random = ThreadLocalRandom.current();
+        while (!folders.isEmpty() && intended < sliceEnd)
+        {
+            long wait = intended - System.nanoTime();
+            if (wait > 0L)
+            {
+                LockSupport.parkNanos(wait);
+            }
+            // Reads queue behind the cap and the time spent waiting is part of their latency
+            inFlight.acquire();
+            send(ReadType.values()[mix.next(random)], folders.get(random.nextInt(folders.size())), intended);
+            intended += periodNanos;
+        }
+        if (folders.isEmpty())
+        {
+            // Nothing has been loaded yet; try again next slice
+            LockSupport.parkNanos(Math.max(0L, sliceEnd - System.nanoTime()));
+            intended = System.nanoTime();
+        }
+
+        // Responses still to come are reported with the slice that is open when they arrive
+        Slice done = slice;
+        slice = new Slice();
+        DBObject resultData = done.close();
+        resultData.put("loading", loadedAt == null);
+        resultData.put("msg", "Read from " + folders.size() + " folders and rescheduled self.");
+        long nextArrivalTime = System.currentTimeMillis() + TimeUnit.NANOSECONDS.toMillis(intended - System.nanoTime());
+        BasicDBObjectBuilder nextData = BasicDBObjectBuilder.start().add(FIELD_NEXT_ARRIVAL, Long.valueOf(nextArrivalTime));
+        if (loadedAt != null)
+        {
+            nextData.add(FIELD_LOADED_AT, loadedAt);
+        }
+        return new EventResult(resultData, Collections.singletonList(new Event(eventNameReadNodes, nextData.get())));
+    }
+
+    /**
+     * @return <tt>true</tt> if no folder needs more files or subfolders
+     */
+    private boolean isLoadComplete()
+    {
+        long maxLevel = maxDepth + 3;      // Add levels for "/Sites<L1>/siteId<L2>/documentLibrary<L3>"
+        return fileFolderService.getFoldersByCounts("", null, maxLevel, null, null, 0L, Long.valueOf(filesPerFolder - 1), 0, 1).isEmpty()
+            && fileFolderService.getFoldersByCounts("", null, maxLevel - 1, 0L, Long.valueOf(subfolders - 1), null, null, 0, 1).isEmpty();
+    }
+
+    /**
+     * Pick folders by walking down from the document libraries of random sites, each with a random member of the site
+     */
+    private List<Target> sampleFolders()
+    {
+        List<Target> targets = new ArrayList<Target>(sampleSize);
+        long siteCount = siteDataService.countSites(null, DataCreationState.Created);
+        if (siteCount == 0L)
+        {
+            return targets;
+        }
+        Random random = ThreadLocalRandom.current();
+        for (int i = 0; i < sampleSize; i++)
+        {
+            List<SiteData> sites = siteDataService.getSites(null, DataCreationState.Created, (int) (random.nextDouble() * siteCount), 1);
+            if (sites.isEmpty())
+            {
+                continue;
+            }
+            String siteId = sites.get(0).getSiteId();
+            SiteMemberData member = siteDataService.randomSiteMember(siteId, DataCreationState.Created, null);
+            UserData user = member == null ? null : userDataService.findUserByUsername(member.getUsername());
+            FolderData folder = fileFolderService.getFolder("", "/" + CreateSite.PATH_SNIPPET_SITES + "/" + siteId + "/" + CreateSite.PATH_SNIPPET_DOCLIB);
+            if (user == null || folder == null)
+            {
+                continue;
+            }
+            for (int depth = random.nextInt(maxDepth + 1); depth > 0 && folder.getFolderCount() > 0L; depth--)
+            {
+                List<FolderData> children = fileFolderService.getChildFolders("", folder.getPath(), random.nextInt((int) folder.getFolderCount()), 1);
+                if (children.isEmpty() || children.get(0).getPath().endsWith(LOCKED_SUFFIX))
+                {
+                    break;
+                }
+                folder = children.get(0);
+            }
+            targets.add(new Target(siteId, folder.getId(), user.getUsername(), user.getPassword()));
+        }
+        return targets;
+    }
+
+    /**
+     * @return a file seen in an earlier listing or <tt>null</tt> if none have been seen
+     */
+    private Target randomFile()
+    {
+        int seen = Math.min(filesSeen.get(), FILE_POOL_SIZE);
+        return seen == 0 ? null : files.get(ThreadLocalRandom.current().nextInt(seen));
+    }
+
+    /**
+     * Start one read without waiting for the response
+     */
+    private void send(final ReadType type, Target folder, final long intended)
+    {
+        final Target target = chooseTarget(type, folder);
+        if (target == null)
+        {
+            // No files have been listed yet
+            slice.skipped(type);
+            inFlight.release();
+            return;
+        }
+        final long sentAt = System.nanoTime();
+        CompletableFuture<ApiResponse> request;
+        try
+        {
+            request = startRead(type, target);
+        }
+        catch (RuntimeException e)
+        {
+            inFlight.release();
+            throw e;
+        }
+        request.whenComplete((response, e) ->
+        {
+            long now = System.nanoTime();
+            try
+            {
+                String failure;
+                if (e != null)
+                {
+                    failure = e.toString();
+                }
+                else if (!response.isOk())
+                {
+                    failure = type + " failed for node " + target.nodeId + ". Code: " + response.getStatusCode() + ". Message: " + response.getErrorMessage();
+                }
+                else
+                {
+                    failure = null;
+                    if (type == ReadType.listFolder)
+                    {
+                        rememberFiles(target, response);
+                    }
+                }
+                completed(type, now - intended, now - sentAt, e == null ? response.getContentBytes() : 0L, failure);
+            }
+            finally
+            {
+                inFlight.release();
+            }
+        });
+    }
+
+    /**
+     * @return the node to read or <tt>null</tt> if there is nothing suitable
+     */
+    private Target chooseTarget(ReadType type, Target folder)
+    {
+        switch (type)
+        {
+            case getNode:
+                Target file = randomFile();
+                return file == null ? folder : file;
+            case downloadContent:
+                return randomFile();
+            default:
+                return folder;
+        }
+    }
+
+    private CompletableFuture<ApiResponse> startRead(ReadType type, Target target)
+    {
+        switch (type)
+        {
+            case listFolder:
+                return asyncClient.listChildren(target.username, target.password, target.nodeId, 0, pageSize);
+            case getNode:
+                return asyncClient.getNode(target.username, target.password, target.nodeId);
+            case downloadContent:
+                return asyncClient.downloadContent(target.username, target.password, target.nodeId);
+            case listSiteMembers:
+                return asyncClient.listSiteMembers(target.username, target.password, target.siteId, 0, pageSize);
+            default:
+                throw new IllegalStateException("Unknown read: " + type);
+        }
+    }
+
+    private void rememberFiles(Target folder, ApiResponse response)
+    {
+        for (JsonNode entry : response.getEntries())
+        {
+            if (entry.path("isFile").asBoolean(false))
+            {
+                int index = filesSeen.getAndIncrement() % FILE_POOL_SIZE;
+                files.set(index, new Target(folder.siteId, entry.path("id").asText(), folder.username, folder.password));
+            }
+        }
+    }
+
+    private void completed(ReadType type, long latency, long serviceTime, long bytes, String failure)
+    {
+        // A slice may close between reading it and recording into it
+        while (!slice.completed(type, latency, serviceTime, bytes, failure))
+        {
+            Thread.yield();
+        }
+    }
+
+    /**
+     * A node to read and the user to read it as
+     */
+    private static class Target
+    {
+        private final String siteId;
+        private final String nodeId;
+        private final String username;
+        private final String password;
+
+        private Target(String siteId, String nodeId, String username, String password)
+        {
+            this.siteId = siteId;
+            this.nodeId = nodeId;
+            this.username = username;
+            this.password = password;
+        }
+    }
+
+    /**
+     * The reads answered during one slice, by kind of read
+     */
+    private static class Slice
+    {
+        private final long start = System.currentTimeMillis();
+        private final Map<ReadType, Stats> stats = new EnumMap<ReadType, Stats>(ReadType.class);
+        private boolean closed;
+
+        private synchronized Stats getStats(ReadType type)
+        {
+            Stats typeStats = stats.get(type);
+            if (typeStats == null)
+            {
+                typeStats = new Stats();
+                stats.put(type, typeStats);
+            }
+            return typeStats;
+        }
+
+        private synchronized void skipped(ReadType type)
+        {
+            getStats(type).skipped++;
+        }
+
+        /**
+         * @return <tt>false</tt> if the slice has already been reported
+         */
+        private synchronized boolean completed(ReadType type, long latency, long serviceTime, long bytes, String failure)
+        {
+            if (closed)
+            {
+                return false;
+            }
+            Stats typeStats = getStats(type);
+            if (failure != null)
+            {
+                typeStats.failed++;
+                typeStats.lastFailure = failure;
+                return true;
+            }
+            typeStats.latencies.record(latency);
+            typeStats.serviceTimes.record(serviceTime);
+            typeStats.bytes += bytes;
+            return true;
+        }
+
+        private synchronized DBObject close()
+        {
+            closed = true;
+            BasicDBObjectBuilder reads = BasicDBObjectBuilder.start();
+            for (Map.Entry<ReadType, Stats> entry : stats.entrySet())
+            {
+                reads.add(entry.getKey().name(), entry.getValue().toDBObject());
+            }
+            return BasicDBObjectBuilder.start()
+                .add("start", start)
+                .add("end", System.currentTimeMillis())
+                .add("reads", reads.get())
+                .get();
+        }
+    }
+
+    private static class Stats
+    {
+        private final LatencyRecorder latencies = new LatencyRecorder();
+        private final LatencyRecorder serviceTimes = new LatencyRecorder();
+        private int failed;
+        private int skipped;
+        private long bytes;
+        private String lastFailure;
+
+        private DBObject toDBObject()
+        {
+            BasicDBObjectBuilder builder = BasicDBObjectBuilder.start()
+                .add("latency", latencies.toDBObject())
+                .add("serviceTime", serviceTimes.toDBObject())
+                .add("failed", failed);
+            if (skipped > 0)
+            {
+                builder.add("skipped", skipped);
+            }
+            if (bytes > 0L)
+            {
+                builder.add("bytes", bytes);
+            }
+            if (lastFailure != null)
+            {
+                builder.add("lastFailure", lastFailure);
+            }
+            return builder.get();
+        }
+    }
+}
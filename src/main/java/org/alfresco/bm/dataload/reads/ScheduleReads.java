@@ -0,0 +1,95 @@
+/*
+ * #%L
+ * Alfresco Benchmark Load Data
+ * %%
+ * Copyright (C) 2005 - 2018 Alfresco Software Limited
+ * %%
+ * This file is part of the Alfresco software.
+ * If the software was purchased under a paid Alfresco license, the terms of
+ * the paid license agreement will prevail.  Otherwise, the software is
+ * provided under the following open source license terms:
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+package org.alfresco.bm.dataload.reads;
+
+import org.alfresco.bm.common.EventResult;
+import org.alfresco.bm.driver.event.AbstractEventProcessor;
+import org.alfresco.bm.driver.event.Event;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Start the {@link ReadNodes read workload} alongside the file-folder load, if it is enabled.
+ * <p/>
+ * The load always carries on with the {@link #EVENT_NAME_READS_SCHEDULED next} event; the reads run as a
+ * separate chain of events until loading is complete.
+ *
+ * @since 3.0
+ */
+public class ScheduleReads extends AbstractEventProcessor
+{
+    public static final String EVENT_NAME_READS_SCHEDULED = "readsScheduled";
+
+    private boolean enabled;
+    private String eventNameReadsScheduled;
+    private String eventNameReadNodes;
+
+    public ScheduleReads()
+    {
+        super();
+
+        this.eventNameReadsScheduled = EVENT_NAME_READS_SCHEDULED;
+        this.eventNameReadNodes = ReadNodes.EVENT_NAME_READ_NODES;
+    }
+
+    /**
+     * Run reads while loading (default: <b>false</b>)
+     */
+    public void setEnabled(boolean enabled)
+    {
+        this.enabled = enabled;
+    }
+
+    /**
+     * Override the {@link #EVENT_NAME_READS_SCHEDULED default} event name used to carry on with the load
+     */
+    public void setEventNameReadsScheduled(String eventNameReadsScheduled)
+    {
+        this.eventNameReadsScheduled = eventNameReadsScheduled;
+    }
+
+    /**
+     * Override the {@link ReadNodes#EVENT_NAME_READ_NODES default} event name that starts the reads
+     */
+    public void setEventNameReadNodes(String eventNameReadNodes)
+    {
+        this.eventNameReadNodes = eventNameReadNodes;
+    }
+
+    @Override
+    public EventResult processEvent(Event event) throws Exception
+    {
+        List<Event> nextEvents = new ArrayList<Event>(2);
+        nextEvents.add(new Event(eventNameReadsScheduled, null));
+        if (!enabled)
+        {
+            return new EventResult("Reads are disabled.", nextEvents);
+        }
+        nextEvents.add(new Event(eventNameReadNodes, null));
+        return new EventResult("Reads started alongside the load.", nextEvents);
+    }
+}
@@ -0,0 +1,626 @@
+/*
+ * #%L
+ * Alfresco Benchmark Load Data
+ * %%
+ * Copyright (C) 2005 - 2018 Alfresco Software Limited
+ * %%
+ * This file is part of the Alfresco software.
+ * If the software was purchased under a paid Alfresco license, the terms of
+ * the paid license agreement will prevail.  Otherwise, the software is
+ * provided under the following open source license terms:
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+package org.alfresco.bm.dataload.rest;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.asynchttpclient.AsyncCompletionHandler;
+import org.asynchttpclient.AsyncHttpClient;
+import org.asynchttpclient.HttpResponseBodyPart;
+import org.asynchttpclient.HttpResponseStatus;
+import org.asynchttpclient.Request;
+import org.asynchttpclient.RequestBuilder;
+import org.asynchttpclient.Response;
+import org.asynchttpclient.request.body.generator.InputStreamBodyGenerator;
+import org.asynchttpclient.request.body.multipart.FilePart;
+import org.asynchttpclient.request.body.multipart.StringPart;
+import org.springframework.beans.factory.DisposableBean;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Semaphore;
+
+import static org.asynchttpclient.Dsl.asyncHttpClient;
+import static org.asynchttpclient.Dsl.config;
+
+/**
+ * A non-blocking client for the Alfresco v1 REST API, used where the blocking, thread-per-request
+ * {@link org.alfresco.rest.core.RestWrapper} limits throughput.
+ * <p/>
+ * Requests are sent on a small pool of I/O threads and multipart bodies are streamed from disk, so a single
+ * driver can keep thousands of uploads in flight.  The number of requests in flight is capped; callers block
+ * when the cap is reached, which keeps the driver from running away from a struggling server.
+ *
+ * @since 3.0
+ */
+public class AlfrescoAsyncClient implements DisposableBean
+{
+    public static final String API_PATH = "/alfresco/api/-default-/public/alfresco/versions/1";
+    public static final String SEARCH_API_PATH = "/alfresco/api/-default-/public/search/versions/1";
+    public static final int DEFAULT_MAX_IN_FLIGHT = 1024;
+    public static final int DEFAULT_IO_THREADS = 4;
+    public static final int DEFAULT_REQUEST_TIMEOUT = 600000;
+
+    private static final Log logger = LogFactory.getLog(AlfrescoAsyncClient.class);
+    protected static final ObjectMapper MAPPER = new ObjectMapper();
+
+    private final String baseUrl;
+    private final Semaphore inFlight;
+    private final AsyncHttpClient client;
+
+    /**
+     * @param baseUrl     the Alfresco server URL e.g. <b>http://localhost:8080</b>
+     * @param maxInFlight the maximum number of requests that may be waiting for a response
+     * @param ioThreads   the number of threads performing network I/O
+     */
+    public AlfrescoAsyncClient(String baseUrl, int maxInFlight, int ioThreads)
+    {
+        if (maxInFlight < 1)
+        {
+            throw new IllegalArgumentException("'maxInFlight' must be at least 1");
+        }
+        this.baseUrl = baseUrl.endsWith("/") ? baseUrl.substring(0, baseUrl.length() - 1) : baseUrl;
+        this.inFlight = new Semaphore(maxInFlight);
+        this.client = asyncHttpClient(config()
+            .setIoThreadsCount(ioThreads)
+            .setMaxConnections(maxInFlight)
+            .setRequestTimeout(DEFAULT_REQUEST_TIMEOUT)
+            .setReadTimeout(DEFAULT_REQUEST_TIMEOUT)
+            .setKeepAlive(true));
+    }
+
+    @Override
+    public void destroy() throws IOException
+    {
+        client.close();
+    }
+
+    /**
+     * @return the URL of the given API resource e.g. <b>nodes/{id}/children</b>
+     */
+    public String getApiUrl(String resource)
+    {
+        return baseUrl + API_PATH + "/" + resource;
+    }
+
+    /**
+     * Upload a new file into a folder, streaming the content from disk.
+     *
+     * @param username the user to upload as
+     * @param password the user's password
+     * @param parentId the ID of the folder to upload into
+     * @param fileName the name of the new node, which may not contain quotes or line breaks
+     * @param content  the file to stream as the content
+     */
+    public CompletableFuture<ApiResponse> uploadFile(String username, String password, String parentId, String fileName, File content)
+    {
+        return uploadFile(username, password, parentId, fileName, content, null);
+    }
+
+    /**
+     * Upload a new file into a folder with properties, streaming the content from disk.  Multipart uploads cannot
+     * name aspects, but the server adds the aspects that define the properties given.
+     *
+     * @param metadata the properties of the new node or <tt>null</tt>
+     */
+    public CompletableFuture<ApiResponse> uploadFile(String username, String password, String parentId, String fileName, File content, NodeMetadata metadata)
+    {
+        checkPartName("fileName", fileName);
+        RequestBuilder builder = newRequest("POST", "nodes/" + parentId + "/children", username, password);
+        if (metadata != null)
+        {
+            for (Map.Entry<String, Object> entry : metadata.getProperties().entrySet())
+            {
+                checkPartName("property name", entry.getKey());
+                builder.addBodyPart(new StringPart(entry.getKey(), String.valueOf(entry.getValue()), "text/plain", StandardCharsets.UTF_8));
+            }
+        }
+        Request request = builder
+            .addBodyPart(new FilePart("filedata", content, null, null, fileName))
+            .build();
+        return execute(request);
+    }
+
+    /**
+     * Upload a new file into a folder, streaming the content from any source.  The content is sent in chunks as it is
+     * read, so memory use does not depend on its size.  The stream is closed once it has been sent.
+     *
+     * @param username the user to upload as
+     * @param password the user's password
+     * @param parentId the ID of the folder to upload into
+     * @param fileName the name of the new node, which may not contain quotes or line breaks
+     * @param content  the content to send
+     */
+    public CompletableFuture<ApiResponse> uploadContent(String username, String password, String parentId, String fileName, InputStream content)
+    {
+        return uploadContent(username, password, parentId, fileName, content, null);
+    }
+
+    /**
+     * Upload a new file into a folder with properties, streaming the content from any source.
+     *
+     * @param metadata the properties of the new node or <tt>null</tt>
+     * @see #uploadContent(String, String, String, String, InputStream)
+     */
+    public CompletableFuture<ApiResponse> uploadContent(String username, String password, String parentId, String fileName, InputStream content,
+        NodeMetadata metadata)
+    {
+        checkPartName("fileName", fileName);
+        String boundary = "bm" + UUID.randomUUID().toString().replace("-", "");
+        StringBuilder fields = new StringBuilder();
+        if (metadata != null)
+        {
+            for (Map.Entry<String, Object> entry : metadata.getProperties().entrySet())
+            {
+                checkPartName("property name", entry.getKey());
+                fields.append("--").append(boundary).append("\r\n")
+                    .append("Content-Disposition: form-data; name=\"").append(entry.getKey()).append("\"\r\n\r\n")
+                    .append(entry.getValue()).append("\r\n");
+            }
+        }
+        byte[] head = (fields + "--" + boundary + "\r\n"
+            + "Content-Disposition: form-data; name=\"filedata\"; filename=\"" + fileName + "\"\r\n"
+            + "Content-Type: application/octet-stream\r\n\r\n").getBytes(StandardCharsets.UTF_8);
+        byte[] tail = ("\r\n--" + boundary + "--\r\n").getBytes(StandardCharsets.UTF_8);
+        InputStream body = new SequenceInputStream(Collections.enumeration(Arrays.asList(
+            new ByteArrayInputStream(head), content, new ByteArrayInputStream(tail))));
+        Request request = newRequest("POST", "nodes/" + parentId + "/children", username, password)
+            .setHeader("Content-Type", "multipart/form-data; boundary=" + boundary)
+            .setBody(new InputStreamBodyGenerator(body))
+            .build();
+        return execute(request);
+    }
+
+    /**
+     * List the files directly within a folder, a page at a time.
+     *
+     * @param username the user to list as
+     * @param password the user's password
+     * @param parentId the ID of the folder
+     * @param skip     the number of files to skip
+     * @param max      the maximum number of files to return
+     */
+    public CompletableFuture<ApiResponse> listFiles(String username, String password, String parentId, int skip, int max)
+    {
+        Request request = newRequest("GET", "nodes/" + parentId + "/children", username, password)
+            .addQueryParam("where", "(isFile=true)")
+            .addQueryParam("skipCount", String.valueOf(skip))
+            .addQueryParam("maxItems", String.valueOf(max))
+            .build();
+        return execute(request);
+    }
+
+    /**
+     * List the files and folders directly within a folder, a page at a time.
+     *
+     * @param username the user to list as
+     * @param password the user's password
+     * @param parentId the ID of the folder
+     * @param skip     the number of children to skip
+     * @param max      the maximum number of children to return
+     */
+    public CompletableFuture<ApiResponse> listChildren(String username, String password, String parentId, int skip, int max)
+    {
+        Request request = newRequest("GET", "nodes/" + parentId + "/children", username, password)
+            .addQueryParam("skipCount", String.valueOf(skip))
+            .addQueryParam("maxItems", String.valueOf(max))
+            .build();
+        return execute(request);
+    }
+
+    /**
+     * Get the metadata of a file or folder.
+     *
+     * @param username the user to read as
+     * @param password the user's password
+     * @param nodeId   the ID of the node
+     */
+    public CompletableFuture<ApiResponse> getNode(String username, String password, String nodeId)
+    {
+        Request request = newRequest("GET", "nodes/" + nodeId, username, password).build();
+        return execute(request);
+    }
+
+    /**
+     * Download the content of a file.  The content is counted and thrown away as it arrives, so the response
+     * has {@link ApiResponse#getContentBytes() a size} but no body.
+     *
+     * @param username the user to download as
+     * @param password the user's password
+     * @param nodeId   the ID of the file
+     */
+    public CompletableFuture<ApiResponse> downloadContent(String username, String password, String nodeId)
+    {
+        Request request = newRequest("GET", "nodes/" + nodeId + "/content", username, password)
+            .addQueryParam("attachment", "false")
+            .build();
+        return execute(request, new TimingHandler(true));
+    }
+
+    /**
+     * List the members of a site, a page at a time.
+     *
+     * @param username the user to list as
+     * @param password the user's password
+     * @param siteId   the ID of the site
+     * @param skip     the number of members to skip
+     * @param max      the maximum number of members to return
+     */
+    public CompletableFuture<ApiResponse> listSiteMembers(String username, String password, String siteId, int skip, int max)
+    {
+        Request request = newRequest("GET", "sites/" + siteId + "/members", username, password)
+            .addQueryParam("skipCount", String.valueOf(skip))
+            .addQueryParam("maxItems", String.valueOf(max))
+            .build();
+        return execute(request);
+    }
+
+    /**
+     * Upload a new version of a file, streaming the content from disk.
+     *
+     * @param username     the user to upload as
+     * @param password     the user's password
+     * @param nodeId       the ID of the file
+     * @param majorVersion <tt>true</tt> for a major version or <tt>false</tt> for a minor version
+     * @param content      the file to stream as the new content
+     */
+    public CompletableFuture<ApiResponse> updateContent(String username, String password, String nodeId, boolean majorVersion, File content)
+    {
+        Request request = newRequest("PUT", "nodes/" + nodeId + "/content", username, password)
+            .addQueryParam("majorVersion", String.valueOf(majorVersion))
+            .setHeader("Content-Type", "application/octet-stream")
+            .setBody(content)
+            .build();
+        return execute(request);
+    }
+
+    /**
+     * Create a new folder.  Any folders in the relative path that do not exist are created along the way,
+     * so a whole branch can be built in one call.  The response includes the path of the new folder.
+     *
+     * @param username     the user to create the folder as
+     * @param password     the user's password
+     * @param parentId     the ID of the folder to create the branch in
+     * @param name         the name of the new folder
+     * @param relativePath the path from the parent to the new folder e.g. <b>a/b</b> or <tt>null</tt>
+     */
+    public CompletableFuture<ApiResponse> createFolder(String username, String password, String parentId, String name, String relativePath)
+    {
+        return createFolder(username, password, parentId, name, relativePath, null);
+    }
+
+    /**
+     * Create a new folder with aspects and properties.  Only the new folder is given the metadata; any folders
+     * created along the relative path are bare.
+     *
+     * @param metadata the aspects and properties of the new folder or <tt>null</tt>
+     * @see #createFolder(String, String, String, String, String)
+     */
+    public CompletableFuture<ApiResponse> createFolder(String username, String password, String parentId, String name, String relativePath,
+        NodeMetadata metadata)
+    {
+        ObjectNode body = MAPPER.createObjectNode();
+        body.put("name", name);
+        body.put("nodeType", "cm:folder");
+        if (relativePath != null)
+        {
+            body.put("relativePath", relativePath);
+        }
+        if (metadata != null)
+        {
+            metadata.addTo(body);
+        }
+        Request request = newRequest("POST", "nodes/" + parentId + "/children", username, password)
+            .addQueryParam("include", "path")
+            .setHeader("Content-Type", "application/json")
+            .setBody(toJson(body))
+            .build();
+        return execute(request);
+    }
+
+    /**
+     * Create several folders in the same parent with one call.  The server creates all of them or none of them.
+     *
+     * @param username the user to create the folders as
+     * @param password the user's password
+     * @param parentId the ID of the folder to create the new folders in
+     * @param names    the names of the new folders
+     */
+    public CompletableFuture<ApiResponse> createFolders(String username, String password, String parentId, List<String> names)
+    {
+        return createFolders(username, password, parentId, names, null);
+    }
+
+    /**
+     * Create several folders in the same parent with aspects and properties in one call.
+     *
+     * @param metadata the aspects and properties of each new folder, in the same order as the names, or <tt>null</tt>
+     * @see #createFolders(String, String, String, List)
+     */
+    public CompletableFuture<ApiResponse> createFolders(String username, String password, String parentId, List<String> names, List<NodeMetadata> metadata)
+    {
+        ArrayNode body = MAPPER.createArrayNode();
+        for (int i = 0; i < names.size(); i++)
+        {
+            ObjectNode folder = body.addObject();
+            folder.put("name", names.get(i));
+            folder.put("nodeType", "cm:folder");
+            if (metadata != null && metadata.get(i) != null)
+            {
+                metadata.get(i).addTo(folder);
+            }
+        }
+        Request request = newRequest("POST", "nodes/" + parentId + "/children", username, password)
+            .setHeader("Content-Type", "application/json")
+            .setBody(toJson(body))
+            .build();
+        return execute(request);
+    }
+
+    /**
+     * Tag a node with several tags in one call.
+     *
+     * @param username the user to tag as
+     * @param password the user's password
+     * @param nodeId   the ID of the node to tag
+     * @param tags     the tags to add
+     */
+    public CompletableFuture<ApiResponse> addTags(String username, String password, String nodeId, List<String> tags)
+    {
+        ArrayNode body = MAPPER.createArrayNode();
+        for (String tag : tags)
+        {
+            body.addObject().put("tag", tag);
+        }
+        Request request = newRequest("POST", "nodes/" + nodeId + "/tags", username, password)
+            .setHeader("Content-Type", "application/json")
+            .setBody(toJson(body))
+            .build();
+        return execute(request);
+    }
+
+    /**
+     * Delete a node and everything below it.
+     *
+     * @param username  the user to delete as
+     * @param password  the user's password
+     * @param nodeId    the ID of the node
+     * @param permanent <tt>true</tt> to bypass the trashcan
+     */
+    public CompletableFuture<ApiResponse> deleteNode(String username, String password, String nodeId, boolean permanent)
+    {
+        Request request = newRequest("DELETE", "nodes/" + nodeId, username, password)
+            .addQueryParam("permanent", String.valueOf(permanent))
+            .build();
+        return execute(request);
+    }
+
+    /**
+     * Search for nodes by ID using a single query.  The response lists the nodes that search can find, which
+     * excludes any that have not been indexed yet.
+     *
+     * @param username the user to search as
+     * @param password the user's password
+     * @param nodeIds  the IDs of the nodes to look for
+     */
+    public CompletableFuture<ApiResponse> findNodes(String username, String password, List<String> nodeIds)
+    {
+        StringBuilder query = new StringBuilder(nodeIds.size() * 64);
+        for (String nodeId : nodeIds)
+        {
+            if (query.length() > 0)
+            {
+                query.append(" OR ");
+            }
+            query.append("ID:\"workspace://SpacesStore/").append(nodeId).append('"');
+        }
+        ObjectNode body = MAPPER.createObjectNode();
+        ObjectNode queryNode = body.putObject("query");
+        queryNode.put("query", query.toString());
+        queryNode.put("language", "afts");
+        body.putObject("paging").put("maxItems", nodeIds.size());
+        body.putArray("fields").add("id");
+        Request request = newRequestForUrl("POST", baseUrl + SEARCH_API_PATH + "/search", username, password)
+            .setHeader("Content-Type", "application/json")
+            .setBody(toJson(body))
+            .build();
+        return execute(request);
+    }
+
+    /**
+     * Start building a request with the user's credentials
+     */
+    protected RequestBuilder newRequest(String method, String resource, String username, String password)
+    {
+        return newRequestForUrl(method, getApiUrl(resource), username, password);
+    }
+
+    /**
+     * Start building a request for any URL with the user's credentials
+     */
+    protected RequestBuilder newRequestForUrl(String method, String url, String username, String password)
+    {
+        String credentials = Base64.getEncoder().encodeToString((username + ":" + password).getBytes(StandardCharsets.UTF_8));
+        return new RequestBuilder(method)
+            .setUrl(url)
+            .setHeader("Authorization", "Basic " + credentials);
+    }
+
+    /**
+     * Send a request, waiting only if the maximum number of requests are already in flight.
+     */
+    protected CompletableFuture<ApiResponse> execute(Request request)
+    {
+        return execute(request, new TimingHandler(false));
+    }
+
+    private CompletableFuture<ApiResponse> execute(Request request, TimingHandler handler)
+    {
+        try
+        {
+            inFlight.acquire();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            CompletableFuture<ApiResponse> interrupted = new CompletableFuture<>();
+            interrupted.completeExceptionally(e);
+            return interrupted;
+        }
+        CompletableFuture<ApiResponse> result;
+        try
+        {
+            result = client.executeRequest(request, handler).toCompletableFuture();
+        }
+        catch (RuntimeException e)
+        {
+            inFlight.release();
+            throw e;
+        }
+        return result.whenComplete((response, error) -> inFlight.release());
+    }
+
+    /**
+     * Names are written into the quoted parameters of a part's <b>Content-Disposition</b> header, where a quote or
+     * line break would end the header early.  Neither is allowed in a node name, so they are rejected rather than escaped.
+     */
+    private static void checkPartName(String what, String name)
+    {
+        if (name == null || name.indexOf('"') >= 0 || name.indexOf('\r') >= 0 || name.indexOf('\n') >= 0)
+        {
+            throw new IllegalArgumentException("The " + what + " of a multipart upload may not contain quotes or line breaks: " + name);
+        }
+    }
+
+    protected static byte[] toJson(JsonNode body)
+    {
+        try
+        {
+            return MAPPER.writeValueAsBytes(body);
+        }
+        catch (IOException e)
+        {
+            throw new IllegalArgumentException("Unable to write request body: " + body, e);
+        }
+    }
+
+    /**
+     * Note when the request was sent and when the response started to arrive
+     */
+    private static class TimingHandler extends AsyncCompletionHandler<ApiResponse>
+    {
+        private final long start = System.nanoTime();
+        private final boolean discardBody;
+        private volatile long sent = -1L;
+        private volatile long firstByte = -1L;
+        private volatile long bodyBytes;
+
+        /**
+         * @param discardBody <tt>true</tt> to count the bytes of the response body instead of keeping them
+         */
+        private TimingHandler(boolean discardBody)
+        {
+            this.discardBody = discardBody;
+        }
+
+        @Override
+        public State onContentWritten()
+        {
+            sent = System.nanoTime();
+            return State.CONTINUE;
+        }
+
+        @Override
+        public State onStatusReceived(HttpResponseStatus status) throws Exception
+        {
+            firstByte = System.nanoTime();
+            return super.onStatusReceived(status);
+        }
+
+        @Override
+        public State onBodyPartReceived(HttpResponseBodyPart content) throws Exception
+        {
+            if (discardBody)
+            {
+                bodyBytes += content.length();
+                return State.CONTINUE;
+            }
+            return super.onBodyPartReceived(content);
+        }
+
+        @Override
+        public ApiResponse onCompleted(Response response)
+        {
+            long end = System.nanoTime();
+            long firstByteNanos = (firstByte < 0L ? end : firstByte) - start;
+            // Requests without a body may not report being written
+            long sentNanos = sent < 0L ? firstByteNanos : sent - start;
+            return toApiResponse(response, end - start, sentNanos, firstByteNanos, bodyBytes);
+        }
+    }
+
+    private static ApiResponse toApiResponse(Response response, long elapsed, long sentNanos, long firstByteNanos, long contentBytes)
+    {
+        JsonNode body = null;
+        if (response.hasResponseBody())
+        {
+            try
+            {
+                body = MAPPER.readTree(response.getResponseBodyAsStream());
+            }
+            catch (IOException e)
+            {
+                // Not JSON; the status code is all we have
+                if (logger.isDebugEnabled())
+                {
+                    logger.debug("Response body is not JSON: " + response.getUri() + " " + response.getStatusCode());
+                }
+            }
+        }
+        return new ApiResponse(response.getStatusCode(), body, elapsed, sentNanos, firstByteNanos, contentBytes);
+    }
+
+    @Override
+    public String toString()
+    {
+        return "AlfrescoAsyncClient [baseUrl=" + baseUrl + ", available=" + inFlight.availablePermits() + "]";
+    }
+}
@@ -0,0 +1,188 @@
+/*
+ * #%L
+ * Alfresco Benchmark Load Data
+ * %%
+ * Copyright (C) 2005 - 2018 Alfresco Software Limited
+ * %%
+ * This file is part of the Alfresco software.
+ * If the software was purchased under a paid Alfresco license, the terms of
+ * the paid license agreement will prevail.  Otherwise, the software is
+ * provided under the following open source license terms:
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+package org.alfresco.bm.dataload.rest;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.MissingNode;
+import org.springframework.http.HttpStatus;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The outcome of a call made through the {@link AlfrescoAsyncClient}.
+ *
+ * @since 3.0
+ */
+public class ApiResponse
+{
+    private final int statusCode;
+    private final JsonNode body;
+    private final long elapsedNanos;
+    private final long sentNanos;
+    private final long firstByteNanos;
+    private final long contentBytes;
+
+    public ApiResponse(int statusCode, JsonNode body, long elapsedNanos)
+    {
+        this(statusCode, body, elapsedNanos, elapsedNanos, elapsedNanos);
+    }
+
+    /**
+     * @param sentNanos      the time taken to send the whole request
+     * @param firstByteNanos the time between starting the request and receiving the first byte of the response
+     */
+    public ApiResponse(int statusCode, JsonNode body, long elapsedNanos, long sentNanos, long firstByteNanos)
+    {
+        this(statusCode, body, elapsedNanos, sentNanos, firstByteNanos, 0L);
+    }
+
+    /**
+     * @param contentBytes the number of bytes of a response body that was counted rather than kept
+     */
+    public ApiResponse(int statusCode, JsonNode body, long elapsedNanos, long sentNanos, long firstByteNanos, long contentBytes)
+    {
+        this.statusCode = statusCode;
+        this.body = body == null ? MissingNode.getInstance() : body;
+        this.elapsedNanos = elapsedNanos;
+        this.sentNanos = sentNanos;
+        this.firstByteNanos = firstByteNanos;
+        this.contentBytes = contentBytes;
+    }
+
+    public int getStatusCode()
+    {
+        return statusCode;
+    }
+
+    /**
+     * @return the parsed response body, which is a missing node if there was no JSON body
+     */
+    public JsonNode getBody()
+    {
+        return body;
+    }
+
+    /**
+     * @return the time between sending the request and receiving the whole response
+     */
+    public long getElapsedNanos()
+    {
+        return elapsedNanos;
+    }
+
+    /**
+     * @return the time taken to send the whole request, including any content
+     */
+    public long getSentNanos()
+    {
+        return sentNanos;
+    }
+
+    /**
+     * @return the time between starting the request and receiving the first byte of the response
+     */
+    public long getFirstByteNanos()
+    {
+        return firstByteNanos;
+    }
+
+    /**
+     * @return the number of content bytes received by a download, which keeps no body
+     */
+    public long getContentBytes()
+    {
+        return contentBytes;
+    }
+
+    public boolean isOk()
+    {
+        return statusCode == HttpStatus.OK.value();
+    }
+
+    public boolean isCreated()
+    {
+        return statusCode == HttpStatus.CREATED.value();
+    }
+
+    public boolean isConflict()
+    {
+        return statusCode == HttpStatus.CONFLICT.value();
+    }
+
+    /**
+     * @return the <b>entry</b> of a single-entity response
+     */
+    public JsonNode getEntry()
+    {
+        return body.path("entry");
+    }
+
+    /**
+     * @return the ID of the node in a single-entity response
+     */
+    public String getEntryId()
+    {
+        return getEntry().path("id").asText(null);
+    }
+
+    /**
+     * @return the <b>entry</b> of each item of a list response, in order
+     */
+    public List<JsonNode> getEntries()
+    {
+        JsonNode entries = body.path("list").path("entries");
+        List<JsonNode> result = new ArrayList<JsonNode>(entries.size());
+        for (JsonNode entry : entries)
+        {
+            result.add(entry.path("entry"));
+        }
+        return result;
+    }
+
+    /**
+     * @return <tt>true</tt> if a list response has further pages
+     */
+    public boolean hasMoreItems()
+    {
+        return body.path("list").path("pagination").path("hasMoreItems").asBoolean(false);
+    }
+
+    /**
+     * @return the error summary of a failed call or <tt>&lt;nothing&gt;</tt>
+     */
+    public String getErrorMessage()
+    {
+        JsonNode error = body.path("error");
+        return error.isMissingNode() ? "<nothing>" : error.toString();
+    }
+
+    @Override
+    public String toString()
+    {
+        return "ApiResponse [statusCode=" + statusCode + ", elapsedMs=" + (elapsedNanos / 1000000L) + ", body=" + body + "]";
+    }
+}
@@ -0,0 +1,112 @@
+/*
+ * #%L
+ * Alfresco Benchmark Load Data
+ * %%
+ * Copyright (C) 2005 - 2018 Alfresco Software Limited
+ * %%
+ * This file is part of the Alfresco software.
+ * If the software was purchased under a paid Alfresco license, the terms of
+ * the paid license agreement will prevail.  Otherwise, the software is
+ * provided under the following open source license terms:
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+package org.alfresco.bm.dataload.rest;
+
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The aspects, properties and tags given to a node when it is created through the {@link AlfrescoAsyncClient}.
+ * Property values are strings, numbers or booleans.
+ *
+ * @since 3.0
+ */
+public class NodeMetadata
+{
+    private final List<String> aspectNames;
+    private final Map<String, Object> properties;
+    private final List<String> tags;
+
+    public NodeMetadata(List<String> aspectNames, Map<String, Object> properties, List<String> tags)
+    {
+        this.aspectNames = aspectNames == null ? Collections.<String>emptyList() : aspectNames;
+        this.properties = properties == null ? Collections.<String, Object>emptyMap() : properties;
+        this.tags = tags == null ? Collections.<String>emptyList() : tags;
+    }
+
+    public List<String> getAspectNames()
+    {
+        return aspectNames;
+    }
+
+    public Map<String, Object> getProperties()
+    {
+        return properties;
+    }
+
+    /**
+     * @return the tags, which are added by a separate call once the node exists
+     */
+    public List<String> getTags()
+    {
+        return tags;
+    }
+
+    /**
+     * Add the aspects and properties to the JSON body of a node creation request
+     */
+    public void addTo(ObjectNode body)
+    {
+        if (!aspectNames.isEmpty())
+        {
+            ArrayNode aspects = body.putArray("aspectNames");
+            for (String aspectName : aspectNames)
+            {
+                aspects.add(aspectName);
+            }
+        }
+        if (!properties.isEmpty())
+        {
+            ObjectNode props = body.putObject("properties");
+            for (Map.Entry<String, Object> entry : properties.entrySet())
+            {
+                Object value = entry.getValue();
+                if (value instanceof Long || value instanceof Integer)
+                {
+                    props.put(entry.getKey(), ((Number) value).longValue());
+                }
+                else if (value instanceof Boolean)
+                {
+                    props.put(entry.getKey(), (Boolean) value);
+                }
+                else
+                {
+                    props.put(entry.getKey(), String.valueOf(value));
+                }
+            }
+        }
+    }
+
+    @Override
+    public String toString()
+    {
+        return "NodeMetadata [aspectNames=" + aspectNames + ", properties=" + properties + ", tags=" + tags + "]";
+    }
+}
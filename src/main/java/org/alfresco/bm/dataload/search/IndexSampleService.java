@@ -0,0 +1,254 @@
+/*
+ * #%L
+ * Alfresco Benchmark Load Data
+ * %%
+ * Copyright (C) 2005 - 2018 Alfresco Software Limited
+ * %%
+ * This file is part of the Alfresco software.
+ * If the software was purchased under a paid Alfresco license, the terms of
+ * the paid license agreement will prevail.  Otherwise, the software is
+ * provided under the following open source license terms:
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+package org.alfresco.bm.dataload.search;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.BasicDBObjectBuilder;
+import com.mongodb.DB;
+import com.mongodb.DBCollection;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+import com.mongodb.DuplicateKeyException;
+import org.springframework.beans.factory.InitializingBean;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Records a sample of the nodes created by the loaders so that the time taken to index them can be measured
+ * once loading is complete.
+ * <p/>
+ * One in every {@link #setSampleEvery(int) N} nodes offered is kept, along with the time it was created.  The most
+ * recent samples are then chosen for {@link #chooseSamples(int) measurement} and each is marked when search first
+ * finds it.
+ *
+ * @since 3.0
+ */
+public class IndexSampleService implements InitializingBean
+{
+    public static final int DEFAULT_SAMPLE_EVERY = 100;
+
+    public static final String FIELD_NODE_ID = "nodeId";
+    public static final String FIELD_CREATED = "created";
+    public static final String FIELD_MEASURED = "measured";
+    public static final String FIELD_INDEXED = "indexed";
+    public static final String FIELD_ROUND = "round";
+
+    private final DBCollection collection;
+    private final AtomicLong offered;
+    private boolean enabled;
+    private int sampleEvery;
+
+    /**
+     * @param db         the database to use
+     * @param collection the name of the collection holding the samples
+     */
+    public IndexSampleService(DB db, String collection)
+    {
+        this.collection = db.getCollection(collection);
+        this.offered = new AtomicLong();
+        this.sampleEvery = DEFAULT_SAMPLE_EVERY;
+    }
+
+    /**
+     * Turn sampling on; when off, nodes offered are ignored
+     */
+    public void setEnabled(boolean enabled)
+    {
+        this.enabled = enabled;
+    }
+
+    public boolean isEnabled()
+    {
+        return enabled;
+    }
+
+    /**
+     * Override the {@link #DEFAULT_SAMPLE_EVERY default} number of nodes offered for each one kept
+     */
+    public void setSampleEvery(int sampleEvery)
+    {
+        this.sampleEvery = sampleEvery;
+    }
+
+    @Override
+    public void afterPropertiesSet() throws Exception
+    {
+        collection.createIndex(new BasicDBObject(FIELD_NODE_ID, 1), new BasicDBObject("unique", Boolean.TRUE));
+        collection.createIndex(BasicDBObjectBuilder.start().add(FIELD_MEASURED, 1).add(FIELD_INDEXED, 1).get());
+        collection.createIndex(new BasicDBObject(FIELD_CREATED, -1));
+    }
+
+    /**
+     * Offer a newly-created node for sampling
+     *
+     * @param nodeId  the ID of the new node
+     * @param created the time the node was created
+     */
+    public void offer(String nodeId, long created)
+    {
+        if (!enabled || sampleEvery <= 0 || nodeId == null || offered.incrementAndGet() % sampleEvery != 0)
+        {
+            return;
+        }
+        DBObject sample = BasicDBObjectBuilder.start().add(FIELD_NODE_ID, nodeId).add(FIELD_CREATED, created).get();
+        try
+        {
+            collection.insert(sample);
+        }
+        catch (DuplicateKeyException e)
+        {
+            // Already sampled
+        }
+    }
+
+    /**
+     * Mark the most recently created samples for measurement
+     *
+     * @param maxSamples the maximum number of samples to measure
+     * @return the number of samples chosen
+     */
+    public int chooseSamples(int maxSamples)
+    {
+        int chosen = 0;
+        DBCursor cursor = collection.find(new BasicDBObject(), new BasicDBObject(FIELD_NODE_ID, 1))
+            .sort(new BasicDBObject(FIELD_CREATED, -1)).limit(maxSamples);
+        try
+        {
+            for (DBObject sample : cursor)
+            {
+                collection.update(new BasicDBObject(FIELD_NODE_ID, sample.get(FIELD_NODE_ID)),
+                    new BasicDBObject("$set", new BasicDBObject(FIELD_MEASURED, Boolean.TRUE)));
+                chosen++;
+            }
+        }
+        finally
+        {
+            cursor.close();
+        }
+        return chosen;
+    }
+
+    /**
+     * @return the IDs of measured nodes that search has not yet found
+     */
+    public List<String> getPendingNodeIds()
+    {
+        DBObject query = BasicDBObjectBuilder.start().add(FIELD_MEASURED, Boolean.TRUE).add(FIELD_INDEXED, null).get();
+        List<String> nodeIds = new ArrayList<String>();
+        DBCursor cursor = collection.find(query, new BasicDBObject(FIELD_NODE_ID, 1));
+        try
+        {
+            for (DBObject sample : cursor)
+            {
+                nodeIds.add((String) sample.get(FIELD_NODE_ID));
+            }
+        }
+        finally
+        {
+            cursor.close();
+        }
+        return nodeIds;
+    }
+
+    /**
+     * Note that search found a node
+     *
+     * @param nodeId  the ID of the node
+     * @param indexed the time it was found
+     * @param round   the polling round that found it, starting at zero
+     */
+    public void markIndexed(String nodeId, long indexed, int round)
+    {
+        DBObject update = BasicDBObjectBuilder.start().add(FIELD_INDEXED, indexed).add(FIELD_ROUND, round).get();
+        collection.update(new BasicDBObject(FIELD_NODE_ID, nodeId), new BasicDBObject("$set", update));
+    }
+
+    /**
+     * @return the measured samples that search has found, as <tt>{created, indexed, round}</tt> triples
+     */
+    public List<long[]> getIndexedSamples()
+    {
+        DBObject query = BasicDBObjectBuilder.start().add(FIELD_MEASURED, Boolean.TRUE).push(FIELD_INDEXED).add("$ne", null).pop().get();
+        List<long[]> samples = new ArrayList<long[]>();
+        DBCursor cursor = collection.find(query);
+        try
+        {
+            for (DBObject sample : cursor)
+            {
+                samples.add(new long[] {
+                    ((Number) sample.get(FIELD_CREATED)).longValue(),
+                    ((Number) sample.get(FIELD_INDEXED)).longValue(),
+                    ((Number) sample.get(FIELD_ROUND)).longValue() });
+            }
+        }
+        finally
+        {
+            cursor.close();
+        }
+        return samples;
+    }
+
+    /**
+     * Estimate how quickly nodes were created from the creation times of the samples.  Gaps between samples that
+     * are longer than the given maximum are treated as time between runs and left out.
+     *
+     * @param maxGap the longest gap in milliseconds between samples that still counts as loading
+     * @return the estimated number of nodes created per second or zero if there are too few samples
+     */
+    public double getCreationRate(long maxGap)
+    {
+        long activeTime = 0L;
+        long intervals = 0L;
+        long previous = -1L;
+        DBCursor cursor = collection.find(new BasicDBObject(), new BasicDBObject(FIELD_CREATED, 1)).sort(new BasicDBObject(FIELD_CREATED, 1));
+        try
+        {
+            for (DBObject sample : cursor)
+            {
+                long created = ((Number) sample.get(FIELD_CREATED)).longValue();
+                if (previous >= 0L && created - previous <= maxGap)
+                {
+                    activeTime += created - previous;
+                    intervals++;
+                }
+                previous = created;
+            }
+        }
+        finally
+        {
+            cursor.close();
+        }
+        return activeTime <= 0L ? 0.0 : intervals * (double) sampleEvery * 1000.0 / activeTime;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "IndexSampleService [collection=" + collection.getName() + ", enabled=" + enabled + ", sampleEvery=" + sampleEvery + "]";
+    }
+}
@@ -0,0 +1,337 @@
+/*
+ * #%L
+ * Alfresco Benchmark Load Data
+ * %%
+ * Copyright (C) 2005 - 2018 Alfresco Software Limited
+ * %%
+ * This file is part of the Alfresco software.
+ * If the software was purchased under a paid Alfresco license, the terms of
+ * the paid license agreement will prevail.  Otherwise, the software is
+ * provided under the following open source license terms:
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+package org.alfresco.bm.dataload.search;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.mongodb.BasicDBObjectBuilder;
+import com.mongodb.DBObject;
+import org.alfresco.bm.common.EventResult;
+import org.alfresco.bm.dataload.rest.AlfrescoAsyncClient;
+import org.alfresco.bm.dataload.rest.ApiResponse;
+import org.alfresco.bm.driver.event.AbstractEventProcessor;
+import org.alfresco.bm.driver.event.Event;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+/**
+ * Measure how long search takes to index the data loaded.
+ * <p/>
+ * The most recently created of the nodes {@link IndexSampleService sampled} by the loaders are chosen when this
+ * processor first runs.  Each run then asks search for the chosen nodes that it has not yet found, a batch of IDs per
+ * query with a limited number of queries in flight, and {@link #EVENT_NAME_MEASURE_INDEX_LAG reschedules itself}
+ * until every node has been found or the timeout expires.
+ * <p/>
+ * The final result records the percentiles of the index lag, which is the time between creating a node and
+ * search first finding it, and the time from the start of measuring until 99% of the nodes could be found.
+ * Nodes that are found by the first round of queries may have been indexed well before it, so their lag is an upper
+ * bound; the number of them is recorded alongside.
+ *
+ * @since 3.0
+ */
+public class MeasureIndexLag extends AbstractEventProcessor
+{
+    public static final String FIELD_ROUND = "round";
+    public static final String FIELD_STARTED = "started";
+    public static final String FIELD_SAMPLES = "samples";
+
+    public static final String EVENT_NAME_MEASURE_INDEX_LAG = "measureIndexLag";
+    public static final String EVENT_NAME_INDEX_LAG_MEASURED = "indexLagMeasured";
+
+    public static final int DEFAULT_MAX_SAMPLES = 1000;
+    public static final int DEFAULT_IDS_PER_QUERY = 50;
+    public static final int DEFAULT_MAX_CONCURRENT_QUERIES = 8;
+    public static final long DEFAULT_POLL_DELAY = 1000L;
+    public static final long DEFAULT_TIMEOUT = 3600000L;
+
+    private static final double[] PERCENTILES = { 50.0, 90.0, 95.0, 99.0 };
+
+    private final IndexSampleService indexSampleService;
+    private final AlfrescoAsyncClient asyncClient;
+    private final String username;
+    private final String password;
+
+    private String eventNameMeasureIndexLag;
+    private String eventNameIndexLagMeasured;
+    private int maxSamples;
+    private int idsPerQuery;
+    private int maxConcurrentQueries;
+    private long pollDelay;
+    private long timeout;
+
+    /**
+     * @param indexSampleService the nodes sampled during loading
+     * @param asyncClient        client to query search
+     * @param username           the user to search as, who must be able to see all the nodes loaded
+     * @param password           the user's password
+     */
+    public MeasureIndexLag(IndexSampleService indexSampleService, AlfrescoAsyncClient asyncClient, String username, String password)
+    {
+        super();
+
+        this.indexSampleService = indexSampleService;
+        this.asyncClient = asyncClient;
+        this.username = username;
+        this.password = password;
+
+        this.eventNameMeasureIndexLag = EVENT_NAME_MEASURE_INDEX_LAG;
+        this.eventNameIndexLagMeasured = EVENT_NAME_INDEX_LAG_MEASURED;
+        this.maxSamples = DEFAULT_MAX_SAMPLES;
+        this.idsPerQuery = DEFAULT_IDS_PER_QUERY;
+        this.maxConcurrentQueries = DEFAULT_MAX_CONCURRENT_QUERIES;
+        this.pollDelay = DEFAULT_POLL_DELAY;
+        this.timeout = DEFAULT_TIMEOUT;
+    }
+
+    /**
+     * Override the {@link #EVENT_NAME_MEASURE_INDEX_LAG default} event name used to reschedule self
+     */
+    public void setEventNameMeasureIndexLag(String eventNameMeasureIndexLag)
+    {
+        this.eventNameMeasureIndexLag = eventNameMeasureIndexLag;
+    }
+
+    /**
+     * Override the {@link #EVENT_NAME_INDEX_LAG_MEASURED default} output event name
+     */
+    public void setEventNameIndexLagMeasured(String eventNameIndexLagMeasured)
+    {
+        this.eventNameIndexLagMeasured = eventNameIndexLagMeasured;
+    }
+
+    /**
+     * Override the {@link #DEFAULT_MAX_SAMPLES default} number of the most recent nodes to measure
+     */
+    public void setMaxSamples(int maxSamples)
+    {
+        this.maxSamples = maxSamples;
+    }
+
+    /**
+     * Override the {@link #DEFAULT_IDS_PER_QUERY default} number of nodes looked for by each query
+     */
+    public void setIdsPerQuery(int idsPerQuery)
+    {
+        this.idsPerQuery = idsPerQuery;
+    }
+
+    /**
+     * Override the {@link #DEFAULT_MAX_CONCURRENT_QUERIES default} number of queries in flight at any time
+     */
+    public void setMaxConcurrentQueries(int maxConcurrentQueries)
+    {
+        this.maxConcurrentQueries = maxConcurrentQueries;
+    }
+
+    /**
+     * Override the {@link #DEFAULT_POLL_DELAY default} time between rounds of queries
+     */
+    public void setPollDelay(long pollDelay)
+    {
+        this.pollDelay = pollDelay;
+    }
+
+    /**
+     * Override the {@link #DEFAULT_TIMEOUT default} time to wait for all the nodes to be found
+     */
+    public void setTimeout(long timeout)
+    {
+        this.timeout = timeout;
+    }
+
+    @Override
+    public EventResult processEvent(Event event) throws Exception
+    {
+        if (!indexSampleService.isEnabled())
+        {
+            Event doneEvent = new Event(eventNameIndexLagMeasured, null);
+            return new EventResult("Index lag measurement is not enabled.", Collections.singletonList(doneEvent));
+        }
+
+        DBObject dataObj = (DBObject) event.getData();
+        int round;
+        long started;
+        int samples;
+        if (dataObj == null)
+        {
+            // First time
+            round = 0;
+            started = System.currentTimeMillis();
+            samples = indexSampleService.chooseSamples(maxSamples);
+            if (samples == 0)
+            {
+                Event doneEvent = new Event(eventNameIndexLagMeasured, null);
+                return new EventResult("No nodes were sampled for index lag measurement.", Collections.singletonList(doneEvent));
+            }
+        }
+        else
+        {
+            round = (Integer) dataObj.get(FIELD_ROUND);
+            started = (Long) dataObj.get(FIELD_STARTED);
+            samples = (Integer) dataObj.get(FIELD_SAMPLES);
+        }
+
+        List<String> pending = indexSampleService.getPendingNodeIds();
+        int found = poll(pending, round);
+
+        long now = System.currentTimeMillis();
+        if (found < pending.size() && now - started < timeout)
+        {
+            // Go round again
+            DBObject nextData = BasicDBObjectBuilder.start().add(FIELD_ROUND, Integer.valueOf(round + 1)).add(FIELD_STARTED, Long.valueOf(started))
+                .add(FIELD_SAMPLES, Integer.valueOf(samples)).get();
+            Event nextEvent = new Event(eventNameMeasureIndexLag, now + pollDelay, nextData);
+            String msg = "Search found " + found + " of " + pending.size() + " nodes in round " + round + ".";
+            if (logger.isDebugEnabled())
+            {
+                logger.debug(msg);
+            }
+            return new EventResult(msg, Collections.singletonList(nextEvent));
+        }
+
+        DBObject resultData = summarise(samples, started, now);
+        Event doneEvent = new Event(eventNameIndexLagMeasured, null);
+        return new EventResult(resultData, Collections.singletonList(doneEvent));
+    }
+
+    /**
+     * Ask search for each of the nodes once
+     *
+     * @return the number of nodes found
+     */
+    private int poll(List<String> nodeIds, int round)
+    {
+        int found = 0;
+        int queriesPerWindow = maxConcurrentQueries * idsPerQuery;
+        for (int windowStart = 0; windowStart < nodeIds.size(); windowStart += queriesPerWindow)
+        {
+            List<CompletableFuture<ApiResponse>> queries = new ArrayList<CompletableFuture<ApiResponse>>(maxConcurrentQueries);
+            int windowEnd = Math.min(windowStart + queriesPerWindow, nodeIds.size());
+            for (int i = windowStart; i < windowEnd; i += idsPerQuery)
+            {
+                List<String> batch = nodeIds.subList(i, Math.min(i + idsPerQuery, windowEnd));
+                queries.add(asyncClient.findNodes(username, password, batch));
+            }
+            try
+            {
+                CompletableFuture.allOf(queries.toArray(new CompletableFuture<?>[queries.size()])).join();
+            }
+            catch (CompletionException e)
+            {
+                // Each failure is reported below
+            }
+            long now = System.currentTimeMillis();
+
+            for (CompletableFuture<ApiResponse> query : queries)
+            {
+                ApiResponse response;
+                try
+                {
+                    response = query.join();
+                }
+                catch (CompletionException e)
+                {
+                    logger.warn("Failed to query search: " + e.getCause());
+                    continue;
+                }
+                if (!response.isOk())
+                {
+                    logger.warn("Search query failed. Code: " + response.getStatusCode() + ". Message: " + response.getErrorMessage());
+                    continue;
+                }
+                for (JsonNode entry : response.getEntries())
+                {
+                    indexSampleService.markIndexed(entry.path("id").asText(), now, round);
+                    found++;
+                }
+            }
+        }
+        return found;
+    }
+
+    private DBObject summarise(int samples, long started, long finished)
+    {
+        List<long[]> indexed = indexSampleService.getIndexedSamples();
+        int count = indexed.size();
+        long[] lags = new long[count];
+        long[] indexedTimes = new long[count];
+        int indexedOnFirstPoll = 0;
+        for (int i = 0; i < count; i++)
+        {
+            long[] sample = indexed.get(i);
+            lags[i] = Math.max(0L, sample[1] - sample[0]);
+            indexedTimes[i] = sample[1];
+            if (sample[2] == 0L)
+            {
+                indexedOnFirstPoll++;
+            }
+        }
+        Arrays.sort(lags);
+        Arrays.sort(indexedTimes);
+
+        BasicDBObjectBuilder lagBuilder = BasicDBObjectBuilder.start();
+        if (count > 0)
+        {
+            for (double percentile : PERCENTILES)
+            {
+                lagBuilder.add("p" + (int) percentile, lags[rank(percentile, count)]);
+            }
+            lagBuilder.add("max", lags[count - 1]);
+        }
+        // The time at which 99% of all the samples, not just those found, could be found
+        Long timeTo99Percent = null;
+        int needed = (int) Math.ceil(samples * 0.99);
+        if (count >= needed && needed > 0)
+        {
+            timeTo99Percent = Math.max(0L, indexedTimes[needed - 1] - started);
+        }
+
+        String msg = count == samples ? "Search found all " + samples + " nodes." : "Search found " + count + " of " + samples + " nodes before timing out.";
+        return BasicDBObjectBuilder.start()
+            .add("msg", msg)
+            .add("samples", samples)
+            .add("indexed", count)
+            .add("notIndexed", samples - count)
+            .add("indexedOnFirstPoll", indexedOnFirstPoll)
+            .add("lag", lagBuilder.get())
+            .add("timeTo99Percent", timeTo99Percent)
+            .add("elapsed", finished - started)
+            .get();
+    }
+
+    /**
+     * @return the nearest-rank index of a percentile in a sorted array of the given size
+     */
+    private static int rank(double percentile, int count)
+    {
+        int rank = (int) Math.ceil(percentile / 100.0 * count);
+        return Math.min(count, Math.max(1, rank)) - 1;
+    }
+}
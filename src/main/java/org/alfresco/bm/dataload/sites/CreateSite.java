@@ -26,15 +26,16 @@
 package org.alfresco.bm.dataload.sites;
 
 import com.mongodb.DBObject;
-import org.alfresco.bm.AbstractRestApiEventProcessor;
 import org.alfresco.bm.cm.FileFolderService;
 import org.alfresco.bm.cm.FolderData;
 import org.alfresco.bm.common.EventResult;
 import org.alfresco.bm.data.DataCreationState;
+import org.alfresco.bm.dataload.AbstractPooledRestApiEventProcessor;
 import org.alfresco.bm.driver.event.Event;
 import org.alfresco.bm.site.SiteData;
 import org.alfresco.bm.site.SiteDataService;
 import org.alfresco.dataprep.SiteService;
+import org.alfresco.rest.core.RestWrapper;
 import org.alfresco.rest.model.RestErrorModel;
 import org.alfresco.rest.model.RestSiteContainerModelsCollection;
 import org.alfresco.rest.model.RestSiteModel;
@@ -48,7 +49,7 @@ import org.springframework.http.HttpStatus;
  * @author Derek Hulley
  * @since 2.0
  */
-public class CreateSite extends AbstractRestApiEventProcessor
+public class CreateSite extends AbstractPooledRestApiEventProcessor
 {
     public static final String PATH_SNIPPET_SITES = "Sites";
     public static final String PATH_SNIPPET_DOCLIB = "documentLibrary";
@@ -107,19 +108,18 @@ public class CreateSite extends AbstractRestApiEventProcessor
         siteModel.setTitle(siteId);
         siteModel.setVisibility(SiteService.Visibility.valueOf(site.getVisibility()));
 
-        UserModel userModel = new UserModel();
-        userModel.setUsername(siteManager);
-        userModel.setPassword(siteManager);
+        UserModel userModel = getUserModel(siteManager, siteManager);
+        RestWrapper restWrapper = getRestWrapper();
 
         resumeTimer();
-        RestSiteModel createdSite = getRestWrapper().authenticateUser(userModel).withCoreAPI().usingSite(siteModel).createSite();
+        RestSiteModel createdSite = restWrapper.authenticateUser(userModel).withCoreAPI().usingSite(siteModel).createSite();
         suspendTimer();
 
         if (createdSite == null)
         {
             throw new RuntimeException("Could not create site:" + siteId + " .");
         }
-        final String statusCode = getRestWrapper().getStatusCode();
+        final String statusCode = restWrapper.getStatusCode();
         if (HttpStatus.CREATED.toString().equals(statusCode))
         {
             // Create site has succeeded.  Mark the site.
@@ -128,10 +128,10 @@ public class CreateSite extends AbstractRestApiEventProcessor
             siteDataService.setSiteMemberCreationState(siteId, siteManager, DataCreationState.Created);
 
             // Create a folder reference for the document library
-            RestSiteContainerModelsCollection siteContainers = getRestWrapper().authenticateUser(userModel).withCoreAPI().usingSite(createdSite)
+            RestSiteContainerModelsCollection siteContainers = restWrapper.authenticateUser(userModel).withCoreAPI().usingSite(createdSite)
                 .getSiteContainers();
             //this should always succeed...
-            String statusCodeForGetDocLib = getRestWrapper().getStatusCode();
+            String statusCodeForGetDocLib = restWrapper.getStatusCode();
             if (isOKStatus(statusCodeForGetDocLib) && hasValidDocLibNodeRef(siteContainers))
             {
                 String docLibFolderNodeRef = siteContainers.getEntries().get(0).onModel().getId();
@@ -166,7 +166,7 @@ public class CreateSite extends AbstractRestApiEventProcessor
         else
         {
             // failed to create the site. failed status already set above
-            final RestErrorModel restErrorModel = getRestWrapper().assertLastError();
+            final RestErrorModel restErrorModel = restWrapper.assertLastError();
             final String detailedError = (restErrorModel != null) ? restErrorModel.toString() : "<nothing>";
             throw new RuntimeException(
                 "Could not create site:" + siteId + " . " + "Return code was: " + statusCode + " . " + "Last error message:" + System.lineSeparator()
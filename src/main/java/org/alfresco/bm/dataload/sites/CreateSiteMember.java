@@ -26,9 +26,9 @@
 package org.alfresco.bm.dataload.sites;
 
 import com.mongodb.DBObject;
-import org.alfresco.bm.AbstractRestApiEventProcessor;
 import org.alfresco.bm.common.EventResult;
 import org.alfresco.bm.data.DataCreationState;
+import org.alfresco.bm.dataload.AbstractPooledRestApiEventProcessor;
 import org.alfresco.bm.driver.event.Event;
 import org.alfresco.bm.driver.event.selector.EventDataObject;
 import org.alfresco.bm.driver.event.selector.EventDataObject.STATUS;
@@ -38,6 +38,7 @@ import org.alfresco.bm.site.SiteMemberData;
 import org.alfresco.bm.site.SiteRole;
 import org.alfresco.bm.user.UserData;
 import org.alfresco.bm.user.UserDataService;
+import org.alfresco.rest.core.RestWrapper;
 import org.alfresco.rest.model.RestErrorModel;
 import org.alfresco.rest.model.RestSiteMemberModel;
 import org.alfresco.utility.constants.UserRole;
@@ -52,7 +53,7 @@ import org.springframework.http.HttpStatus;
  * @author steveglover
  * @author Derek Hulley
  */
-public class CreateSiteMember extends AbstractRestApiEventProcessor
+public class CreateSiteMember extends AbstractPooledRestApiEventProcessor
 {
     public static final String FIELD_SITE_ID = "siteId";
     public static final String FIELD_USERNAME = "username";
@@ -136,10 +137,7 @@ public class CreateSiteMember extends AbstractRestApiEventProcessor
             return new EventResult(dataObj, false);
         }
 
-        UserModel runAsUser = new UserModel();
-        runAsUser.setUsername(runAsData.getUsername());
-        runAsUser.setPassword(runAsData.getPassword());
-        //runAsUser.setDomain(runAsDomain);
+        UserModel runAsUser = getUserModel(runAsData);
 
         SiteModel site = new SiteModel();
         site.setId(siteId);
@@ -150,10 +148,11 @@ public class CreateSiteMember extends AbstractRestApiEventProcessor
         newMember.setUsername(username);
         newMember.setUserRole(role);
 
+        RestWrapper restWrapper = getRestWrapper();
         resumeTimer();
-        RestSiteMemberModel restSiteMemberModel = getRestWrapper().authenticateUser(runAsUser).withCoreAPI().usingSite(site).addPerson(newMember);
+        RestSiteMemberModel restSiteMemberModel = restWrapper.authenticateUser(runAsUser).withCoreAPI().usingSite(site).addPerson(newMember);
         suspendTimer();
-        String statusCode = getRestWrapper().getStatusCode();
+        String statusCode = restWrapper.getStatusCode();
         if (HttpStatus.CREATED.toString().equals(statusCode))
         {
             siteDataService.setSiteMemberCreationState(siteId, username, DataCreationState.Created);
@@ -190,7 +189,7 @@ public class CreateSiteMember extends AbstractRestApiEventProcessor
         else
         {
             // Failure
-            final RestErrorModel restErrorModel = getRestWrapper().assertLastError();
+            final RestErrorModel restErrorModel = restWrapper.assertLastError();
             final String detailedError = (restErrorModel != null) ? restErrorModel.toString() : "<nothing>";
             throw new RuntimeException("Create site member as user: " + runAs + " failed (" + statusCode + ") for: " + username + " . Error: " + detailedError);
         }
@@ -29,6 +29,8 @@ import com.mongodb.BasicDBObject;
 import com.mongodb.DBObject;
 import org.alfresco.bm.common.EventResult;
 import org.alfresco.bm.data.DataCreationState;
+import org.alfresco.bm.dataload.LoadControl;
+import org.alfresco.bm.dataload.checkpoint.CheckpointService;
 import org.alfresco.bm.driver.event.AbstractEventProcessor;
 import org.alfresco.bm.driver.event.Event;
 import org.alfresco.bm.site.SiteData;
@@ -37,6 +39,7 @@ import org.alfresco.bm.site.SiteMemberData;
 import org.alfresco.bm.site.SiteRole;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 
 /**
@@ -57,6 +60,9 @@ public class CreateSiteMembers extends AbstractEventProcessor
     private String eventNameCreateSiteMembers = DEFAULT_EVENT_NAME_CREATE_SITE_MEMBERS;
     private int batchSize = DEFAULT_BATCH_SIZE;
     private long memberCreationDelay = DEFAULT_MEMBER_CREATION_DELAY;
+    private SiteShardService siteShardService;
+    private CheckpointService checkpointService;
+    private LoadControl loadControl;
 
     public CreateSiteMembers(SiteDataService siteDataService)
     {
@@ -104,15 +110,87 @@ public class CreateSiteMembers extends AbstractEventProcessor
         this.memberCreationDelay = memberCreationDelay;
     }
 
+    /**
+     * Split site member creation between the drivers, each scheduling only the members of the sites it owns
+     *
+     * @since 3.0
+     */
+    public void setSiteShardService(SiteShardService siteShardService)
+    {
+        this.siteShardService = siteShardService;
+    }
+
+    /**
+     * Record a checkpoint for each pass and lease the site members scheduled for creation
+     *
+     * @since 3.0
+     */
+    public void setCheckpointService(CheckpointService checkpointService)
+    {
+        this.checkpointService = checkpointService;
+    }
+
+    /**
+     * Let the load be paused and the time between site member creations changed while it runs
+     *
+     * @since 3.0
+     */
+    public void setLoadControl(LoadControl loadControl)
+    {
+        this.loadControl = loadControl;
+    }
+
     @Override
     public EventResult processEvent(Event event) throws Exception
     {
+        if (checkpointService != null)
+        {
+            checkpointService.checkpoint(eventNameCreateSiteMembers, null);
+        }
+
+        String shard = null;
+        if (siteShardService != null && siteShardService.isEnabled())
+        {
+            shard = SiteShardService.getShard(event);
+            if (shard == null)
+            {
+                List<Event> shardEvents = siteShardService.startPhase(eventNameCreateSiteMembers, eventNameCreateSiteMembers);
+                return new EventResult("Scheduling site member creation across " + shardEvents.size() + " shard(s)", shardEvents);
+            }
+            List<Event> handOverEvents = siteShardService.handOver(eventNameCreateSiteMembers, event);
+            if (handOverEvents != null)
+            {
+                return new EventResult("Shard " + shard + " belongs to another driver", handOverEvents);
+            }
+        }
+
+        Object eventData = event == null ? null : event.getData();
+        if (loadControl != null && loadControl.isPaused())
+        {
+            Event self = new Event(eventNameCreateSiteMembers, System.currentTimeMillis() + loadControl.getPauseCheckDelay(), eventData);
+            return new EventResult("Scheduling is paused.", Collections.singletonList(self));
+        }
+        long creationDelay = loadControl == null ? memberCreationDelay : loadControl.getSiteMemberCreationDelay(memberCreationDelay);
+
         List<Event> nextEvents = new ArrayList<Event>();
 
         // Schedule events for each site member to be created
         int numSitesMembers = 0;
 
-        List<SiteMemberData> pendingSiteMembers = siteDataService.getSiteMembers(null, DataCreationState.NotScheduled, null, 0, batchSize);
+        List<SiteMemberData> pendingSiteMembers = getPendingSiteMembers(shard);
+        if (pendingSiteMembers.size() == 0 && shard != null)
+        {
+            boolean workRemains = siteDataService.getSiteMembers(null, DataCreationState.NotScheduled, null, 0, 1).size() > 0;
+            List<Event> restartEvents = siteShardService.completeShard(eventNameCreateSiteMembers, shard, eventNameCreateSiteMembers, workRemains);
+            if (restartEvents == null)
+            {
+                return new EventResult("Shard " + shard + " has scheduled all of its site members for creation", Collections.<Event>emptyList());
+            }
+            else if (restartEvents.size() > 0)
+            {
+                return new EventResult("Rebalancing site member creation across " + restartEvents.size() + " shard(s)", restartEvents);
+            }
+        }
         if (pendingSiteMembers.size() == 0)
         {
             // There is nothing more to do
@@ -145,7 +223,7 @@ public class CreateSiteMembers extends AbstractEventProcessor
                 }
                 // Created sites 
 
-                nextEventTime += memberCreationDelay;
+                nextEventTime += creationDelay;
 
                 DBObject dataObj = new BasicDBObject().append(CreateSiteMember.FIELD_SITE_ID, siteId).append(CreateSiteMember.FIELD_USERNAME, username);
                 Event nextEvent = new Event(eventNameCreateSiteMember, nextEventTime, dataObj);
@@ -154,14 +232,52 @@ public class CreateSiteMembers extends AbstractEventProcessor
 
                 // The member creation is now scheduled
                 siteDataService.setSiteMemberCreationState(siteId, username, DataCreationState.Scheduled);
+                if (checkpointService != null)
+                {
+                    checkpointService.leaseSiteMember(siteId, username, nextEventTime);
+                }
             }
 
             // Reschedule for the next batch (might be zero next time)
-            Event self = new Event(eventNameCreateSiteMembers, nextEventTime + memberCreationDelay, null);
+            Event self = new Event(eventNameCreateSiteMembers, nextEventTime + creationDelay, eventData);
             nextEvents.add(self);
+            if (shard != null)
+            {
+                nextEvents.addAll(siteShardService.joinPhase(eventNameCreateSiteMembers, eventNameCreateSiteMembers));
+            }
         }
 
         // Return messages + next events
         return new EventResult("Scheduled " + numSitesMembers + " site member(s) for creation", nextEvents);
     }
+
+    /**
+     * Page through the site members pending creation until a batch in sites owned by the shard is found
+     */
+    private List<SiteMemberData> getPendingSiteMembers(String shard)
+    {
+        if (shard == null)
+        {
+            return siteDataService.getSiteMembers(null, DataCreationState.NotScheduled, null, 0, batchSize);
+        }
+        List<SiteMemberData> ownedSiteMembers = new ArrayList<SiteMemberData>(batchSize);
+        int skip = 0;
+        while (ownedSiteMembers.size() < batchSize)
+        {
+            List<SiteMemberData> siteMembers = siteDataService.getSiteMembers(null, DataCreationState.NotScheduled, null, skip, batchSize);
+            if (siteMembers.size() == 0)
+            {
+                break;
+            }
+            skip += siteMembers.size();
+            for (SiteMemberData siteMember : siteMembers)
+            {
+                if (siteShardService.isOwnedBy(shard, siteMember.getSiteId()) && ownedSiteMembers.size() < batchSize)
+                {
+                    ownedSiteMembers.add(siteMember);
+                }
+            }
+        }
+        return ownedSiteMembers;
+    }
 }
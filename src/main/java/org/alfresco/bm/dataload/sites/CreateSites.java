@@ -29,6 +29,8 @@ import com.mongodb.BasicDBObject;
 import com.mongodb.DBObject;
 import org.alfresco.bm.common.EventResult;
 import org.alfresco.bm.data.DataCreationState;
+import org.alfresco.bm.dataload.LoadControl;
+import org.alfresco.bm.dataload.checkpoint.CheckpointService;
 import org.alfresco.bm.driver.event.AbstractEventProcessor;
 import org.alfresco.bm.driver.event.Event;
 import org.alfresco.bm.site.SiteData;
@@ -37,6 +39,7 @@ import org.alfresco.bm.site.SiteMemberData;
 import org.alfresco.bm.site.SiteRole;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 
 /**
@@ -57,6 +60,9 @@ public class CreateSites extends AbstractEventProcessor
     private String eventNameCreateSites = DEFAULT_EVENT_NAME_CREATE_SITES;
     private int batchSize = DEFAULT_BATCH_SIZE;
     private long siteCreationDelay = DEFAULT_SITE_CREATION_DELAY;
+    private SiteShardService siteShardService;
+    private CheckpointService checkpointService;
+    private LoadControl loadControl;
 
     public CreateSites(SiteDataService siteDataService)
     {
@@ -104,15 +110,87 @@ public class CreateSites extends AbstractEventProcessor
         this.siteCreationDelay = siteCreationDelay;
     }
 
+    /**
+     * Split site creation between the drivers, each scheduling only the sites it owns
+     *
+     * @since 3.0
+     */
+    public void setSiteShardService(SiteShardService siteShardService)
+    {
+        this.siteShardService = siteShardService;
+    }
+
+    /**
+     * Record a checkpoint for each pass and lease the sites scheduled for creation
+     *
+     * @since 3.0
+     */
+    public void setCheckpointService(CheckpointService checkpointService)
+    {
+        this.checkpointService = checkpointService;
+    }
+
+    /**
+     * Let the load be paused and the time between site creations changed while it runs
+     *
+     * @since 3.0
+     */
+    public void setLoadControl(LoadControl loadControl)
+    {
+        this.loadControl = loadControl;
+    }
+
     @Override
     public EventResult processEvent(Event event) throws Exception
     {
+        if (checkpointService != null)
+        {
+            checkpointService.checkpoint(eventNameCreateSites, null);
+        }
+
+        String shard = null;
+        if (siteShardService != null && siteShardService.isEnabled())
+        {
+            shard = SiteShardService.getShard(event);
+            if (shard == null)
+            {
+                List<Event> shardEvents = siteShardService.startPhase(eventNameCreateSites, eventNameCreateSites);
+                return new EventResult("Scheduling site creation across " + shardEvents.size() + " shard(s)", shardEvents);
+            }
+            List<Event> handOverEvents = siteShardService.handOver(eventNameCreateSites, event);
+            if (handOverEvents != null)
+            {
+                return new EventResult("Shard " + shard + " belongs to another driver", handOverEvents);
+            }
+        }
+
+        Object eventData = event == null ? null : event.getData();
+        if (loadControl != null && loadControl.isPaused())
+        {
+            Event self = new Event(eventNameCreateSites, System.currentTimeMillis() + loadControl.getPauseCheckDelay(), eventData);
+            return new EventResult("Scheduling is paused.", Collections.singletonList(self));
+        }
+        long creationDelay = loadControl == null ? siteCreationDelay : loadControl.getSiteCreationDelay(siteCreationDelay);
+
         List<Event> nextEvents = new ArrayList<Event>();
 
         // Schedule events for each site member to be created
         int numSites = 0;
 
-        List<SiteData> pendingSites = siteDataService.getSites(null, DataCreationState.NotScheduled, 0, batchSize);
+        List<SiteData> pendingSites = getPendingSites(shard);
+        if (pendingSites.size() == 0 && shard != null)
+        {
+            boolean workRemains = siteDataService.countSites(null, DataCreationState.NotScheduled) > 0;
+            List<Event> restartEvents = siteShardService.completeShard(eventNameCreateSites, shard, eventNameCreateSites, workRemains);
+            if (restartEvents == null)
+            {
+                return new EventResult("Shard " + shard + " has scheduled all of its sites for creation", Collections.<Event>emptyList());
+            }
+            else if (restartEvents.size() > 0)
+            {
+                return new EventResult("Rebalancing site creation across " + restartEvents.size() + " shard(s)", restartEvents);
+            }
+        }
         if (pendingSites.size() == 0)
         {
             // There is nothing more to do, adding a pause before next event can happen to allow the last of site creation.
@@ -125,7 +203,7 @@ public class CreateSites extends AbstractEventProcessor
             long nextEventTime = System.currentTimeMillis();
             for (SiteData site : pendingSites)
             {
-                nextEventTime += siteCreationDelay;
+                nextEventTime += creationDelay;
                 // Do we need to schedule it?
                 String siteId = site.getSiteId();
 
@@ -152,14 +230,52 @@ public class CreateSites extends AbstractEventProcessor
                 // The site creation is now scheduled
                 siteDataService.setSiteCreationState(siteId, null, DataCreationState.Scheduled);
                 siteDataService.setSiteMemberCreationState(siteId, siteManager, DataCreationState.Scheduled);
+                if (checkpointService != null)
+                {
+                    checkpointService.leaseSite(siteId, siteManager, nextEventTime);
+                }
             }
 
             // Reschedule for the next batch (might be zero next time)
-            Event self = new Event(eventNameCreateSites, nextEventTime + siteCreationDelay, null);
+            Event self = new Event(eventNameCreateSites, nextEventTime + creationDelay, eventData);
             nextEvents.add(self);
+            if (shard != null)
+            {
+                nextEvents.addAll(siteShardService.joinPhase(eventNameCreateSites, eventNameCreateSites));
+            }
         }
 
         // Return messages + next events
         return new EventResult("Scheduled " + numSites + " site(s) for creation", nextEvents);
     }
+
+    /**
+     * Page through the sites pending creation until a batch owned by the shard is found
+     */
+    private List<SiteData> getPendingSites(String shard)
+    {
+        if (shard == null)
+        {
+            return siteDataService.getSites(null, DataCreationState.NotScheduled, 0, batchSize);
+        }
+        List<SiteData> ownedSites = new ArrayList<SiteData>(batchSize);
+        int skip = 0;
+        while (ownedSites.size() < batchSize)
+        {
+            List<SiteData> sites = siteDataService.getSites(null, DataCreationState.NotScheduled, skip, batchSize);
+            if (sites.size() == 0)
+            {
+                break;
+            }
+            skip += sites.size();
+            for (SiteData site : sites)
+            {
+                if (siteShardService.isOwnedBy(shard, site.getSiteId()) && ownedSites.size() < batchSize)
+                {
+                    ownedSites.add(site);
+                }
+            }
+        }
+        return ownedSites;
+    }
 }
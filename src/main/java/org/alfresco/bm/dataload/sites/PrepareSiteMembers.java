@@ -27,6 +27,7 @@ package org.alfresco.bm.dataload.sites;
 
 import org.alfresco.bm.common.EventResult;
 import org.alfresco.bm.data.DataCreationState;
+import org.alfresco.bm.dataload.checkpoint.CheckpointService;
 import org.alfresco.bm.driver.event.AbstractEventProcessor;
 import org.alfresco.bm.driver.event.Event;
 import org.alfresco.bm.site.SiteData;
@@ -51,11 +52,15 @@ import java.util.List;
 public class PrepareSiteMembers extends AbstractEventProcessor
 {
     public static final String EVENT_NAME_SITE_MEMBERS_PREPARED = "siteMembersPrepared";
+    public static final String EVENT_NAME_PREPARE_SITE_MEMBERS = "prepareSiteMembers";
     public static final int DEFAULT_USERS_PER_SITE = 10;
 
     private UserDataService userDataService;
     private SiteDataService siteDataService;
     private String eventNameSiteMembersPrepared;
+    private String eventNamePrepareSiteMembers;
+    private SiteShardService siteShardService;
+    private CheckpointService checkpointService;
 
     private int usersPerSite;
 
@@ -68,6 +73,7 @@ public class PrepareSiteMembers extends AbstractEventProcessor
         this.userDataService = userDataService;
         this.siteDataService = siteDataService;
         this.eventNameSiteMembersPrepared = EVENT_NAME_SITE_MEMBERS_PREPARED;
+        this.eventNamePrepareSiteMembers = EVENT_NAME_PREPARE_SITE_MEMBERS;
         this.usersPerSite = DEFAULT_USERS_PER_SITE;
     }
 
@@ -79,6 +85,36 @@ public class PrepareSiteMembers extends AbstractEventProcessor
         this.eventNameSiteMembersPrepared = eventNameSiteMembersPrepared;
     }
 
+    /**
+     * Override the {@link #EVENT_NAME_PREPARE_SITE_MEMBERS default} event name used for each shard's preparation
+     *
+     * @since 3.0
+     */
+    public void setEventNamePrepareSiteMembers(String eventNamePrepareSiteMembers)
+    {
+        this.eventNamePrepareSiteMembers = eventNamePrepareSiteMembers;
+    }
+
+    /**
+     * Split site member preparation between the drivers, each preparing only the sites it owns
+     *
+     * @since 3.0
+     */
+    public void setSiteShardService(SiteShardService siteShardService)
+    {
+        this.siteShardService = siteShardService;
+    }
+
+    /**
+     * Record a checkpoint so that a resumed run prepares the site members again, counting those already prepared
+     *
+     * @since 3.0
+     */
+    public void setCheckpointService(CheckpointService checkpointService)
+    {
+        this.checkpointService = checkpointService;
+    }
+
     /**
      * Override the {@link #DEFAULT_USERS_PER_SITE default} sites per user
      */
@@ -94,6 +130,28 @@ public class PrepareSiteMembers extends AbstractEventProcessor
     @Override
     public EventResult processEvent(Event event) throws Exception
     {
+        boolean resumable = checkpointService != null && checkpointService.isEnabled();
+        if (resumable)
+        {
+            checkpointService.checkpoint(eventNamePrepareSiteMembers, null);
+        }
+
+        String shard = null;
+        if (siteShardService != null && siteShardService.isEnabled())
+        {
+            shard = SiteShardService.getShard(event);
+            if (shard == null)
+            {
+                List<Event> shardEvents = siteShardService.startPhase(eventNamePrepareSiteMembers, eventNamePrepareSiteMembers);
+                return new EventResult("Preparing site members across " + shardEvents.size() + " shard(s)", shardEvents);
+            }
+            List<Event> handOverEvents = siteShardService.handOver(eventNamePrepareSiteMembers, event);
+            if (handOverEvents != null)
+            {
+                return new EventResult("Shard " + shard + " belongs to another driver", handOverEvents);
+            }
+        }
+
         final int sitePageSize = 500;
         int membersCount = 0;
 
@@ -118,8 +176,17 @@ public class PrepareSiteMembers extends AbstractEventProcessor
             for (SiteData site : sites)
             {
                 String siteId = site.getSiteId();
+                if (shard != null && !siteShardService.isOwnedBy(shard, siteId))
+                {
+                    continue;
+                }
                 // How many users do we have for the site?
                 int currentSiteUsersCount = siteDataService.getSiteMembers(siteId, DataCreationState.Created, null, 0, usersPerSite).size();
+                if (shard != null || resumable)
+                {
+                    // A rebalanced or resumed pass can revisit a site that has already been prepared
+                    currentSiteUsersCount += siteDataService.getSiteMembers(siteId, DataCreationState.NotScheduled, null, 0, usersPerSite).size();
+                }
                 int siteUsersToCreate = usersPerSite - currentSiteUsersCount;
                 // Keep going while we attempt to find a user to use
                 for (int i = 0; i < siteUsersToCreate; i++)
@@ -168,6 +235,18 @@ public class PrepareSiteMembers extends AbstractEventProcessor
 
         // We need an event to mark completion
         String msg = "Prepared " + membersCount + " site members";
+        if (shard != null)
+        {
+            List<Event> restartEvents = siteShardService.completeShard(eventNamePrepareSiteMembers, shard, eventNamePrepareSiteMembers, false);
+            if (restartEvents == null)
+            {
+                return new EventResult(msg + " for shard " + shard, Collections.<Event>emptyList());
+            }
+            else if (restartEvents.size() > 0)
+            {
+                return new EventResult(msg + " and rebalancing across " + restartEvents.size() + " shard(s)", restartEvents);
+            }
+        }
         Event outputEvent = new Event(eventNameSiteMembersPrepared, null);
 
         // Create result
@@ -38,11 +38,19 @@ import org.alfresco.bm.user.UserData;
 import org.alfresco.bm.user.UserDataService;
 
 import java.util.Collections;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 /**
  * Prepares sites for creation by populating the sites collection.
  * <p/>
  * The number of sites is driven by: {@link #setSitesPerDomain(int)}
+ * <p/>
+ * Sites that already exist and have not failed count towards the total, so a restart only prepares the shortfall.
+ * Only sites with IDs in the {@link #setSiteFormat(String) site format} are counted, as the sites collection may
+ * hold sites made by other tests.  The existing sites are read a page at a time rather than looked up one by one,
+ * and new sites are numbered on from the highest number found.
  *
  * @author Derek Hulley
  * @since 2.0
@@ -51,12 +59,17 @@ public class PrepareSites extends AbstractEventProcessor
 {
     public static final String EVENT_NAME_SITES_PREPARED = "sitesPrepared";
     public static final int DEFAULT_SITES_COUNT = 100;
+    public static final int DEFAULT_PAGE_SIZE = 1000;
+
+    private static final Pattern FORMAT_SPECIFIER = Pattern.compile("%(\\d+\\$)?([-#+ 0,(]*)?(\\d+)?(\\.\\d+)?([tT])?([a-zA-Z%])");
 
     private UserDataService userDataService;
     private SiteDataService siteDataService;
     private String eventNameSitesPrepared;
     private int sitesCount;
     private String siteFormat;
+    private Pattern sitePattern;
+    private int pageSize;
 
     /**
      * @param services data collections
@@ -68,6 +81,7 @@ public class PrepareSites extends AbstractEventProcessor
         this.siteDataService = siteDataService;
         this.eventNameSitesPrepared = EVENT_NAME_SITES_PREPARED;
         this.sitesCount = DEFAULT_SITES_COUNT;
+        this.pageSize = DEFAULT_PAGE_SIZE;
         this.setSiteFormat("Site-%s-%05d");
     }
 
@@ -87,15 +101,50 @@ public class PrepareSites extends AbstractEventProcessor
         this.eventNameSitesPrepared = eventNameSitesPrepared;
     }
 
+    /**
+     * Override the {@link #DEFAULT_PAGE_SIZE default} number of existing sites read at a time
+     *
+     * @since 3.0
+     */
+    public void setPageSize(int pageSize)
+    {
+        this.pageSize = pageSize;
+    }
+
     @Override
     public EventResult processEvent(Event event) throws Exception
     {
-        int preparedCount = 0;
+        // Read the sites already present a page at a time rather than looking up each site number in turn.
+        // Site numbers are handed out in sequence, so new sites are numbered on from the highest one found.
         int siteNumber = -1;
         int validSites = 0;
+        for (int skip = 0; ; skip += pageSize)
+        {
+            List<SiteData> sites = siteDataService.getSites(null, null, skip, pageSize);
+            for (SiteData site : sites)
+            {
+                String siteId = site.getSiteId();
+                Matcher matcher = siteId == null ? null : sitePattern.matcher(siteId);
+                if (matcher == null || !matcher.matches())
+                {
+                    // Not one of ours
+                    continue;
+                }
+                siteNumber = Math.max(siteNumber, Integer.parseInt(matcher.group(1)));
+                if (site.getCreationState() != DataCreationState.Failed)
+                {
+                    validSites++;
+                }
+            }
+            if (sites.size() < pageSize)
+            {
+                break;
+            }
+        }
+        int preparedCount = 0;
         while (validSites < sitesCount)
         {
-            // Start with site number 0
+            // Start with the first unused site number
             siteNumber++;
 
             // First choose a random user to be the creator / manager for the site
@@ -111,14 +160,7 @@ public class PrepareSites extends AbstractEventProcessor
             SiteData site = siteDataService.getSite(siteId);
             if (site != null)
             {
-                // Site already exists.  Check that it is valid.
-                DataCreationState siteState = site.getCreationState();
-                if (siteState != DataCreationState.Failed)
-                {
-                    // We found a site that will be scheduled, created, etc.
-                    // It is a valid site and we count it
-                    validSites++;
-                }
+                // Site already exists and has already been counted.
                 // Move onto a new site number (i.e. a new site name) and try again
                 continue;
             }
@@ -168,8 +210,64 @@ public class PrepareSites extends AbstractEventProcessor
         return siteFormat;
     }
 
+    /**
+     * @param siteFormat the format of site IDs, given the domain and the site number in that order
+     */
     public void setSiteFormat(String siteFormat)
     {
+        this.sitePattern = getSitePattern(siteFormat);
         this.siteFormat = siteFormat;
     }
+
+    /**
+     * @return a pattern matching the IDs made by the site format, with the site number as its only group
+     */
+    static Pattern getSitePattern(String siteFormat)
+    {
+        StringBuilder regex = new StringBuilder();
+        Matcher matcher = FORMAT_SPECIFIER.matcher(siteFormat);
+        int end = 0;
+        int ordinaryArg = 0;
+        boolean hasNumber = false;
+        while (matcher.find())
+        {
+            if (matcher.start() > end)
+            {
+                regex.append(Pattern.quote(siteFormat.substring(end, matcher.start())));
+            }
+            end = matcher.end();
+            String conversion = matcher.group(6);
+            if ("%".equals(conversion))
+            {
+                regex.append("%");
+                continue;
+            }
+            else if ("n".equals(conversion))
+            {
+                regex.append(Pattern.quote(System.lineSeparator()));
+                continue;
+            }
+            // The domain is argument 1 and the site number argument 2
+            String index = matcher.group(1);
+            int arg = index == null ? ++ordinaryArg : Integer.parseInt(index.substring(0, index.length() - 1));
+            if (arg == 2 && "d".equals(conversion) && !hasNumber)
+            {
+                hasNumber = true;
+                regex.append("(\\d{1,9})");
+            }
+            else
+            {
+                regex.append(".*?");
+            }
+        }
+        if (end < siteFormat.length())
+        {
+            regex.append(Pattern.quote(siteFormat.substring(end)));
+        }
+        if (!hasNumber)
+        {
+            throw new IllegalArgumentException("The site format must give the site number with %d: " + siteFormat);
+        }
+        return Pattern.compile(regex.toString());
+    }
 }
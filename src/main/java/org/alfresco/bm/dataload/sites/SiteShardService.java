@@ -0,0 +1,470 @@
+/*
+ * #%L
+ * Alfresco Benchmark Load Data
+ * %%
+ * Copyright (C) 2005 - 2018 Alfresco Software Limited
+ * %%
+ * This file is part of the Alfresco software.
+ * If the software was purchased under a paid Alfresco license, the terms of
+ * the paid license agreement will prevail.  Otherwise, the software is
+ * provided under the following open source license terms:
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+package org.alfresco.bm.dataload.sites;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.BasicDBObjectBuilder;
+import com.mongodb.DB;
+import com.mongodb.DBCollection;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+import org.alfresco.bm.driver.event.Event;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Splits the sites between the drivers taking part in a test run so that each driver's work touches only its
+ * own sites.
+ * <p/>
+ * Every driver records a heartbeat and the drivers with a recent heartbeat are placed on a consistent-hash ring,
+ * each with a number of {@link #setVirtualNodes(int) virtual nodes}.  A site belongs to the first driver found
+ * on the ring after the hash of its ID, so every driver works out the same owner without talking to the others
+ * and only a share of the sites move when a driver joins or leaves.  Driver clocks must be roughly in step.
+ * <p/>
+ * Each sharded event processor works through a phase: the first event {@link #startPhase(String, String) starts}
+ * one event chain per shard, each chain handles only the sites its shard owns and the last chain to
+ * {@link #completeShard(String, String, String, boolean) complete} moves the run on.  Drivers that join part way
+ * through a phase are {@link #joinPhase(String, String) given} their own chain; if drivers leave, or work is left
+ * over, the phase is started again across the drivers that remain.
+ * <p/>
+ * A chain's events go onto the queue shared by all the drivers, so any driver may pick one up.  Before doing any
+ * work the processors {@link #handOver(String, Event) hand over} the events of chains that belong to another driver.
+ *
+ * @since 3.0
+ */
+public class SiteShardService implements InitializingBean, DisposableBean
+{
+    public static final String FIELD_SHARD = "shard";
+
+    public static final long DEFAULT_HEARTBEAT_INTERVAL = 5000L;
+    public static final long DEFAULT_HEARTBEAT_TIMEOUT = 30000L;
+    public static final int DEFAULT_VIRTUAL_NODES = 64;
+
+    private static final String FIELD_ID = "_id";
+    private static final String FIELD_HEARTBEAT = "heartbeat";
+    private static final String FIELD_SHARDS = "shards";
+    private static final String FIELD_DONE = "done";
+    private static final String FIELD_COMPLETE = "complete";
+    private static final String PHASE_PREFIX = "phase.";
+
+    private static final Log logger = LogFactory.getLog(SiteShardService.class);
+
+    private final DBCollection collection;
+    private final String driverId;
+    private boolean enabled;
+    private long heartbeatInterval;
+    private long heartbeatTimeout;
+    private int virtualNodes;
+
+    private ScheduledExecutorService heartbeat;
+    private volatile Ring ring;
+
+    /**
+     * @param db         the database to use
+     * @param collection the name of the collection holding the driver heartbeats and phases
+     */
+    public SiteShardService(DB db, String collection)
+    {
+        this.collection = db.getCollection(collection);
+        this.driverId = ManagementFactory.getRuntimeMXBean().getName() + "-" + UUID.randomUUID().toString().substring(0, 8);
+        this.heartbeatInterval = DEFAULT_HEARTBEAT_INTERVAL;
+        this.heartbeatTimeout = DEFAULT_HEARTBEAT_TIMEOUT;
+        this.virtualNodes = DEFAULT_VIRTUAL_NODES;
+    }
+
+    /**
+     * Turn sharding on; when off, the event processors work through all the sites
+     */
+    public void setEnabled(boolean enabled)
+    {
+        this.enabled = enabled;
+    }
+
+    public boolean isEnabled()
+    {
+        return enabled;
+    }
+
+    /**
+     * Override the {@link #DEFAULT_HEARTBEAT_INTERVAL default} milliseconds between heartbeats, which is also how
+     * long the ring is cached
+     */
+    public void setHeartbeatInterval(long heartbeatInterval)
+    {
+        this.heartbeatInterval = heartbeatInterval;
+    }
+
+    /**
+     * Override the {@link #DEFAULT_HEARTBEAT_TIMEOUT default} milliseconds without a heartbeat before a driver is
+     * taken off the ring
+     */
+    public void setHeartbeatTimeout(long heartbeatTimeout)
+    {
+        this.heartbeatTimeout = heartbeatTimeout;
+    }
+
+    /**
+     * Override the {@link #DEFAULT_VIRTUAL_NODES default} number of points each driver has on the ring
+     */
+    public void setVirtualNodes(int virtualNodes)
+    {
+        if (virtualNodes < 1)
+        {
+            throw new IllegalArgumentException("'virtualNodes' must be at least 1");
+        }
+        this.virtualNodes = virtualNodes;
+    }
+
+    /**
+     * @return the ID this driver uses as its shard
+     */
+    public String getDriverId()
+    {
+        return driverId;
+    }
+
+    /**
+     * Join the ring and keep a heartbeat going
+     */
+    @Override
+    public synchronized void afterPropertiesSet()
+    {
+        if (!enabled || heartbeat != null)
+        {
+            return;
+        }
+        beat();
+        heartbeat = Executors.newSingleThreadScheduledExecutor(runnable ->
+        {
+            Thread thread = new Thread(runnable, "SiteShardService-Heartbeat");
+            thread.setDaemon(true);
+            return thread;
+        });
+        heartbeat.scheduleWithFixedDelay(this::beatQuietly, heartbeatInterval, heartbeatInterval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stop the heartbeat and leave the ring straight away so that the other drivers take over this driver's sites
+     */
+    @Override
+    public synchronized void destroy()
+    {
+        if (heartbeat == null)
+        {
+            return;
+        }
+        heartbeat.shutdownNow();
+        heartbeat = null;
+        collection.remove(new BasicDBObject(FIELD_ID, driverId));
+    }
+
+    private void beat()
+    {
+        collection.update(new BasicDBObject(FIELD_ID, driverId),
+            new BasicDBObject("$set", new BasicDBObject(FIELD_HEARTBEAT, System.currentTimeMillis())), true, false);
+    }
+
+    private void beatQuietly()
+    {
+        try
+        {
+            beat();
+        }
+        catch (Exception e)
+        {
+            logger.warn("Failed to record heartbeat for driver " + driverId, e);
+        }
+    }
+
+    /**
+     * @return the IDs of the drivers currently on the ring, in order
+     */
+    public List<String> getShards()
+    {
+        return getRing().shards;
+    }
+
+    /**
+     * @return the ID of the driver that owns the site
+     */
+    public String getOwner(String siteId)
+    {
+        return getRing().getOwner(siteId);
+    }
+
+    /**
+     * @param shard  the shard an event chain is working for or <tt>null</tt> if the work is not sharded
+     * @param siteId the ID of the site
+     * @return <tt>true</tt> if the chain should handle the site
+     */
+    public boolean isOwnedBy(String shard, String siteId)
+    {
+        return shard == null || shard.equals(getOwner(siteId));
+    }
+
+    /**
+     * @return the shard an event chain is working for or <tt>null</tt> if the event is not part of a sharded phase
+     */
+    public static String getShard(Event event)
+    {
+        Object data = event == null ? null : event.getData();
+        return (data instanceof DBObject) ? (String) ((DBObject) data).get(FIELD_SHARD) : null;
+    }
+
+    /**
+     * Keep a chain on the driver that owns its shard.  The event is raised again for the owner to pick up or, if the
+     * owner has left the ring, the owner's part of the phase is completed so that its sites are rebalanced.
+     *
+     * @param phase the name of the phase
+     * @param event the event carrying the chain
+     * @return <tt>null</tt> if this driver should process the event, otherwise the events that carry the chain on
+     */
+    public List<Event> handOver(String phase, Event event)
+    {
+        String shard = getShard(event);
+        if (shard == null || shard.equals(driverId))
+        {
+            return null;
+        }
+        if (getShards().contains(shard))
+        {
+            return Collections.singletonList(new Event(event.getName(), System.currentTimeMillis(), event.getData()));
+        }
+        logger.info("Driver " + shard + " left the ring during phase '" + phase + "'.");
+        List<Event> restartEvents = completeShard(phase, shard, event.getName(), true);
+        return restartEvents == null ? Collections.<Event>emptyList() : restartEvents;
+    }
+
+    /**
+     * @param path a folder path of the form <tt>/Sites/siteId/documentLibrary/...</tt>
+     * @return the ID of the site holding the folder or <tt>null</tt> if the path is not within a site
+     */
+    public static String getSiteId(String path)
+    {
+        String[] segments = path.split("/");
+        return segments.length > 2 ? segments[2] : null;
+    }
+
+    /**
+     * Start a phase across all the drivers on the ring
+     *
+     * @param phase     the name of the phase
+     * @param eventName the name of the event that carries each shard's chain
+     * @return an event for each shard
+     */
+    public List<Event> startPhase(String phase, String eventName)
+    {
+        ring = loadRing();
+        List<String> shards = ring.shards;
+        DBObject phaseObj = BasicDBObjectBuilder.start().add(FIELD_ID, PHASE_PREFIX + phase).add(FIELD_SHARDS, shards)
+            .add(FIELD_DONE, Collections.emptyList()).add(FIELD_COMPLETE, Boolean.FALSE).get();
+        collection.update(new BasicDBObject(FIELD_ID, PHASE_PREFIX + phase), phaseObj, true, false);
+        List<Event> events = new ArrayList<Event>(shards.size());
+        for (String shard : shards)
+        {
+            events.add(new Event(eventName, new BasicDBObject(FIELD_SHARD, shard)));
+        }
+        if (logger.isDebugEnabled())
+        {
+            logger.debug("Started phase '" + phase + "' across shards " + shards);
+        }
+        return events;
+    }
+
+    /**
+     * Add a chain for each driver that has joined the ring since a phase started
+     *
+     * @return an event for each new shard, usually none
+     */
+    public List<Event> joinPhase(String phase, String eventName)
+    {
+        DBObject phaseObj = collection.findOne(new BasicDBObject(FIELD_ID, PHASE_PREFIX + phase));
+        if (phaseObj == null || Boolean.TRUE.equals(phaseObj.get(FIELD_COMPLETE)))
+        {
+            return Collections.emptyList();
+        }
+        @SuppressWarnings("unchecked")
+        List<String> phaseShards = (List<String>) phaseObj.get(FIELD_SHARDS);
+        List<Event> events = new ArrayList<Event>(0);
+        for (String shard : getShards())
+        {
+            if (phaseShards.contains(shard))
+            {
+                continue;
+            }
+            // Only one chain may claim the new shard and only while the phase is still going
+            DBObject query = BasicDBObjectBuilder.start().add(FIELD_ID, PHASE_PREFIX + phase).add(FIELD_COMPLETE, Boolean.FALSE)
+                .push(FIELD_SHARDS).add("$ne", shard).pop().get();
+            DBObject update = new BasicDBObject("$addToSet", new BasicDBObject(FIELD_SHARDS, shard));
+            if (collection.update(query, update).getN() > 0)
+            {
+                events.add(new Event(eventName, new BasicDBObject(FIELD_SHARD, shard)));
+                logger.info("Driver " + shard + " joined phase '" + phase + "'.");
+            }
+        }
+        return events;
+    }
+
+    /**
+     * Record that a shard has no more work in a phase
+     *
+     * @param workRemains <tt>true</tt> if work is known to be left over, regardless of shard
+     * @return <tt>null</tt> if other shards are still working, events to start the phase again if the sites need
+     *         rebalancing or an empty list if the whole phase is complete
+     */
+    @SuppressWarnings("unchecked")
+    public List<Event> completeShard(String phase, String shard, String eventName, boolean workRemains)
+    {
+        DBObject phaseObj = collection.findAndModify(new BasicDBObject(FIELD_ID, PHASE_PREFIX + phase), null, null, false,
+            new BasicDBObject("$addToSet", new BasicDBObject(FIELD_DONE, shard)), true, false);
+        if (phaseObj == null)
+        {
+            throw new IllegalStateException("Phase '" + phase + "' has not been started.");
+        }
+        List<String> phaseShards = (List<String>) phaseObj.get(FIELD_SHARDS);
+        List<String> done = (List<String>) phaseObj.get(FIELD_DONE);
+        if (!done.containsAll(phaseShards))
+        {
+            return null;
+        }
+        // Only one chain completes the phase and not if another driver joined in the mean time
+        DBObject query = BasicDBObjectBuilder.start().add(FIELD_ID, PHASE_PREFIX + phase).add(FIELD_COMPLETE, Boolean.FALSE)
+            .push(FIELD_SHARDS).add("$size", phaseShards.size()).pop().get();
+        if (collection.update(query, new BasicDBObject("$set", new BasicDBObject(FIELD_COMPLETE, Boolean.TRUE))).getN() == 0)
+        {
+            return null;
+        }
+        // Sites owned by drivers that left may have been missed
+        ring = loadRing();
+        if (workRemains || !new HashSet<String>(phaseShards).equals(new HashSet<String>(ring.shards)))
+        {
+            logger.info("Rebalancing phase '" + phase + "' from shards " + phaseShards + " to " + ring.shards);
+            return startPhase(phase, eventName);
+        }
+        return Collections.emptyList();
+    }
+
+    private Ring getRing()
+    {
+        Ring current = ring;
+        if (current == null || System.currentTimeMillis() - current.loadedAt > heartbeatInterval)
+        {
+            current = loadRing();
+            ring = current;
+        }
+        return current;
+    }
+
+    private Ring loadRing()
+    {
+        long cutoff = System.currentTimeMillis() - heartbeatTimeout;
+        DBObject query = new BasicDBObject(FIELD_HEARTBEAT, new BasicDBObject("$gte", cutoff));
+        List<String> shards = new ArrayList<String>();
+        DBCursor cursor = collection.find(query, new BasicDBObject(FIELD_ID, 1)).sort(new BasicDBObject(FIELD_ID, 1));
+        try
+        {
+            for (DBObject driverObj : cursor)
+            {
+                shards.add((String) driverObj.get(FIELD_ID));
+            }
+        }
+        finally
+        {
+            cursor.close();
+        }
+        if (shards.isEmpty())
+        {
+            // Our own heartbeat has lapsed, so we are on our own
+            shards.add(driverId);
+        }
+        return new Ring(shards, virtualNodes);
+    }
+
+    private static long hash(String key)
+    {
+        try
+        {
+            byte[] digest = MessageDigest.getInstance("MD5").digest(key.getBytes(StandardCharsets.UTF_8));
+            long hash = 0L;
+            for (int i = 0; i < 8; i++)
+            {
+                hash = (hash << 8) | (digest[i] & 0xFF);
+            }
+            return hash;
+        }
+        catch (NoSuchAlgorithmException e)
+        {
+            throw new IllegalStateException("MD5 is not available", e);
+        }
+    }
+
+    /**
+     * The drivers on the ring at one point in time
+     */
+    private static class Ring
+    {
+        private final List<String> shards;
+        private final TreeMap<Long, String> points;
+        private final long loadedAt;
+
+        private Ring(List<String> shards, int virtualNodes)
+        {
+            this.shards = Collections.unmodifiableList(shards);
+            this.points = new TreeMap<Long, String>();
+            for (String shard : shards)
+            {
+                for (int i = 0; i < virtualNodes; i++)
+                {
+                    points.put(hash(shard + "#" + i), shard);
+                }
+            }
+            this.loadedAt = System.currentTimeMillis();
+        }
+
+        private String getOwner(String siteId)
+        {
+            Map.Entry<Long, String> point = points.ceilingEntry(hash(siteId));
+            return (point != null ? point : points.firstEntry()).getValue();
+        }
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ * #%L
+ * Alfresco Benchmark Load Data
+ * %%
+ * Copyright (C) 2005 - 2018 Alfresco Software Limited
+ * %%
+ * This file is part of the Alfresco software.
+ * If the software was purchased under a paid Alfresco license, the terms of
+ * the paid license agreement will prevail.  Otherwise, the software is
+ * provided under the following open source license terms:
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+package org.alfresco.bm.dataload.snapshot;
+
+import com.mongodb.BasicDBObjectBuilder;
+import com.mongodb.DBObject;
+import org.alfresco.bm.common.EventResult;
+import org.alfresco.bm.dataload.checkpoint.CheckpointService;
+import org.alfresco.bm.driver.event.AbstractEventProcessor;
+import org.alfresco.bm.driver.event.Event;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.TreeMap;
+
+/**
+ * Export the site and file-folder mirrors to a {@link MirrorSnapshotService snapshot} once loading is done.
+ * <p/>
+ * Nothing is exported when no directory is given.
+ *
+ * @since 3.0
+ */
+public class ExportMirrorSnapshot extends AbstractEventProcessor
+{
+    public static final String EVENT_NAME_MIRROR_SNAPSHOT_EXPORTED = "mirrorSnapshotExported";
+
+    private final MirrorSnapshotService mirrorSnapshotService;
+    private final String directory;
+    private String eventNameMirrorSnapshotExported;
+    private CheckpointService checkpointService;
+
+    /**
+     * @param mirrorSnapshotService service to export snapshots
+     * @param directory             the snapshot directory or blank for none
+     */
+    public ExportMirrorSnapshot(MirrorSnapshotService mirrorSnapshotService, String directory)
+    {
+        super();
+
+        this.mirrorSnapshotService = mirrorSnapshotService;
+        this.directory = directory == null ? "" : directory.trim();
+
+        this.eventNameMirrorSnapshotExported = EVENT_NAME_MIRROR_SNAPSHOT_EXPORTED;
+    }
+
+    /**
+     * Override the {@link #EVENT_NAME_MIRROR_SNAPSHOT_EXPORTED default} output event name
+     */
+    public void setEventNameMirrorSnapshotExported(String eventNameMirrorSnapshotExported)
+    {
+        this.eventNameMirrorSnapshotExported = eventNameMirrorSnapshotExported;
+    }
+
+    /**
+     * Clear the pipeline checkpoint, as this is the last step of the load
+     */
+    public void setCheckpointService(CheckpointService checkpointService)
+    {
+        this.checkpointService = checkpointService;
+    }
+
+    @Override
+    public EventResult processEvent(Event event) throws Exception
+    {
+        Event nextEvent = new Event(eventNameMirrorSnapshotExported, null);
+        if (checkpointService != null)
+        {
+            checkpointService.clearCheckpoint();
+        }
+        if (directory.isEmpty())
+        {
+            return new EventResult("No snapshot directory given.", Collections.singletonList(nextEvent));
+        }
+
+        long start = System.currentTimeMillis();
+        TreeMap<String, Integer> chunks = mirrorSnapshotService.exportSnapshot(new File(directory));
+        long records = 0L;
+        for (Integer chunkRecords : chunks.values())
+        {
+            records += chunkRecords;
+        }
+
+        DBObject resultData = BasicDBObjectBuilder.start()
+            .add("msg", "Exported mirror snapshot.")
+            .add("directory", directory)
+            .add("chunks", chunks.size())
+            .add("records", records)
+            .add("elapsed", System.currentTimeMillis() - start)
+            .get();
+        return new EventResult(resultData, Collections.singletonList(nextEvent));
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ * #%L
+ * Alfresco Benchmark Load Data
+ * %%
+ * Copyright (C) 2005 - 2018 Alfresco Software Limited
+ * %%
+ * This file is part of the Alfresco software.
+ * If the software was purchased under a paid Alfresco license, the terms of
+ * the paid license agreement will prevail.  Otherwise, the software is
+ * provided under the following open source license terms:
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+package org.alfresco.bm.dataload.snapshot;
+
+import com.mongodb.BasicDBObjectBuilder;
+import com.mongodb.DBObject;
+import org.alfresco.bm.common.EventResult;
+import org.alfresco.bm.driver.event.AbstractEventProcessor;
+import org.alfresco.bm.driver.event.Event;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.TreeMap;
+
+/**
+ * Import a {@link MirrorSnapshotService snapshot} into the site and file-folder mirrors before any sites are prepared,
+ * so that a load can carry on from where another driver environment left off.
+ * <p/>
+ * Nothing is imported when no directory is given.
+ *
+ * @since 3.0
+ */
+public class ImportMirrorSnapshot extends AbstractEventProcessor
+{
+    public static final String EVENT_NAME_MIRROR_SNAPSHOT_IMPORTED = "mirrorSnapshotImported";
+
+    private final MirrorSnapshotService mirrorSnapshotService;
+    private final String directory;
+    private String eventNameMirrorSnapshotImported;
+
+    /**
+     * @param mirrorSnapshotService service to import snapshots
+     * @param directory             the snapshot directory or blank for none
+     */
+    public ImportMirrorSnapshot(MirrorSnapshotService mirrorSnapshotService, String directory)
+    {
+        super();
+
+        this.mirrorSnapshotService = mirrorSnapshotService;
+        this.directory = directory == null ? "" : directory.trim();
+
+        this.eventNameMirrorSnapshotImported = EVENT_NAME_MIRROR_SNAPSHOT_IMPORTED;
+    }
+
+    /**
+     * Override the {@link #EVENT_NAME_MIRROR_SNAPSHOT_IMPORTED default} output event name
+     */
+    public void setEventNameMirrorSnapshotImported(String eventNameMirrorSnapshotImported)
+    {
+        this.eventNameMirrorSnapshotImported = eventNameMirrorSnapshotImported;
+    }
+
+    @Override
+    public EventResult processEvent(Event event) throws Exception
+    {
+        Event nextEvent = new Event(eventNameMirrorSnapshotImported, null);
+        if (directory.isEmpty())
+        {
+            return new EventResult("No snapshot directory given.", Collections.singletonList(nextEvent));
+        }
+
+        long start = System.currentTimeMillis();
+        TreeMap<String, Integer> chunks = mirrorSnapshotService.importSnapshot(new File(directory));
+        long records = 0L;
+        for (Integer chunkRecords : chunks.values())
+        {
+            records += chunkRecords;
+        }
+
+        DBObject resultData = BasicDBObjectBuilder.start()
+            .add("msg", "Imported mirror snapshot.")
+            .add("directory", directory)
+            .add("chunks", chunks.size())
+            .add("records", records)
+            .add("elapsed", System.currentTimeMillis() - start)
+            .get();
+        return new EventResult(resultData, Collections.singletonList(nextEvent));
+    }
+}
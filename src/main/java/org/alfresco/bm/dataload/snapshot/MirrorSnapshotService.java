@@ -0,0 +1,638 @@
+/*
+ * #%L
+ * Alfresco Benchmark Load Data
+ * %%
+ * Copyright (C) 2005 - 2018 Alfresco Software Limited
+ * %%
+ * This file is part of the Alfresco software.
+ * If the software was purchased under a paid Alfresco license, the terms of
+ * the paid license agreement will prevail.  Otherwise, the software is
+ * provided under the following open source license terms:
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+package org.alfresco.bm.dataload.snapshot;
+
+import org.alfresco.bm.cm.FileFolderService;
+import org.alfresco.bm.cm.FolderData;
+import org.alfresco.bm.data.DataCreationState;
+import org.alfresco.bm.dataload.files.BulkFileFolderService;
+import org.alfresco.bm.dataload.files.ScheduleVersionLoaders;
+import org.alfresco.bm.site.SiteData;
+import org.alfresco.bm.site.SiteDataService;
+import org.alfresco.bm.site.SiteMemberData;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UTFDataFormatException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Exports and imports the site, site member and file-folder mirrors as a directory of compressed chunk files.
+ * <p/>
+ * Everything is read and written through the data services, so a snapshot taken from one mirror store can be loaded
+ * into any other.  Each chunk holds up to {@link #DEFAULT_CHUNK_SIZE a fixed number} of records of one kind, stored
+ * column by column so that similar values sit together for the compression; folder paths are also stored as the
+ * length of the prefix shared with the previous path plus the rest.  Each chunk ends with a CRC32 of its
+ * uncompressed content, which is checked on import.  The <b>{@value #MANIFEST}</b> file lists the chunks and is
+ * written last, so an incomplete export cannot be imported.
+ * <p/>
+ * Chunks are exported and imported in parallel.  Folders are imported one level at a time so that parent folders
+ * are always recorded before their children.
+ *
+ * @since 3.0
+ */
+public class MirrorSnapshotService
+{
+    public static final String MANIFEST = "snapshot.properties";
+    public static final int DEFAULT_CHUNK_SIZE = 10000;
+    public static final int DEFAULT_THREADS = 4;
+    public static final int DEFAULT_MAX_LEVEL = 32;
+
+    private static final int MAGIC = 0x424D534E;
+    private static final short FORMAT_VERSION = 1;
+    private static final byte TYPE_SITES = 1;
+    private static final byte TYPE_SITE_MEMBERS = 2;
+    private static final byte TYPE_FOLDERS = 3;
+    /** Chunk names sort in the order they have to be imported */
+    private static final String PREFIX_SITES = "1-sites";
+    private static final String PREFIX_SITE_MEMBERS = "2-members";
+    private static final String PREFIX_FOLDERS = "3-folders";
+    private static final String PROP_FORMAT = "format";
+    private static final String PROP_CHUNK_PREFIX = "chunk.";
+    private static final List<String> FOLDER_CONTEXTS = Collections.unmodifiableList(Arrays.asList("", ScheduleVersionLoaders.CONTEXT_VERSIONS));
+
+    private static Log logger = LogFactory.getLog(MirrorSnapshotService.class);
+
+    private final SiteDataService siteDataService;
+    private final FileFolderService fileFolderService;
+    private int chunkSize;
+    private int threads;
+    private int maxLevel;
+
+    /**
+     * @param siteDataService   the site and site member mirrors
+     * @param fileFolderService the file-folder mirror
+     */
+    public MirrorSnapshotService(SiteDataService siteDataService, FileFolderService fileFolderService)
+    {
+        this.siteDataService = siteDataService;
+        this.fileFolderService = fileFolderService;
+        this.chunkSize = DEFAULT_CHUNK_SIZE;
+        this.threads = DEFAULT_THREADS;
+        this.maxLevel = DEFAULT_MAX_LEVEL;
+    }
+
+    /**
+     * Override the {@link #DEFAULT_CHUNK_SIZE default} number of records per chunk
+     */
+    public void setChunkSize(int chunkSize)
+    {
+        this.chunkSize = chunkSize;
+    }
+
+    /**
+     * Override the {@link #DEFAULT_THREADS default} number of chunks exported or imported at the same time
+     */
+    public void setThreads(int threads)
+    {
+        this.threads = threads;
+    }
+
+    /**
+     * Override the {@link #DEFAULT_MAX_LEVEL default} deepest folder level exported
+     */
+    public void setMaxLevel(int maxLevel)
+    {
+        this.maxLevel = maxLevel;
+    }
+
+    /**
+     * Export the mirrors to a directory, replacing any snapshot already there
+     *
+     * @return the number of records in each chunk, by chunk name
+     */
+    public TreeMap<String, Integer> exportSnapshot(final File directory) throws IOException
+    {
+        if (!directory.isDirectory() && !directory.mkdirs())
+        {
+            throw new IOException("Unable to create snapshot directory: " + directory);
+        }
+        File manifestFile = new File(directory, MANIFEST);
+        if (manifestFile.exists() && !manifestFile.delete())
+        {
+            throw new IOException("Unable to replace snapshot in directory: " + directory);
+        }
+        long start = System.currentTimeMillis();
+        final TreeMap<String, Integer> chunks = new TreeMap<>();
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try
+        {
+            // Sites are counted up front so that their pages can be read in parallel
+            long siteCount = siteDataService.countSites(null, null);
+            List<Callable<Void>> tasks = new ArrayList<>();
+            for (int skip = 0, chunk = 0; skip < siteCount; skip += chunkSize, chunk++)
+            {
+                final int pageSkip = skip;
+                final String name = chunkName(PREFIX_SITES, chunk);
+                tasks.add(() ->
+                {
+                    List<SiteData> sites = siteDataService.getSites(null, null, pageSkip, chunkSize);
+                    writeChunk(directory, name, chunks, TYPE_SITES, sites.size(), out -> writeSites(out, sites));
+                    List<SiteMemberData> members = new ArrayList<>();
+                    for (SiteData site : sites)
+                    {
+                        for (int memberSkip = 0; ; memberSkip += chunkSize)
+                        {
+                            List<SiteMemberData> page = siteDataService.getSiteMembers(site.getSiteId(), null, null, memberSkip, chunkSize);
+                            members.addAll(page);
+                            if (page.size() < chunkSize)
+                            {
+                                break;
+                            }
+                        }
+                    }
+                    writeChunk(directory, name.replace(PREFIX_SITES, PREFIX_SITE_MEMBERS), chunks, TYPE_SITE_MEMBERS, members.size(),
+                        out -> writeSiteMembers(out, members));
+                    return null;
+                });
+            }
+            // Folders are read one level at a time, which keeps the pages of a level in a stable order
+            for (int contextIndex = 0; contextIndex < FOLDER_CONTEXTS.size(); contextIndex++)
+            {
+                final String context = FOLDER_CONTEXTS.get(contextIndex);
+                for (int level = 0; level <= maxLevel; level++)
+                {
+                    final String prefix = String.format("%s-%d-%02d", PREFIX_FOLDERS, contextIndex, level);
+                    final long folderLevel = level;
+                    tasks.add(() ->
+                    {
+                        for (int skip = 0, chunk = 0; ; skip += chunkSize, chunk++)
+                        {
+                            List<FolderData> folders = fileFolderService
+                                .getFoldersByCounts(context, folderLevel, folderLevel, null, null, null, null, skip, chunkSize);
+                            if (!folders.isEmpty())
+                            {
+                                writeChunk(directory, chunkName(prefix, chunk), chunks, TYPE_FOLDERS, folders.size(), out -> writeFolders(out, folders));
+                            }
+                            if (folders.size() < chunkSize)
+                            {
+                                return null;
+                            }
+                        }
+                    });
+                }
+            }
+            invokeAll(executor, tasks);
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+
+        Properties manifest = new Properties();
+        manifest.setProperty(PROP_FORMAT, Short.toString(FORMAT_VERSION));
+        for (String name : chunks.keySet())
+        {
+            manifest.setProperty(PROP_CHUNK_PREFIX + name, chunks.get(name).toString());
+        }
+        try (OutputStream out = new FileOutputStream(manifestFile))
+        {
+            manifest.store(out, "Mirror snapshot");
+        }
+        if (logger.isDebugEnabled())
+        {
+            logger.debug("Exported " + chunks.size() + " chunks to " + directory + " in " + (System.currentTimeMillis() - start) + "ms.");
+        }
+        return chunks;
+    }
+
+    /**
+     * Import a snapshot into the mirrors.  Records that are already present are left as they are.
+     *
+     * @return the number of records in each chunk, by chunk name
+     */
+    public TreeMap<String, Integer> importSnapshot(final File directory) throws IOException
+    {
+        File manifestFile = new File(directory, MANIFEST);
+        if (!manifestFile.isFile())
+        {
+            throw new IOException("No complete snapshot in directory: " + directory);
+        }
+        Properties manifest = new Properties();
+        try (InputStream in = new FileInputStream(manifestFile))
+        {
+            manifest.load(in);
+        }
+        if (!Short.toString(FORMAT_VERSION).equals(manifest.getProperty(PROP_FORMAT)))
+        {
+            throw new IOException("Unsupported snapshot format " + manifest.getProperty(PROP_FORMAT) + " in directory: " + directory);
+        }
+        TreeMap<String, Integer> chunks = new TreeMap<>();
+        for (String key : manifest.stringPropertyNames())
+        {
+            if (key.startsWith(PROP_CHUNK_PREFIX))
+            {
+                chunks.put(key.substring(PROP_CHUNK_PREFIX.length()), Integer.valueOf(manifest.getProperty(key)));
+            }
+        }
+
+        long start = System.currentTimeMillis();
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try
+        {
+            // Sites go before their members and each folder level before the next
+            String stage = null;
+            List<Callable<Void>> tasks = new ArrayList<>();
+            for (final String name : chunks.keySet())
+            {
+                String chunkStage = name.substring(0, name.lastIndexOf('-'));
+                if (stage != null && !stage.equals(chunkStage))
+                {
+                    invokeAll(executor, tasks);
+                    tasks.clear();
+                }
+                stage = chunkStage;
+                final int expected = chunks.get(name);
+                tasks.add(() ->
+                {
+                    readChunk(new File(directory, name), expected);
+                    return null;
+                });
+            }
+            invokeAll(executor, tasks);
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+        if (logger.isDebugEnabled())
+        {
+            logger.debug("Imported " + chunks.size() + " chunks from " + directory + " in " + (System.currentTimeMillis() - start) + "ms.");
+        }
+        return chunks;
+    }
+
+    private static void invokeAll(ExecutorService executor, List<Callable<Void>> tasks) throws IOException
+    {
+        try
+        {
+            for (Future<Void> future : executor.invokeAll(tasks))
+            {
+                future.get();
+            }
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while processing snapshot chunks.", e);
+        }
+        catch (ExecutionException e)
+        {
+            if (e.getCause() instanceof IOException)
+            {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("Failed to process snapshot chunk.", e.getCause());
+        }
+    }
+
+    private static String chunkName(String prefix, int chunk)
+    {
+        return String.format("%s-%05d.chunk", prefix, chunk);
+    }
+
+    /**
+     * Writes the records of a chunk
+     */
+    private interface ChunkWriter
+    {
+        void write(DataOutputStream out) throws IOException;
+    }
+
+    private static void writeChunk(File directory, String name, TreeMap<String, Integer> chunks, byte type, int records, ChunkWriter writer)
+        throws IOException
+    {
+        CRC32 crc = new CRC32();
+        try (GZIPOutputStream gzip = new GZIPOutputStream(new BufferedOutputStream(new FileOutputStream(new File(directory, name))), 65536))
+        {
+            DataOutputStream out = new DataOutputStream(new CheckedOutputStream(gzip, crc));
+            out.writeInt(MAGIC);
+            out.writeShort(FORMAT_VERSION);
+            out.writeByte(type);
+            out.writeInt(records);
+            writer.write(out);
+            out.flush();
+            // The checksum covers everything before it
+            new DataOutputStream(gzip).writeLong(crc.getValue());
+        }
+        synchronized (chunks)
+        {
+            chunks.put(name, records);
+        }
+    }
+
+    private void readChunk(File file, int expectedRecords) throws IOException
+    {
+        CRC32 crc = new CRC32();
+        List<SiteData> sites = null;
+        List<SiteMemberData> members = null;
+        List<FolderData> folders = null;
+        try (GZIPInputStream gzip = new GZIPInputStream(new BufferedInputStream(new FileInputStream(file)), 65536))
+        {
+            DataInputStream in = new DataInputStream(new CheckedInputStream(gzip, crc));
+            if (in.readInt() != MAGIC || in.readShort() != FORMAT_VERSION)
+            {
+                throw new IOException("Not a snapshot chunk: " + file);
+            }
+            byte type = in.readByte();
+            int records = in.readInt();
+            if (records != expectedRecords)
+            {
+                throw new IOException("Snapshot chunk " + file + " has " + records + " records but the manifest lists " + expectedRecords);
+            }
+            switch (type)
+            {
+                case TYPE_SITES:
+                    sites = readSites(in, records);
+                    break;
+                case TYPE_SITE_MEMBERS:
+                    members = readSiteMembers(in, records);
+                    break;
+                case TYPE_FOLDERS:
+                    folders = readFolders(in, records);
+                    break;
+                default:
+                    throw new IOException("Unknown record type " + type + " in snapshot chunk: " + file);
+            }
+            long checksum = crc.getValue();
+            if (new DataInputStream(gzip).readLong() != checksum)
+            {
+                throw new IOException("Checksum mismatch in snapshot chunk: " + file);
+            }
+        }
+        catch (EOFException | UTFDataFormatException e)
+        {
+            throw new IOException("Corrupt snapshot chunk: " + file, e);
+        }
+        // Only verified chunks reach the mirrors
+        if (sites != null)
+        {
+            importSites(sites);
+        }
+        else if (members != null)
+        {
+            importSiteMembers(members);
+        }
+        else
+        {
+            importFolders(folders);
+        }
+    }
+
+    private void importSites(List<SiteData> sites)
+    {
+        for (SiteData site : sites)
+        {
+            if (siteDataService.getSite(site.getSiteId()) == null)
+            {
+                siteDataService.addSite(site);
+            }
+        }
+    }
+
+    private void importSiteMembers(List<SiteMemberData> members)
+    {
+        for (SiteMemberData member : members)
+        {
+            if (siteDataService.getSiteMember(member.getSiteId(), member.getUsername()) == null)
+            {
+                siteDataService.addSiteMember(member);
+            }
+        }
+    }
+
+    private void importFolders(List<FolderData> folders)
+    {
+        if (fileFolderService instanceof BulkFileFolderService)
+        {
+            ((BulkFileFolderService) fileFolderService).createNewFolders(folders);
+            return;
+        }
+        for (FolderData folder : folders)
+        {
+            if (fileFolderService.getFolder(folder.getContext(), folder.getPath()) == null)
+            {
+                fileFolderService.createNewFolder(folder);
+            }
+        }
+    }
+
+    private static void writeSites(DataOutputStream out, List<SiteData> sites) throws IOException
+    {
+        String[][] columns = new String[9][sites.size()];
+        for (int i = 0; i < sites.size(); i++)
+        {
+            SiteData site = sites.get(i);
+            columns[0][i] = site.getSiteId();
+            columns[1][i] = site.getGuid();
+            columns[2][i] = site.getDomain();
+            columns[3][i] = site.getSitePreset();
+            columns[4][i] = site.getTitle();
+            columns[5][i] = site.getDescription();
+            columns[6][i] = site.getVisibility();
+            columns[7][i] = site.getType();
+            columns[8][i] = site.getCreationState() == null ? null : site.getCreationState().name();
+        }
+        for (String[] column : columns)
+        {
+            writeColumn(out, column);
+        }
+    }
+
+    private static List<SiteData> readSites(DataInputStream in, int records) throws IOException
+    {
+        String[][] columns = new String[9][];
+        for (int c = 0; c < columns.length; c++)
+        {
+            columns[c] = readColumn(in, records);
+        }
+        List<SiteData> sites = new ArrayList<>(records);
+        for (int i = 0; i < records; i++)
+        {
+            SiteData site = new SiteData();
+            site.setSiteId(columns[0][i]);
+            site.setGuid(columns[1][i]);
+            site.setDomain(columns[2][i]);
+            site.setSitePreset(columns[3][i]);
+            site.setTitle(columns[4][i]);
+            site.setDescription(columns[5][i]);
+            site.setVisibility(columns[6][i]);
+            site.setType(columns[7][i]);
+            site.setCreationState(columns[8][i] == null ? null : DataCreationState.valueOf(columns[8][i]));
+            sites.add(site);
+        }
+        return sites;
+    }
+
+    private static void writeSiteMembers(DataOutputStream out, List<SiteMemberData> members) throws IOException
+    {
+        String[][] columns = new String[4][members.size()];
+        for (int i = 0; i < members.size(); i++)
+        {
+            SiteMemberData member = members.get(i);
+            columns[0][i] = member.getSiteId();
+            columns[1][i] = member.getUsername();
+            columns[2][i] = member.getRole();
+            columns[3][i] = member.getCreationState() == null ? null : member.getCreationState().name();
+        }
+        for (String[] column : columns)
+        {
+            writeColumn(out, column);
+        }
+    }
+
+    private static List<SiteMemberData> readSiteMembers(DataInputStream in, int records) throws IOException
+    {
+        String[][] columns = new String[4][];
+        for (int c = 0; c < columns.length; c++)
+        {
+            columns[c] = readColumn(in, records);
+        }
+        List<SiteMemberData> members = new ArrayList<>(records);
+        for (int i = 0; i < records; i++)
+        {
+            SiteMemberData member = new SiteMemberData();
+            member.setSiteId(columns[0][i]);
+            member.setUsername(columns[1][i]);
+            member.setRole(columns[2][i]);
+            member.setCreationState(columns[3][i] == null ? null : DataCreationState.valueOf(columns[3][i]));
+            members.add(member);
+        }
+        return members;
+    }
+
+    private static void writeFolders(DataOutputStream out, List<FolderData> folders) throws IOException
+    {
+        // Sorted paths share longer prefixes
+        folders = new ArrayList<>(folders);
+        folders.sort((folder1, folder2) -> folder1.getPath().compareTo(folder2.getPath()));
+        String[] ids = new String[folders.size()];
+        String[] contexts = new String[folders.size()];
+        for (int i = 0; i < folders.size(); i++)
+        {
+            ids[i] = folders.get(i).getId();
+            contexts[i] = folders.get(i).getContext();
+        }
+        writeColumn(out, ids);
+        writeColumn(out, contexts);
+        // Front-coded paths
+        String previous = "";
+        for (FolderData folder : folders)
+        {
+            String path = folder.getPath();
+            int shared = 0;
+            int max = Math.min(previous.length(), path.length());
+            while (shared < max && previous.charAt(shared) == path.charAt(shared))
+            {
+                shared++;
+            }
+            out.writeShort(shared);
+            out.writeUTF(path.substring(shared));
+            previous = path;
+        }
+        for (FolderData folder : folders)
+        {
+            out.writeLong(folder.getFolderCount());
+        }
+        for (FolderData folder : folders)
+        {
+            out.writeLong(folder.getFileCount());
+        }
+    }
+
+    private static List<FolderData> readFolders(DataInputStream in, int records) throws IOException
+    {
+        String[] ids = readColumn(in, records);
+        String[] contexts = readColumn(in, records);
+        String[] paths = new String[records];
+        String previous = "";
+        for (int i = 0; i < records; i++)
+        {
+            int shared = in.readUnsignedShort();
+            paths[i] = previous.substring(0, shared) + in.readUTF();
+            previous = paths[i];
+        }
+        long[] folderCounts = new long[records];
+        for (int i = 0; i < records; i++)
+        {
+            folderCounts[i] = in.readLong();
+        }
+        List<FolderData> folders = new ArrayList<>(records);
+        for (int i = 0; i < records; i++)
+        {
+            folders.add(new FolderData(ids[i], contexts[i], paths[i], folderCounts[i], in.readLong()));
+        }
+        return folders;
+    }
+
+    private static void writeColumn(DataOutputStream out, String[] values) throws IOException
+    {
+        for (String value : values)
+        {
+            out.writeBoolean(value != null);
+            if (value != null)
+            {
+                out.writeUTF(value);
+            }
+        }
+    }
+
+    private static String[] readColumn(DataInputStream in, int records) throws IOException
+    {
+        String[] values = new String[records];
+        for (int i = 0; i < records; i++)
+        {
+            values[i] = in.readBoolean() ? in.readUTF() : null;
+        }
+        return values;
+    }
+}
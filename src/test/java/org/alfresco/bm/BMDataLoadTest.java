@@ -158,6 +158,7 @@ public class BMDataLoadTest extends BMTestRunnerListenerAdaptor
         TestRunServicesCache services = testCtx.getBean(TestRunServicesCache.class);
         ResultService resultService = services.getResultService(test, run);
 
+        // The optional stages are disabled by default and routed around by the producers, so they leave no results
         List<String> eventNames = resultService.getEventNames();
         assertEquals("Missing events.  Have: " + eventNames, 7, eventNames.size());
 
@@ -121,6 +121,31 @@ public class EventProcessorsTest
         assertEquals(1, siteManagers.size());
     }
 
+    @Test
+    public void prepareSitesRestart() throws Exception
+    {
+        prepareSites();
+        // Fail some of the sites
+        List<SiteData> someSites = siteDataService.getSites(null, null, 0, 10);
+        for (SiteData site : someSites)
+        {
+            siteDataService.setSiteCreationState(site.getSiteId(), null, DataCreationState.Failed);
+        }
+
+        StopWatch stopWatch = new StopWatch();
+        PrepareSites processor = new PrepareSites(userDataService, siteDataService);
+        processor.setSitesCount(150);
+        EventResult result = processor.processEvent(null, stopWatch);
+        assertEquals("Prepared 60 sites to reach a count of 150 valid sites.", result.getData());
+        assertEquals(160L, siteDataService.countSites(null, null));
+        assertEquals(10L, siteDataService.countSites(null, DataCreationState.Failed));
+
+        // Nothing more is needed
+        stopWatch = new StopWatch();
+        result = processor.processEvent(null, stopWatch);
+        assertEquals("Prepared 0 sites to reach a count of 150 valid sites.", result.getData());
+    }
+
     @Test
     public void prepareSiteMembersNoSites() throws Exception
     {
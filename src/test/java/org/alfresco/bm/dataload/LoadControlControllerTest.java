@@ -0,0 +1,141 @@
+/*
+ * #%L
+ * Alfresco Benchmark Load Data
+ * %%
+ * Copyright (C) 2005 - 2018 Alfresco Software Limited
+ * %%
+ * This file is part of the Alfresco software.
+ * If the software was purchased under a paid Alfresco license, the terms of
+ * the paid license agreement will prevail.  Otherwise, the software is
+ * provided under the following open source license terms:
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+package org.alfresco.bm.dataload;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.setup.MockMvcBuilders;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.delete;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.jsonPath;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+
+/**
+ * @see LoadControlController
+ * @since 3.0
+ */
+@RunWith(JUnit4.class)
+public class LoadControlControllerTest
+{
+    private static final String URL = "/api/load/test/run1";
+
+    private LoadControl loadControl;
+    private MockMvc mvc;
+
+    @Before
+    public void setUp()
+    {
+        loadControl = LoadControl.getInstance("test", "run1");
+        mvc = MockMvcBuilders.standaloneSetup(new LoadControlController()).build();
+    }
+
+    @After
+    public void tearDown()
+    {
+        loadControl.release();
+    }
+
+    @Test
+    public void unknownRunNotFound() throws Exception
+    {
+        mvc.perform(get("/api/load/test/missing")).andExpect(status().isNotFound());
+        mvc.perform(post("/api/load/test/missing/pause")).andExpect(status().isNotFound());
+    }
+
+    @Test
+    public void pauseAndResume() throws Exception
+    {
+        mvc.perform(post(URL + "/pause"))
+            .andExpect(status().isOk())
+            .andExpect(jsonPath("$.test").value("test"))
+            .andExpect(jsonPath("$.run").value("run1"))
+            .andExpect(jsonPath("$.paused").value(true));
+        assertTrue(loadControl.isPaused());
+
+        mvc.perform(post(URL + "/resume"))
+            .andExpect(status().isOk())
+            .andExpect(jsonPath("$.paused").value(false));
+        assertFalse(loadControl.isPaused());
+    }
+
+    @Test
+    public void setAndClearOverrides() throws Exception
+    {
+        mvc.perform(post(URL + "/overrides").param("maxActiveLoaders", "4").param("arrivalRate", "12.5"))
+            .andExpect(status().isOk())
+            .andExpect(jsonPath("$.overrides.maxActiveLoaders").value(4))
+            .andExpect(jsonPath("$.overrides.arrivalRate").value(12.5));
+        assertEquals(4, loadControl.getMaxActiveLoaders(8));
+
+        mvc.perform(get(URL))
+            .andExpect(status().isOk())
+            .andExpect(jsonPath("$.overrides.maxActiveLoaders").value(4));
+
+        mvc.perform(delete(URL + "/overrides"))
+            .andExpect(status().isOk())
+            .andExpect(jsonPath("$.overrides.maxActiveLoaders").doesNotExist());
+        assertEquals(8, loadControl.getMaxActiveLoaders(8));
+    }
+
+    @Test
+    public void invalidOverridesRejectedWithNoChange() throws Exception
+    {
+        loadControl.setMaxActiveLoaders(4);
+        LoadControl.Overrides before = loadControl.getOverrides();
+
+        mvc.perform(post(URL + "/overrides").param("maxActiveLoaders", "2").param("loadCheckDelay", "-5"))
+            .andExpect(status().isBadRequest())
+            .andExpect(jsonPath("$.error").exists());
+        mvc.perform(post(URL + "/overrides").param("arrivalRate", "0"))
+            .andExpect(status().isBadRequest());
+
+        assertEquals(before, loadControl.getOverrides());
+        assertEquals(4, loadControl.getMaxActiveLoaders(8));
+    }
+
+    @Test
+    public void resetResumesAndClearsOverrides() throws Exception
+    {
+        loadControl.pause();
+        loadControl.setOverrides(4, 50L, null, null, null, null);
+
+        mvc.perform(post(URL + "/reset"))
+            .andExpect(status().isOk())
+            .andExpect(jsonPath("$.paused").value(false))
+            .andExpect(jsonPath("$.overrides.maxActiveLoaders").doesNotExist());
+        assertFalse(loadControl.isPaused());
+        assertEquals(100L, loadControl.getLoadCheckDelay(100L));
+    }
+}
@@ -0,0 +1,182 @@
+/*
+ * #%L
+ * Alfresco Benchmark Load Data
+ * %%
+ * Copyright (C) 2005 - 2018 Alfresco Software Limited
+ * %%
+ * This file is part of the Alfresco software.
+ * If the software was purchased under a paid Alfresco license, the terms of
+ * the paid license agreement will prevail.  Otherwise, the software is
+ * provided under the following open source license terms:
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+package org.alfresco.bm.dataload;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * @see LoadControl
+ * @since 3.0
+ */
+@RunWith(JUnit4.class)
+public class LoadControlTest
+{
+    private LoadControl loadControl;
+
+    @Before
+    public void setUp()
+    {
+        loadControl = LoadControl.getInstance("test", "run1");
+    }
+
+    @After
+    public void tearDown()
+    {
+        LoadControl.getInstance("test", "run1").release();
+        LoadControl.getInstance("test", "run2").release();
+    }
+
+    @Test
+    public void eachRunHasItsOwnInstance()
+    {
+        assertSame(loadControl, LoadControl.getInstance("test", "run1"));
+        LoadControl other = LoadControl.getInstance("test", "run2");
+        assertNotSame(loadControl, other);
+
+        loadControl.pause();
+        loadControl.setMaxActiveLoaders(3);
+        assertFalse(other.isPaused());
+        assertEquals(8, other.getMaxActiveLoaders(8));
+
+        // A second run starting does not touch the first
+        other.reset();
+        assertTrue(loadControl.isPaused());
+        assertEquals(3, loadControl.getMaxActiveLoaders(8));
+    }
+
+    @Test
+    public void releasedRunIsForgotten()
+    {
+        loadControl.pause();
+        loadControl.release();
+        assertNull(LoadControl.findInstance("test", "run1"));
+        assertFalse(LoadControl.getInstance("test", "run1").isPaused());
+    }
+
+    @Test
+    public void pauseAndResume()
+    {
+        assertFalse(loadControl.isPaused());
+        loadControl.pause();
+        assertTrue(loadControl.isPaused());
+        assertEquals(Boolean.TRUE, loadControl.getState().get("paused"));
+        loadControl.resume();
+        assertFalse(loadControl.isPaused());
+    }
+
+    @Test
+    public void configuredSettingsUsedUntilOverridden()
+    {
+        assertEquals(8, loadControl.getMaxActiveLoaders(8));
+        assertEquals(100L, loadControl.getLoadCheckDelay(100L));
+        assertEquals(2.5, loadControl.getArrivalRate(2.5), 0.0);
+        assertTrue(loadControl.isRequestRenditions(true));
+
+        loadControl.setOverrides(4, 50L, null, null, 10.0, false);
+        assertEquals(4, loadControl.getMaxActiveLoaders(8));
+        assertEquals(50L, loadControl.getLoadCheckDelay(100L));
+        assertEquals(1000L, loadControl.getSiteCreationDelay(1000L));
+        assertEquals(10.0, loadControl.getArrivalRate(2.5), 0.0);
+        assertFalse(loadControl.isRequestRenditions(true));
+
+        // Values left out are kept
+        loadControl.setOverrides(null, 75L, null, null, null, null);
+        assertEquals(4, loadControl.getMaxActiveLoaders(8));
+        assertEquals(75L, loadControl.getLoadCheckDelay(100L));
+
+        loadControl.clearOverrides();
+        assertEquals(8, loadControl.getMaxActiveLoaders(8));
+        assertEquals(100L, loadControl.getLoadCheckDelay(100L));
+    }
+
+    @Test
+    public void invalidOverridesChangeNothing()
+    {
+        loadControl.setOverrides(4, 50L, null, null, null, null);
+        LoadControl.Overrides before = loadControl.getOverrides();
+        try
+        {
+            loadControl.setOverrides(2, -1L, null, null, null, null);
+            fail("Negative delay accepted");
+        }
+        catch (IllegalArgumentException e)
+        {
+            // Expected
+        }
+        try
+        {
+            loadControl.setArrivalRate(0.0);
+            fail("Zero arrival rate accepted");
+        }
+        catch (IllegalArgumentException e)
+        {
+            // Expected
+        }
+        assertSame(before, loadControl.getOverrides());
+        assertEquals(4, loadControl.getMaxActiveLoaders(8));
+    }
+
+    @Test
+    public void overridesAreReplacedWhole()
+    {
+        LoadControl.Overrides before = loadControl.getOverrides();
+        loadControl.setOverrides(4, 50L, null, null, null, null);
+        LoadControl.Overrides after = loadControl.getOverrides();
+
+        // A pass holding the earlier object sees none of the change
+        assertEquals(8, before.getMaxActiveLoaders(8));
+        assertEquals(100L, before.getLoadCheckDelay(100L));
+        assertEquals(4, after.getMaxActiveLoaders(8));
+        assertEquals(50L, after.getLoadCheckDelay(100L));
+    }
+
+    @Test
+    public void resetResumesAndClearsOverrides()
+    {
+        loadControl.pause();
+        loadControl.setOverrides(4, 50L, 10L, 20L, 5.0, true);
+        loadControl.reset();
+
+        assertFalse(loadControl.isPaused());
+        assertSame(LoadControl.Overrides.NONE, loadControl.getOverrides());
+        Map<?, ?> overrides = (Map<?, ?>) loadControl.getState().get("overrides");
+        assertTrue(overrides.isEmpty());
+    }
+}
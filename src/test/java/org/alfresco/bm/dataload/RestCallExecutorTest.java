@@ -0,0 +1,301 @@
+/*
+ * #%L
+ * Alfresco Benchmark Load Data
+ * %%
+ * Copyright (C) 2005 - 2018 Alfresco Software Limited
+ * %%
+ * This file is part of the Alfresco software.
+ * If the software was purchased under a paid Alfresco license, the terms of
+ * the paid license agreement will prevail.  Otherwise, the software is
+ * provided under the following open source license terms:
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+package org.alfresco.bm.dataload;
+
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * @see RestCallExecutor
+ * @since 3.0
+ */
+@RunWith(JUnit4.class)
+public class RestCallExecutorTest
+{
+    private static final int CALLS = 200;
+    private static final long CALL_TIME = 200L;
+
+    private RestCallExecutor executor;
+
+    @After
+    public void tearDown()
+    {
+        if (executor != null)
+        {
+            executor.destroy();
+        }
+    }
+
+    private RestCallExecutor newExecutor(String mode)
+    {
+        executor = new RestCallExecutor();
+        executor.setMode(mode);
+        executor.afterPropertiesSet();
+        return executor;
+    }
+
+    /**
+     * Stand in for virtual threads with a pool of platform threads, so that the concurrent calls are tested on
+     * any Java version
+     */
+    private RestCallExecutor newPooledExecutor(int maxInFlight)
+    {
+        AtomicInteger threadCount = new AtomicInteger();
+        ExecutorService pool = Executors.newCachedThreadPool(runnable ->
+        {
+            Thread thread = new Thread(runnable, "RestCall-" + threadCount.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor = new RestCallExecutor(pool, maxInFlight);
+        return executor;
+    }
+
+    private static boolean hasVirtualThreads()
+    {
+        try
+        {
+            Thread.class.getMethod("ofVirtual");
+            return true;
+        }
+        catch (NoSuchMethodException e)
+        {
+            return false;
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUnknownMode()
+    {
+        new RestCallExecutor().setMode("fibres");
+    }
+
+    @Test
+    public void testPlatformCallsInOrderOnCallingThread() throws Exception
+    {
+        newExecutor(RestCallExecutor.MODE_PLATFORM);
+        assertFalse(executor.isVirtual());
+
+        Thread caller = Thread.currentThread();
+        List<Callable<String>> calls = new ArrayList<Callable<String>>();
+        for (int i = 0; i < 5; i++)
+        {
+            String result = "call-" + i;
+            calls.add(() ->
+            {
+                assertTrue(Thread.currentThread() == caller);
+                return result;
+            });
+        }
+        assertEquals(Arrays.asList("call-0", "call-1", "call-2", "call-3", "call-4"), executor.invokeAll(calls));
+    }
+
+    @Test
+    public void testPlatformStopsAtFirstFailure() throws Exception
+    {
+        newExecutor(RestCallExecutor.MODE_PLATFORM);
+        AtomicInteger made = new AtomicInteger();
+        List<Callable<Void>> calls = new ArrayList<Callable<Void>>();
+        for (int i = 0; i < 5; i++)
+        {
+            boolean fails = (i == 2);
+            calls.add(() ->
+            {
+                made.incrementAndGet();
+                if (fails)
+                {
+                    throw new IllegalStateException("Failed");
+                }
+                return null;
+            });
+        }
+        try
+        {
+            executor.invokeAll(calls);
+            fail("The failure was not passed on.");
+        }
+        catch (IllegalStateException e)
+        {
+            // Expected
+        }
+        assertEquals(3, made.get());
+    }
+
+    @Test
+    public void testVirtualFallsBackWithoutVirtualThreads()
+    {
+        Assume.assumeFalse(hasVirtualThreads());
+        newExecutor(RestCallExecutor.MODE_VIRTUAL);
+        assertFalse(executor.isVirtual());
+    }
+
+    @Test
+    public void testVirtualCallsAtOnce() throws Exception
+    {
+        Assume.assumeTrue(hasVirtualThreads());
+        newExecutor(RestCallExecutor.MODE_VIRTUAL);
+        assertTrue(executor.isVirtual());
+        checkCallsAtOnce(CALLS);
+    }
+
+    @Test
+    public void testPooledCallsAtOnce() throws Exception
+    {
+        newPooledExecutor(RestCallExecutor.DEFAULT_MAX_IN_FLIGHT);
+        assertTrue(executor.isVirtual());
+        checkCallsAtOnce(CALLS);
+    }
+
+    private void checkCallsAtOnce(int callCount) throws Exception
+    {
+        List<Callable<String>> calls = new ArrayList<Callable<String>>();
+        for (int i = 0; i < callCount; i++)
+        {
+            calls.add(() ->
+            {
+                Thread.sleep(CALL_TIME);
+                return Thread.currentThread().getName();
+            });
+        }
+        long start = System.currentTimeMillis();
+        List<String> threadNames = executor.invokeAll(calls);
+        long time = System.currentTimeMillis() - start;
+
+        assertEquals(callCount, threadNames.size());
+        assertTrue("Calls were made one at a time: " + time + "ms", time < callCount * CALL_TIME / 10);
+        for (String threadName : threadNames)
+        {
+            assertTrue(threadName.startsWith("RestCall-"));
+        }
+    }
+
+    @Test
+    public void testPooledResultsInOrder() throws Exception
+    {
+        newPooledExecutor(RestCallExecutor.DEFAULT_MAX_IN_FLIGHT);
+        List<Callable<Integer>> calls = new ArrayList<Callable<Integer>>();
+        for (int i = 0; i < 5; i++)
+        {
+            int result = i;
+            calls.add(() ->
+            {
+                // The later calls finish first
+                Thread.sleep((5 - result) * 20L);
+                return result;
+            });
+        }
+        assertEquals(Arrays.asList(0, 1, 2, 3, 4), executor.invokeAll(calls));
+    }
+
+    @Test
+    public void testPooledCallsInFlightAreCapped() throws Exception
+    {
+        newPooledExecutor(2);
+        AtomicInteger active = new AtomicInteger();
+        AtomicInteger maxActive = new AtomicInteger();
+        List<Callable<Void>> calls = new ArrayList<Callable<Void>>();
+        for (int i = 0; i < 10; i++)
+        {
+            calls.add(() ->
+            {
+                maxActive.accumulateAndGet(active.incrementAndGet(), Math::max);
+                Thread.sleep(20L);
+                active.decrementAndGet();
+                return null;
+            });
+        }
+        executor.invokeAll(calls);
+        assertEquals(2, maxActive.get());
+    }
+
+    @Test
+    public void testVirtualStopsAtFirstFailure() throws Exception
+    {
+        Assume.assumeTrue(hasVirtualThreads());
+        newExecutor(RestCallExecutor.MODE_VIRTUAL);
+        checkStopsAtFirstFailure();
+    }
+
+    @Test
+    public void testPooledStopsAtFirstFailure() throws Exception
+    {
+        newPooledExecutor(RestCallExecutor.DEFAULT_MAX_IN_FLIGHT);
+        checkStopsAtFirstFailure();
+    }
+
+    /**
+     * A late call fails straight away while the others are still waiting, so none of the others finish
+     */
+    private void checkStopsAtFirstFailure() throws Exception
+    {
+        AtomicInteger made = new AtomicInteger();
+        List<Callable<Void>> calls = new ArrayList<Callable<Void>>();
+        for (int i = 0; i < 10; i++)
+        {
+            boolean fails = (i == 9);
+            calls.add(() ->
+            {
+                if (fails)
+                {
+                    throw new IllegalStateException("Failed");
+                }
+                Thread.sleep(CALL_TIME * 10);
+                made.incrementAndGet();
+                return null;
+            });
+        }
+        long start = System.currentTimeMillis();
+        try
+        {
+            executor.invokeAll(calls);
+            fail("The failure was not passed on.");
+        }
+        catch (IllegalStateException e)
+        {
+            // Expected
+        }
+        long time = System.currentTimeMillis() - start;
+        assertTrue("Waited for the other calls: " + time + "ms", time < CALL_TIME * 5);
+        Thread.sleep(CALL_TIME * 15);
+        assertEquals(0, made.get());
+    }
+}
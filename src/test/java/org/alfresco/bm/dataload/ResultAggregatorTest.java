@@ -0,0 +1,174 @@
+/*
+ * #%L
+ * Alfresco Benchmark Load Data
+ * %%
+ * Copyright (C) 2005 - 2018 Alfresco Software Limited
+ * %%
+ * This file is part of the Alfresco software.
+ * If the software was purchased under a paid Alfresco license, the terms of
+ * the paid license agreement will prevail.  Otherwise, the software is
+ * provided under the following open source license terms:
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+package org.alfresco.bm.dataload;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @see ResultAggregator
+ * @since 3.0
+ */
+@RunWith(JUnit4.class)
+public class ResultAggregatorTest
+{
+    private ResultAggregator aggregator;
+
+    @Before
+    public void setUp()
+    {
+        aggregator = new ResultAggregator();
+        aggregator.setEnabled(true);
+    }
+
+    @Test
+    public void disabledKeepsEveryResult()
+    {
+        aggregator.setEnabled(false);
+        DBObject detail = new BasicDBObject("msg", "Created 1 folders and 1 files.");
+
+        assertSame(detail, aggregator.aggregate("loadSiteFolders", detail, 10L, 1L, 1L, 100L));
+        assertTrue(aggregator.flush().isEmpty());
+    }
+
+    @Test
+    public void keepsOneResultInEveryN()
+    {
+        aggregator.setSampleEvery(3);
+        for (int i = 1; i <= 9; i++)
+        {
+            DBObject detail = new BasicDBObject("event", i);
+            Object result = aggregator.aggregate("loadSiteFolders", detail, 10L, 1L, 1L, 100L);
+            if (i % 3 == 0)
+            {
+                assertSame("Event " + i + " is a sample", detail, result);
+            }
+            else
+            {
+                assertNull("Event " + i + " is rolled up", result);
+            }
+        }
+    }
+
+    @Test
+    public void sampleEveryZeroKeepsNone()
+    {
+        aggregator.setSampleEvery(0);
+        for (int i = 0; i < 10; i++)
+        {
+            assertNull(aggregator.aggregate("loadSiteFolders", new BasicDBObject(), 10L, 1L, 1L, 100L));
+        }
+        assertEquals(10L, aggregator.flush().get(0).get("count"));
+    }
+
+    @Test
+    public void rollsUpTotalsAndLatenciesByEventName()
+    {
+        aggregator.setSampleEvery(0);
+        Map<String, Long> small = Collections.singletonMap("small", 100L);
+        Map<String, Long> mixed = new HashMap<String, Long>();
+        mixed.put("small", 50L);
+        mixed.put("large", 1000L);
+        aggregator.aggregate("loadSiteFolders", null, 1L, 2L, 10L, 100L, small);
+        aggregator.aggregate("loadSiteFolders", null, 3L, 0L, 10L, 1050L, mixed);
+        aggregator.aggregate("loadSiteFolders", null, 100L, 1L, 0L, 0L);
+        aggregator.aggregate("loadSiteFolders", null, 70000L, 0L, 5L, 0L);
+        aggregator.aggregate("deleteSiteFolders", null, 20L, 4L, 0L, 0L);
+
+        List<DBObject> summaries = aggregator.flush();
+        assertEquals(2, summaries.size());
+
+        DBObject loads = summaries.get(0);
+        assertEquals("loadSiteFolders", loads.get("event"));
+        assertEquals(4L, loads.get("count"));
+        assertEquals(3L, loads.get("folders"));
+        assertEquals(25L, loads.get("files"));
+        assertEquals(1150L, loads.get("bytes"));
+        assertEquals((1L + 3L + 100L + 70000L) / 4, loads.get("meanLatency"));
+        assertEquals(70000L, loads.get("maxLatency"));
+        DBObject histogram = (DBObject) loads.get("latencyHistogram");
+        assertEquals(1L, histogram.get("le1"));
+        assertEquals(1L, histogram.get("le5"));
+        assertEquals(1L, histogram.get("le100"));
+        assertEquals(1L, histogram.get("gt60000"));
+        assertEquals(4, histogram.keySet().size());
+        DBObject bytesByBucket = (DBObject) loads.get("bytesByBucket");
+        assertEquals(150L, bytesByBucket.get("small"));
+        assertEquals(1000L, bytesByBucket.get("large"));
+
+        DBObject deletes = summaries.get(1);
+        assertEquals("deleteSiteFolders", deletes.get("event"));
+        assertEquals(1L, deletes.get("count"));
+        assertEquals(4L, deletes.get("folders"));
+        assertNull(deletes.get("bytesByBucket"));
+
+        // Flushing closes the intervals
+        assertTrue(aggregator.flush().isEmpty());
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void closedIntervalsRideOnTheNextResult()
+    {
+        // Every interval has closed by the time the next event arrives
+        aggregator.setInterval(0L);
+        aggregator.setSampleEvery(2);
+
+        assertNull(aggregator.aggregate("loadSiteFolders", new BasicDBObject(), 10L, 1L, 1L, 100L));
+
+        // A sample carries the summary of the interval before it
+        DBObject detail = new BasicDBObject("msg", "sampled");
+        DBObject sampled = (DBObject) aggregator.aggregate("loadSiteFolders", detail, 20L, 1L, 1L, 100L);
+        assertSame(detail, sampled);
+        List<DBObject> summaries = (List<DBObject>) sampled.get(ResultAggregator.FIELD_SUMMARIES);
+        assertEquals(1, summaries.size());
+        assertEquals(1L, summaries.get(0).get("count"));
+        assertEquals(10L, summaries.get(0).get("maxLatency"));
+
+        // Otherwise the summary is recorded on its own
+        DBObject unsampled = (DBObject) aggregator.aggregate("loadSiteFolders", new BasicDBObject("msg", "rolled up"), 30L, 1L, 1L, 100L);
+        assertNotNull(unsampled);
+        assertNull(unsampled.get("msg"));
+        summaries = (List<DBObject>) unsampled.get(ResultAggregator.FIELD_SUMMARIES);
+        assertEquals(1, summaries.size());
+        assertEquals(20L, summaries.get(0).get("maxLatency"));
+    }
+}
@@ -0,0 +1,278 @@
+/*
+ * #%L
+ * Alfresco Benchmark Load Data
+ * %%
+ * Copyright (C) 2005 - 2018 Alfresco Software Limited
+ * %%
+ * This file is part of the Alfresco software.
+ * If the software was purchased under a paid Alfresco license, the terms of
+ * the paid license agreement will prevail.  Otherwise, the software is
+ * provided under the following open source license terms:
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+package org.alfresco.bm.dataload.checkpoint;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DB;
+import com.mongodb.DBCollection;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+import org.alfresco.bm.cm.FileFolderService;
+import org.alfresco.bm.cm.FolderData;
+import org.alfresco.bm.data.DataCreationState;
+import org.alfresco.bm.dataload.files.ScheduleVersionLoaders;
+import org.alfresco.bm.site.SiteData;
+import org.alfresco.bm.site.SiteDataService;
+import org.alfresco.bm.site.SiteMemberData;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyBoolean;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyZeroInteractions;
+import static org.mockito.Mockito.when;
+
+/**
+ * Runs the checkpoints and leases against a mocked collection that keeps its documents in memory
+ *
+ * @see CheckpointService
+ * @since 3.0
+ */
+@RunWith(JUnit4.class)
+public class CheckpointServiceTest
+{
+    private static final long LEASE_DURATION = 1000L;
+    private static final String PATH = "/Sites/site1/documentLibrary/folder";
+    private static final String LOCK_PATH = PATH + "/locked";
+
+    private Map<Object, DBObject> documents;
+    private DBCollection collection;
+    private SiteDataService siteDataService;
+    private FileFolderService fileFolderService;
+    private CheckpointService service;
+
+    @Before
+    public void setUp()
+    {
+        documents = new LinkedHashMap<Object, DBObject>();
+        collection = mock(DBCollection.class);
+        mockCollection();
+        DB db = mock(DB.class);
+        when(db.getCollection("checkpoints")).thenReturn(collection);
+
+        siteDataService = mock(SiteDataService.class);
+        fileFolderService = mock(FileFolderService.class);
+        service = new CheckpointService(db, "checkpoints", siteDataService, fileFolderService);
+        service.setEnabled(true);
+        service.setLeaseDuration(LEASE_DURATION);
+    }
+
+    private void mockCollection()
+    {
+        when(collection.update(any(DBObject.class), any(DBObject.class), anyBoolean(), anyBoolean())).thenAnswer(invocation ->
+        {
+            Object id = ((DBObject) invocation.getArguments()[0]).get("_id");
+            DBObject update = (DBObject) invocation.getArguments()[1];
+            DBObject document = update.containsField("$set") ? documents.get(id) : null;
+            if (document == null)
+            {
+                document = new BasicDBObject("_id", id);
+                documents.put(id, document);
+            }
+            document.putAll(update.containsField("$set") ? (DBObject) update.get("$set") : update);
+            return null;
+        });
+        when(collection.findOne(any(DBObject.class))).thenAnswer(invocation -> documents.get(((DBObject) invocation.getArguments()[0]).get("_id")));
+        when(collection.remove(any(DBObject.class))).thenAnswer(invocation ->
+        {
+            documents.remove(((DBObject) invocation.getArguments()[0]).get("_id"));
+            return null;
+        });
+        when(collection.find(any(DBObject.class))).thenAnswer(invocation ->
+        {
+            // Only the query for leases that have run out is used
+            DBObject expiresObj = (DBObject) ((DBObject) invocation.getArguments()[0]).get("expires");
+            long before = ((Number) expiresObj.get("$lt")).longValue();
+            List<DBObject> found = new ArrayList<DBObject>();
+            for (DBObject document : documents.values())
+            {
+                Object expires = document.get("expires");
+                if (expires != null && ((Number) expires).longValue() < before)
+                {
+                    found.add(document);
+                }
+            }
+            DBCursor cursor = mock(DBCursor.class);
+            when(cursor.iterator()).thenReturn(found.iterator());
+            return cursor;
+        });
+    }
+
+    private SiteData site(DataCreationState creationState)
+    {
+        SiteData site = mock(SiteData.class);
+        when(site.getCreationState()).thenReturn(creationState);
+        return site;
+    }
+
+    private void recordFolder(long folderCount, long fileCount, boolean locked)
+    {
+        when(fileFolderService.getFolder("", PATH)).thenReturn(new FolderData("1", "", PATH, folderCount, fileCount));
+        if (locked)
+        {
+            when(fileFolderService.getFolder("", LOCK_PATH)).thenReturn(new FolderData("2", "", LOCK_PATH, Long.MAX_VALUE, Long.MAX_VALUE));
+            when(fileFolderService.deleteFolder("", LOCK_PATH, false)).thenReturn(1);
+        }
+    }
+
+    @Test
+    public void nothingIsRecordedWhenDisabled()
+    {
+        service.setEnabled(false);
+        assertEquals(0, service.checkpoint("createSites", null));
+        service.leaseSite("site1", "manager", System.currentTimeMillis());
+        service.leaseFolderLock("", PATH, 0L, 10L);
+        service.leaseVersionClaim(PATH);
+        assertNull(service.getCheckpoint());
+        assertEquals(0, service.reclaimAllLeases());
+        verifyZeroInteractions(collection, siteDataService, fileFolderService);
+    }
+
+    @Test
+    public void checkpointRecordsPhase()
+    {
+        DBObject data = new BasicDBObject(ScheduleVersionLoaders.FIELD_SKIP, 500);
+        service.checkpoint("scheduleVersionLoaders", data);
+        DBObject checkpoint = service.getCheckpoint();
+        assertEquals("scheduleVersionLoaders", checkpoint.get(CheckpointService.FIELD_PHASE));
+        assertEquals(data, checkpoint.get(CheckpointService.FIELD_DATA));
+
+        service.clearCheckpoint();
+        assertNull(service.getCheckpoint());
+    }
+
+    @Test
+    public void expiredSiteLeaseReturnsScheduledSite()
+    {
+        SiteData site = site(DataCreationState.Scheduled);
+        when(siteDataService.getSite("site1")).thenReturn(site);
+        service.leaseSite("site1", "manager", System.currentTimeMillis() - 2 * LEASE_DURATION);
+
+        assertEquals(1, service.checkpoint("createSites", null));
+        verify(siteDataService).setSiteCreationState("site1", null, DataCreationState.NotScheduled);
+        verify(siteDataService).setSiteMemberCreationState("site1", "manager", DataCreationState.NotScheduled);
+        // The lease is dropped once it has been dealt with
+        assertEquals(0, service.reclaimAllLeases());
+    }
+
+    @Test
+    public void liveSiteLeaseIsKept()
+    {
+        SiteData site = site(DataCreationState.Scheduled);
+        when(siteDataService.getSite("site1")).thenReturn(site);
+        service.leaseSite("site1", "manager", System.currentTimeMillis());
+
+        assertEquals(0, service.checkpoint("createSites", null));
+        verify(siteDataService, never()).setSiteCreationState(anyString(), anyString(), any(DataCreationState.class));
+        // A resumed run has nothing still working on it
+        assertEquals(1, service.reclaimAllLeases());
+    }
+
+    @Test
+    public void createdSiteIsNotReturned()
+    {
+        SiteData site = site(DataCreationState.Created);
+        when(siteDataService.getSite("site1")).thenReturn(site);
+        service.leaseSite("site1", "manager", System.currentTimeMillis());
+
+        assertEquals(0, service.reclaimAllLeases());
+        verify(siteDataService, never()).setSiteCreationState(anyString(), anyString(), any(DataCreationState.class));
+    }
+
+    @Test
+    public void scheduledSiteMemberIsReturned()
+    {
+        SiteMemberData scheduled = mock(SiteMemberData.class);
+        when(scheduled.getCreationState()).thenReturn(DataCreationState.Scheduled);
+        SiteMemberData created = mock(SiteMemberData.class);
+        when(created.getCreationState()).thenReturn(DataCreationState.Created);
+        when(siteDataService.getSiteMember("site1", "user1")).thenReturn(scheduled);
+        when(siteDataService.getSiteMember("site1", "user2")).thenReturn(created);
+        service.leaseSiteMember("site1", "user1", System.currentTimeMillis());
+        service.leaseSiteMember("site1", "user2", System.currentTimeMillis());
+
+        assertEquals(1, service.reclaimAllLeases());
+        verify(siteDataService).setSiteMemberCreationState("site1", "user1", DataCreationState.NotScheduled);
+        verify(siteDataService, never()).setSiteMemberCreationState("site1", "user2", DataCreationState.NotScheduled);
+    }
+
+    @Test
+    public void unfinishedFolderIsUnlocked()
+    {
+        recordFolder(0L, 5L, true);
+        service.leaseFolderLock("", PATH, 0L, 10L);
+
+        assertEquals(1, service.reclaimAllLeases());
+        verify(fileFolderService).deleteFolder("", LOCK_PATH, false);
+    }
+
+    @Test
+    public void loadedFolderKeepsItsLock()
+    {
+        recordFolder(2L, 10L, true);
+        service.leaseFolderLock("", PATH, 2L, 10L);
+
+        assertEquals(0, service.reclaimAllLeases());
+        verify(fileFolderService, never()).deleteFolder(anyString(), anyString(), anyBoolean());
+        assertTrue(documents.isEmpty());
+    }
+
+    @Test
+    public void unfinishedVersionClaimIsReturned()
+    {
+        when(fileFolderService.deleteFolder(ScheduleVersionLoaders.CONTEXT_VERSIONS, PATH, false)).thenReturn(1);
+        service.leaseVersionClaim(PATH);
+
+        assertEquals(1, service.reclaimAllLeases());
+        verify(fileFolderService).deleteFolder(ScheduleVersionLoaders.CONTEXT_VERSIONS, PATH, false);
+    }
+
+    @Test
+    public void releasedVersionClaimIsKept()
+    {
+        service.leaseVersionClaim(PATH);
+        service.releaseVersionClaim(PATH);
+
+        assertEquals(0, service.reclaimAllLeases());
+        verify(fileFolderService, never()).deleteFolder(anyString(), anyString(), anyBoolean());
+        assertFalse(documents.containsKey("versionClaim:" + PATH));
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ * #%L
+ * Alfresco Benchmark Load Data
+ * %%
+ * Copyright (C) 2005 - 2018 Alfresco Software Limited
+ * %%
+ * This file is part of the Alfresco software.
+ * If the software was purchased under a paid Alfresco license, the terms of
+ * the paid license agreement will prevail.  Otherwise, the software is
+ * provided under the following open source license terms:
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+package org.alfresco.bm.dataload.checkpoint;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.BasicDBObjectBuilder;
+import com.mongodb.DBObject;
+import org.alfresco.bm.common.EventResult;
+import org.alfresco.bm.driver.event.Event;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * @see ResumeLoad
+ * @since 3.0
+ */
+@RunWith(JUnit4.class)
+public class ResumeLoadTest
+{
+    private static final String PHASE = "scheduleVersionLoaders";
+
+    private CheckpointService checkpointService;
+    private ResumeLoad resumeLoad;
+    private DBObject phaseData;
+
+    @Before
+    public void setUp()
+    {
+        checkpointService = mock(CheckpointService.class);
+        resumeLoad = new ResumeLoad(checkpointService);
+        phaseData = new BasicDBObject("skip", 500);
+        DBObject checkpoint = BasicDBObjectBuilder.start().add(CheckpointService.FIELD_PHASE, PHASE).add(CheckpointService.FIELD_DATA, phaseData)
+            .add(CheckpointService.FIELD_UPDATED, System.currentTimeMillis()).get();
+        when(checkpointService.getCheckpoint()).thenReturn(checkpoint);
+    }
+
+    private Event resume() throws Exception
+    {
+        EventResult result = resumeLoad.processEvent(new Event("resumeLoad", null));
+        assertEquals(1, result.getNextEvents().size());
+        return result.getNextEvents().get(0);
+    }
+
+    @Test
+    public void startsWithoutCheckpoint() throws Exception
+    {
+        when(checkpointService.getCheckpoint()).thenReturn(null);
+
+        Event nextEvent = resume();
+        assertEquals(ResumeLoad.EVENT_NAME_LOAD_STARTED, nextEvent.getName());
+        verify(checkpointService, never()).reclaimAllLeases();
+    }
+
+    @Test
+    public void resumesCheckpointedPhase() throws Exception
+    {
+        when(checkpointService.reclaimAllLeases()).thenReturn(0);
+
+        Event nextEvent = resume();
+        assertEquals(PHASE, nextEvent.getName());
+        assertEquals(phaseData, nextEvent.getData());
+        verify(checkpointService).reclaimAllLeases();
+    }
+
+    @Test
+    public void restartsPhaseWhenItemsAreReturned() throws Exception
+    {
+        when(checkpointService.reclaimAllLeases()).thenReturn(3);
+
+        Event nextEvent = resume();
+        assertEquals(PHASE, nextEvent.getName());
+        assertNull(nextEvent.getData());
+    }
+}
@@ -0,0 +1,265 @@
+/*
+ * #%L
+ * Alfresco Benchmark Load Data
+ * %%
+ * Copyright (C) 2005 - 2018 Alfresco Software Limited
+ * %%
+ * This file is part of the Alfresco software.
+ * If the software was purchased under a paid Alfresco license, the terms of
+ * the paid license agreement will prevail.  Otherwise, the software is
+ * provided under the following open source license terms:
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+package org.alfresco.bm.dataload.files;
+
+import com.mongodb.DB;
+import com.mongodb.DBCollection;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+import org.alfresco.bm.cm.FolderData;
+import org.alfresco.bm.common.EventResult;
+import org.alfresco.bm.data.DataCreationState;
+import org.alfresco.bm.dataload.checkpoint.CheckpointService;
+import org.alfresco.bm.dataload.mock.LatencyDistribution;
+import org.alfresco.bm.dataload.mock.MockAlfrescoServer;
+import org.alfresco.bm.dataload.rest.AlfrescoAsyncClient;
+import org.alfresco.bm.driver.event.Event;
+import org.alfresco.bm.driver.file.TestFileService;
+import org.alfresco.bm.site.SiteData;
+import org.alfresco.bm.site.SiteDataService;
+import org.alfresco.bm.site.SiteMemberData;
+import org.alfresco.bm.user.UserData;
+import org.alfresco.bm.user.UserDataService;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.UUID;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Runs the open-model loader against the {@link MockAlfrescoServer mock server}, recording in an embedded mirror
+ *
+ * @see ArrivalRateLoader
+ * @since 3.0
+ */
+@RunWith(JUnit4.class)
+public class ArrivalRateLoaderTest
+{
+    private static final String DOC_LIB = "/Sites/site1/documentLibrary";
+    private static final int SUBFOLDERS = 2;
+    private static final int MAX_DEPTH = 1;
+    private static final int FILES_PER_FOLDER = 3;
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private MockAlfrescoServer server;
+    private AlfrescoAsyncClient asyncClient;
+    private EmbeddedFileFolderService fileFolderService;
+    private UserDataService userDataService;
+    private SiteDataService siteDataService;
+    private TestFileService testFileService;
+    private ArrivalRateLoader loader;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        server = new MockAlfrescoServer(0, 32);
+        server.start();
+        asyncClient = new AlfrescoAsyncClient("http://localhost:" + server.getPort(), 64, 2);
+
+        // An empty snapshot, so the mirror starts with only what the test records
+        DBCursor cursor = mock(DBCursor.class);
+        when(cursor.batchSize(org.mockito.Matchers.anyInt())).thenReturn(cursor);
+        DBCollection collection = mock(DBCollection.class);
+        when(collection.find()).thenReturn(cursor);
+        DB db = mock(DB.class);
+        when(db.getCollection("filefolders")).thenReturn(collection);
+        fileFolderService = new EmbeddedFileFolderService(db, "filefolders", "jdbc:h2:mem:" + UUID.randomUUID());
+        fileFolderService.afterPropertiesSet();
+        fileFolderService.createNewFolder(new FolderData("doclib", "", DOC_LIB, 0L, 0L));
+
+        SiteData site = mock(SiteData.class);
+        SiteMemberData member = mock(SiteMemberData.class);
+        when(member.getUsername()).thenReturn("user1");
+        siteDataService = mock(SiteDataService.class);
+        when(siteDataService.getSite("site1")).thenReturn(site);
+        when(siteDataService.randomSiteMember(eq("site1"), eq(DataCreationState.Created), anyString(), anyString(), anyString())).thenReturn(member);
+        UserData user = mock(UserData.class);
+        when(user.getUsername()).thenReturn("user1");
+        when(user.getPassword()).thenReturn("password");
+        userDataService = mock(UserDataService.class);
+        when(userDataService.findUserByUsername("user1")).thenReturn(user);
+
+        File file = temporaryFolder.newFile("test.txt");
+        try (FileOutputStream os = new FileOutputStream(file))
+        {
+            os.write(new byte[1024]);
+        }
+        testFileService = mock(TestFileService.class);
+        when(testFileService.getFile()).thenReturn(file);
+    }
+
+    @After
+    public void tearDown() throws Exception
+    {
+        if (loader != null)
+        {
+            loader.destroy();
+        }
+        asyncClient.destroy();
+        server.stop();
+    }
+
+    private ArrivalRateLoader newLoader(int filesPerFolder, double arrivalRate)
+    {
+        loader = new ArrivalRateLoader(fileFolderService, userDataService, siteDataService, testFileService, asyncClient, SUBFOLDERS, MAX_DEPTH,
+            filesPerFolder, arrivalRate);
+        loader.setLoadCheckDelay(20L);
+        loader.setMirrorThreads(2);
+        return loader;
+    }
+
+    @Test
+    public void loadsEverythingAndFinishes() throws Exception
+    {
+        newLoader(FILES_PER_FOLDER, 200.0);
+        loader.setSliceDuration(200L);
+
+        Event event = new Event(ArrivalRateLoader.EVENT_NAME_LOAD_AT_ARRIVAL_RATE, null);
+        int slices = 0;
+        while (ArrivalRateLoader.EVENT_NAME_LOAD_AT_ARRIVAL_RATE.equals(event.getName()))
+        {
+            if (++slices > 50)
+            {
+                fail("Loading did not finish");
+            }
+            EventResult result = loader.processEvent(event);
+            assertEquals(1, result.getNextEvents().size());
+            event = result.getNextEvents().get(0);
+        }
+        assertEquals(ArrivalRateLoader.EVENT_NAME_LOADING_COMPLETE, event.getName());
+
+        // The document library gets its files and subfolders and each subfolder, at the deepest level, its files
+        FolderData docLib = fileFolderService.getFolder("", DOC_LIB);
+        assertEquals(SUBFOLDERS, docLib.getFolderCount());
+        assertEquals(FILES_PER_FOLDER, docLib.getFileCount());
+        int requests = SUBFOLDERS + FILES_PER_FOLDER;
+        for (FolderData subfolder : fileFolderService.getChildFolders("", DOC_LIB, 0, 10))
+        {
+            assertEquals(0L, subfolder.getFolderCount());
+            assertEquals(FILES_PER_FOLDER, subfolder.getFileCount());
+            requests += FILES_PER_FOLDER;
+        }
+        assertEquals(SUBFOLDERS + FILES_PER_FOLDER + SUBFOLDERS * FILES_PER_FOLDER, requests);
+        assertEquals(Long.valueOf(requests), server.getRequestCounts().get("POST nodes/children"));
+
+        // Every lock was released
+        assertNull(fileFolderService.getFolder("", DOC_LIB + "/locked"));
+        assertEquals(0, fileFolderService.getFoldersByCounts("", null, null, null, null, null, null, 0, 10).stream()
+            .filter(folder -> folder.getPath().endsWith("/locked")).count());
+    }
+
+    @Test
+    public void keepsToTheArrivalRate() throws Exception
+    {
+        newLoader(1000, 20.0);
+        loader.setSliceDuration(1000L);
+
+        EventResult result = loader.processEvent(new Event(ArrivalRateLoader.EVENT_NAME_LOAD_AT_ARRIVAL_RATE, null));
+
+        DBObject sliceData = (DBObject) result.getData();
+        int sent = (Integer) sliceData.get("sent");
+        assertTrue("Sent " + sent + " requests in a second at 20 a second", sent >= 18 && sent <= 21);
+        Event nextEvent = result.getNextEvents().get(0);
+        assertEquals(ArrivalRateLoader.EVENT_NAME_LOAD_AT_ARRIVAL_RATE, nextEvent.getName());
+        assertNotNull(((DBObject) nextEvent.getData()).get(ArrivalRateLoader.FIELD_NEXT_ARRIVAL));
+    }
+
+    @Test
+    public void arrivalsQueueBehindTheInFlightCap() throws Exception
+    {
+        server.setLatency(LatencyDistribution.fixed(200L));
+        newLoader(1000, 200.0);
+        loader.setMaxInFlight(4);
+        loader.setSliceDuration(100L);
+
+        EventResult result = loader.processEvent(new Event(ArrivalRateLoader.EVENT_NAME_LOAD_AT_ARRIVAL_RATE, null));
+
+        // The 20 arrivals of the slice are all sent, but only 4 at a time, each waiting 200ms for a permit
+        DBObject sliceData = (DBObject) result.getData();
+        int sent = (Integer) sliceData.get("sent");
+        assertTrue("Sent " + sent, sent == 20 || sent == 21);
+        long elapsed = (Long) sliceData.get("end") - (Long) sliceData.get("start");
+        assertTrue("20 requests with 4 in flight took " + elapsed + "ms", elapsed >= 800L);
+        long maxScheduleLag = (Long) sliceData.get("maxScheduleLag");
+        assertTrue("The queueing shows as schedule lag: " + maxScheduleLag, maxScheduleLag >= 600L);
+    }
+
+    @Test
+    public void lockedFolderIsLeftAlone() throws Exception
+    {
+        fileFolderService.createNewFolder(new FolderData("lock", "", DOC_LIB + "/locked", Long.MAX_VALUE, Long.MAX_VALUE));
+        newLoader(FILES_PER_FOLDER, 200.0);
+
+        EventResult result = loader.processEvent(new Event(ArrivalRateLoader.EVENT_NAME_LOAD_AT_ARRIVAL_RATE, null));
+
+        // The only folder needing work is already locked by another loader, so there is nothing to do
+        assertEquals(ArrivalRateLoader.EVENT_NAME_LOADING_COMPLETE, result.getNextEvents().get(0).getName());
+        assertEquals(0L, server.getRequestCount());
+        assertNotNull(fileFolderService.getFolder("lock"));
+    }
+
+    @Test
+    public void lockIsDeletedWhenTheLeaseFails() throws Exception
+    {
+        CheckpointService checkpointService = mock(CheckpointService.class);
+        doThrow(new IllegalStateException("No lease")).when(checkpointService).leaseFolderLock(anyString(), anyString(), anyLong(), anyLong());
+        newLoader(FILES_PER_FOLDER, 200.0);
+        loader.setCheckpointService(checkpointService);
+
+        try
+        {
+            loader.processEvent(new Event(ArrivalRateLoader.EVENT_NAME_LOAD_AT_ARRIVAL_RATE, null));
+            fail("The lease failure was not passed on");
+        }
+        catch (IllegalStateException e)
+        {
+            assertEquals("No lease", e.getMessage());
+        }
+        assertNull(fileFolderService.getFolder("", DOC_LIB + "/locked"));
+        assertEquals(0L, server.getRequestCount());
+    }
+}
@@ -0,0 +1,306 @@
+/*
+ * #%L
+ * Alfresco Benchmark Load Data
+ * %%
+ * Copyright (C) 2005 - 2018 Alfresco Software Limited
+ * %%
+ * This file is part of the Alfresco software.
+ * If the software was purchased under a paid Alfresco license, the terms of
+ * the paid license agreement will prevail.  Otherwise, the software is
+ * provided under the following open source license terms:
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+package org.alfresco.bm.dataload.files;
+
+import com.mongodb.BasicDBObjectBuilder;
+import com.mongodb.BulkWriteOperation;
+import com.mongodb.BulkWriteResult;
+import com.mongodb.DB;
+import com.mongodb.DBCollection;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+import com.mongodb.WriteResult;
+import org.alfresco.bm.cm.FolderData;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import org.mockito.invocation.InvocationOnMock;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyVararg;
+import static org.mockito.Mockito.atLeastOnce;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.reset;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Runs the compact mirror against a mocked collection that keeps its documents in memory
+ *
+ * @see CompactFileFolderService
+ * @since 3.0
+ */
+@RunWith(JUnit4.class)
+public class CompactFileFolderServiceTest
+{
+    private static final String DOC_LIB = "/Sites/site/documentLibrary";
+
+    private List<DBObject> documents;
+    private DBCollection collection;
+    private CompactFileFolderService service;
+
+    @Before
+    public void setUp()
+    {
+        documents = new ArrayList<>();
+        collection = mock(DBCollection.class);
+        mockCollection();
+
+        DB db = mock(DB.class);
+        when(db.getCollection("filefolders.compact")).thenReturn(collection);
+        service = new CompactFileFolderService(db, "filefolders.compact");
+    }
+
+    @SuppressWarnings("unchecked")
+    private void mockCollection()
+    {
+        doAnswer(invocation ->
+        {
+            for (Object arg : invocation.getArguments())
+            {
+                documents.addAll(arg instanceof DBObject[] ? Arrays.asList((DBObject[]) arg) : Arrays.asList((DBObject) arg));
+            }
+            return null;
+        }).when(collection).insert((DBObject[]) anyVararg());
+        when(collection.findOne(any(DBObject.class))).thenAnswer(invocation ->
+        {
+            List<DBObject> found = find(invocation);
+            return found.isEmpty() ? null : found.get(0);
+        });
+        when(collection.find(any(DBObject.class))).thenAnswer(invocation -> toCursor(find(invocation)));
+        when(collection.find(any(DBObject.class), any(DBObject.class))).thenAnswer(invocation -> toCursor(find(invocation)));
+        when(collection.remove(any(DBObject.class))).thenAnswer(invocation ->
+        {
+            List<DBObject> found = find(invocation);
+            documents.removeAll(found);
+            WriteResult result = mock(WriteResult.class);
+            when(result.getN()).thenReturn(found.size());
+            return result;
+        });
+        when(collection.update(any(DBObject.class), any(DBObject.class))).thenAnswer(invocation ->
+        {
+            DBObject incObj = (DBObject) ((DBObject) invocation.getArguments()[1]).get("$inc");
+            for (DBObject folderObj : find(invocation))
+            {
+                for (String field : incObj.keySet())
+                {
+                    long value = ((Number) folderObj.get(field)).longValue() + ((Number) incObj.get(field)).longValue();
+                    folderObj.put(field, value);
+                }
+            }
+            return mock(WriteResult.class);
+        });
+        when(collection.initializeUnorderedBulkOperation()).thenAnswer(invocation ->
+        {
+            List<DBObject> batch = new ArrayList<>();
+            BulkWriteOperation bulk = mock(BulkWriteOperation.class);
+            doAnswer(insert -> batch.add((DBObject) insert.getArguments()[0])).when(bulk).insert(any(DBObject.class));
+            when(bulk.execute()).thenAnswer(execute ->
+            {
+                documents.addAll(batch);
+                BulkWriteResult result = mock(BulkWriteResult.class);
+                when(result.getInsertedCount()).thenReturn(batch.size());
+                return result;
+            });
+            return bulk;
+        });
+    }
+
+    /**
+     * Match documents on equal values, missing values for <tt>null</tt> and <b>$in</b> lists
+     */
+    private List<DBObject> find(InvocationOnMock invocation)
+    {
+        DBObject queryObj = (DBObject) invocation.getArguments()[0];
+        List<DBObject> found = new ArrayList<>();
+        for (DBObject folderObj : documents)
+        {
+            boolean matches = true;
+            for (String field : queryObj.keySet())
+            {
+                Object expected = queryObj.get(field);
+                Object actual = folderObj.get(field);
+                if (expected instanceof DBObject)
+                {
+                    matches &= ((Collection<?>) ((Map<?, ?>) ((DBObject) expected).toMap()).get("$in")).contains(actual);
+                }
+                else
+                {
+                    matches &= expected == null ? actual == null : expected.equals(actual);
+                }
+            }
+            if (matches)
+            {
+                found.add(folderObj);
+            }
+        }
+        return found;
+    }
+
+    private static DBCursor toCursor(List<DBObject> found)
+    {
+        // Documents are inserted in name order, so sorting is left out
+        DBCursor cursor = mock(DBCursor.class);
+        when(cursor.sort(any(DBObject.class))).thenReturn(cursor);
+        when(cursor.skip(anyInt())).thenReturn(cursor);
+        when(cursor.limit(anyInt())).thenReturn(cursor);
+        when(cursor.iterator()).thenReturn(found.iterator());
+        return cursor;
+    }
+
+    private static DBObject queryByName(String parentId, String name)
+    {
+        return BasicDBObjectBuilder.start()
+            .add(CompactFileFolderService.FIELD_CONTEXT, "")
+            .add(CompactFileFolderService.FIELD_PARENT_ID, parentId)
+            .add(CompactFileFolderService.FIELD_NAME, name)
+            .get();
+    }
+
+    private DBObject getDocument(String id)
+    {
+        for (DBObject folderObj : documents)
+        {
+            if (id.equals(folderObj.get(CompactFileFolderService.FIELD_ID)))
+            {
+                return folderObj;
+            }
+        }
+        return null;
+    }
+
+    @Test
+    public void foldersAreRecordedAgainstTheirParent()
+    {
+        service.createNewFolder("docLib", "", DOC_LIB);
+        service.createNewFolder("a", "", DOC_LIB + "/a");
+        service.createNewFolders(Arrays.asList(new FolderData("b", "", DOC_LIB + "/a/b", 0L, 0L), new FolderData("c", "", DOC_LIB + "/a/b/c", 0L, 0L)));
+
+        assertEquals(4, documents.size());
+        assertNull(getDocument("docLib").get(CompactFileFolderService.FIELD_PARENT_ID));
+        assertEquals(DOC_LIB, getDocument("docLib").get(CompactFileFolderService.FIELD_NAME));
+        assertEquals("docLib", getDocument("a").get(CompactFileFolderService.FIELD_PARENT_ID));
+        assertEquals("a", getDocument("a").get(CompactFileFolderService.FIELD_NAME));
+        assertEquals("a", getDocument("b").get(CompactFileFolderService.FIELD_PARENT_ID));
+        assertEquals("b", getDocument("c").get(CompactFileFolderService.FIELD_PARENT_ID));
+    }
+
+    @Test
+    public void foldersWithAMissingParentAreRejected()
+    {
+        service.createNewFolder("docLib", "", DOC_LIB);
+        try
+        {
+            service.createNewFolder("b", "", DOC_LIB + "/a/b");
+            fail("A folder was recorded without its parent.");
+        }
+        catch (IllegalStateException e)
+        {
+            // Expected
+        }
+        try
+        {
+            service.createNewFolders(Arrays.asList(new FolderData("c", "", DOC_LIB + "/c", 0L, 0L), new FolderData("d", "", DOC_LIB + "/a/d", 0L, 0L)));
+            fail("A folder was recorded without its parent.");
+        }
+        catch (IllegalStateException e)
+        {
+            // Expected
+        }
+        assertEquals(1, documents.size());
+        assertNull(service.getFolder("", DOC_LIB + "/c"));
+    }
+
+    @Test
+    public void foldersAreFoundByPathAndId()
+    {
+        service.createNewFolder("docLib", "", DOC_LIB);
+        service.createNewFolder("a", "", DOC_LIB + "/a");
+        service.incrementFileCount("", DOC_LIB + "/a", 3L);
+        service.incrementFolderCount("", DOC_LIB, 1L);
+
+        FolderData folder = service.getFolder("", DOC_LIB + "/a");
+        assertEquals("a", folder.getId());
+        assertEquals(3L, folder.getFileCount());
+        assertEquals(DOC_LIB + "/a", service.getFolder("a").getPath());
+        assertEquals(1L, service.getFolder("docLib").getFolderCount());
+        assertNull(service.getFolder("", DOC_LIB + "/b"));
+
+        List<FolderData> children = service.getChildFolders("", DOC_LIB, 0, 10);
+        assertEquals(1, children.size());
+        assertEquals(DOC_LIB + "/a", children.get(0).getPath());
+    }
+
+    @Test
+    public void deletesCascadeDownTheBranch()
+    {
+        service.createNewFolder("docLib", "", DOC_LIB);
+        service.createNewFolder("a", "", DOC_LIB + "/a");
+        service.createNewFolder("b", "", DOC_LIB + "/a/b");
+        service.createNewFolder("c", "", DOC_LIB + "/a/b/c");
+        service.createNewFolder("d", "", DOC_LIB + "/d");
+
+        assertEquals(3, service.deleteFolder("", DOC_LIB + "/a", true));
+        assertEquals(2, documents.size());
+        assertNull(service.getFolder("", DOC_LIB + "/a/b/c"));
+        assertNull(service.getFolder("", DOC_LIB + "/a/b"));
+        assertNotNull(service.getFolder("", DOC_LIB + "/d"));
+    }
+
+    @Test
+    public void evictedPathsAreResolvedAgain()
+    {
+        service.setPathCacheSize(2);
+        service.createNewFolder("docLib", "", DOC_LIB);
+        service.createNewFolder("a", "", DOC_LIB + "/a");
+        service.createNewFolder("b", "", DOC_LIB + "/a/b");
+
+        // The cache still holds the deepest folders
+        reset(collection);
+        mockCollection();
+        assertEquals("b", service.getFolder("", DOC_LIB + "/a/b").getId());
+        verify(collection, never()).findOne(queryByName("a", "b"));
+
+        // The document library was evicted and is looked up again, along with its path for the ID
+        assertEquals("docLib", service.getFolder("", DOC_LIB).getId());
+        verify(collection, atLeastOnce()).findOne(queryByName(null, DOC_LIB));
+        assertEquals(DOC_LIB + "/a", service.getFolder("a").getPath());
+    }
+}
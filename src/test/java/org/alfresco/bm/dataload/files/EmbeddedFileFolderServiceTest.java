@@ -0,0 +1,340 @@
+/*
+ * #%L
+ * Alfresco Benchmark Load Data
+ * %%
+ * Copyright (C) 2005 - 2018 Alfresco Software Limited
+ * %%
+ * This file is part of the Alfresco software.
+ * If the software was purchased under a paid Alfresco license, the terms of
+ * the paid license agreement will prevail.  Otherwise, the software is
+ * provided under the following open source license terms:
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+package org.alfresco.bm.dataload.files;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.BasicDBObjectBuilder;
+import com.mongodb.BulkWriteOperation;
+import com.mongodb.BulkWriteResult;
+import com.mongodb.DB;
+import com.mongodb.DBCollection;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+import org.alfresco.bm.cm.FileFolderService;
+import org.alfresco.bm.cm.FolderData;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import org.mockito.ArgumentCaptor;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.sql.SQLException;
+import java.util.Iterator;
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Runs the embedded mirror against an in-memory H2 database, with the snapshot collection mocked in memory
+ *
+ * @see EmbeddedFileFolderService
+ * @since 3.0
+ */
+@RunWith(JUnit4.class)
+public class EmbeddedFileFolderServiceTest
+{
+    private static final String COLLECTION = "mirrors.test.filefolders";
+    private static final String DOC_LIB = "/Sites/site/documentLibrary";
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private List<DBObject> documents;
+    private List<DBObject> exported;
+    private List<DBObject> indexes;
+    private DBCollection collection;
+    private DBCollection export;
+    private DB db;
+    private EmbeddedFileFolderService service;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        documents = new ArrayList<>();
+        exported = new ArrayList<>();
+        indexes = new ArrayList<>();
+        collection = mock(DBCollection.class);
+        export = mock(DBCollection.class);
+        mockCollections();
+
+        db = mock(DB.class);
+        when(db.getCollection(COLLECTION)).thenReturn(collection);
+        service = newService();
+    }
+
+    @After
+    public void tearDown()
+    {
+        service.close();
+    }
+
+    private EmbeddedFileFolderService newService() throws Exception
+    {
+        // Each test gets its own database, kept until the last connection is closed
+        EmbeddedFileFolderService service = new EmbeddedFileFolderService(db, COLLECTION, "jdbc:h2:mem:" + UUID.randomUUID());
+        service.setBatchSize(2);
+        service.afterPropertiesSet();
+        return service;
+    }
+
+    private void mockCollections()
+    {
+        when(collection.getName()).thenReturn(COLLECTION);
+        when(collection.getFullName()).thenReturn("test." + COLLECTION);
+        when(collection.getCollection("export")).thenReturn(export);
+        when(collection.getIndexInfo()).thenReturn(indexes);
+        when(collection.find()).thenAnswer(invocation -> toCursor(documents));
+        when(export.initializeUnorderedBulkOperation()).thenAnswer(invocation ->
+        {
+            List<DBObject> batch = new ArrayList<>();
+            BulkWriteOperation bulk = mock(BulkWriteOperation.class);
+            doAnswer(insert -> batch.add((DBObject) insert.getArguments()[0])).when(bulk).insert(any(DBObject.class));
+            when(bulk.execute()).thenAnswer(execute ->
+            {
+                exported.addAll(batch);
+                BulkWriteResult result = mock(BulkWriteResult.class);
+                when(result.getInsertedCount()).thenReturn(batch.size());
+                return result;
+            });
+            return bulk;
+        });
+    }
+
+    private static DBCursor toCursor(List<DBObject> found)
+    {
+        Iterator<DBObject> iterator = new ArrayList<>(found).iterator();
+        DBCursor cursor = mock(DBCursor.class);
+        when(cursor.batchSize(anyInt())).thenReturn(cursor);
+        when(cursor.hasNext()).thenAnswer(invocation -> iterator.hasNext());
+        when(cursor.next()).thenAnswer(invocation -> iterator.next());
+        return cursor;
+    }
+
+    private static DBObject toDBObject(String id, String context, String path, long folderCount, long fileCount)
+    {
+        return BasicDBObjectBuilder.start()
+            .add(FileFolderService.FIELD_ID, id)
+            .add(FileFolderService.FIELD_CONTEXT, context)
+            .add(FileFolderService.FIELD_PATH, path)
+            .add(FileFolderService.FIELD_FOLDER_COUNT, folderCount)
+            .add(FileFolderService.FIELD_FILE_COUNT, fileCount)
+            .get();
+    }
+
+    private static List<String> paths(List<FolderData> folders)
+    {
+        List<String> paths = new ArrayList<>(folders.size());
+        for (FolderData folder : folders)
+        {
+            paths.add(folder.getPath());
+        }
+        return paths;
+    }
+
+    @Test
+    public void createCountAndDelete()
+    {
+        service.createNewFolder("lib", "", DOC_LIB);
+        service.createNewFolder(new FolderData("a", "", DOC_LIB + "/a_1", 0L, 0L));
+        service.createNewFolder(new FolderData("a1", "", DOC_LIB + "/a_1/x", 0L, 0L));
+        service.createNewFolder(new FolderData("ab", "", DOC_LIB + "/ab1", 0L, 0L));
+
+        service.incrementFolderCount("", DOC_LIB, 2L);
+        service.incrementFileCount("", DOC_LIB + "/a_1", 5L);
+        service.incrementFileCount("", DOC_LIB + "/a_1", -1L);
+
+        FolderData folder = service.getFolder("a");
+        assertEquals(DOC_LIB + "/a_1", folder.getPath());
+        assertEquals(4L, folder.getFileCount());
+        assertEquals(2L, service.getFolder("", DOC_LIB).getFolderCount());
+        assertNull(service.getFolder("other", DOC_LIB));
+        assertEquals(2L, service.countEmptyFolders(""));
+
+        // The '_' in the path is not taken as a wildcard, so the sibling is kept
+        assertEquals(2, service.deleteFolder("", DOC_LIB + "/a_1", true));
+        assertNull(service.getFolder("a1"));
+        assertNotNull(service.getFolder("ab"));
+        assertEquals(1, service.deleteFolder("", DOC_LIB + "/ab1", false));
+    }
+
+    @Test
+    public void duplicateLockPathThrows()
+    {
+        service.createNewFolder(new FolderData(DOC_LIB + "/locked", "", DOC_LIB + "/locked", 0L, 0L));
+        try
+        {
+            service.createNewFolder(new FolderData(DOC_LIB + "/locked-again", "", DOC_LIB + "/locked", 0L, 0L));
+            fail("A second lock on the same path must fail");
+        }
+        catch (RuntimeException e)
+        {
+            // Loaders tell this apart from other failures
+            assertTrue(BulkFileFolderService.isDuplicate(e));
+        }
+        assertFalse(BulkFileFolderService.isDuplicate(new RuntimeException(new SQLException("Broken", "08001"))));
+        // The same path in another context is a different folder
+        service.createNewFolder(new FolderData("other", "other", DOC_LIB + "/locked", 0L, 0L));
+    }
+
+    @Test
+    public void bulkCreateSkipsRecordedFolders()
+    {
+        service.createNewFolder(new FolderData("a", "", DOC_LIB + "/a", 0L, 0L));
+        int created = service.createNewFolders(Arrays.asList(
+            new FolderData("a", "", DOC_LIB + "/a", 0L, 0L),
+            new FolderData("b", "", DOC_LIB + "/b", 0L, 0L),
+            new FolderData("c", "", DOC_LIB + "/c", 0L, 0L)));
+        assertEquals(2, created);
+        assertEquals(0, service.createNewFolders(new ArrayList<>()));
+    }
+
+    @Test
+    public void pagesInOrder()
+    {
+        service.createNewFolders(Arrays.asList(
+            new FolderData("lib", "", DOC_LIB, 3L, 0L),
+            new FolderData("c", "", DOC_LIB + "/c", 0L, 2L),
+            new FolderData("b", "", DOC_LIB + "/b", 0L, 0L),
+            new FolderData("a", "", DOC_LIB + "/a", 1L, 0L),
+            new FolderData("d", "", DOC_LIB + "/d", 0L, 0L),
+            new FolderData("x", "other", DOC_LIB + "/x", 0L, 0L)));
+
+        // Level, then folder count, then file count, then path
+        List<FolderData> all = service.getFoldersByCounts("", null, null, null, null, null, null, 0, 10);
+        assertEquals(Arrays.asList(DOC_LIB, DOC_LIB + "/b", DOC_LIB + "/d", DOC_LIB + "/c", DOC_LIB + "/a"), paths(all));
+
+        List<FolderData> page = service.getFoldersByCounts("", 4L, 4L, 0L, 0L, null, null, 1, 1);
+        assertEquals(Arrays.asList(DOC_LIB + "/d"), paths(page));
+        page = service.getFoldersByCounts("", null, null, null, null, 1L, null, 0, 10);
+        assertEquals(Arrays.asList(DOC_LIB + "/c"), paths(page));
+
+        List<FolderData> children = service.getChildFolders("", DOC_LIB, 1, 2);
+        assertEquals(Arrays.asList(DOC_LIB + "/b", DOC_LIB + "/c"), paths(children));
+    }
+
+    @Test
+    public void importsSnapshotWhenEmpty() throws Exception
+    {
+        service.close();
+        documents.add(toDBObject("lib", "", DOC_LIB, 2L, 0L));
+        documents.add(toDBObject("a", "", DOC_LIB + "/a", 0L, 3L));
+        documents.add(toDBObject("b", "", DOC_LIB + "/b", 0L, 0L));
+
+        service = newService();
+        assertEquals(3L, service.getFoldersByCounts("", null, null, null, null, null, null, 0, 10).size());
+        assertEquals(3L, service.getFolder("a").getFileCount());
+
+        // Folders already held are left as they are
+        service.incrementFileCount("", DOC_LIB + "/a", 1L);
+        assertEquals(0L, service.importSnapshot());
+        assertEquals(4L, service.getFolder("a").getFileCount());
+    }
+
+    @Test
+    public void exportsSnapshotWithIndexes()
+    {
+        indexes.add(new BasicDBObject("name", "_id_").append("key", new BasicDBObject("_id", 1)).append("v", 2));
+        indexes.add(new BasicDBObject("name", "uidx_ctx_path").append("key", new BasicDBObject("context", 1).append("path", 1))
+            .append("unique", true).append("v", 2).append("ns", "test." + COLLECTION));
+        service.createNewFolders(Arrays.asList(
+            new FolderData("lib", "", DOC_LIB, 2L, 0L),
+            new FolderData("a", "", DOC_LIB + "/a", 0L, 3L),
+            new FolderData("b", "", DOC_LIB + "/b", 0L, 0L)));
+
+        assertEquals(3L, service.exportSnapshot());
+
+        assertEquals(3, exported.size());
+        DBObject exportedA = null;
+        for (DBObject folderObj : exported)
+        {
+            if ("a".equals(folderObj.get(FileFolderService.FIELD_ID)))
+            {
+                exportedA = folderObj;
+            }
+        }
+        assertNotNull(exportedA);
+        assertEquals(DOC_LIB, exportedA.get(FileFolderService.FIELD_PARENT_PATH));
+        assertEquals(3L, exportedA.get(FileFolderService.FIELD_FILE_COUNT));
+
+        // Only the index that is not made by MongoDB is copied, without the fields it fills in itself
+        ArgumentCaptor<DBObject> keys = ArgumentCaptor.forClass(DBObject.class);
+        ArgumentCaptor<DBObject> options = ArgumentCaptor.forClass(DBObject.class);
+        verify(export).createIndex(keys.capture(), options.capture());
+        assertEquals(new BasicDBObject("context", 1).append("path", 1), keys.getValue());
+        assertEquals("uidx_ctx_path", options.getValue().get("name"));
+        assertEquals(true, options.getValue().get("unique"));
+        assertFalse(options.getValue().containsField("key"));
+        assertFalse(options.getValue().containsField("v"));
+        assertFalse(options.getValue().containsField("ns"));
+        verify(export).rename(COLLECTION, true);
+    }
+
+    @Test
+    public void emptyExportStillReplacesCollection()
+    {
+        assertEquals(0L, service.exportSnapshot());
+        verify(export, never()).initializeUnorderedBulkOperation();
+        verify(export).rename(COLLECTION, true);
+    }
+
+    @Test
+    public void factoryReopensLocalMirror() throws Exception
+    {
+        FileFolderServiceFactory factory = new FileFolderServiceFactory(db, COLLECTION);
+        factory.setStore(FileFolderServiceFactory.STORE_EMBEDDED);
+        factory.setDirectory(temporaryFolder.getRoot().getAbsolutePath());
+        FileFolderService fileFolderService = factory.getObject();
+        fileFolderService.createNewFolder(new FolderData("lib", "", DOC_LIB, 0L, 0L));
+        fileFolderService.incrementFileCount("", DOC_LIB, 7L);
+        factory.destroy();
+
+        // The memory-mapped files on disk are picked up again rather than imported from the empty collection
+        factory = new FileFolderServiceFactory(db, COLLECTION);
+        factory.setStore(FileFolderServiceFactory.STORE_EMBEDDED);
+        factory.setDirectory(temporaryFolder.getRoot().getAbsolutePath());
+        fileFolderService = factory.getObject();
+        assertEquals(7L, fileFolderService.getFolder("", DOC_LIB).getFileCount());
+        factory.destroy();
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ * #%L
+ * Alfresco Benchmark Load Data
+ * %%
+ * Copyright (C) 2005 - 2018 Alfresco Software Limited
+ * %%
+ * This file is part of the Alfresco software.
+ * If the software was purchased under a paid Alfresco license, the terms of
+ * the paid license agreement will prevail.  Otherwise, the software is
+ * provided under the following open source license terms:
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+package org.alfresco.bm.dataload.files;
+
+import org.alfresco.bm.dataload.rest.NodeMetadata;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.Arrays;
+import java.util.HashSet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * @see MetadataProfile
+ * @since 3.0
+ */
+@RunWith(JUnit4.class)
+public class MetadataProfileTest
+{
+    private static final String PROPERTIES = "cm:title:text:4,cm:author:name,acme:priority:int:1-5,acme:reviewed:boolean,acme:due:date,acme:status:choice:draft|final";
+
+    @Test
+    public void emptyProfile()
+    {
+        MetadataProfile profile = new MetadataProfile("", "");
+        assertTrue(profile.isEmpty());
+        assertFalse(profile.hasTags());
+    }
+
+    @Test
+    public void valuesMatchTypes()
+    {
+        MetadataProfile profile = new MetadataProfile("cm:titled,cm:author", PROPERTIES);
+        profile.setTagsPerNode(3);
+        profile.setTagVocabulary(10);
+        for (int i = 0; i < 1000; i++)
+        {
+            NodeMetadata metadata = profile.getMetadata("node-" + i);
+            assertEquals(Arrays.asList("cm:titled", "cm:author"), metadata.getAspectNames());
+            assertEquals(4, ((String) metadata.getProperties().get("cm:title")).split(" ").length);
+            long priority = (Long) metadata.getProperties().get("acme:priority");
+            assertTrue(priority >= 1L && priority <= 5L);
+            assertTrue(metadata.getProperties().get("acme:reviewed") instanceof Boolean);
+            assertTrue(((String) metadata.getProperties().get("acme:due")).startsWith("20"));
+            assertTrue(new HashSet<Object>(Arrays.asList("draft", "final")).contains(metadata.getProperties().get("acme:status")));
+            assertEquals(3, new HashSet<String>(metadata.getTags()).size());
+        }
+    }
+
+    @Test
+    public void sameSeedAndNameGiveSameValues()
+    {
+        MetadataProfile profile = new MetadataProfile("", PROPERTIES);
+        profile.setTagsPerNode(5);
+        profile.setSeed(7L);
+        MetadataProfile other = new MetadataProfile("", PROPERTIES);
+        other.setTagsPerNode(5);
+        other.setSeed(7L);
+        assertEquals(profile.getMetadata("a").toString(), other.getMetadata("a").toString());
+        other.setSeed(8L);
+        assertNotEquals(profile.getMetadata("a").toString(), other.getMetadata("a").toString());
+    }
+
+    @Test
+    public void invalidProperty()
+    {
+        try
+        {
+            new MetadataProfile("", "acme:priority:int");
+            fail("Integer properties need a range");
+        }
+        catch (IllegalArgumentException e)
+        {
+            // Expected
+        }
+    }
+}
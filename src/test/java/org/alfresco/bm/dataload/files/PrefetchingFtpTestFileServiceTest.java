@@ -0,0 +1,259 @@
+/*
+ * #%L
+ * Alfresco Benchmark Load Data
+ * %%
+ * Copyright (C) 2005 - 2018 Alfresco Software Limited
+ * %%
+ * This file is part of the Alfresco software.
+ * If the software was purchased under a paid Alfresco license, the terms of
+ * the paid license agreement will prevail.  Otherwise, the software is
+ * provided under the following open source license terms:
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+package org.alfresco.bm.dataload.files;
+
+import org.alfresco.bm.driver.file.FileDataService;
+import org.apache.commons.net.ftp.FTPClient;
+import org.apache.commons.net.ftp.FTPFile;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Calendar;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Prefetches from a mocked FTP client into a cache that is reused by later runs
+ *
+ * @see PrefetchingFtpTestFileService
+ * @since 3.0
+ */
+@RunWith(JUnit4.class)
+public class PrefetchingFtpTestFileServiceTest
+{
+    private static final String FTP_PATH = "/testfiles";
+    private static final long TIMEOUT = 10000L;
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private String localDir;
+    private Map<String, byte[]> remoteContent;
+    private Map<String, AtomicInteger> downloads;
+    private FTPClient ftp;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        localDir = temporaryFolder.getRoot().getAbsolutePath();
+        remoteContent = new LinkedHashMap<String, byte[]>();
+        for (String name : new String[] {"a.txt", "b.pdf", "c.docx"})
+        {
+            remoteContent.put(name, ("Content of " + name).getBytes(StandardCharsets.UTF_8));
+        }
+        downloads = new ConcurrentHashMap<String, AtomicInteger>();
+
+        ftp = mock(FTPClient.class);
+        when(ftp.getReplyCode()).thenReturn(230);
+        when(ftp.login(anyString(), anyString())).thenReturn(true);
+        when(ftp.setFileType(anyInt())).thenReturn(true);
+        when(ftp.listFiles(FTP_PATH)).thenAnswer(invocation -> listRemoteFiles());
+        when(ftp.retrieveFile(anyString(), any(OutputStream.class))).thenAnswer(invocation ->
+        {
+            String name = ((String) invocation.getArguments()[0]).substring(FTP_PATH.length() + 1);
+            downloads.computeIfAbsent(name, key -> new AtomicInteger()).incrementAndGet();
+            ((OutputStream) invocation.getArguments()[1]).write(remoteContent.get(name));
+            return true;
+        });
+    }
+
+    private FTPFile[] listRemoteFiles()
+    {
+        FTPFile[] remoteFiles = new FTPFile[remoteContent.size() + 1];
+        int i = 0;
+        for (Map.Entry<String, byte[]> entry : remoteContent.entrySet())
+        {
+            FTPFile remoteFile = new FTPFile();
+            remoteFile.setName(entry.getKey());
+            remoteFile.setType(FTPFile.FILE_TYPE);
+            remoteFile.setSize(entry.getValue().length);
+            Calendar timestamp = Calendar.getInstance();
+            timestamp.setTimeInMillis(1500000000000L);
+            remoteFile.setTimestamp(timestamp);
+            remoteFiles[i++] = remoteFile;
+        }
+        // Directories are not test files
+        FTPFile directory = new FTPFile();
+        directory.setName("archive");
+        directory.setType(FTPFile.DIRECTORY_TYPE);
+        remoteFiles[i] = directory;
+        return remoteFiles;
+    }
+
+    /**
+     * Run the prefetch to completion the way a driver start would
+     */
+    private PrefetchingFtpTestFileService prefetch() throws Exception
+    {
+        PrefetchingFtpTestFileService service = new PrefetchingFtpTestFileService(mock(FileDataService.class), localDir, "localhost", 21, "user",
+            "password", FTP_PATH)
+        {
+            @Override
+            FTPClient newFtpClient()
+            {
+                return ftp;
+            }
+        };
+        service.setEnabled(true);
+        service.setConnections(2);
+        service.setMinFiles(2);
+        service.start();
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+        while (service.isPrefetching() && System.currentTimeMillis() < deadline)
+        {
+            Thread.sleep(10L);
+        }
+        assertFalse("Prefetch did not finish", service.isPrefetching());
+        service.stop();
+        return service;
+    }
+
+    private int downloadCount(String name)
+    {
+        AtomicInteger count = downloads.get(name);
+        return count == null ? 0 : count.get();
+    }
+
+    private static Set<File> filesHandedOut(PrefetchingFtpTestFileService service)
+    {
+        Set<File> files = new HashSet<File>();
+        for (int i = 0; i < 200; i++)
+        {
+            files.add(service.getFile());
+        }
+        return files;
+    }
+
+    private Properties loadManifest() throws IOException
+    {
+        Properties manifest = new Properties();
+        File cacheDir = new File(localDir, PrefetchingFtpTestFileService.CACHE_DIR);
+        try (InputStream in = Files.newInputStream(new File(cacheDir, PrefetchingFtpTestFileService.MANIFEST).toPath()))
+        {
+            manifest.load(in);
+        }
+        return manifest;
+    }
+
+    @Test
+    public void fetchesEveryRemoteFileWithItsName() throws Exception
+    {
+        PrefetchingFtpTestFileService service = prefetch();
+
+        assertEquals(3, service.getFileCount());
+        Set<File> files = filesHandedOut(service);
+        assertEquals(3, files.size());
+        for (File file : files)
+        {
+            assertTrue(remoteContent.containsKey(file.getName()));
+            assertTrue(Files.readAllBytes(file.toPath()).length > 0);
+            assertEquals(1, downloadCount(file.getName()));
+        }
+        assertEquals(3, loadManifest().size());
+    }
+
+    @Test
+    public void laterRunsReuseTheManifest() throws Exception
+    {
+        Set<File> firstRun = filesHandedOut(prefetch());
+        String manifestBefore = loadManifest().toString();
+
+        PrefetchingFtpTestFileService service = prefetch();
+
+        assertEquals(3, service.getFileCount());
+        assertEquals(firstRun, filesHandedOut(service));
+        for (String name : remoteContent.keySet())
+        {
+            assertEquals("Downloaded again: " + name, 1, downloadCount(name));
+        }
+        assertEquals(manifestBefore, loadManifest().toString());
+    }
+
+    @Test
+    public void changedRemoteFilesAreDownloadedAgain() throws Exception
+    {
+        prefetch();
+        remoteContent.put("b.pdf", "Longer, newer content of b.pdf".getBytes(StandardCharsets.UTF_8));
+        String entryBefore = loadManifest().getProperty("b.pdf");
+
+        prefetch();
+
+        assertEquals(1, downloadCount("a.txt"));
+        assertEquals(2, downloadCount("b.pdf"));
+        assertEquals(1, downloadCount("c.docx"));
+        assertNotEquals(entryBefore, loadManifest().getProperty("b.pdf"));
+    }
+
+    @Test
+    public void corruptCachedFilesAreDownloadedAgain() throws Exception
+    {
+        File cached = null;
+        for (File file : filesHandedOut(prefetch()))
+        {
+            if (file.getName().equals("a.txt"))
+            {
+                cached = file;
+            }
+        }
+        // Same size, so only the hash gives it away
+        byte[] content = Files.readAllBytes(cached.toPath());
+        content[0] ^= 0x01;
+        Files.write(cached.toPath(), content);
+
+        PrefetchingFtpTestFileService service = prefetch();
+
+        assertEquals(3, service.getFileCount());
+        assertEquals(2, downloadCount("a.txt"));
+        assertEquals(1, downloadCount("b.pdf"));
+        assertEquals(1, downloadCount("c.docx"));
+        assertEquals("Content of a.txt", new String(Files.readAllBytes(cached.toPath()), StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,230 @@
+/*
+ * #%L
+ * Alfresco Benchmark Load Data
+ * %%
+ * Copyright (C) 2005 - 2018 Alfresco Software Limited
+ * %%
+ * This file is part of the Alfresco software.
+ * If the software was purchased under a paid Alfresco license, the terms of
+ * the paid license agreement will prevail.  Otherwise, the software is
+ * provided under the following open source license terms:
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+package org.alfresco.bm.dataload.files;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+import org.alfresco.bm.cm.FileFolderService;
+import org.alfresco.bm.cm.FolderData;
+import org.alfresco.bm.common.EventResult;
+import org.alfresco.bm.common.session.SessionService;
+import org.alfresco.bm.dataload.LoadControl;
+import org.alfresco.bm.dataload.sites.SiteShardService;
+import org.alfresco.bm.driver.event.Event;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyBoolean;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * @see ScheduleSiteLoaders
+ * @since 3.0
+ */
+@RunWith(JUnit4.class)
+public class ScheduleSiteLoadersTest
+{
+    private static final String SHARD = "driverA";
+    private static final String OWNED_FOLDER = "/Sites/siteA/documentLibrary/folder";
+    private static final String OTHER_FOLDER = "/Sites/siteB/documentLibrary/folder";
+
+    private SessionService sessionService;
+    private FileFolderService fileFolderService;
+    private SiteShardService siteShardService;
+    private ScheduleSiteLoaders scheduleSiteLoaders;
+    /** Folders still needing files, as returned page by page from the mirror */
+    private List<FolderData> foldersNeedingFiles;
+    private int pagesRead;
+
+    @Before
+    public void setUp()
+    {
+        sessionService = mock(SessionService.class);
+        fileFolderService = mock(FileFolderService.class);
+        siteShardService = mock(SiteShardService.class);
+        when(siteShardService.isEnabled()).thenReturn(true);
+        when(siteShardService.getShards()).thenReturn(Arrays.asList(SHARD, "driverB"));
+        when(siteShardService.isOwnedBy(SHARD, "siteA")).thenReturn(true);
+        when(siteShardService.completeShard(anyString(), anyString(), anyString(), anyBoolean())).thenReturn(null);
+        // This driver owns every shard
+        when(siteShardService.handOver(anyString(), any(Event.class))).thenReturn(null);
+
+        foldersNeedingFiles = new ArrayList<FolderData>();
+        when(fileFolderService.getFoldersByCounts(anyString(), any(Long.class), any(Long.class), any(Long.class), any(Long.class),
+            any(Long.class), any(Long.class), anyInt(), anyInt())).thenAnswer(new Answer<List<FolderData>>()
+        {
+            @Override
+            public List<FolderData> answer(InvocationOnMock invocation) throws Throwable
+            {
+                Object[] args = invocation.getArguments();
+                pagesRead++;
+                if (args[3] != null)
+                {
+                    // No folder needs subfolders
+                    return Collections.emptyList();
+                }
+                int skip = (Integer) args[7];
+                int limit = (Integer) args[8];
+                int end = Math.min(foldersNeedingFiles.size(), skip + limit);
+                return skip >= end ? Collections.<FolderData>emptyList() : new ArrayList<FolderData>(foldersNeedingFiles.subList(skip, end));
+            }
+        });
+
+        scheduleSiteLoaders = new ScheduleSiteLoaders(sessionService, fileFolderService, 2, 2, 10, 4, 1000L);
+        scheduleSiteLoaders.setSiteShardService(siteShardService);
+    }
+
+    private EventResult schedule(DBObject data) throws Exception
+    {
+        return scheduleSiteLoaders.processEvent(new Event(ScheduleSiteLoaders.EVENT_NAME_SCHEDULE_LOADERS, data));
+    }
+
+    @Test
+    public void reschedulesWithoutEvent() throws Exception
+    {
+        scheduleSiteLoaders.setSiteShardService(null);
+        foldersNeedingFiles.add(new FolderData("1", "", OWNED_FOLDER, 0L, 5L));
+
+        // Processors are driven without an event by the existing tests and benchmarks
+        EventResult result = scheduleSiteLoaders.processEvent(null);
+
+        assertEquals(2, result.getNextEvents().size());
+        assertEquals(ScheduleSiteLoaders.EVENT_NAME_LOAD_SITE_FILES, result.getNextEvents().get(0).getName());
+        Event nextEvent = result.getNextEvents().get(1);
+        assertEquals(ScheduleSiteLoaders.EVENT_NAME_SCHEDULE_LOADERS, nextEvent.getName());
+        assertNull(nextEvent.getData());
+    }
+
+    @Test
+    public void pausedWithoutEvent() throws Exception
+    {
+        scheduleSiteLoaders.setSiteShardService(null);
+        LoadControl loadControl = new LoadControl("test", "run");
+        loadControl.pause();
+        scheduleSiteLoaders.setLoadControl(loadControl);
+
+        EventResult result = scheduleSiteLoaders.processEvent(null);
+
+        assertEquals(1, result.getNextEvents().size());
+        Event nextEvent = result.getNextEvents().get(0);
+        assertEquals(ScheduleSiteLoaders.EVENT_NAME_SCHEDULE_LOADERS, nextEvent.getName());
+        assertNull(nextEvent.getData());
+    }
+
+    @Test
+    public void shardWaitsForItsRunningLoaders() throws Exception
+    {
+        foldersNeedingFiles.add(new FolderData("1", "", OWNED_FOLDER, 0L, 5L));
+        doThrow(new RuntimeException("Duplicate")).when(fileFolderService).createNewFolder(any(FolderData.class));
+        when(sessionService.getActiveSessionsCount()).thenReturn(1L);
+
+        EventResult result = schedule(new BasicDBObject(SiteShardService.FIELD_SHARD, SHARD));
+
+        verify(siteShardService, never()).completeShard(anyString(), anyString(), anyString(), anyBoolean());
+        assertEquals(1, result.getNextEvents().size());
+        assertEquals(ScheduleSiteLoaders.EVENT_NAME_SCHEDULE_LOADERS, result.getNextEvents().get(0).getName());
+    }
+
+    @Test
+    public void shardCompletesOnceOnlyStaleLocksAreLeft() throws Exception
+    {
+        foldersNeedingFiles.add(new FolderData("1", "", OWNED_FOLDER, 0L, 5L));
+        doThrow(new RuntimeException("Duplicate")).when(fileFolderService).createNewFolder(any(FolderData.class));
+        when(fileFolderService.getFolder("", OWNED_FOLDER + "/locked")).thenReturn(
+            new FolderData("2", "", OWNED_FOLDER + "/locked", Long.MAX_VALUE, Long.MAX_VALUE));
+        when(sessionService.getActiveSessionsCount()).thenReturn(0L);
+
+        EventResult result = schedule(new BasicDBObject(SiteShardService.FIELD_SHARD, SHARD));
+
+        verify(siteShardService).completeShard(ScheduleSiteLoaders.EVENT_NAME_SCHEDULE_LOADERS, SHARD, ScheduleSiteLoaders.EVENT_NAME_SCHEDULE_LOADERS, false);
+        assertEquals(0, result.getNextEvents().size());
+    }
+
+    @Test
+    public void shardReportsFoldersLeftByOtherShards() throws Exception
+    {
+        foldersNeedingFiles.add(new FolderData("1", "", OTHER_FOLDER, 0L, 5L));
+
+        schedule(new BasicDBObject(SiteShardService.FIELD_SHARD, SHARD));
+
+        verify(fileFolderService, never()).createNewFolder(any(FolderData.class));
+        verify(siteShardService).completeShard(ScheduleSiteLoaders.EVENT_NAME_SCHEDULE_LOADERS, SHARD, ScheduleSiteLoaders.EVENT_NAME_SCHEDULE_LOADERS, true);
+    }
+
+    @Test
+    public void shardPassesAreBounded() throws Exception
+    {
+        int folderCount = 2500;
+        for (int i = 0; i < folderCount; i++)
+        {
+            foldersNeedingFiles.add(new FolderData("" + i, "", OTHER_FOLDER + i, 0L, 5L));
+        }
+        foldersNeedingFiles.add(new FolderData("owned", "", OWNED_FOLDER, 0L, 5L));
+
+        // The first pass stops after a bounded number of pages and carries on from there
+        EventResult result = schedule(new BasicDBObject(SiteShardService.FIELD_SHARD, SHARD));
+        assertTrue("Too many pages read: " + pagesRead, pagesRead <= ScheduleSiteLoaders.SHARD_PAGES_PER_PASS + 1);
+        assertEquals(1, result.getNextEvents().size());
+        Event nextEvent = result.getNextEvents().get(0);
+        assertEquals(ScheduleSiteLoaders.EVENT_NAME_SCHEDULE_LOADERS, nextEvent.getName());
+        DBObject nextData = (DBObject) nextEvent.getData();
+        assertEquals(SHARD, nextData.get(SiteShardService.FIELD_SHARD));
+        assertEquals(ScheduleSiteLoaders.SHARD_PAGES_PER_PASS * 100, nextData.get(ScheduleSiteLoaders.FIELD_FILES_SKIP));
+
+        // Later passes find the shard's folder at the end
+        for (int i = 0; i < 5; i++)
+        {
+            result = schedule((DBObject) result.getNextEvents().get(0).getData());
+            if (result.getNextEvents().get(0).getName().equals(ScheduleSiteLoaders.EVENT_NAME_LOAD_SITE_FILES))
+            {
+                break;
+            }
+        }
+        Event loadEvent = result.getNextEvents().get(0);
+        assertEquals(ScheduleSiteLoaders.EVENT_NAME_LOAD_SITE_FILES, loadEvent.getName());
+        assertEquals(OWNED_FOLDER, ((DBObject) loadEvent.getData()).get(ScheduleSiteLoaders.FIELD_PATH));
+        verify(siteShardService, never()).completeShard(anyString(), anyString(), anyString(), anyBoolean());
+    }
+}
@@ -0,0 +1,202 @@
+/*
+ * #%L
+ * Alfresco Benchmark Load Data
+ * %%
+ * Copyright (C) 2005 - 2018 Alfresco Software Limited
+ * %%
+ * This file is part of the Alfresco software.
+ * If the software was purchased under a paid Alfresco license, the terms of
+ * the paid license agreement will prevail.  Otherwise, the software is
+ * provided under the following open source license terms:
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+package org.alfresco.bm.dataload.files;
+
+import com.mongodb.BasicDBObjectBuilder;
+import com.mongodb.DB;
+import com.mongodb.DBCollection;
+import com.mongodb.DBCursor;
+import org.alfresco.bm.cm.FolderData;
+import org.alfresco.bm.common.EventResult;
+import org.alfresco.bm.data.DataCreationState;
+import org.alfresco.bm.dataload.mock.MockAlfrescoServer;
+import org.alfresco.bm.dataload.rest.AlfrescoAsyncClient;
+import org.alfresco.bm.driver.event.Event;
+import org.alfresco.bm.driver.file.TestFileService;
+import org.alfresco.bm.site.SiteData;
+import org.alfresco.bm.site.SiteDataService;
+import org.alfresco.bm.site.SiteMemberData;
+import org.alfresco.bm.user.UserData;
+import org.alfresco.bm.user.UserDataService;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Creates folders on the {@link MockAlfrescoServer mock server} with the non-blocking client, recording in an embedded mirror
+ *
+ * @see SiteFolderLoader
+ * @since 3.0
+ */
+@RunWith(JUnit4.class)
+public class SiteFolderLoaderTest
+{
+    private static final String DOC_LIB = "/Sites/site1/documentLibrary";
+
+    private MockAlfrescoServer server;
+    private AlfrescoAsyncClient asyncClient;
+    private EmbeddedFileFolderService fileFolderService;
+    private SiteFolderLoader loader;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        server = new MockAlfrescoServer(0, 16);
+        server.start();
+        asyncClient = new AlfrescoAsyncClient("http://localhost:" + server.getPort(), 32, 2);
+
+        // An empty snapshot, so the mirror starts with only what the test records
+        DBCursor cursor = mock(DBCursor.class);
+        when(cursor.batchSize(anyInt())).thenReturn(cursor);
+        DBCollection collection = mock(DBCollection.class);
+        when(collection.find()).thenReturn(cursor);
+        DB db = mock(DB.class);
+        when(db.getCollection("filefolders")).thenReturn(collection);
+        fileFolderService = new EmbeddedFileFolderService(db, "filefolders", "jdbc:h2:mem:" + UUID.randomUUID());
+        fileFolderService.afterPropertiesSet();
+        fileFolderService.createNewFolder(new FolderData("doclib", "", DOC_LIB, 0L, 0L));
+
+        SiteData site = mock(SiteData.class);
+        SiteMemberData member = mock(SiteMemberData.class);
+        when(member.getUsername()).thenReturn("user1");
+        SiteDataService siteDataService = mock(SiteDataService.class);
+        when(siteDataService.getSite("site1")).thenReturn(site);
+        when(siteDataService.randomSiteMember(eq("site1"), eq(DataCreationState.Created), anyString(), anyString(), anyString())).thenReturn(member);
+        UserData user = mock(UserData.class);
+        when(user.getUsername()).thenReturn("user1");
+        when(user.getPassword()).thenReturn("password");
+        UserDataService userDataService = mock(UserDataService.class);
+        when(userDataService.findUserByUsername("user1")).thenReturn(user);
+
+        loader = new SiteFolderLoader(fileFolderService, userDataService, siteDataService, mock(TestFileService.class));
+        loader.setAsyncClient(asyncClient);
+        loader.setAsyncUpload(true);
+    }
+
+    @After
+    public void tearDown() throws Exception
+    {
+        asyncClient.destroy();
+        server.stop();
+    }
+
+    private EventResult loadFolders(int foldersToCreate, int branchDepth) throws Exception
+    {
+        Event event = new Event("loadSiteFolders", BasicDBObjectBuilder.start()
+            .add(ScheduleSiteLoaders.FIELD_CONTEXT, "")
+            .add(ScheduleSiteLoaders.FIELD_PATH, DOC_LIB)
+            .add(ScheduleSiteLoaders.FIELD_FOLDERS_TO_CREATE, foldersToCreate)
+            .add(ScheduleSiteLoaders.FIELD_FILES_TO_CREATE, 0)
+            .add(ScheduleSiteLoaders.FIELD_BRANCH_DEPTH, branchDepth)
+            .get());
+        event.setSessionId("session1");
+        EventResult result = loader.processEvent(event);
+        assertTrue(result.isSuccess());
+        return result;
+    }
+
+    @Test
+    public void batchCreatesFoldersWithOneListBody() throws Exception
+    {
+        loader.setBatchFolders(true);
+
+        loadFolders(3, 1);
+
+        assertEquals(Long.valueOf(1L), server.getRequestCounts().get("POST nodes/children"));
+        assertEquals(3L, fileFolderService.getFolder("", DOC_LIB).getFolderCount());
+        List<FolderData> children = fileFolderService.getChildFolders("", DOC_LIB, 0, 10);
+        assertEquals(3, children.size());
+        Set<String> ids = new HashSet<String>();
+        for (FolderData child : children)
+        {
+            assertEquals(0L, child.getFolderCount());
+            assertFalse("The node ID is recorded, not the name", child.getPath().endsWith("/" + child.getId()));
+            ids.add(child.getId());
+        }
+        assertEquals(3, ids.size());
+    }
+
+    @Test
+    public void batchConflictFallsBackToOneCallPerFolder() throws Exception
+    {
+        server.setBatchConflicts(true);
+        loader.setBatchFolders(true);
+
+        loadFolders(3, 1);
+
+        // The rejected batch and then one call for each folder
+        assertEquals(Long.valueOf(4L), server.getRequestCounts().get("POST nodes/children"));
+        assertEquals(3L, fileFolderService.getFolder("", DOC_LIB).getFolderCount());
+        assertEquals(3, fileFolderService.getChildFolders("", DOC_LIB, 0, 10).size());
+    }
+
+    @Test
+    public void branchesAreRecordedAtEveryDepth() throws Exception
+    {
+        loadFolders(2, 3);
+
+        // One call per branch
+        assertEquals(Long.valueOf(2L), server.getRequestCounts().get("POST nodes/children"));
+        assertEquals(2L, fileFolderService.getFolder("", DOC_LIB).getFolderCount());
+        List<FolderData> tops = fileFolderService.getChildFolders("", DOC_LIB, 0, 10);
+        assertEquals(2, tops.size());
+        Set<String> ids = new HashSet<String>();
+        for (FolderData top : tops)
+        {
+            // Each folder above the leaf holds the next one down
+            FolderData folder = top;
+            for (int depth = 1; depth < 3; depth++)
+            {
+                assertEquals(1L, folder.getFolderCount());
+                assertTrue(ids.add(folder.getId()));
+                List<FolderData> children = fileFolderService.getChildFolders("", folder.getPath(), 0, 10);
+                assertEquals(1, children.size());
+                folder = children.get(0);
+            }
+            assertEquals(0L, folder.getFolderCount());
+            assertTrue(ids.add(folder.getId()));
+            assertEquals(0, fileFolderService.getChildFolders("", folder.getPath(), 0, 10).size());
+            assertNotNull(fileFolderService.getFolder(folder.getId()));
+        }
+    }
+}
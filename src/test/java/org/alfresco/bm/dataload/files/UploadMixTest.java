@@ -0,0 +1,226 @@
+/*
+ * #%L
+ * Alfresco Benchmark Load Data
+ * %%
+ * Copyright (C) 2005 - 2018 Alfresco Software Limited
+ * %%
+ * This file is part of the Alfresco software.
+ * If the software was purchased under a paid Alfresco license, the terms of
+ * the paid license agreement will prevail.  Otherwise, the software is
+ * provided under the following open source license terms:
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+package org.alfresco.bm.dataload.files;
+
+import org.alfresco.bm.driver.file.TestFileService;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * @see UploadMix
+ * @since 3.0
+ */
+@RunWith(JUnit4.class)
+public class UploadMixTest
+{
+    private static final int PICKS = 100000;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private List<File> files;
+    private TestFileService testFileService;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        files = new ArrayList<File>();
+        files.add(newFile("small.docx", 10 * 1024));
+        files.add(newFile("medium.docx", 2 * 1024 * 1024));
+        files.add(newFile("report.pdf", 500 * 1024));
+        files.add(newFile("movie.mp4", 5 * 1024 * 1024));
+        files.add(newFile("notes.txt", 1024));
+
+        final Random random = new Random(42L);
+        testFileService = mock(TestFileService.class);
+        when(testFileService.getFile()).thenAnswer(new Answer<File>()
+        {
+            @Override
+            public File answer(InvocationOnMock invocation)
+            {
+                return files.get(random.nextInt(files.size()));
+            }
+        });
+    }
+
+    private File newFile(String name, long size) throws IOException
+    {
+        File file = folder.newFile(name);
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw"))
+        {
+            raf.setLength(size);
+        }
+        return file;
+    }
+
+    @Test
+    public void aliasTable()
+    {
+        AliasTable table = new AliasTable(new double[] { 6.0, 3.0, 0.0, 1.0 });
+        int[] counts = new int[table.size()];
+        Random random = new Random(7L);
+        for (int i = 0; i < PICKS; i++)
+        {
+            counts[table.next(random)]++;
+        }
+        assertEquals(0.6, counts[0] / (double) PICKS, 0.01);
+        assertEquals(0.3, counts[1] / (double) PICKS, 0.01);
+        assertEquals(0, counts[2]);
+        assertEquals(0.1, counts[3] / (double) PICKS, 0.01);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void aliasTableNoWeight()
+    {
+        new AliasTable(new double[] { 0.0, 0.0 });
+    }
+
+    @Test
+    public void noProfile()
+    {
+        UploadMix mix = new UploadMix(testFileService, "");
+        File file = mix.getFile();
+        assertTrue(file.exists());
+        assertNull(mix.getBucket(file));
+    }
+
+    @Test
+    public void weightedMix()
+    {
+        UploadMix mix = new UploadMix(testFileService, "office:doc|docx:0-1m:60, pdf:pdf:*:30, video:mp4:1m-:10");
+        Map<String, Integer> counts = new HashMap<String, Integer>();
+        for (int i = 0; i < PICKS; i++)
+        {
+            File file = mix.getFile();
+            String bucket = mix.getBucket(file);
+            Integer count = counts.get(bucket);
+            counts.put(bucket, count == null ? 1 : count + 1);
+            if ("office".equals(bucket))
+            {
+                // The larger document is outside the size range
+                assertEquals("small.docx", file.getName());
+            }
+        }
+        assertEquals(3, counts.size());
+        assertEquals(0.6, counts.get("office") / (double) PICKS, 0.01);
+        assertEquals(0.3, counts.get("pdf") / (double) PICKS, 0.01);
+        assertEquals(0.1, counts.get("video") / (double) PICKS, 0.01);
+    }
+
+    @Test
+    public void emptyBucketIsSkipped()
+    {
+        UploadMix mix = new UploadMix(testFileService, "pdf:pdf:*:1, audio:mp3:*:99");
+        for (int i = 0; i < 100; i++)
+        {
+            assertEquals("pdf", mix.getBucket(mix.getFile()));
+        }
+    }
+
+    @Test
+    public void meanFileSize()
+    {
+        UploadMix mix = new UploadMix(testFileService, "office:doc|docx:0-1m:60, pdf:pdf:*:30, video:mp4:1m-:10");
+        assertEquals(0.6 * 10 * 1024 + 0.3 * 500 * 1024 + 0.1 * 5 * 1024 * 1024, mix.getMeanFileSize(), 1.0);
+        // Empty buckets are never picked so they do not count
+        mix = new UploadMix(testFileService, "pdf:pdf:*:1, audio:mp3:*:99");
+        assertEquals(500 * 1024, mix.getMeanFileSize(), 1.0);
+    }
+
+    @Test
+    public void catalogueFollowsPrefetching()
+    {
+        // Only the office documents have been fetched so far
+        final List<File> fetched = new ArrayList<File>(files.subList(0, 2));
+        final Random random = new Random(42L);
+        PrefetchingFtpTestFileService prefetchingService = mock(PrefetchingFtpTestFileService.class);
+        when(prefetchingService.getFile()).thenAnswer(new Answer<File>()
+        {
+            @Override
+            public File answer(InvocationOnMock invocation)
+            {
+                return fetched.get(random.nextInt(fetched.size()));
+            }
+        });
+        when(prefetchingService.isPrefetching()).thenReturn(true);
+        when(prefetchingService.getFileCount()).thenReturn(fetched.size());
+
+        UploadMix mix = new UploadMix(prefetchingService, "office:docx:*:50, video:mp4:*:50");
+        for (int i = 0; i < 100; i++)
+        {
+            assertEquals("office", mix.getBucket(mix.getFile()));
+        }
+
+        // The rest arrive and fetching is done
+        fetched.clear();
+        fetched.addAll(files);
+        when(prefetchingService.isPrefetching()).thenReturn(false);
+        when(prefetchingService.getFileCount()).thenReturn(fetched.size());
+        Map<String, Integer> counts = new HashMap<String, Integer>();
+        for (int i = 0; i < 1000; i++)
+        {
+            String bucket = mix.getBucket(mix.getFile());
+            counts.put(bucket, counts.containsKey(bucket) ? counts.get(bucket) + 1 : 1);
+        }
+        assertTrue("Videos were never picked: " + counts, counts.containsKey("video"));
+        assertFalse(counts.containsKey(null));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void nothingMatches()
+    {
+        UploadMix mix = new UploadMix(testFileService, "audio:mp3:*:1");
+        mix.getFile();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void badProfile()
+    {
+        new UploadMix(testFileService, "office:docx:60");
+    }
+}
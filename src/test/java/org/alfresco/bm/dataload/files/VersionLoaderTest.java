@@ -0,0 +1,261 @@
+/*
+ * #%L
+ * Alfresco Benchmark Load Data
+ * %%
+ * Copyright (C) 2005 - 2018 Alfresco Software Limited
+ * %%
+ * This file is part of the Alfresco software.
+ * If the software was purchased under a paid Alfresco license, the terms of
+ * the paid license agreement will prevail.  Otherwise, the software is
+ * provided under the following open source license terms:
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+package org.alfresco.bm.dataload.files;
+
+import com.mongodb.BasicDBObjectBuilder;
+import com.mongodb.DB;
+import com.mongodb.DBCollection;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+import org.alfresco.bm.cm.FolderData;
+import org.alfresco.bm.common.EventResult;
+import org.alfresco.bm.common.session.SessionService;
+import org.alfresco.bm.data.DataCreationState;
+import org.alfresco.bm.dataload.mock.MockAlfrescoServer;
+import org.alfresco.bm.dataload.rest.AlfrescoAsyncClient;
+import org.alfresco.bm.driver.event.Event;
+import org.alfresco.bm.driver.file.TestFileService;
+import org.alfresco.bm.site.SiteData;
+import org.alfresco.bm.site.SiteDataService;
+import org.alfresco.bm.site.SiteMemberData;
+import org.alfresco.bm.user.UserData;
+import org.alfresco.bm.user.UserDataService;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Schedules and runs version loaders against the {@link MockAlfrescoServer mock server}, which lists three files in
+ * every folder, with progress counted in an embedded mirror
+ *
+ * @see VersionLoader
+ * @see ScheduleVersionLoaders
+ * @since 3.0
+ */
+@RunWith(JUnit4.class)
+public class VersionLoaderTest
+{
+    private static final String DOC_LIB = "/Sites/site1/documentLibrary";
+    private static final int LISTED_FILES = 3;
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private MockAlfrescoServer server;
+    private AlfrescoAsyncClient asyncClient;
+    private EmbeddedFileFolderService fileFolderService;
+    private SessionService sessionService;
+    private ScheduleVersionLoaders scheduler;
+    private VersionLoader loader;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        server = new MockAlfrescoServer(0, 16);
+        server.start();
+        asyncClient = new AlfrescoAsyncClient("http://localhost:" + server.getPort(), 32, 2);
+
+        // An empty snapshot, so the mirror starts with only what the test records
+        DBCursor cursor = mock(DBCursor.class);
+        when(cursor.batchSize(anyInt())).thenReturn(cursor);
+        DBCollection collection = mock(DBCollection.class);
+        when(collection.find()).thenReturn(cursor);
+        DB db = mock(DB.class);
+        when(db.getCollection("filefolders")).thenReturn(collection);
+        fileFolderService = new EmbeddedFileFolderService(db, "filefolders", "jdbc:h2:mem:" + UUID.randomUUID());
+        fileFolderService.afterPropertiesSet();
+        // Two folders hold files; an empty folder and a lock left by a file loader do not count
+        fileFolderService.createNewFolder(new FolderData("doclib", "", DOC_LIB, 2L, 5L));
+        fileFolderService.createNewFolder(new FolderData("folder1", "", DOC_LIB + "/folder1", 0L, 0L));
+        fileFolderService.createNewFolder(new FolderData("folder2", "", DOC_LIB + "/folder2", 0L, 5L));
+        fileFolderService.createNewFolder(new FolderData("lock", "", DOC_LIB + "/folder1/locked", Long.MAX_VALUE, Long.MAX_VALUE));
+
+        sessionService = mock(SessionService.class);
+        when(sessionService.startSession(any(DBObject.class))).thenReturn("session1");
+
+        SiteData site = mock(SiteData.class);
+        SiteMemberData member = mock(SiteMemberData.class);
+        when(member.getUsername()).thenReturn("user1");
+        SiteDataService siteDataService = mock(SiteDataService.class);
+        when(siteDataService.getSite("site1")).thenReturn(site);
+        when(siteDataService.randomSiteMember(eq("site1"), eq(DataCreationState.Created), anyString(), anyString(), anyString())).thenReturn(member);
+        UserData user = mock(UserData.class);
+        when(user.getUsername()).thenReturn("user1");
+        when(user.getPassword()).thenReturn("password");
+        UserDataService userDataService = mock(UserDataService.class);
+        when(userDataService.findUserByUsername("user1")).thenReturn(user);
+
+        File file = temporaryFolder.newFile("version.txt");
+        try (FileOutputStream os = new FileOutputStream(file))
+        {
+            os.write(new byte[100]);
+        }
+        TestFileService testFileService = mock(TestFileService.class);
+        when(testFileService.getFile()).thenReturn(file);
+
+        scheduler = new ScheduleVersionLoaders(sessionService, fileFolderService, 10, 10L);
+        scheduler.setEnabled(true);
+        loader = new VersionLoader(sessionService, fileFolderService, userDataService, siteDataService, testFileService, asyncClient);
+    }
+
+    @After
+    public void tearDown() throws Exception
+    {
+        asyncClient.destroy();
+        server.stop();
+    }
+
+    private static List<String> paths(List<Event> events, String eventName)
+    {
+        List<String> paths = new ArrayList<String>();
+        for (Event event : events)
+        {
+            if (eventName.equals(event.getName()))
+            {
+                paths.add((String) ((DBObject) event.getData()).get(ScheduleSiteLoaders.FIELD_PATH));
+            }
+        }
+        return paths;
+    }
+
+    @Test
+    public void claimsEachFolderHoldingFilesOnce() throws Exception
+    {
+        EventResult first = scheduler.processEvent(new Event(ScheduleVersionLoaders.EVENT_NAME_SCHEDULE_VERSION_LOADERS, null));
+        List<Event> events = first.getNextEvents();
+        List<String> claimed = paths(events, ScheduleVersionLoaders.EVENT_NAME_LOAD_VERSIONS);
+        assertEquals(2, claimed.size());
+        assertTrue(claimed.contains(DOC_LIB));
+        assertTrue(claimed.contains(DOC_LIB + "/folder2"));
+        for (String path : claimed)
+        {
+            FolderData claim = fileFolderService.getFolder(ScheduleVersionLoaders.CONTEXT_VERSIONS, path);
+            assertEquals(0L, claim.getFolderCount());
+            assertEquals(0L, claim.getFileCount());
+        }
+        assertNull(fileFolderService.getFolder(ScheduleVersionLoaders.CONTEXT_VERSIONS, DOC_LIB + "/folder1"));
+        assertNull(fileFolderService.getFolder(ScheduleVersionLoaders.CONTEXT_VERSIONS, DOC_LIB + "/folder1/locked"));
+
+        // The next pass carries on from where this one stopped and finds nothing more
+        Event reschedule = events.get(events.size() - 1);
+        assertEquals(ScheduleVersionLoaders.EVENT_NAME_SCHEDULE_VERSION_LOADERS, reschedule.getName());
+        EventResult second = scheduler.processEvent(reschedule);
+        assertEquals(ScheduleVersionLoaders.EVENT_NAME_VERSIONS_COMPLETE, second.getNextEvents().get(0).getName());
+
+        // Starting again from the beginning, the claimed folders are not scheduled twice
+        EventResult again = scheduler.processEvent(new Event(ScheduleVersionLoaders.EVENT_NAME_SCHEDULE_VERSION_LOADERS, null));
+        assertEquals(ScheduleVersionLoaders.EVENT_NAME_VERSIONS_COMPLETE, again.getNextEvents().get(0).getName());
+    }
+
+    @Test
+    public void versionsAreCountedInTheMirror() throws Exception
+    {
+        loader.setVersionsPerFile("2:1");
+        loader.setMajorVersionPercentage(100);
+
+        EventResult scheduled = scheduler.processEvent(new Event(ScheduleVersionLoaders.EVENT_NAME_SCHEDULE_VERSION_LOADERS, null));
+        for (Event event : scheduled.getNextEvents())
+        {
+            if (!ScheduleVersionLoaders.EVENT_NAME_LOAD_VERSIONS.equals(event.getName()))
+            {
+                continue;
+            }
+            EventResult loaded = loader.processEvent(event);
+            assertTrue(loaded.isSuccess());
+            DBObject data = (DBObject) loaded.getData();
+            assertEquals(Long.valueOf(LISTED_FILES), data.get("files"));
+            assertEquals(Long.valueOf(LISTED_FILES * 2), data.get("versions"));
+            assertEquals(Long.valueOf(LISTED_FILES * 2), data.get("majorVersions"));
+            assertEquals(Long.valueOf(LISTED_FILES * 2 * 100), data.get("bytes"));
+            assertEquals(VersionLoader.EVENT_NAME_VERSIONS_LOADED, loaded.getNextEvents().get(0).getName());
+
+            // Files versioned are the folder count and versions uploaded the file count
+            String path = (String) ((DBObject) event.getData()).get(ScheduleSiteLoaders.FIELD_PATH);
+            FolderData progress = fileFolderService.getFolder(ScheduleVersionLoaders.CONTEXT_VERSIONS, path);
+            assertEquals(LISTED_FILES, progress.getFolderCount());
+            assertEquals(LISTED_FILES * 2, progress.getFileCount());
+        }
+        assertEquals(Long.valueOf(2L * LISTED_FILES * 2), server.getRequestCounts().get("PUT nodes/content"));
+    }
+
+    @Test
+    public void filesLeftAloneAreNotCounted() throws Exception
+    {
+        loader.setVersionsPerFile("0:1");
+        fileFolderService.createNewFolder(new FolderData("claim", ScheduleVersionLoaders.CONTEXT_VERSIONS, DOC_LIB, 0L, 0L));
+        Event event = new Event(ScheduleVersionLoaders.EVENT_NAME_LOAD_VERSIONS, BasicDBObjectBuilder.start()
+            .add(ScheduleSiteLoaders.FIELD_CONTEXT, "").add(ScheduleSiteLoaders.FIELD_PATH, DOC_LIB).get());
+        event.setSessionId("session1");
+
+        EventResult loaded = loader.processEvent(event);
+
+        assertTrue(loaded.isSuccess());
+        FolderData progress = fileFolderService.getFolder(ScheduleVersionLoaders.CONTEXT_VERSIONS, DOC_LIB);
+        assertEquals(0L, progress.getFolderCount());
+        assertEquals(0L, progress.getFileCount());
+        assertNull(server.getRequestCounts().get("PUT nodes/content"));
+    }
+
+    @Test
+    public void failedListingRecordsNothing() throws Exception
+    {
+        server.setErrorRate(1.0);
+        fileFolderService.createNewFolder(new FolderData("claim", ScheduleVersionLoaders.CONTEXT_VERSIONS, DOC_LIB, 0L, 0L));
+        Event event = new Event(ScheduleVersionLoaders.EVENT_NAME_LOAD_VERSIONS, BasicDBObjectBuilder.start()
+            .add(ScheduleSiteLoaders.FIELD_CONTEXT, "").add(ScheduleSiteLoaders.FIELD_PATH, DOC_LIB).get());
+        event.setSessionId("session1");
+
+        EventResult loaded = loader.processEvent(event);
+
+        assertFalse(loaded.isSuccess());
+        assertEquals(500, ((DBObject) loaded.getData()).get("statusCode"));
+        FolderData progress = fileFolderService.getFolder(ScheduleVersionLoaders.CONTEXT_VERSIONS, DOC_LIB);
+        assertNotNull(progress);
+        assertEquals(0L, progress.getFileCount());
+    }
+}
@@ -0,0 +1,158 @@
+/*
+ * #%L
+ * Alfresco Benchmark Load Data
+ * %%
+ * Copyright (C) 2005 - 2018 Alfresco Software Limited
+ * %%
+ * This file is part of the Alfresco software.
+ * If the software was purchased under a paid Alfresco license, the terms of
+ * the paid license agreement will prevail.  Otherwise, the software is
+ * provided under the following open source license terms:
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+package org.alfresco.bm.dataload.files;
+
+import com.mongodb.DB;
+import com.mongodb.DBCollection;
+import org.alfresco.bm.cm.FileFolderService;
+import org.alfresco.bm.cm.FolderData;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyZeroInteractions;
+import static org.mockito.Mockito.when;
+
+/**
+ * @see WriteBehindFileFolderService
+ * @since 3.0
+ */
+@RunWith(JUnit4.class)
+public class WriteBehindFileFolderServiceTest
+{
+    private static final String PATH = "/Sites/site/documentLibrary";
+
+    private DBCollection collection;
+    private FileFolderService delegate;
+    private WriteBehindFileFolderService service;
+
+    @Before
+    public void setUp()
+    {
+        DB db = mock(DB.class);
+        collection = mock(DBCollection.class);
+        when(db.getCollection("filefolders")).thenReturn(collection);
+        delegate = mock(FileFolderService.class);
+        when(delegate.getFolder("", PATH)).thenReturn(new FolderData("id", "", PATH, 2L, 8L));
+        service = new WriteBehindFileFolderService(db, "filefolders", delegate);
+        service.setEnabled(true);
+        // Not initialized, so there is no periodic flushing and the tests flush explicitly
+    }
+
+    @Test
+    public void incrementsAreCoalescedUntilFlushed()
+    {
+        for (int i = 0; i < 10; i++)
+        {
+            service.incrementFileCount("", PATH, 1L);
+        }
+        service.incrementFolderCount("", PATH, 3L);
+        verify(delegate, never()).incrementFileCount(anyString(), anyString(), anyLong());
+
+        assertEquals(1, service.flush());
+        verify(delegate).incrementFileCount("", PATH, 10L);
+        verify(delegate).incrementFolderCount("", PATH, 3L);
+        assertEquals(0, service.flush());
+    }
+
+    @Test
+    public void readsIncludePendingIncrements()
+    {
+        service.incrementFileCount("", PATH, 5L);
+        FolderData folder = service.getFolder("", PATH);
+        assertEquals(13L, folder.getFileCount());
+        assertEquals(2L, folder.getFolderCount());
+
+        assertTrue(service.flush("", PATH));
+        assertFalse(service.flush("", PATH));
+    }
+
+    @Test
+    public void countLimitedQueriesFlushFirst()
+    {
+        FolderData other = new FolderData("other", "", "/other", 0L, 0L);
+        when(delegate.getFoldersByCounts("", null, null, null, null, null, 9L, 0, 10)).thenReturn(Arrays.asList(other));
+
+        service.incrementFileCount("", PATH, 2L);
+        List<FolderData> folders = service.getFoldersByCounts("", null, null, null, null, null, 9L, 0, 10);
+        verify(delegate).incrementFileCount("", PATH, 2L);
+        assertEquals(1, folders.size());
+        assertEquals("other", folders.get(0).getId());
+        assertEquals(0, service.flush());
+    }
+
+    @Test
+    public void levelQueriesIncludePendingIncrements()
+    {
+        List<FolderData> stored = Arrays.asList(new FolderData("id", "", PATH, 2L, 8L));
+        when(delegate.getFoldersByCounts("", 3L, 3L, null, null, null, null, 0, 10)).thenReturn(stored);
+
+        service.incrementFileCount("", PATH, 2L);
+        List<FolderData> folders = service.getFoldersByCounts("", 3L, 3L, null, null, null, null, 0, 10);
+        verify(delegate, never()).incrementFileCount(anyString(), anyString(), anyLong());
+        assertEquals(10L, folders.get(0).getFileCount());
+    }
+
+    @Test
+    public void callsNeverUseTheMirrorCollection()
+    {
+        FolderData folder = new FolderData("id", "", PATH, 2L, 8L);
+        service.createNewFolder("id", "", PATH);
+        service.createNewFolder(folder);
+        service.createNewFolders(Arrays.asList(folder));
+        service.getFolder("id");
+        service.getFolder("", PATH);
+        service.getChildFolders("", PATH, 0, 10);
+        service.getFoldersByCounts("", null, null, 0L, null, null, null, 0, 10);
+        service.countEmptyFolders("");
+        service.incrementFolderCount("", PATH, 1L);
+        service.incrementFileCount("", PATH, 1L);
+        service.flush();
+        service.deleteFolder("", PATH, true);
+        verifyZeroInteractions(collection);
+    }
+
+    @Test
+    public void deletedFoldersLosePendingIncrements()
+    {
+        service.incrementFileCount("", PATH, 1L);
+        service.incrementFileCount("", PATH + "/child", 1L);
+        service.deleteFolder("", PATH, true);
+        assertEquals(0, service.flush());
+    }
+}
@@ -0,0 +1,136 @@
+/*
+ * #%L
+ * Alfresco Benchmark Load Data
+ * %%
+ * Copyright (C) 2005 - 2018 Alfresco Software Limited
+ * %%
+ * This file is part of the Alfresco software.
+ * If the software was purchased under a paid Alfresco license, the terms of
+ * the paid license agreement will prevail.  Otherwise, the software is
+ * provided under the following open source license terms:
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+package org.alfresco.bm.dataload.mock;
+
+import java.util.Random;
+
+/**
+ * Response latencies for the {@link MockAlfrescoServer mock server}.
+ * <p/>
+ * Distributions are given as strings:
+ * <ul>
+ * <li><b>fixed:20</b> - always 20ms</li>
+ * <li><b>uniform:10:50</b> - evenly spread between 10ms and 50ms</li>
+ * <li><b>exponential:25</b> - exponentially distributed with a mean of 25ms</li>
+ * <li><b>lognormal:25:0.5</b> - log-normally distributed with a median of 25ms and a shape (sigma) of 0.5</li>
+ * </ul>
+ *
+ * @since 3.0
+ */
+public abstract class LatencyDistribution
+{
+    public static final LatencyDistribution NONE = fixed(0L);
+
+    /**
+     * @return the next latency in milliseconds
+     */
+    public abstract long nextLatency(Random random);
+
+    public static LatencyDistribution fixed(final long millis)
+    {
+        return new LatencyDistribution()
+        {
+            @Override
+            public long nextLatency(Random random)
+            {
+                return millis;
+            }
+        };
+    }
+
+    public static LatencyDistribution uniform(final long minMillis, final long maxMillis)
+    {
+        if (maxMillis < minMillis)
+        {
+            throw new IllegalArgumentException("Maximum latency must not be less than the minimum: " + minMillis + "-" + maxMillis);
+        }
+        return new LatencyDistribution()
+        {
+            @Override
+            public long nextLatency(Random random)
+            {
+                return minMillis + (long) (random.nextDouble() * (maxMillis - minMillis));
+            }
+        };
+    }
+
+    public static LatencyDistribution exponential(final double meanMillis)
+    {
+        return new LatencyDistribution()
+        {
+            @Override
+            public long nextLatency(Random random)
+            {
+                return (long) (-meanMillis * Math.log(1.0 - random.nextDouble()));
+            }
+        };
+    }
+
+    public static LatencyDistribution lognormal(final double medianMillis, final double sigma)
+    {
+        final double mu = Math.log(medianMillis);
+        return new LatencyDistribution()
+        {
+            @Override
+            public long nextLatency(Random random)
+            {
+                return (long) Math.exp(mu + sigma * random.nextGaussian());
+            }
+        };
+    }
+
+    /**
+     * Parse a distribution from its {@link LatencyDistribution string form}
+     */
+    public static LatencyDistribution parse(String spec)
+    {
+        if (spec == null || spec.trim().isEmpty())
+        {
+            return NONE;
+        }
+        String[] parts = spec.trim().split(":");
+        try
+        {
+            switch (parts[0])
+            {
+                case "fixed":
+                    return fixed(Long.parseLong(parts[1]));
+                case "uniform":
+                    return uniform(Long.parseLong(parts[1]), Long.parseLong(parts[2]));
+                case "exponential":
+                    return exponential(Double.parseDouble(parts[1]));
+                case "lognormal":
+                    return lognormal(Double.parseDouble(parts[1]), Double.parseDouble(parts[2]));
+                default:
+                    throw new IllegalArgumentException("Unknown latency distribution: " + spec);
+            }
+        }
+        catch (ArrayIndexOutOfBoundsException | NumberFormatException e)
+        {
+            throw new IllegalArgumentException("Badly formed latency distribution: " + spec, e);
+        }
+    }
+}
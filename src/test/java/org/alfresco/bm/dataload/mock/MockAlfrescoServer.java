@@ -0,0 +1,678 @@
+/*
+ * #%L
+ * Alfresco Benchmark Load Data
+ * %%
+ * Copyright (C) 2005 - 2018 Alfresco Software Limited
+ * %%
+ * This file is part of the Alfresco software.
+ * If the software was purchased under a paid Alfresco license, the terms of
+ * the paid license agreement will prevail.  Otherwise, the software is
+ * provided under the following open source license terms:
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+package org.alfresco.bm.dataload.mock;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * An embeddable stand-in for the Alfresco v1 REST API covering the calls made by this driver:
+ * <ul>
+ * <li>POST sites</li>
+ * <li>GET sites/{siteId}/containers</li>
+ * <li>POST sites/{siteId}/members</li>
+ * <li>GET sites/{siteId}/members</li>
+ * <li>GET nodes/{nodeId}</li>
+ * <li>GET nodes/{nodeId}/children</li>
+ * <li>GET nodes/{nodeId}/content ({@link #CONTENT_SIZE} bytes of text)</li>
+ * <li>POST nodes/{nodeId}/children (JSON and multipart)</li>
+ * <li>PUT nodes/{nodeId}/content</li>
+ * <li>POST nodes/{nodeId}/tags</li>
+ * <li>GET and POST nodes/{nodeId}/renditions</li>
+ * <li>DELETE nodes/{nodeId}</li>
+ * <li>POST search (by node ID only; every node is found)</li>
+ * </ul>
+ * Aspects and properties sent with a new node, whether in JSON or as multipart form fields, are echoed in its entry.
+ * Nothing is stored; every request succeeds with a plausible response after a delay drawn from the
+ * {@link #setLatency(LatencyDistribution) latency distribution}, unless it is picked for
+ * {@link #setErrorRate(double) error injection}.  Request bodies are read fully so that upload costs are
+ * paid by the driver as they would be against a real server.
+ *
+ * @since 3.0
+ */
+public class MockAlfrescoServer
+{
+    public static final String API_PATH = "/alfresco/api/-default-/public/alfresco/versions/1/";
+    public static final String SEARCH_PATH = "/alfresco/api/-default-/public/search/versions/1/search";
+
+    /** The size of the content of every file */
+    public static final int CONTENT_SIZE = 4096;
+
+    /** How much of a multipart upload is kept to find the file name in its part headers */
+    private static final int MULTIPART_HEAD_SIZE = 16384;
+    private static final Pattern PART_NAME = Pattern.compile("; name=\"([^\"]*)\"");
+    private static final Pattern NODE_ID_QUERY = Pattern.compile("ID:\"workspace://SpacesStore/([^\"]+)\"");
+
+    private static final Log logger = LogFactory.getLog(MockAlfrescoServer.class);
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    private final int port;
+    private final int threads;
+    private final Map<String, AtomicLong> requestCounts = new ConcurrentHashMap<>();
+    private final AtomicLong errorCount = new AtomicLong();
+    private final AtomicLong bytesReceived = new AtomicLong();
+
+    private volatile LatencyDistribution latency = LatencyDistribution.NONE;
+    private volatile double errorRate = 0.0;
+    private volatile boolean batchConflicts;
+
+    private HttpServer server;
+    private ExecutorService executor;
+
+    /**
+     * @param port    the port to listen on or <tt>0</tt> to pick a free port
+     * @param threads the number of request threads i.e. the maximum number of concurrent requests
+     */
+    public MockAlfrescoServer(int port, int threads)
+    {
+        this.port = port;
+        this.threads = threads;
+    }
+
+    /**
+     * Set the distribution of response latencies.  May be changed while the server is running.
+     */
+    public void setLatency(LatencyDistribution latency)
+    {
+        this.latency = latency == null ? LatencyDistribution.NONE : latency;
+    }
+
+    /**
+     * Set the fraction (0.0 to 1.0) of requests that fail with an internal server error.  May be changed while the server is running.
+     */
+    public void setErrorRate(double errorRate)
+    {
+        if (errorRate < 0.0 || errorRate > 1.0)
+        {
+            throw new IllegalArgumentException("'errorRate' must be between 0.0 and 1.0");
+        }
+        this.errorRate = errorRate;
+    }
+
+    /**
+     * Answer every request that creates several nodes at once with a conflict, as though one of the names were already
+     * in use.  Nodes created one at a time are unaffected.  May be changed while the server is running.
+     */
+    public void setBatchConflicts(boolean batchConflicts)
+    {
+        this.batchConflicts = batchConflicts;
+    }
+
+    public void start() throws IOException
+    {
+        executor = Executors.newFixedThreadPool(threads);
+        server = HttpServer.create(new InetSocketAddress(port), 1024);
+        server.setExecutor(executor);
+        server.createContext(API_PATH, new ApiHandler());
+        server.createContext(SEARCH_PATH, new SearchHandler());
+        server.start();
+        if (logger.isDebugEnabled())
+        {
+            logger.debug("Mock Alfresco server listening on port " + getPort());
+        }
+    }
+
+    public void stop() throws InterruptedException
+    {
+        server.stop(0);
+        executor.shutdown();
+        executor.awaitTermination(10, TimeUnit.SECONDS);
+    }
+
+    /**
+     * @return the port being listened on, which is only known after {@link #start() starting} if it was picked automatically
+     */
+    public int getPort()
+    {
+        return server.getAddress().getPort();
+    }
+
+    /**
+     * @return the number of requests received by operation e.g. <b>POST nodes/children</b>
+     */
+    public Map<String, Long> getRequestCounts()
+    {
+        Map<String, Long> counts = new TreeMap<>();
+        for (Map.Entry<String, AtomicLong> entry : requestCounts.entrySet())
+        {
+            counts.put(entry.getKey(), entry.getValue().get());
+        }
+        return counts;
+    }
+
+    public long getRequestCount()
+    {
+        long count = 0L;
+        for (AtomicLong operationCount : requestCounts.values())
+        {
+            count += operationCount.get();
+        }
+        return count;
+    }
+
+    public long getErrorCount()
+    {
+        return errorCount.get();
+    }
+
+    public long getBytesReceived()
+    {
+        return bytesReceived.get();
+    }
+
+    private class ApiHandler implements HttpHandler
+    {
+        @Override
+        public void handle(HttpExchange exchange) throws IOException
+        {
+            try
+            {
+                String method = exchange.getRequestMethod();
+                String[] path = exchange.getRequestURI().getPath().substring(API_PATH.length()).split("/");
+                byte[] content = drain(exchange);
+
+                count(method + " " + operationName(path));
+                if (delayOrFail(exchange))
+                {
+                    return;
+                }
+                route(exchange, method, path, content);
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                respond(exchange, 503, error(503, "Server stopping"));
+            }
+            catch (RuntimeException e)
+            {
+                logger.error("Mock server failed to handle " + exchange.getRequestURI(), e);
+                respond(exchange, 500, error(500, e.getMessage()));
+            }
+            finally
+            {
+                exchange.close();
+            }
+        }
+
+        private void route(HttpExchange exchange, String method, String[] path, byte[] content) throws IOException
+        {
+            String resource = path[0];
+            if ("sites".equals(resource) && path.length == 1 && "POST".equals(method))
+            {
+                JsonNode body = MAPPER.readTree(content);
+                ObjectNode entry = MAPPER.createObjectNode();
+                entry.put("id", body.path("id").asText());
+                entry.put("guid", UUID.randomUUID().toString());
+                entry.put("title", body.path("title").asText());
+                entry.put("visibility", body.path("visibility").asText("PUBLIC"));
+                entry.put("preset", "site-dashboard");
+                entry.put("role", "SiteManager");
+                respond(exchange, 201, wrapEntry(entry));
+            }
+            else if ("sites".equals(resource) && path.length == 3 && "containers".equals(path[2]) && "GET".equals(method))
+            {
+                ObjectNode entry = MAPPER.createObjectNode();
+                entry.put("id", UUID.randomUUID().toString());
+                entry.put("folderId", "documentLibrary");
+                respond(exchange, 200, wrapList(entry));
+            }
+            else if ("sites".equals(resource) && path.length == 3 && "members".equals(path[2]) && "POST".equals(method))
+            {
+                JsonNode body = MAPPER.readTree(content);
+                ObjectNode entry = MAPPER.createObjectNode();
+                entry.put("id", body.path("id").asText());
+                entry.put("role", body.path("role").asText());
+                entry.putObject("person").put("id", body.path("id").asText());
+                respond(exchange, 201, wrapEntry(entry));
+            }
+            else if ("sites".equals(resource) && path.length == 3 && "members".equals(path[2]) && "GET".equals(method))
+            {
+                ObjectNode[] entries = new ObjectNode[3];
+                for (int i = 0; i < entries.length; i++)
+                {
+                    entries[i] = MAPPER.createObjectNode();
+                    entries[i].put("id", "user-" + i);
+                    entries[i].put("role", i == 0 ? "SiteManager" : "SiteContributor");
+                    entries[i].putObject("person").put("id", "user-" + i);
+                }
+                respond(exchange, 200, wrapList(entries));
+            }
+            else if ("nodes".equals(resource) && path.length == 2 && "GET".equals(method))
+            {
+                ObjectNode entry = node(UUID.randomUUID().toString(), "file.txt", true);
+                entry.put("id", path[1]);
+                respond(exchange, 200, wrapEntry(entry));
+            }
+            else if ("nodes".equals(resource) && path.length == 3 && "content".equals(path[2]) && "GET".equals(method))
+            {
+                respondContent(exchange, CONTENT_SIZE);
+            }
+            else if ("nodes".equals(resource) && path.length == 3 && "children".equals(path[2]) && "POST".equals(method))
+            {
+                String contentType = exchange.getRequestHeaders().getFirst("Content-Type");
+                boolean isFile = contentType != null && contentType.startsWith("multipart/");
+                JsonNode body = isFile ? null : MAPPER.readTree(content);
+                if (body != null && body.isArray())
+                {
+                    // Several nodes are created at once
+                    if (batchConflicts)
+                    {
+                        respond(exchange, 409, error(409, "Duplicate child name not allowed"));
+                        return;
+                    }
+                    List<ObjectNode> entries = new ArrayList<ObjectNode>(body.size());
+                    for (JsonNode item : body)
+                    {
+                        ObjectNode entry = node(path[1], item.path("name").asText(), false);
+                        copyMetadata(item, entry);
+                        entries.add(entry);
+                    }
+                    respond(exchange, 201, wrapList(entries.toArray(new ObjectNode[entries.size()])));
+                    return;
+                }
+                String name = isFile ? multipartFileName(content) : body.path("name").asText();
+                ObjectNode entry = node(path[1], name, isFile);
+                if (isFile)
+                {
+                    Map<String, String> fields = multipartFields(contentType, content);
+                    if (!fields.isEmpty())
+                    {
+                        ObjectNode properties = entry.putObject("properties");
+                        for (Map.Entry<String, String> field : fields.entrySet())
+                        {
+                            properties.put(field.getKey(), field.getValue());
+                        }
+                    }
+                }
+                else
+                {
+                    copyMetadata(body, entry);
+                }
+                String query = exchange.getRequestURI().getQuery();
+                if (query != null && query.contains("include=path"))
+                {
+                    // Intermediate folders of a relative path are created along the way
+                    String relativePath = isFile ? "" : body.path("relativePath").asText("");
+                    ObjectNode nodePath = path(path[1], relativePath);
+                    entry.set("path", nodePath);
+                    JsonNode elements = nodePath.path("elements");
+                    entry.put("parentId", elements.get(elements.size() - 1).path("id").asText());
+                }
+                respond(exchange, 201, wrapEntry(entry));
+            }
+            else if ("nodes".equals(resource) && path.length == 3 && "children".equals(path[2]) && "GET".equals(method))
+            {
+                // Every folder holds the same few files
+                ObjectNode[] entries = new ObjectNode[3];
+                for (int i = 0; i < entries.length; i++)
+                {
+                    entries[i] = node(path[1], "file-" + i + ".txt", true);
+                }
+                respond(exchange, 200, wrapList(entries));
+            }
+            else if ("nodes".equals(resource) && path.length == 3 && "content".equals(path[2]) && "PUT".equals(method))
+            {
+                ObjectNode entry = node(UUID.randomUUID().toString(), "file.txt", true);
+                entry.put("id", path[1]);
+                respond(exchange, 200, wrapEntry(entry));
+            }
+            else if ("nodes".equals(resource) && path.length == 3 && "tags".equals(path[2]) && "POST".equals(method))
+            {
+                JsonNode body = MAPPER.readTree(content);
+                List<ObjectNode> entries = new ArrayList<ObjectNode>(body.size());
+                for (JsonNode item : body)
+                {
+                    ObjectNode entry = MAPPER.createObjectNode();
+                    entry.put("id", UUID.randomUUID().toString());
+                    entry.put("tag", item.path("tag").asText());
+                    entries.add(entry);
+                }
+                respond(exchange, 201, wrapList(entries.toArray(new ObjectNode[entries.size()])));
+            }
+            else if ("nodes".equals(resource) && path.length == 3 && "renditions".equals(path[2]) && "GET".equals(method))
+            {
+                ObjectNode doclib = MAPPER.createObjectNode();
+                doclib.put("id", "doclib");
+                doclib.put("status", "NOT_CREATED");
+                doclib.putObject("content").put("mimeType", "image/png");
+                ObjectNode pdf = MAPPER.createObjectNode();
+                pdf.put("id", "pdf");
+                pdf.put("status", "NOT_CREATED");
+                pdf.putObject("content").put("mimeType", "application/pdf");
+                respond(exchange, 200, wrapList(doclib, pdf));
+            }
+            else if ("nodes".equals(resource) && path.length == 3 && "renditions".equals(path[2]) && "POST".equals(method))
+            {
+                respond(exchange, 202, null);
+            }
+            else if ("nodes".equals(resource) && path.length == 2 && "DELETE".equals(method))
+            {
+                respond(exchange, 204, null);
+            }
+            else
+            {
+                respond(exchange, 404, error(404, "The mock server does not support: " + method + " " + exchange.getRequestURI()));
+            }
+        }
+    }
+
+    private class SearchHandler implements HttpHandler
+    {
+        @Override
+        public void handle(HttpExchange exchange) throws IOException
+        {
+            try
+            {
+                byte[] content = drain(exchange);
+                count("POST search");
+                if (delayOrFail(exchange))
+                {
+                    return;
+                }
+
+                String query = MAPPER.readTree(content).path("query").path("query").asText();
+                List<ObjectNode> entries = new ArrayList<ObjectNode>();
+                Matcher matcher = NODE_ID_QUERY.matcher(query);
+                while (matcher.find())
+                {
+                    ObjectNode entry = MAPPER.createObjectNode();
+                    entry.put("id", matcher.group(1));
+                    entries.add(entry);
+                }
+                respond(exchange, 200, wrapList(entries.toArray(new ObjectNode[entries.size()])));
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                respond(exchange, 503, error(503, "Server stopping"));
+            }
+            catch (RuntimeException e)
+            {
+                logger.error("Mock server failed to handle " + exchange.getRequestURI(), e);
+                respond(exchange, 500, error(500, e.getMessage()));
+            }
+            finally
+            {
+                exchange.close();
+            }
+        }
+    }
+
+    private void count(String operation)
+    {
+        AtomicLong counter = requestCounts.get(operation);
+        if (counter == null)
+        {
+            requestCounts.putIfAbsent(operation, new AtomicLong());
+            counter = requestCounts.get(operation);
+        }
+        counter.incrementAndGet();
+    }
+
+    /**
+     * Wait for the response latency and then pick the request for error injection or not
+     *
+     * @return <tt>true</tt> if an injected failure has been sent
+     */
+    private boolean delayOrFail(HttpExchange exchange) throws IOException, InterruptedException
+    {
+        Random random = new Random();
+        long delay = latency.nextLatency(random);
+        if (delay > 0L)
+        {
+            Thread.sleep(delay);
+        }
+        if (random.nextDouble() < errorRate)
+        {
+            errorCount.incrementAndGet();
+            respond(exchange, 500, error(500, "Injected failure"));
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Read the whole request.  JSON bodies are kept in full; of a multipart upload only the start is kept,
+     * which holds the part headers with the file name, so that large uploads are not held in memory.
+     */
+    private byte[] drain(HttpExchange exchange) throws IOException
+    {
+        String contentType = exchange.getRequestHeaders().getFirst("Content-Type");
+        boolean multipart = contentType != null && contentType.toLowerCase(Locale.ROOT).startsWith("multipart/");
+        ByteArrayOutputStream kept = new ByteArrayOutputStream();
+        InputStream is = exchange.getRequestBody();
+        byte[] buffer = new byte[65536];
+        int read;
+        while ((read = is.read(buffer)) != -1)
+        {
+            bytesReceived.addAndGet(read);
+            int toKeep = multipart ? Math.min(read, MULTIPART_HEAD_SIZE - kept.size()) : read;
+            kept.write(buffer, 0, toKeep);
+        }
+        return kept.toByteArray();
+    }
+
+    /**
+     * Reduce a request path to the operation it invokes by dropping the IDs e.g. <b>nodes/children</b>
+     */
+    private static String operationName(String[] path)
+    {
+        StringBuilder sb = new StringBuilder(path[0]);
+        for (int i = 2; i < path.length; i += 2)
+        {
+            sb.append("/").append(path[i]);
+        }
+        return sb.toString();
+    }
+
+    private static String multipartFileName(byte[] head)
+    {
+        String text = new String(head, StandardCharsets.ISO_8859_1);
+        int idx = text.indexOf("filename=\"");
+        if (idx < 0)
+        {
+            return UUID.randomUUID().toString();
+        }
+        int start = idx + 10;
+        int end = text.indexOf('"', start);
+        return end < 0 ? text.substring(start) : text.substring(start, end);
+    }
+
+    /**
+     * The form fields sent ahead of the file in a multipart upload, which become properties of the new node
+     */
+    private static Map<String, String> multipartFields(String contentType, byte[] head)
+    {
+        Map<String, String> fields = new TreeMap<>();
+        int idx = contentType.indexOf("boundary=");
+        if (idx < 0)
+        {
+            return fields;
+        }
+        String boundary = contentType.substring(idx + 9).split(";")[0].trim().replace("\"", "");
+        String text = new String(head, StandardCharsets.UTF_8);
+        for (String part : text.split(Pattern.quote("--" + boundary)))
+        {
+            int headersEnd = part.indexOf("\r\n\r\n");
+            if (headersEnd < 0)
+            {
+                continue;
+            }
+            String headers = part.substring(0, headersEnd);
+            Matcher name = PART_NAME.matcher(headers);
+            if (!name.find() || headers.contains("filename="))
+            {
+                continue;
+            }
+            String value = part.substring(headersEnd + 4);
+            fields.put(name.group(1), value.endsWith("\r\n") ? value.substring(0, value.length() - 2) : value);
+        }
+        return fields;
+    }
+
+    private static void copyMetadata(JsonNode body, ObjectNode entry)
+    {
+        if (body.has("aspectNames"))
+        {
+            entry.set("aspectNames", body.get("aspectNames"));
+        }
+        if (body.has("properties"))
+        {
+            entry.set("properties", body.get("properties"));
+        }
+    }
+
+    private static ObjectNode node(String parentId, String name, boolean isFile)
+    {
+        ObjectNode entry = MAPPER.createObjectNode();
+        entry.put("id", UUID.randomUUID().toString());
+        entry.put("parentId", parentId);
+        entry.put("name", name);
+        entry.put("nodeType", isFile ? "cm:content" : "cm:folder");
+        entry.put("isFolder", !isFile);
+        entry.put("isFile", isFile);
+        return entry;
+    }
+
+    /**
+     * The ancestry of a new node, ending with the folders of its relative path
+     */
+    private static ObjectNode path(String parentId, String relativePath)
+    {
+        ObjectNode path = MAPPER.createObjectNode();
+        ArrayNode elements = path.putArray("elements");
+        ObjectNode parent = elements.addObject();
+        parent.put("id", parentId);
+        parent.put("name", parentId);
+        StringBuilder name = new StringBuilder("/").append(parentId);
+        for (String folderName : relativePath.split("/"))
+        {
+            if (folderName.isEmpty())
+            {
+                continue;
+            }
+            ObjectNode element = elements.addObject();
+            element.put("id", UUID.randomUUID().toString());
+            element.put("name", folderName);
+            name.append("/").append(folderName);
+        }
+        path.put("name", name.toString());
+        path.put("isComplete", true);
+        return path;
+    }
+
+    private static ObjectNode wrapEntry(ObjectNode entry)
+    {
+        ObjectNode response = MAPPER.createObjectNode();
+        response.set("entry", entry);
+        return response;
+    }
+
+    private static ObjectNode wrapList(ObjectNode... entries)
+    {
+        ObjectNode response = MAPPER.createObjectNode();
+        ObjectNode list = response.putObject("list");
+        ObjectNode pagination = list.putObject("pagination");
+        pagination.put("count", entries.length);
+        pagination.put("hasMoreItems", false);
+        pagination.put("totalItems", entries.length);
+        pagination.put("skipCount", 0);
+        pagination.put("maxItems", 100);
+        ArrayNode listEntries = list.putArray("entries");
+        for (ObjectNode entry : entries)
+        {
+            listEntries.addObject().set("entry", entry);
+        }
+        return response;
+    }
+
+    private static ObjectNode error(int statusCode, String briefSummary)
+    {
+        ObjectNode response = MAPPER.createObjectNode();
+        ObjectNode error = response.putObject("error");
+        error.put("statusCode", statusCode);
+        error.put("briefSummary", briefSummary);
+        error.put("errorKey", "framework.exception.ApiDefault");
+        return response;
+    }
+
+    private static void respondContent(HttpExchange exchange, int size) throws IOException
+    {
+        byte[] bytes = new byte[size];
+        Arrays.fill(bytes, (byte) 'x');
+        exchange.getResponseHeaders().set("Content-Type", "text/plain");
+        exchange.sendResponseHeaders(200, bytes.length);
+        try (OutputStream os = exchange.getResponseBody())
+        {
+            os.write(bytes);
+        }
+    }
+
+    private static void respond(HttpExchange exchange, int statusCode, JsonNode body) throws IOException
+    {
+        if (body == null)
+        {
+            exchange.sendResponseHeaders(statusCode, -1);
+            return;
+        }
+        byte[] bytes = MAPPER.writeValueAsBytes(body);
+        exchange.getResponseHeaders().set("Content-Type", "application/json;charset=UTF-8");
+        exchange.sendResponseHeaders(statusCode, bytes.length);
+        try (OutputStream os = exchange.getResponseBody())
+        {
+            os.write(bytes);
+        }
+    }
+}
@@ -0,0 +1,326 @@
+/*
+ * #%L
+ * Alfresco Benchmark Load Data
+ * %%
+ * Copyright (C) 2005 - 2018 Alfresco Software Limited
+ * %%
+ * This file is part of the Alfresco software.
+ * If the software was purchased under a paid Alfresco license, the terms of
+ * the paid license agreement will prevail.  Otherwise, the software is
+ * provided under the following open source license terms:
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+package org.alfresco.bm.dataload.plan;
+
+import com.mongodb.DB;
+import com.mongodb.DBCollection;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+import org.alfresco.bm.cm.FolderData;
+import org.alfresco.bm.common.EventResult;
+import org.alfresco.bm.data.DataCreationState;
+import org.alfresco.bm.dataload.files.EmbeddedFileFolderService;
+import org.alfresco.bm.dataload.files.MetadataProfile;
+import org.alfresco.bm.dataload.files.UploadMix;
+import org.alfresco.bm.dataload.mock.MockAlfrescoServer;
+import org.alfresco.bm.dataload.rest.AlfrescoAsyncClient;
+import org.alfresco.bm.dataload.search.IndexSampleService;
+import org.alfresco.bm.driver.event.Event;
+import org.alfresco.bm.site.SiteData;
+import org.alfresco.bm.site.SiteDataService;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.UUID;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Matchers.isNull;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Plans a load of four sites, with three members each and two levels of two subfolders with five files each, on top
+ * of what mocked site mirrors and an embedded file-folder mirror already hold
+ *
+ * @see PlanLoad
+ * @since 3.0
+ */
+@RunWith(JUnit4.class)
+public class PlanLoadTest
+{
+    private static final String DOC_LIB = "/Sites/site1/documentLibrary";
+    private static final long MB = 1024L * 1024L;
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private SiteDataService siteDataService;
+    private EmbeddedFileFolderService fileFolderService;
+    private UploadMix uploadMix;
+    private PlanLoad planLoad;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        // Three sites, of which one is created with a single member, one is created in full and one failed
+        siteDataService = mock(SiteDataService.class);
+        when(siteDataService.countSites(null, null)).thenReturn(3L);
+        when(siteDataService.countSites(null, DataCreationState.Created)).thenReturn(2L);
+        when(siteDataService.countSites(null, DataCreationState.Failed)).thenReturn(1L);
+        SiteData site1 = mock(SiteData.class);
+        when(site1.getSiteId()).thenReturn("site1");
+        SiteData site2 = mock(SiteData.class);
+        when(site2.getSiteId()).thenReturn("site2");
+        when(siteDataService.getSites((String) isNull(), eq(DataCreationState.Created), eq(0), anyInt())).thenReturn(Arrays.asList(site1, site2));
+        when(siteDataService.countSiteMembers("site1", DataCreationState.Created)).thenReturn(1L);
+        when(siteDataService.countSiteMembers("site2", DataCreationState.Created)).thenReturn(3L);
+
+        // A partly loaded document library in site1
+        fileFolderService = newMirror();
+        fileFolderService.createNewFolder(new FolderData("doclib", "", DOC_LIB, 1L, 5L));
+        fileFolderService.createNewFolder(new FolderData("f1", "", DOC_LIB + "/f1", 2L, 2L));
+        fileFolderService.createNewFolder(new FolderData("f1a", "", DOC_LIB + "/f1/a", 0L, 5L));
+        fileFolderService.createNewFolder(new FolderData("f1b", "", DOC_LIB + "/f1/b", 0L, 0L));
+        fileFolderService.createNewFolder(new FolderData("lock", "", DOC_LIB + "/locked", 0L, 0L));
+
+        uploadMix = mock(UploadMix.class);
+        when(uploadMix.getMeanFileSize()).thenReturn(1000.0);
+        MetadataProfile metadataProfile = mock(MetadataProfile.class);
+        when(metadataProfile.hasTags()).thenReturn(true);
+
+        planLoad = new PlanLoad(siteDataService, fileFolderService, 4, 3, 2, 2, 5);
+        planLoad.setEnabled(true);
+        planLoad.setSiteCreationDelay(1000L);
+        planLoad.setSiteMemberCreationDelay(100L);
+        planLoad.setUploadMix(uploadMix);
+        planLoad.setLargeFilePercentage(10);
+        planLoad.setLargeFileSizeMB(2);
+        planLoad.setVersionsEnabled(true);
+        planLoad.setVersionsPerFile("0:1, 2:1");
+        planLoad.setMetadataProfile(metadataProfile);
+    }
+
+    private static EmbeddedFileFolderService newMirror() throws Exception
+    {
+        // An empty Mongo collection, so the mirror starts empty
+        DBCursor cursor = mock(DBCursor.class);
+        when(cursor.batchSize(anyInt())).thenReturn(cursor);
+        DBCollection collection = mock(DBCollection.class);
+        when(collection.find()).thenReturn(cursor);
+        DB db = mock(DB.class);
+        when(db.getCollection("filefolders")).thenReturn(collection);
+        EmbeddedFileFolderService mirror = new EmbeddedFileFolderService(db, "filefolders", "jdbc:h2:mem:" + UUID.randomUUID());
+        mirror.afterPropertiesSet();
+        return mirror;
+    }
+
+    private DBObject plan() throws Exception
+    {
+        EventResult result = planLoad.processEvent(new Event("planLoad", null));
+        assertTrue(result.isSuccess());
+        assertTrue(result.getNextEvents().isEmpty());
+        return (DBObject) result.getData();
+    }
+
+    private static long getLong(DBObject data, String key)
+    {
+        assertNotNull("Missing: " + key, data.get(key));
+        return ((Number) data.get(key)).longValue();
+    }
+
+    @Test
+    public void passesOnWhenNotADryRun() throws Exception
+    {
+        planLoad.setEnabled(false);
+
+        EventResult result = planLoad.processEvent(new Event("planLoad", null));
+
+        assertEquals(1, result.getNextEvents().size());
+        assertEquals(PlanLoad.EVENT_NAME_LOAD_PLANNED, result.getNextEvents().get(0).getName());
+    }
+
+    @Test
+    public void countsWhatIsStillToBeCreated() throws Exception
+    {
+        planLoad.setForecast(PlanLoad.FORECAST_NONE);
+
+        DBObject plan = plan();
+
+        // One site to reach four and one that failed
+        assertEquals(3L, getLong(plan, "existingSites"));
+        assertEquals(2L, getLong(plan, "sites"));
+        // Two for each new site and two to top up site1
+        assertEquals(6L, getLong(plan, "siteMembers"));
+        // Six below each new document library and the missing subfolder of site1 with its two children
+        assertEquals(15L, getLong(plan, "folders"));
+        // Seven folders of five files for each new site, fifteen in the missing subtree and eight to top up
+        assertEquals(93L, getLong(plan, "files"));
+        assertEquals(108L, getLong(plan, "nodes"));
+        assertEquals(9L, getLong(plan, "largeFiles"));
+        // One new version per file on average
+        assertEquals(93L, getLong(plan, "versions"));
+        assertEquals(1000L, getLong(plan, "meanFileSize"));
+        assertEquals((93L - 9L + 93L) * 1000L + 9L * 2L * MB, getLong(plan, "bytes"));
+
+        DBObject requests = (DBObject) plan.get("requests");
+        assertEquals(2L, getLong(requests, "createSite"));
+        assertEquals(6L, getLong(requests, "addSiteMember"));
+        assertEquals(15L, getLong(requests, "createFolder"));
+        assertEquals(93L, getLong(requests, "uploadFile"));
+        assertEquals(93L, getLong(requests, "uploadVersion"));
+        assertEquals(108L, getLong(requests, "addTags"));
+
+        DBObject forecast = (DBObject) plan.get("forecast");
+        assertEquals(PlanLoad.FORECAST_NONE, forecast.get("source"));
+        assertEquals(2L * 1000L + 6L * 100L, getLong(forecast, "sitesAndMembersMs"));
+        assertNull(forecast.get("durationMs"));
+    }
+
+    @Test
+    public void nothingToDoOnceLoaded() throws Exception
+    {
+        planLoad = new PlanLoad(siteDataService, newMirror(), 2, 1, 2, 2, 5);
+        planLoad.setEnabled(true);
+        planLoad.setForecast(PlanLoad.FORECAST_NONE);
+        when(siteDataService.countSites(null, null)).thenReturn(2L);
+        when(siteDataService.countSites(null, DataCreationState.Failed)).thenReturn(0L);
+
+        DBObject plan = plan();
+
+        assertEquals(0L, getLong(plan, "sites"));
+        assertEquals(0L, getLong(plan, "siteMembers"));
+        assertEquals(0L, getLong(plan, "nodes"));
+        assertEquals(0L, getLong(plan, "bytes"));
+    }
+
+    @Test
+    public void forecastsFromHistory() throws Exception
+    {
+        IndexSampleService indexSampleService = mock(IndexSampleService.class);
+        when(indexSampleService.getCreationRate(60000L)).thenReturn(0.1);
+        planLoad.setIndexSampleService(indexSampleService);
+        planLoad.setHistoryMaxGap(60000L);
+
+        DBObject forecast = (DBObject) plan().get("forecast");
+
+        assertEquals(PlanLoad.FORECAST_HISTORY, forecast.get("source"));
+        assertEquals(0.1, (Double) forecast.get("nodesPerSecond"), 0.0);
+        // Folders, files and versions, large or not, at ten seconds each
+        long loadMs = (15L + 93L + 93L) * 10000L;
+        assertEquals(loadMs, getLong(forecast, "loadMs"));
+        assertEquals(2600L + loadMs, getLong(forecast, "durationMs"));
+        assertEquals(0.56, (Double) forecast.get("durationHours"), 0.0);
+    }
+
+    @Test
+    public void cannotForecastWithoutHistory() throws Exception
+    {
+        IndexSampleService indexSampleService = mock(IndexSampleService.class);
+        when(indexSampleService.getCreationRate(PlanLoad.DEFAULT_HISTORY_MAX_GAP)).thenReturn(0.0);
+        planLoad.setIndexSampleService(indexSampleService);
+
+        DBObject forecast = (DBObject) plan().get("forecast");
+
+        assertNotNull(forecast.get("msg"));
+        assertEquals(2600L, getLong(forecast, "sitesAndMembersMs"));
+        assertNull(forecast.get("durationMs"));
+    }
+
+    @Test
+    public void forecastsFromACalibrationRun() throws Exception
+    {
+        File sample = temporaryFolder.newFile("sample.docx");
+        Files.write(sample.toPath(), new byte[4096]);
+        when(uploadMix.getFile()).thenReturn(sample);
+        MockAlfrescoServer server = new MockAlfrescoServer(0, 8);
+        server.start();
+        AlfrescoAsyncClient asyncClient = new AlfrescoAsyncClient("http://localhost:" + server.getPort(), 16, 2);
+        try
+        {
+            planLoad.setForecast(PlanLoad.FORECAST_CALIBRATE);
+            planLoad.setAsyncClient(asyncClient);
+            planLoad.setUsername("admin");
+            planLoad.setPassword("admin");
+            planLoad.setCalibrationSize(20);
+            planLoad.setMaxActiveLoaders(4);
+
+            DBObject forecast = (DBObject) plan().get("forecast");
+
+            double foldersPerSecond = (Double) forecast.get("foldersPerSecond");
+            double filesPerSecond = (Double) forecast.get("filesPerSecond");
+            double bytesPerSecond = (Double) forecast.get("bytesPerSecond");
+            assertTrue(foldersPerSecond > 0.0);
+            assertTrue(filesPerSecond > 0.0);
+            // Every upload was of the sample
+            assertEquals(4096.0, bytesPerSecond / filesPerSecond, 0.001);
+            // Large files go by their bytes and the rest by the file rate
+            long loadMs = (long) (15L * 1000.0 / foldersPerSecond + (93L - 9L + 93L) * 1000.0 / filesPerSecond + 9L * 2L * MB * 1000.0 / bytesPerSecond);
+            assertEquals(loadMs, getLong(forecast, "loadMs"));
+            assertEquals(2600L + loadMs, getLong(forecast, "durationMs"));
+
+            // The scratch folder holds every calibration node and is deleted again
+            assertEquals(Long.valueOf(1L + 20L + 20L), server.getRequestCounts().get("POST nodes/children"));
+            assertEquals(Long.valueOf(1L), server.getRequestCounts().get("DELETE nodes"));
+        }
+        finally
+        {
+            asyncClient.destroy();
+            server.stop();
+        }
+    }
+
+    @Test
+    public void calibrationFailuresGiveNoForecast() throws Exception
+    {
+        File sample = temporaryFolder.newFile("sample.docx");
+        when(uploadMix.getFile()).thenReturn(sample);
+        MockAlfrescoServer server = new MockAlfrescoServer(0, 8);
+        server.start();
+        AlfrescoAsyncClient asyncClient = new AlfrescoAsyncClient("http://localhost:" + server.getPort(), 16, 2);
+        try
+        {
+            planLoad.setForecast(PlanLoad.FORECAST_CALIBRATE);
+            planLoad.setAsyncClient(asyncClient);
+            planLoad.setCalibrationSize(5);
+            server.setErrorRate(1.0);
+
+            DBObject forecast = (DBObject) plan().get("forecast");
+
+            assertNotNull(forecast.get("msg"));
+            assertFalse(forecast.containsField("loadMs"));
+            assertEquals(Collections.singleton("POST nodes/children"), server.getRequestCounts().keySet());
+        }
+        finally
+        {
+            asyncClient.destroy();
+            server.stop();
+        }
+    }
+}
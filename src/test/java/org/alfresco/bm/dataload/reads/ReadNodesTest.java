@@ -0,0 +1,250 @@
+/*
+ * #%L
+ * Alfresco Benchmark Load Data
+ * %%
+ * Copyright (C) 2005 - 2018 Alfresco Software Limited
+ * %%
+ * This file is part of the Alfresco software.
+ * If the software was purchased under a paid Alfresco license, the terms of
+ * the paid license agreement will prevail.  Otherwise, the software is
+ * provided under the following open source license terms:
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+package org.alfresco.bm.dataload.reads;
+
+import com.mongodb.DB;
+import com.mongodb.DBCollection;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+import org.alfresco.bm.cm.FolderData;
+import org.alfresco.bm.common.EventResult;
+import org.alfresco.bm.data.DataCreationState;
+import org.alfresco.bm.dataload.files.EmbeddedFileFolderService;
+import org.alfresco.bm.dataload.mock.MockAlfrescoServer;
+import org.alfresco.bm.dataload.rest.AlfrescoAsyncClient;
+import org.alfresco.bm.driver.event.Event;
+import org.alfresco.bm.site.SiteData;
+import org.alfresco.bm.site.SiteDataService;
+import org.alfresco.bm.site.SiteMemberData;
+import org.alfresco.bm.user.UserData;
+import org.alfresco.bm.user.UserDataService;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.UUID;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Matchers.isNull;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Reads from the {@link MockAlfrescoServer mock server} with folders taken from an embedded mirror
+ *
+ * @see ReadNodes
+ * @since 3.0
+ */
+@RunWith(JUnit4.class)
+public class ReadNodesTest
+{
+    private static final String DOC_LIB = "/Sites/site1/documentLibrary";
+    private static final int SUBFOLDERS = 2;
+    private static final int MAX_DEPTH = 1;
+    private static final int FILES_PER_FOLDER = 3;
+
+    private MockAlfrescoServer server;
+    private AlfrescoAsyncClient asyncClient;
+    private EmbeddedFileFolderService fileFolderService;
+    private UserDataService userDataService;
+    private SiteDataService siteDataService;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        server = new MockAlfrescoServer(0, 32);
+        server.start();
+        asyncClient = new AlfrescoAsyncClient("http://localhost:" + server.getPort(), 64, 2);
+
+        // An empty snapshot, so the mirror starts with only what the test records
+        DBCursor cursor = mock(DBCursor.class);
+        when(cursor.batchSize(anyInt())).thenReturn(cursor);
+        DBCollection collection = mock(DBCollection.class);
+        when(collection.find()).thenReturn(cursor);
+        DB db = mock(DB.class);
+        when(db.getCollection("filefolders")).thenReturn(collection);
+        fileFolderService = new EmbeddedFileFolderService(db, "filefolders", "jdbc:h2:mem:" + UUID.randomUUID());
+        fileFolderService.afterPropertiesSet();
+
+        SiteData site = mock(SiteData.class);
+        when(site.getSiteId()).thenReturn("site1");
+        SiteMemberData member = mock(SiteMemberData.class);
+        when(member.getUsername()).thenReturn("user1");
+        siteDataService = mock(SiteDataService.class);
+        when(siteDataService.countSites(null, DataCreationState.Created)).thenReturn(1L);
+        when(siteDataService.getSites((String) isNull(), eq(DataCreationState.Created), anyInt(), eq(1))).thenReturn(Collections.singletonList(site));
+        when(siteDataService.randomSiteMember(eq("site1"), eq(DataCreationState.Created), (String) isNull())).thenReturn(member);
+        UserData user = mock(UserData.class);
+        when(user.getUsername()).thenReturn("user1");
+        when(user.getPassword()).thenReturn("password");
+        userDataService = mock(UserDataService.class);
+        when(userDataService.findUserByUsername("user1")).thenReturn(user);
+    }
+
+    @After
+    public void tearDown() throws Exception
+    {
+        asyncClient.destroy();
+        server.stop();
+    }
+
+    /**
+     * Record a document library that is still being loaded: it has one of its subfolders and none of its files
+     */
+    private void loading()
+    {
+        fileFolderService.createNewFolder(new FolderData("doclib", "", DOC_LIB, 1L, 0L));
+        fileFolderService.createNewFolder(new FolderData("folder1", "", DOC_LIB + "/folder1", 0L, 0L));
+    }
+
+    private ReadNodes newReader(String mix, double rate, long sliceDuration)
+    {
+        ReadNodes reader = new ReadNodes(fileFolderService, userDataService, siteDataService, asyncClient, SUBFOLDERS, MAX_DEPTH, FILES_PER_FOLDER, rate);
+        reader.setMix(mix);
+        reader.setSliceDuration(sliceDuration);
+        reader.setSampleSize(5);
+        return reader;
+    }
+
+    private static DBObject reads(EventResult result, ReadNodes.ReadType type)
+    {
+        return (DBObject) ((DBObject) ((DBObject) result.getData()).get("reads")).get(type.name());
+    }
+
+    private static int count(DBObject stats, String histogram)
+    {
+        return (Integer) ((DBObject) stats.get(histogram)).get("count");
+    }
+
+    @Test
+    public void eachReadTypeHasItsOwnHistogram() throws Exception
+    {
+        loading();
+        ReadNodes reader = newReader("listFolder:1", 20.0, 1000L);
+        EventResult listed = reader.processEvent(new Event(ReadNodes.EVENT_NAME_READ_NODES, null));
+
+        // Only listings were asked for and they fill the pool of files for the other reads
+        DBObject listStats = reads(listed, ReadNodes.ReadType.listFolder);
+        assertTrue(count(listStats, "latency") > 0);
+        assertNull(reads(listed, ReadNodes.ReadType.getNode));
+        assertEquals(Boolean.TRUE, ((DBObject) listed.getData()).get("loading"));
+
+        reader.setMix("listFolder:1, getNode:1, downloadContent:1, listSiteMembers:1");
+        reader.setSliceDuration(2000L);
+        EventResult mixed = reader.processEvent(listed.getNextEvents().get(0));
+        for (ReadNodes.ReadType type : ReadNodes.ReadType.values())
+        {
+            DBObject stats = reads(mixed, type);
+            assertNotNull("No results for " + type, stats);
+            int answered = count(stats, "latency");
+            assertTrue("No " + type + " reads answered", answered > 0);
+            assertEquals(answered, count(stats, "serviceTime"));
+            assertEquals(0, stats.get("failed"));
+            assertNull(stats.get("skipped"));
+            if (type == ReadNodes.ReadType.downloadContent)
+            {
+                assertEquals(Long.valueOf((long) answered * MockAlfrescoServer.CONTENT_SIZE), stats.get("bytes"));
+            }
+        }
+
+        Map<String, Long> requests = server.getRequestCounts();
+        assertTrue(requests.get("GET nodes/children") > 0L);
+        assertTrue(requests.get("GET nodes") > 0L);
+        assertTrue(requests.get("GET nodes/content") > 0L);
+        assertTrue(requests.get("GET sites/members") > 0L);
+    }
+
+    @Test
+    public void downloadsWaitForListedFiles() throws Exception
+    {
+        loading();
+        ReadNodes reader = newReader("downloadContent:1", 20.0, 1000L);
+
+        EventResult result = reader.processEvent(new Event(ReadNodes.EVENT_NAME_READ_NODES, null));
+
+        DBObject stats = reads(result, ReadNodes.ReadType.downloadContent);
+        assertTrue((Integer) stats.get("skipped") > 0);
+        assertEquals(0, count(stats, "latency"));
+        assertEquals(0, stats.get("failed"));
+        assertEquals(0L, server.getRequestCount());
+    }
+
+    @Test
+    public void failuresAreCountedByReadType() throws Exception
+    {
+        loading();
+        server.setErrorRate(1.0);
+        ReadNodes reader = newReader("getNode:1, listSiteMembers:1", 50.0, 1000L);
+
+        EventResult result = reader.processEvent(new Event(ReadNodes.EVENT_NAME_READ_NODES, null));
+
+        int failed = 0;
+        for (ReadNodes.ReadType type : new ReadNodes.ReadType[] {ReadNodes.ReadType.getNode, ReadNodes.ReadType.listSiteMembers})
+        {
+            DBObject stats = reads(result, type);
+            assertNotNull("No results for " + type, stats);
+            assertEquals("Failures are kept out of the latencies", 0, count(stats, "latency"));
+            int typeFailed = (Integer) stats.get("failed");
+            assertTrue("No " + type + " failures", typeFailed > 0);
+            assertTrue((String) stats.get("lastFailure"), ((String) stats.get("lastFailure")).contains("Code: 500"));
+            failed += typeFailed;
+        }
+        assertNull(reads(result, ReadNodes.ReadType.listFolder));
+        assertTrue(failed <= server.getErrorCount());
+    }
+
+    @Test
+    public void stopsAfterTheBaselineOnceLoaded() throws Exception
+    {
+        fileFolderService.createNewFolder(new FolderData("doclib", "", DOC_LIB, SUBFOLDERS, FILES_PER_FOLDER));
+        fileFolderService.createNewFolder(new FolderData("folder1", "", DOC_LIB + "/folder1", 0L, FILES_PER_FOLDER));
+        fileFolderService.createNewFolder(new FolderData("folder2", "", DOC_LIB + "/folder2", 0L, FILES_PER_FOLDER));
+        ReadNodes reader = newReader("listFolder:1", 100.0, 100L);
+        reader.setBaselineDuration(150L);
+
+        // Reads carry on against the finished load for the baseline
+        EventResult baseline = reader.processEvent(new Event(ReadNodes.EVENT_NAME_READ_NODES, null));
+        assertEquals(Boolean.FALSE, ((DBObject) baseline.getData()).get("loading"));
+        Event next = baseline.getNextEvents().get(0);
+        assertEquals(ReadNodes.EVENT_NAME_READ_NODES, next.getName());
+        assertNotNull(((DBObject) next.getData()).get(ReadNodes.FIELD_LOADED_AT));
+
+        Thread.sleep(100L);
+        EventResult done = reader.processEvent(next);
+        assertEquals(ReadNodes.EVENT_NAME_READS_COMPLETE, done.getNextEvents().get(0).getName());
+        assertFalse(((String) ((DBObject) done.getData()).get("msg")).isEmpty());
+    }
+}
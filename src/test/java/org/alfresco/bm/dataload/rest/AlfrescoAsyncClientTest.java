@@ -0,0 +1,275 @@
+/*
+ * #%L
+ * Alfresco Benchmark Load Data
+ * %%
+ * Copyright (C) 2005 - 2018 Alfresco Software Limited
+ * %%
+ * This file is part of the Alfresco software.
+ * If the software was purchased under a paid Alfresco license, the terms of
+ * the paid license agreement will prevail.  Otherwise, the software is
+ * provided under the following open source license terms:
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+package org.alfresco.bm.dataload.rest;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import org.alfresco.bm.dataload.mock.LatencyDistribution;
+import org.alfresco.bm.dataload.mock.MockAlfrescoServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Sends requests to the {@link MockAlfrescoServer mock server} to check what reaches it and what comes back
+ *
+ * @see AlfrescoAsyncClient
+ * @since 3.0
+ */
+@RunWith(JUnit4.class)
+public class AlfrescoAsyncClientTest
+{
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private MockAlfrescoServer server;
+    private AlfrescoAsyncClient client;
+    private ExecutorService executor;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        server = new MockAlfrescoServer(0, 8);
+        server.start();
+        client = new AlfrescoAsyncClient("http://localhost:" + server.getPort(), 16, 2);
+        executor = Executors.newSingleThreadExecutor();
+    }
+
+    @After
+    public void tearDown() throws Exception
+    {
+        executor.shutdownNow();
+        client.destroy();
+        server.stop();
+    }
+
+    private File newFile(int size) throws IOException
+    {
+        File file = temporaryFolder.newFile();
+        try (FileOutputStream os = new FileOutputStream(file))
+        {
+            os.write(new byte[size]);
+        }
+        return file;
+    }
+
+    private static NodeMetadata titled()
+    {
+        Map<String, Object> properties = new LinkedHashMap<String, Object>();
+        properties.put("cm:title", "A title");
+        properties.put("cm:description", "Two\r\nlines");
+        return new NodeMetadata(null, properties, null);
+    }
+
+    @Test
+    public void uploadFileSendsMetadataAsFormFields() throws Exception
+    {
+        ApiResponse response = client.uploadFile("user1", "password", "folder1", "doc.txt", newFile(1024), titled()).get(10, TimeUnit.SECONDS);
+
+        assertTrue(response.toString(), response.isCreated());
+        JsonNode entry = response.getEntry();
+        assertEquals("doc.txt", entry.path("name").asText());
+        assertEquals("A title", entry.path("properties").path("cm:title").asText());
+        assertEquals("Two\r\nlines", entry.path("properties").path("cm:description").asText());
+        assertTrue(server.getBytesReceived() > 1024L);
+    }
+
+    @Test
+    public void uploadContentSendsMetadataAsFormFields() throws Exception
+    {
+        ApiResponse response = client.uploadContent("user1", "password", "folder1", "doc.txt", new ByteArrayInputStream(new byte[1024]), titled())
+            .get(10, TimeUnit.SECONDS);
+
+        assertTrue(response.toString(), response.isCreated());
+        JsonNode entry = response.getEntry();
+        assertEquals("doc.txt", entry.path("name").asText());
+        assertEquals("A title", entry.path("properties").path("cm:title").asText());
+        assertEquals("Two\r\nlines", entry.path("properties").path("cm:description").asText());
+    }
+
+    @Test
+    public void quotesAndLineBreaksInPartNamesAreRejected() throws Exception
+    {
+        for (String fileName : new String[] {"say \"hi\".txt", "doc.txt\r\nX-Injected: true", "doc.txt\n"})
+        {
+            try
+            {
+                client.uploadContent("user1", "password", "folder1", fileName, new ByteArrayInputStream(new byte[16]));
+                fail("Accepted file name: " + fileName);
+            }
+            catch (IllegalArgumentException e)
+            {
+                // Expected
+            }
+            try
+            {
+                client.uploadFile("user1", "password", "folder1", fileName, newFile(16));
+                fail("Accepted file name: " + fileName);
+            }
+            catch (IllegalArgumentException e)
+            {
+                // Expected
+            }
+        }
+        NodeMetadata badProperty = new NodeMetadata(null, Collections.<String, Object>singletonMap("cm:\"title\"", "A title"), null);
+        try
+        {
+            client.uploadContent("user1", "password", "folder1", "doc.txt", new ByteArrayInputStream(new byte[16]), badProperty);
+            fail("Accepted a quoted property name");
+        }
+        catch (IllegalArgumentException e)
+        {
+            // Expected
+        }
+        assertEquals(0L, server.getRequestCount());
+    }
+
+    @Test
+    public void createFoldersSendsOneListBody() throws Exception
+    {
+        NodeMetadata aspects = new NodeMetadata(Collections.singletonList("cm:titled"), Collections.<String, Object>singletonMap("cm:title", "First"), null);
+        List<NodeMetadata> metadata = Arrays.asList(aspects, null, null);
+
+        ApiResponse response = client.createFolders("user1", "password", "folder1", Arrays.asList("a", "b", "c"), metadata).get(10, TimeUnit.SECONDS);
+
+        assertTrue(response.toString(), response.isCreated());
+        List<JsonNode> entries = response.getEntries();
+        assertEquals(3, entries.size());
+        assertEquals("a", entries.get(0).path("name").asText());
+        assertEquals("b", entries.get(1).path("name").asText());
+        assertEquals("c", entries.get(2).path("name").asText());
+        assertTrue(entries.get(0).path("isFolder").asBoolean());
+        assertEquals("cm:titled", entries.get(0).path("aspectNames").get(0).asText());
+        assertEquals("First", entries.get(0).path("properties").path("cm:title").asText());
+        assertTrue(entries.get(1).path("properties").isMissingNode());
+        assertEquals(Long.valueOf(1L), server.getRequestCounts().get("POST nodes/children"));
+    }
+
+    /**
+     * Send requests one after the other with room for only one in flight; a leaked permit blocks the second
+     */
+    private void sendOneAtATime(final AlfrescoAsyncClient oneAtATime, final boolean expectFailure) throws Exception
+    {
+        Future<?> sending = executor.submit(() ->
+        {
+            for (int i = 0; i < 5; i++)
+            {
+                try
+                {
+                    ApiResponse response = oneAtATime.getNode("user1", "password", "node" + i).get(10, TimeUnit.SECONDS);
+                    assertEquals(500, response.getStatusCode());
+                    assertFalse(expectFailure);
+                }
+                catch (ExecutionException e)
+                {
+                    assertTrue(e.toString(), expectFailure);
+                }
+            }
+            return null;
+        });
+        sending.get(20, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void inFlightPermitIsReleasedOnFailure() throws Exception
+    {
+        int deadPort;
+        try (ServerSocket socket = new ServerSocket(0))
+        {
+            deadPort = socket.getLocalPort();
+        }
+        AlfrescoAsyncClient unreachable = new AlfrescoAsyncClient("http://localhost:" + deadPort, 1, 1);
+        try
+        {
+            sendOneAtATime(unreachable, true);
+        }
+        finally
+        {
+            unreachable.destroy();
+        }
+    }
+
+    @Test
+    public void inFlightPermitIsReleasedOnErrorResponse() throws Exception
+    {
+        server.setErrorRate(1.0);
+        AlfrescoAsyncClient oneAtATime = new AlfrescoAsyncClient("http://localhost:" + server.getPort(), 1, 1);
+        try
+        {
+            sendOneAtATime(oneAtATime, false);
+        }
+        finally
+        {
+            oneAtATime.destroy();
+        }
+        assertEquals(5L, server.getErrorCount());
+    }
+
+    @Test
+    public void timesSendingAndFirstByte() throws Exception
+    {
+        server.setLatency(LatencyDistribution.fixed(200L));
+
+        ApiResponse upload = client.uploadFile("user1", "password", "folder1", "doc.txt", newFile(65536)).get(10, TimeUnit.SECONDS);
+        assertTrue(upload.toString(), upload.isCreated());
+        long sentMillis = TimeUnit.NANOSECONDS.toMillis(upload.getSentNanos());
+        long firstByteMillis = TimeUnit.NANOSECONDS.toMillis(upload.getFirstByteNanos());
+        assertTrue("Sent after " + sentMillis + "ms", sentMillis < 200L);
+        assertTrue("First byte after " + firstByteMillis + "ms", firstByteMillis >= 200L);
+        assertTrue(upload.getElapsedNanos() >= upload.getFirstByteNanos());
+
+        // Without a body to write, the send time is no later than the first byte
+        ApiResponse read = client.getNode("user1", "password", "node1").get(10, TimeUnit.SECONDS);
+        assertTrue(read.toString(), read.isOk());
+        assertTrue(read.getSentNanos() <= read.getFirstByteNanos());
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(read.getFirstByteNanos()) >= 200L);
+        assertTrue(read.getElapsedNanos() >= read.getFirstByteNanos());
+    }
+}
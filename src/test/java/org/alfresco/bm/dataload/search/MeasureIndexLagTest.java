@@ -0,0 +1,347 @@
+/*
+ * #%L
+ * Alfresco Benchmark Load Data
+ * %%
+ * Copyright (C) 2005 - 2018 Alfresco Software Limited
+ * %%
+ * This file is part of the Alfresco software.
+ * If the software was purchased under a paid Alfresco license, the terms of
+ * the paid license agreement will prevail.  Otherwise, the software is
+ * provided under the following open source license terms:
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+package org.alfresco.bm.dataload.search;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DB;
+import com.mongodb.DBCollection;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+import org.alfresco.bm.common.EventResult;
+import org.alfresco.bm.dataload.mock.MockAlfrescoServer;
+import org.alfresco.bm.dataload.rest.AlfrescoAsyncClient;
+import org.alfresco.bm.driver.event.Event;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Measures index lag against the {@link MockAlfrescoServer mock server}, whose search finds every node asked for,
+ * with the samples kept in a mocked collection that holds its documents in memory
+ *
+ * @see MeasureIndexLag
+ * @see IndexSampleService
+ * @since 3.0
+ */
+@RunWith(JUnit4.class)
+public class MeasureIndexLagTest
+{
+    private Map<String, DBObject> documents;
+    private DBCollection collection;
+    private IndexSampleService indexSampleService;
+    private MockAlfrescoServer server;
+    private AlfrescoAsyncClient asyncClient;
+    private MeasureIndexLag measureIndexLag;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        documents = new LinkedHashMap<String, DBObject>();
+        collection = mock(DBCollection.class);
+        mockCollection();
+        DB db = mock(DB.class);
+        when(db.getCollection("indexsamples")).thenReturn(collection);
+        indexSampleService = new IndexSampleService(db, "indexsamples");
+        indexSampleService.setEnabled(true);
+        indexSampleService.setSampleEvery(1);
+
+        server = new MockAlfrescoServer(0, 8);
+        server.start();
+        asyncClient = new AlfrescoAsyncClient("http://localhost:" + server.getPort(), 16, 2);
+        measureIndexLag = new MeasureIndexLag(indexSampleService, asyncClient, "admin", "admin");
+        measureIndexLag.setPollDelay(0L);
+    }
+
+    @After
+    public void tearDown() throws Exception
+    {
+        asyncClient.destroy();
+        server.stop();
+    }
+
+    private void mockCollection()
+    {
+        when(collection.insert(any(DBObject.class))).thenAnswer(invocation ->
+        {
+            DBObject sample = (DBObject) invocation.getArguments()[0];
+            documents.put((String) sample.get(IndexSampleService.FIELD_NODE_ID), sample);
+            return null;
+        });
+        when(collection.update(any(DBObject.class), any(DBObject.class))).thenAnswer(invocation ->
+        {
+            DBObject document = documents.get(((DBObject) invocation.getArguments()[0]).get(IndexSampleService.FIELD_NODE_ID));
+            if (document != null)
+            {
+                document.putAll((DBObject) ((DBObject) invocation.getArguments()[1]).get("$set"));
+            }
+            return null;
+        });
+        when(collection.find(any(DBObject.class))).thenAnswer(invocation -> cursor((DBObject) invocation.getArguments()[0]));
+        when(collection.find(any(DBObject.class), any(DBObject.class))).thenAnswer(invocation -> cursor((DBObject) invocation.getArguments()[0]));
+    }
+
+    /**
+     * A cursor over the documents matching the few queries that the service makes, sorted by creation time if asked
+     */
+    private DBCursor cursor(DBObject query)
+    {
+        final List<DBObject> found = new ArrayList<DBObject>();
+        for (DBObject document : documents.values())
+        {
+            if (query.containsField(IndexSampleService.FIELD_MEASURED) && !Boolean.TRUE.equals(document.get(IndexSampleService.FIELD_MEASURED)))
+            {
+                continue;
+            }
+            if (query.containsField(IndexSampleService.FIELD_INDEXED)
+                && (query.get(IndexSampleService.FIELD_INDEXED) == null) != (document.get(IndexSampleService.FIELD_INDEXED) == null))
+            {
+                continue;
+            }
+            found.add(document);
+        }
+        final int[] limit = { Integer.MAX_VALUE };
+        final DBCursor cursor = mock(DBCursor.class);
+        when(cursor.sort(any(DBObject.class))).thenAnswer(invocation ->
+        {
+            int direction = ((Number) ((DBObject) invocation.getArguments()[0]).get(IndexSampleService.FIELD_CREATED)).intValue();
+            Collections.sort(found, Comparator.comparingLong(document -> direction * ((Number) document.get(IndexSampleService.FIELD_CREATED)).longValue()));
+            return cursor;
+        });
+        when(cursor.limit(anyInt())).thenAnswer(invocation ->
+        {
+            limit[0] = (Integer) invocation.getArguments()[0];
+            return cursor;
+        });
+        when(cursor.iterator()).thenAnswer(invocation -> found.subList(0, Math.min(limit[0], found.size())).iterator());
+        return cursor;
+    }
+
+    /**
+     * Record a sample that has been chosen for measurement
+     */
+    private void measured(String nodeId, long created, Long indexed, int round)
+    {
+        DBObject sample = new BasicDBObject(IndexSampleService.FIELD_NODE_ID, nodeId);
+        sample.put(IndexSampleService.FIELD_CREATED, created);
+        sample.put(IndexSampleService.FIELD_MEASURED, Boolean.TRUE);
+        if (indexed != null)
+        {
+            sample.put(IndexSampleService.FIELD_INDEXED, indexed);
+            sample.put(IndexSampleService.FIELD_ROUND, round);
+        }
+        documents.put(nodeId, sample);
+    }
+
+    private Event roundEvent(int round, long started, int samples)
+    {
+        DBObject data = new BasicDBObject(MeasureIndexLag.FIELD_ROUND, round);
+        data.put(MeasureIndexLag.FIELD_STARTED, started);
+        data.put(MeasureIndexLag.FIELD_SAMPLES, samples);
+        return new Event(MeasureIndexLag.EVENT_NAME_MEASURE_INDEX_LAG, data);
+    }
+
+    @Test
+    public void keepsOneNodeInEveryN()
+    {
+        indexSampleService.setSampleEvery(3);
+        for (int i = 1; i <= 10; i++)
+        {
+            indexSampleService.offer("node" + i, i);
+        }
+        assertEquals(3, documents.size());
+        assertTrue(documents.containsKey("node3"));
+        assertTrue(documents.containsKey("node6"));
+        assertTrue(documents.containsKey("node9"));
+
+        indexSampleService.setEnabled(false);
+        indexSampleService.offer("node12", 12L);
+        assertEquals(3, documents.size());
+    }
+
+    @Test
+    public void measuresTheMostRecentSamples()
+    {
+        for (int i = 0; i < 10; i++)
+        {
+            indexSampleService.offer("node" + i, 1000L + i);
+        }
+
+        assertEquals(4, indexSampleService.chooseSamples(4));
+
+        List<String> pending = indexSampleService.getPendingNodeIds();
+        assertEquals(4, pending.size());
+        for (int i = 6; i < 10; i++)
+        {
+            assertTrue(pending.contains("node" + i));
+        }
+        indexSampleService.markIndexed("node9", 2000L, 0);
+        assertEquals(3, indexSampleService.getPendingNodeIds().size());
+        List<long[]> indexed = indexSampleService.getIndexedSamples();
+        assertEquals(1, indexed.size());
+        assertEquals(1009L, indexed.get(0)[0]);
+        assertEquals(2000L, indexed.get(0)[1]);
+        assertEquals(0L, indexed.get(0)[2]);
+    }
+
+    @Test
+    public void creationRateLeavesOutGapsBetweenRuns()
+    {
+        indexSampleService.setSampleEvery(10);
+        // Ten samples 100ms apart, a long break and ten more: each sample stands for ten nodes
+        long created = 0L;
+        for (int i = 0; i < 200; i++)
+        {
+            if (i == 100)
+            {
+                created += 60000L;
+            }
+            indexSampleService.offer("node" + i, created);
+            created += 10L;
+        }
+        assertEquals(20, documents.size());
+
+        // 18 intervals of 100ms, each covering ten nodes
+        assertEquals(100.0, indexSampleService.getCreationRate(1000L), 0.001);
+    }
+
+    @Test
+    public void findsEveryNodeOnTheFirstPoll() throws Exception
+    {
+        long base = System.currentTimeMillis() - 10000L;
+        for (int i = 0; i < 100; i++)
+        {
+            indexSampleService.offer("node" + i, base - i * 10L);
+        }
+
+        EventResult result = measureIndexLag.processEvent(new Event(MeasureIndexLag.EVENT_NAME_MEASURE_INDEX_LAG, null));
+
+        assertEquals(MeasureIndexLag.EVENT_NAME_INDEX_LAG_MEASURED, result.getNextEvents().get(0).getName());
+        DBObject data = (DBObject) result.getData();
+        assertEquals(100, data.get("samples"));
+        assertEquals(100, data.get("indexed"));
+        assertEquals(0, data.get("notIndexed"));
+        assertEquals(100, data.get("indexedOnFirstPoll"));
+        // Every node was found at the same moment, so the lags differ only by when the nodes were created
+        DBObject lag = (DBObject) data.get("lag");
+        long p50 = (Long) lag.get("p50");
+        assertTrue(p50 >= 10000L);
+        assertEquals(p50 + 400L, lag.get("p90"));
+        assertEquals(p50 + 450L, lag.get("p95"));
+        assertEquals(p50 + 490L, lag.get("p99"));
+        assertEquals(p50 + 500L, lag.get("max"));
+        long timeTo99Percent = (Long) data.get("timeTo99Percent");
+        assertTrue(timeTo99Percent >= 0L && timeTo99Percent <= (Long) data.get("elapsed"));
+        // Two queries of 50 IDs each
+        assertEquals(Long.valueOf(2L), server.getRequestCounts().get("POST search"));
+    }
+
+    @Test
+    public void summarisesLagPercentilesAndTheTimeTo99Percent() throws Exception
+    {
+        // 99 of 100 nodes were found, 100ms apart, the first ten on the first poll
+        long started = 5000L;
+        for (int i = 0; i < 99; i++)
+        {
+            measured("node" + i, 1000L, 1000L + (i + 1) * 100L, i < 10 ? 0 : 1);
+        }
+        measured("missing", 1000L, null, 0);
+        server.setErrorRate(1.0);
+        measureIndexLag.setTimeout(0L);
+
+        EventResult result = measureIndexLag.processEvent(roundEvent(2, started, 100));
+
+        assertEquals(MeasureIndexLag.EVENT_NAME_INDEX_LAG_MEASURED, result.getNextEvents().get(0).getName());
+        DBObject data = (DBObject) result.getData();
+        assertEquals(99, data.get("indexed"));
+        assertEquals(1, data.get("notIndexed"));
+        assertEquals(10, data.get("indexedOnFirstPoll"));
+        DBObject lag = (DBObject) data.get("lag");
+        assertEquals(5000L, lag.get("p50"));
+        assertEquals(9000L, lag.get("p90"));
+        assertEquals(9500L, lag.get("p95"));
+        assertEquals(9900L, lag.get("p99"));
+        assertEquals(9900L, lag.get("max"));
+        // The 99th node was found at 10900, 5900ms after measuring started
+        assertEquals(5900L, data.get("timeTo99Percent"));
+    }
+
+    @Test
+    public void tooFewFoundHasNoTimeTo99Percent() throws Exception
+    {
+        for (int i = 0; i < 98; i++)
+        {
+            measured("node" + i, 1000L, 2000L, 0);
+        }
+        measured("missing1", 1000L, null, 0);
+        measured("missing2", 1000L, null, 0);
+        server.setErrorRate(1.0);
+        measureIndexLag.setTimeout(0L);
+
+        EventResult result = measureIndexLag.processEvent(roundEvent(1, 1000L, 100));
+
+        DBObject data = (DBObject) result.getData();
+        assertEquals(98, data.get("indexed"));
+        assertEquals(2, data.get("notIndexed"));
+        assertNull(data.get("timeTo99Percent"));
+    }
+
+    @Test
+    public void pollsAgainUntilEveryNodeIsFound() throws Exception
+    {
+        measured("node1", 1000L, null, 0);
+        server.setErrorRate(1.0);
+
+        EventResult result = measureIndexLag.processEvent(roundEvent(0, System.currentTimeMillis(), 1));
+
+        Event next = result.getNextEvents().get(0);
+        assertEquals(MeasureIndexLag.EVENT_NAME_MEASURE_INDEX_LAG, next.getName());
+        assertEquals(1, ((DBObject) next.getData()).get(MeasureIndexLag.FIELD_ROUND));
+
+        server.setErrorRate(0.0);
+        result = measureIndexLag.processEvent(next);
+        assertEquals(MeasureIndexLag.EVENT_NAME_INDEX_LAG_MEASURED, result.getNextEvents().get(0).getName());
+        DBObject data = (DBObject) result.getData();
+        assertEquals(1, data.get("indexed"));
+        assertEquals(0, data.get("indexedOnFirstPoll"));
+    }
+}
@@ -0,0 +1,178 @@
+/*
+ * #%L
+ * Alfresco Benchmark Load Data
+ * %%
+ * Copyright (C) 2005 - 2018 Alfresco Software Limited
+ * %%
+ * This file is part of the Alfresco software.
+ * If the software was purchased under a paid Alfresco license, the terms of
+ * the paid license agreement will prevail.  Otherwise, the software is
+ * provided under the following open source license terms:
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+package org.alfresco.bm.dataload.sites;
+
+import org.alfresco.bm.common.EventResult;
+import org.alfresco.bm.data.DataCreationState;
+import org.alfresco.bm.site.SiteData;
+import org.alfresco.bm.site.SiteDataService;
+import org.alfresco.bm.site.SiteMemberData;
+import org.alfresco.bm.user.UserData;
+import org.alfresco.bm.user.UserDataService;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.isNull;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * @see PrepareSites
+ * @since 3.0
+ */
+@RunWith(JUnit4.class)
+public class PrepareSitesTest
+{
+    private SiteDataService siteDataService;
+    private PrepareSites prepareSites;
+    private List<SiteData> existingSites;
+
+    @Before
+    public void setUp()
+    {
+        existingSites = new ArrayList<SiteData>();
+        siteDataService = mock(SiteDataService.class);
+        when(siteDataService.getSites((String) isNull(), (DataCreationState) isNull(), anyInt(), anyInt())).thenAnswer(invocation ->
+        {
+            int skip = (Integer) invocation.getArguments()[2];
+            int count = (Integer) invocation.getArguments()[3];
+            int from = Math.min(skip, existingSites.size());
+            return new ArrayList<SiteData>(existingSites.subList(from, Math.min(from + count, existingSites.size())));
+        });
+
+        UserData user = mock(UserData.class);
+        when(user.getUsername()).thenReturn("user1@d.com");
+        when(user.getDomain()).thenReturn("d.com");
+        UserDataService userDataService = mock(UserDataService.class);
+        when(userDataService.getRandomUser()).thenReturn(user);
+
+        prepareSites = new PrepareSites(userDataService, siteDataService);
+        prepareSites.setPageSize(2);
+    }
+
+    private void addExistingSite(String siteId, DataCreationState state)
+    {
+        SiteData site = mock(SiteData.class);
+        when(site.getSiteId()).thenReturn(siteId);
+        when(site.getCreationState()).thenReturn(state);
+        existingSites.add(site);
+    }
+
+    @Test
+    public void countsOnlySitesInTheFormat() throws Exception
+    {
+        addExistingSite("Site-a.com-00000", DataCreationState.Created);
+        addExistingSite("swsdp", DataCreationState.Created);
+        addExistingSite("Site-b.com-00004", DataCreationState.Failed);
+        addExistingSite("Other-c.com-00009", DataCreationState.Created);
+        addExistingSite("Site-c.com-00002", DataCreationState.Scheduled);
+        prepareSites.setSitesCount(4);
+
+        EventResult result = prepareSites.processEvent(null);
+
+        // Two valid sites of ours, so two more are numbered on from the highest of ours
+        assertTrue(result.isSuccess());
+        verify(siteDataService, times(2)).addSite(any(SiteData.class));
+        verify(siteDataService, times(2)).addSiteMember(any(SiteMemberData.class));
+        verify(siteDataService).getSite("Site-d.com-00005");
+        verify(siteDataService).getSite("Site-d.com-00006");
+        verify(siteDataService, times(2)).getSite(anyString());
+    }
+
+    @Test
+    public void readsEveryPage() throws Exception
+    {
+        addExistingSite("Site-a.com-00000", DataCreationState.Created);
+        addExistingSite("Site-a.com-00001", DataCreationState.Created);
+        addExistingSite("Site-a.com-00002", DataCreationState.Created);
+        addExistingSite("Site-a.com-00003", DataCreationState.Created);
+        prepareSites.setSitesCount(4);
+
+        prepareSites.processEvent(null);
+
+        verify(siteDataService).getSites(null, null, 0, 2);
+        verify(siteDataService).getSites(null, null, 2, 2);
+        verify(siteDataService).getSites(null, null, 4, 2);
+        verify(siteDataService, never()).addSite(any(SiteData.class));
+    }
+
+    @Test
+    public void startsFromZeroWhenEmpty() throws Exception
+    {
+        prepareSites.setSitesCount(1);
+
+        prepareSites.processEvent(null);
+
+        verify(siteDataService).getSite("Site-d.com-00000");
+        verify(siteDataService).addSite(any(SiteData.class));
+    }
+
+    @Test
+    public void sitePatternFromFormat()
+    {
+        Pattern pattern = PrepareSites.getSitePattern("Site-%s-%05d");
+        Matcher matcher = pattern.matcher("Site-example.com-00123");
+        assertTrue(matcher.matches());
+        assertEquals("00123", matcher.group(1));
+        assertFalse(pattern.matcher("Site-example.com-abc").matches());
+        assertFalse(pattern.matcher("MySite-example.com-00123").matches());
+
+        // Characters special to patterns are taken literally and arguments may be given out of order
+        pattern = PrepareSites.getSitePattern("s.%2$d.%1$s");
+        assertTrue(pattern.matcher("s.7.example.com").matches());
+        assertFalse(pattern.matcher("sx7.example.com").matches());
+
+        for (String format : Arrays.asList("Site-%s", "Site-%s-%05x", "%d-%s"))
+        {
+            try
+            {
+                PrepareSites.getSitePattern(format);
+                throw new AssertionError("Format without a site number accepted: " + format);
+            }
+            catch (IllegalArgumentException e)
+            {
+                // Expected
+            }
+        }
+    }
+}
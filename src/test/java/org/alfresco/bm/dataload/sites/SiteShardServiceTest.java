@@ -0,0 +1,303 @@
+/*
+ * #%L
+ * Alfresco Benchmark Load Data
+ * %%
+ * Copyright (C) 2005 - 2018 Alfresco Software Limited
+ * %%
+ * This file is part of the Alfresco software.
+ * If the software was purchased under a paid Alfresco license, the terms of
+ * the paid license agreement will prevail.  Otherwise, the software is
+ * provided under the following open source license terms:
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+package org.alfresco.bm.dataload.sites;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DB;
+import com.mongodb.DBCollection;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+import com.mongodb.WriteResult;
+import org.alfresco.bm.cm.FileFolderService;
+import org.alfresco.bm.common.EventResult;
+import org.alfresco.bm.common.session.SessionService;
+import org.alfresco.bm.dataload.files.ScheduleSiteLoaders;
+import org.alfresco.bm.driver.event.Event;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyBoolean;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verifyZeroInteractions;
+import static org.mockito.Mockito.when;
+
+/**
+ * Runs two drivers against a mocked collection that keeps its documents in memory
+ *
+ * @see SiteShardService
+ * @since 3.0
+ */
+@RunWith(JUnit4.class)
+public class SiteShardServiceTest
+{
+    private static final String PHASE = ScheduleSiteLoaders.EVENT_NAME_SCHEDULE_LOADERS;
+    private static final long HEARTBEAT_INTERVAL = 50L;
+
+    private Map<Object, DBObject> documents;
+    private DB db;
+    private SiteShardService driverA;
+    private SiteShardService driverB;
+
+    @Before
+    public void setUp()
+    {
+        documents = new TreeMap<Object, DBObject>();
+        DBCollection collection = mock(DBCollection.class);
+        mockCollection(collection);
+        db = mock(DB.class);
+        when(db.getCollection("shards")).thenReturn(collection);
+
+        driverA = newDriver();
+        driverB = newDriver();
+    }
+
+    @After
+    public void tearDown()
+    {
+        driverA.destroy();
+        driverB.destroy();
+    }
+
+    private SiteShardService newDriver()
+    {
+        SiteShardService driver = new SiteShardService(db, "shards");
+        driver.setEnabled(true);
+        driver.setHeartbeatInterval(HEARTBEAT_INTERVAL);
+        driver.afterPropertiesSet();
+        return driver;
+    }
+
+    private void mockCollection(DBCollection collection)
+    {
+        when(collection.update(any(DBObject.class), any(DBObject.class), anyBoolean(), anyBoolean())).thenAnswer(invocation ->
+            update((DBObject) invocation.getArguments()[0], (DBObject) invocation.getArguments()[1], (Boolean) invocation.getArguments()[2]));
+        when(collection.update(any(DBObject.class), any(DBObject.class))).thenAnswer(invocation ->
+            update((DBObject) invocation.getArguments()[0], (DBObject) invocation.getArguments()[1], false));
+        when(collection.findOne(any(DBObject.class))).thenAnswer(invocation ->
+        {
+            List<DBObject> found = find((DBObject) invocation.getArguments()[0]);
+            return found.isEmpty() ? null : found.get(0);
+        });
+        when(collection.findAndModify(any(DBObject.class), any(DBObject.class), any(DBObject.class), anyBoolean(), any(DBObject.class), anyBoolean(),
+            anyBoolean())).thenAnswer(invocation ->
+        {
+            DBObject query = (DBObject) invocation.getArguments()[0];
+            update(query, (DBObject) invocation.getArguments()[4], (Boolean) invocation.getArguments()[6]);
+            List<DBObject> found = find(query);
+            return found.isEmpty() ? null : found.get(0);
+        });
+        when(collection.find(any(DBObject.class), any(DBObject.class))).thenAnswer(invocation ->
+        {
+            // Documents are kept in ID order, so sorting is left out
+            DBCursor cursor = mock(DBCursor.class);
+            when(cursor.sort(any(DBObject.class))).thenReturn(cursor);
+            when(cursor.iterator()).thenReturn(find((DBObject) invocation.getArguments()[0]).iterator());
+            return cursor;
+        });
+        when(collection.remove(any(DBObject.class))).thenAnswer(invocation ->
+        {
+            synchronized (documents)
+            {
+                documents.remove(((DBObject) invocation.getArguments()[0]).get("_id"));
+            }
+            return null;
+        });
+    }
+
+    /**
+     * Match documents on equal values and the <b>$gte</b>, <b>$ne</b> and <b>$size</b> operators used by the service
+     */
+    private List<DBObject> find(DBObject query)
+    {
+        List<DBObject> found = new ArrayList<DBObject>();
+        synchronized (documents)
+        {
+            for (DBObject document : documents.values())
+            {
+                boolean matches = true;
+                for (String field : query.keySet())
+                {
+                    Object expected = query.get(field);
+                    Object actual = document.get(field);
+                    if (expected instanceof DBObject)
+                    {
+                        DBObject operator = (DBObject) expected;
+                        if (operator.containsField("$gte"))
+                        {
+                            matches &= actual != null && ((Number) actual).longValue() >= ((Number) operator.get("$gte")).longValue();
+                        }
+                        if (operator.containsField("$ne"))
+                        {
+                            matches &= actual == null || !((Collection<?>) actual).contains(operator.get("$ne"));
+                        }
+                        if (operator.containsField("$size"))
+                        {
+                            matches &= actual != null && ((Collection<?>) actual).size() == (Integer) operator.get("$size");
+                        }
+                    }
+                    else
+                    {
+                        matches &= expected.equals(actual);
+                    }
+                }
+                if (matches)
+                {
+                    found.add(document);
+                }
+            }
+        }
+        return found;
+    }
+
+    @SuppressWarnings("unchecked")
+    private WriteResult update(DBObject query, DBObject update, boolean upsert)
+    {
+        List<DBObject> found = find(query);
+        if (found.isEmpty() && upsert)
+        {
+            DBObject document = new BasicDBObject("_id", query.get("_id"));
+            synchronized (documents)
+            {
+                documents.put(query.get("_id"), document);
+            }
+            found.add(document);
+        }
+        for (DBObject document : found)
+        {
+            if (update.containsField("$set"))
+            {
+                document.putAll((DBObject) update.get("$set"));
+            }
+            else if (update.containsField("$addToSet"))
+            {
+                DBObject addToSet = (DBObject) update.get("$addToSet");
+                for (String field : addToSet.keySet())
+                {
+                    List<Object> values = new ArrayList<Object>((Collection<Object>) document.get(field));
+                    if (!values.contains(addToSet.get(field)))
+                    {
+                        values.add(addToSet.get(field));
+                    }
+                    document.put(field, values);
+                }
+            }
+            else
+            {
+                document.putAll(update);
+            }
+        }
+        WriteResult result = mock(WriteResult.class);
+        when(result.getN()).thenReturn(found.size());
+        return result;
+    }
+
+    private Event getShardEvent(List<Event> events, String shard)
+    {
+        for (Event event : events)
+        {
+            if (shard.equals(SiteShardService.getShard(event)))
+            {
+                return event;
+            }
+        }
+        throw new AssertionError("No event for shard " + shard + " in " + events);
+    }
+
+    @Test
+    public void eachDriverKeepsOnlyItsOwnShard()
+    {
+        List<Event> events = driverA.startPhase(PHASE, PHASE);
+        assertEquals(2, events.size());
+
+        for (SiteShardService driver : Arrays.asList(driverA, driverB))
+        {
+            for (SiteShardService owner : Arrays.asList(driverA, driverB))
+            {
+                Event event = getShardEvent(events, owner.getDriverId());
+                List<Event> handOverEvents = driver.handOver(PHASE, event);
+                if (driver == owner)
+                {
+                    assertNull(handOverEvents);
+                }
+                else
+                {
+                    // Put back for the owner
+                    assertEquals(1, handOverEvents.size());
+                    assertEquals(PHASE, handOverEvents.get(0).getName());
+                    assertEquals(owner.getDriverId(), SiteShardService.getShard(handOverEvents.get(0)));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void processorsDoNoWorkForOtherDrivers() throws Exception
+    {
+        List<Event> events = driverA.startPhase(PHASE, PHASE);
+        SessionService sessionService = mock(SessionService.class);
+        FileFolderService fileFolderService = mock(FileFolderService.class);
+        ScheduleSiteLoaders scheduleSiteLoaders = new ScheduleSiteLoaders(sessionService, fileFolderService, 2, 2, 10, 4, 1000L);
+        scheduleSiteLoaders.setSiteShardService(driverA);
+
+        EventResult result = scheduleSiteLoaders.processEvent(getShardEvent(events, driverB.getDriverId()));
+
+        verifyZeroInteractions(sessionService, fileFolderService);
+        assertEquals(1, result.getNextEvents().size());
+        assertEquals(driverB.getDriverId(), SiteShardService.getShard(result.getNextEvents().get(0)));
+    }
+
+    @Test
+    public void departedDriversShardIsRebalanced() throws Exception
+    {
+        List<Event> events = driverA.startPhase(PHASE, PHASE);
+        Event eventB = getShardEvent(events, driverB.getDriverId());
+        driverB.destroy();
+        // Let driver A see the ring without B
+        Thread.sleep(HEARTBEAT_INTERVAL * 2);
+
+        // Driver A finishes for the driver that left, but the phase waits for A's own chain
+        assertTrue(driverA.handOver(PHASE, eventB).isEmpty());
+        List<Event> restartEvents = driverA.completeShard(PHASE, driverA.getDriverId(), PHASE, false);
+        assertNotNull(restartEvents);
+        assertEquals(1, restartEvents.size());
+        assertEquals(driverA.getDriverId(), SiteShardService.getShard(restartEvents.get(0)));
+    }
+}
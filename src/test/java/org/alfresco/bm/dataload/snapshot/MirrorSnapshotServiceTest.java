@@ -0,0 +1,283 @@
+/*
+ * #%L
+ * Alfresco Benchmark Load Data
+ * %%
+ * Copyright (C) 2005 - 2018 Alfresco Software Limited
+ * %%
+ * This file is part of the Alfresco software.
+ * If the software was purchased under a paid Alfresco license, the terms of
+ * the paid license agreement will prevail.  Otherwise, the software is
+ * provided under the following open source license terms:
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+package org.alfresco.bm.dataload.snapshot;
+
+import com.mongodb.DB;
+import com.mongodb.DBCollection;
+import com.mongodb.DBCursor;
+import org.alfresco.bm.cm.FolderData;
+import org.alfresco.bm.data.DataCreationState;
+import org.alfresco.bm.dataload.files.EmbeddedFileFolderService;
+import org.alfresco.bm.dataload.files.ScheduleVersionLoaders;
+import org.alfresco.bm.site.SiteData;
+import org.alfresco.bm.site.SiteDataService;
+import org.alfresco.bm.site.SiteMemberData;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Matchers.isNull;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Exports mocked site mirrors and an embedded file-folder mirror and imports them into fresh ones
+ *
+ * @see MirrorSnapshotService
+ * @since 3.0
+ */
+@RunWith(JUnit4.class)
+public class MirrorSnapshotServiceTest
+{
+    private static final String DOC_LIB = "/Sites/site1/documentLibrary";
+    private static final int CHUNK_SIZE = 2;
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private File directory;
+    private EmbeddedFileFolderService source;
+    private List<FolderData> folders;
+    private SiteDataService sourceSites;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        directory = new File(temporaryFolder.getRoot(), "snapshot");
+
+        // Three sites in two chunks, with a member each
+        sourceSites = mock(SiteDataService.class);
+        List<SiteData> sites = new ArrayList<SiteData>();
+        for (int i = 1; i <= 3; i++)
+        {
+            SiteData site = mock(SiteData.class);
+            when(site.getSiteId()).thenReturn("site" + i);
+            when(site.getCreationState()).thenReturn(DataCreationState.Created);
+            sites.add(site);
+            SiteMemberData member = mock(SiteMemberData.class);
+            when(member.getSiteId()).thenReturn("site" + i);
+            when(member.getUsername()).thenReturn("user" + i);
+            when(member.getRole()).thenReturn("SiteManager");
+            when(sourceSites.getSiteMembers(eq("site" + i), (DataCreationState) isNull(), (String) isNull(), anyInt(), anyInt()))
+                .thenReturn(Arrays.asList(member));
+        }
+        when(sourceSites.countSites(null, null)).thenReturn(3L);
+        when(sourceSites.getSites((String) isNull(), (DataCreationState) isNull(), eq(0), eq(CHUNK_SIZE))).thenReturn(sites.subList(0, 2));
+        when(sourceSites.getSites((String) isNull(), (DataCreationState) isNull(), eq(2), eq(CHUNK_SIZE))).thenReturn(sites.subList(2, 3));
+
+        // A document library with five subfolders, two of which have had versions loaded
+        source = newMirror();
+        folders = new ArrayList<FolderData>();
+        folders.add(new FolderData("doclib", "", DOC_LIB, 5L, 3L));
+        for (int i = 1; i <= 5; i++)
+        {
+            folders.add(new FolderData("folder" + i, "", DOC_LIB + "/folder" + i, 0L, 10L + i));
+        }
+        folders.add(new FolderData("versions1", ScheduleVersionLoaders.CONTEXT_VERSIONS, DOC_LIB + "/folder1", 11L, 22L));
+        folders.add(new FolderData("versions2", ScheduleVersionLoaders.CONTEXT_VERSIONS, DOC_LIB + "/folder2", 12L, 0L));
+        for (FolderData folder : folders)
+        {
+            source.createNewFolder(folder);
+        }
+    }
+
+    private static EmbeddedFileFolderService newMirror() throws Exception
+    {
+        // An empty Mongo collection, so the mirror starts empty
+        DBCursor cursor = mock(DBCursor.class);
+        when(cursor.batchSize(anyInt())).thenReturn(cursor);
+        DBCollection collection = mock(DBCollection.class);
+        when(collection.find()).thenReturn(cursor);
+        DB db = mock(DB.class);
+        when(db.getCollection("filefolders")).thenReturn(collection);
+        EmbeddedFileFolderService mirror = new EmbeddedFileFolderService(db, "filefolders", "jdbc:h2:mem:" + UUID.randomUUID());
+        mirror.afterPropertiesSet();
+        return mirror;
+    }
+
+    private Map<String, Integer> export() throws IOException
+    {
+        MirrorSnapshotService exporter = new MirrorSnapshotService(sourceSites, source);
+        exporter.setChunkSize(CHUNK_SIZE);
+        exporter.setMaxLevel(6);
+        return exporter.exportSnapshot(directory);
+    }
+
+    @Test
+    public void exportAndImportRoundTrip() throws Exception
+    {
+        Map<String, Integer> exported = export();
+
+        assertEquals(Integer.valueOf(2), exported.get("1-sites-00000.chunk"));
+        assertEquals(Integer.valueOf(1), exported.get("1-sites-00001.chunk"));
+        assertEquals(Integer.valueOf(2), exported.get("2-members-00000.chunk"));
+        assertEquals(Integer.valueOf(1), exported.get("2-members-00001.chunk"));
+        int folderRecords = 0;
+        for (Map.Entry<String, Integer> chunk : exported.entrySet())
+        {
+            assertTrue(new File(directory, chunk.getKey()).isFile());
+            if (chunk.getKey().startsWith("3-folders"))
+            {
+                assertTrue(chunk.getValue() <= CHUNK_SIZE);
+                folderRecords += chunk.getValue();
+            }
+        }
+        assertEquals(folders.size(), folderRecords);
+        assertTrue(new File(directory, MirrorSnapshotService.MANIFEST).isFile());
+
+        SiteDataService targetSites = mock(SiteDataService.class);
+        EmbeddedFileFolderService target = newMirror();
+        MirrorSnapshotService importer = new MirrorSnapshotService(targetSites, target);
+        importer.setChunkSize(CHUNK_SIZE);
+
+        Map<String, Integer> imported = importer.importSnapshot(directory);
+
+        assertEquals(exported, imported);
+        verify(targetSites, times(3)).addSite(any(SiteData.class));
+        verify(targetSites, times(3)).addSiteMember(any(SiteMemberData.class));
+        for (FolderData folder : folders)
+        {
+            FolderData copy = target.getFolder(folder.getContext(), folder.getPath());
+            assertNotNull("Not imported: " + folder, copy);
+            assertEquals(folder.getId(), copy.getId());
+            assertEquals(folder.getFolderCount(), copy.getFolderCount());
+            assertEquals(folder.getFileCount(), copy.getFileCount());
+        }
+    }
+
+    @Test
+    public void importLeavesExistingRecordsAlone() throws Exception
+    {
+        export();
+        SiteDataService targetSites = mock(SiteDataService.class);
+        when(targetSites.getSite(anyString())).thenReturn(mock(SiteData.class));
+        when(targetSites.getSiteMember(anyString(), anyString())).thenReturn(mock(SiteMemberData.class));
+
+        new MirrorSnapshotService(targetSites, newMirror()).importSnapshot(directory);
+
+        verify(targetSites, never()).addSite(any(SiteData.class));
+        verify(targetSites, never()).addSiteMember(any(SiteMemberData.class));
+    }
+
+    @Test
+    public void checksumMismatchStopsTheImport() throws Exception
+    {
+        Map<String, Integer> exported = export();
+        // Change the file count of the document library, which keeps the chunk readable but not its checksum
+        String doclibChunk = "3-folders-0-03-00000.chunk";
+        assertEquals(Integer.valueOf(1), exported.get(doclibChunk));
+        File chunkFile = new File(directory, doclibChunk);
+        byte[] content = gunzip(chunkFile);
+        content[content.length - 9] ^= 0x01;
+        gzip(chunkFile, content);
+
+        SiteDataService targetSites = mock(SiteDataService.class);
+        EmbeddedFileFolderService target = newMirror();
+        try
+        {
+            new MirrorSnapshotService(targetSites, target).importSnapshot(directory);
+            fail("The corrupt chunk was imported");
+        }
+        catch (IOException e)
+        {
+            assertTrue(e.getMessage(), e.getMessage().startsWith("Checksum mismatch in snapshot chunk"));
+        }
+        // Nothing from the corrupt chunk or the levels below it reached the mirror
+        assertNull(target.getFolder("", DOC_LIB));
+        assertNull(target.getFolder("", DOC_LIB + "/folder1"));
+    }
+
+    @Test
+    public void incompleteExportCannotBeImported() throws Exception
+    {
+        export();
+        assertTrue(new File(directory, MirrorSnapshotService.MANIFEST).delete());
+        try
+        {
+            new MirrorSnapshotService(mock(SiteDataService.class), newMirror()).importSnapshot(directory);
+            fail("A snapshot without a manifest was imported");
+        }
+        catch (IOException e)
+        {
+            assertTrue(e.getMessage(), e.getMessage().startsWith("No complete snapshot"));
+        }
+        assertFalse(new File(directory, MirrorSnapshotService.MANIFEST).exists());
+    }
+
+    private static byte[] gunzip(File file) throws IOException
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (InputStream in = new GZIPInputStream(new FileInputStream(file)))
+        {
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) != -1)
+            {
+                out.write(buffer, 0, read);
+            }
+        }
+        return out.toByteArray();
+    }
+
+    private static void gzip(File file, byte[] content) throws IOException
+    {
+        try (OutputStream out = new GZIPOutputStream(new FileOutputStream(file)))
+        {
+            out.write(content);
+        }
+    }
+}